@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.benchmarks;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.speech.tools.voxetta.data.StatusResponse;
+import com.google.speech.tools.voxetta.data.Utterance;
+import com.google.speech.tools.voxetta.embedded.EmbeddedStore;
+import com.google.speech.tools.voxetta.embedded.LocalAudioStore;
+import com.google.speech.tools.voxetta.services.DatastorePromptService;
+import com.google.speech.tools.voxetta.services.DatastoreUtteranceService;
+import com.google.speech.tools.voxetta.services.EmbeddedPromptService;
+import com.google.speech.tools.voxetta.services.EmbeddedUtteranceService;
+import com.google.speech.tools.voxetta.services.PromptService;
+import com.google.speech.tools.voxetta.services.UtteranceService;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs the same prompt and utterance workload against each storage backend.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BackendBenchmark {
+
+    // Recording steps per recordPrompt iteration; the same number of prompts is seeded before
+    // each one.
+    private static final int STEPS_PER_ITERATION = 5000;
+
+    @Param({"datastore", "embedded"})
+    public String backend;
+
+    private final LocalServices services = new LocalServices();
+    private Path dataDirectory;
+    private EmbeddedStore store;
+    private PromptService promptService;
+    private UtteranceService utteranceService;
+    private int saved;
+
+    @Setup(Level.Trial)
+    public void setUpBackend() throws IOException {
+        services.setUp();
+        if (backend.equals("embedded")) {
+            dataDirectory = Files.createTempDirectory("voxetta-benchmark");
+            store = EmbeddedStore.open(dataDirectory, false);
+            utteranceService = new EmbeddedUtteranceService(store,
+                new LocalAudioStore(dataDirectory.resolve("audio")));
+        } else {
+            utteranceService = new DatastoreUtteranceService();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void seedPrompts() {
+        // A new service for each iteration, so no prompts are left in its dispenser
+        promptService = backend.equals("embedded")
+            ? new EmbeddedPromptService(store)
+            : new DatastorePromptService();
+
+        for (int i = 0; i < STEPS_PER_ITERATION; i++) {
+            promptService.savePrompt("text", "benchmark prompt " + i);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void shutDownPromptService() {
+        // Otherwise every iteration leaves a refill thread behind
+        if (promptService instanceof DatastorePromptService) {
+            ((DatastorePromptService) promptService).shutdown();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownBackend() throws IOException {
+        services.tearDown();
+        if (store != null) {
+            store.close();
+            try (Stream<Path> files = Files.walk(dataDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * One step of a recording session: hands out a prompt, saves its utterance and confirms the
+     * prompt's lease. Prompts can only be handed out once, so this reports the time for
+     * {@value #STEPS_PER_ITERATION} steps rather than a steady-state rate.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = STEPS_PER_ITERATION)
+    @Measurement(iterations = 5, batchSize = STEPS_PER_ITERATION)
+    public long recordPrompt() {
+        String json = new String(promptService.getOnePromptJson(), StandardCharsets.UTF_8);
+        JsonObject prompt = JsonParser.parseString(json).getAsJsonObject();
+        long promptId = prompt.get("id").getAsLong();
+
+        utteranceService.saveUtterance(new Utterance.UtteranceBuilder()
+            .setAudio("benchmark-audio")
+            .setUserId("benchmark-user")
+            .setPromptId(Long.toString(promptId))
+            .setDevice("Pixelbook")
+            .setAge(20)
+            .setGender("Female")
+            .build());
+        promptService.confirmPrompt(promptId, prompt.get("leaseToken").getAsString());
+        return promptId;
+    }
+
+    @Benchmark
+    public StatusResponse savePrompt() {
+        return promptService.savePrompt("text", "saved prompt " + saved++);
+    }
+}
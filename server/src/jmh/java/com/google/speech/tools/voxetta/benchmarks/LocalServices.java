@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.benchmarks;
+
+import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Local App Engine service stubs the benchmarks run against.
+ * <p>
+ * Like the unit tests, Datastore is configured so that queries are strongly consistent, which
+ * keeps benchmark results from depending on the stub's simulated replication lag.
+ */
+class LocalServices {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+        new LocalDatastoreServiceTestConfig()
+            .setNoStorage(true)
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0),
+        new LocalBlobstoreServiceTestConfig());
+
+    /**
+     * Starts the stubs for the calling thread.
+     */
+    void setUp() {
+        helper.setUp();
+    }
+
+    void tearDown() {
+        helper.tearDown();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.benchmarks;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.speech.tools.voxetta.data.StatusResponse;
+import com.google.speech.tools.voxetta.services.DatastorePromptService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link DatastorePromptService} against the local Datastore stub.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PromptServiceBenchmark {
+
+    // Prompts handed out per getOnePrompt iteration; the same number is seeded before each one.
+    private static final int PROMPTS_PER_ITERATION = 10000;
+
+    private final LocalServices services = new LocalServices();
+    private DatastoreService datastoreService;
+    private DatastorePromptService promptService;
+    private int saved;
+
+    @Setup(Level.Trial)
+    public void setUpServices() {
+        services.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @Setup(Level.Iteration)
+    public void seedPrompts() {
+        // A new service for each iteration, so no prompts are left in its dispenser
+        promptService = new DatastorePromptService();
+
+        List<Entity> prompts = new ArrayList<>();
+        for (int i = 0; i < PROMPTS_PER_ITERATION; i++) {
+            Entity prompt = new Entity("Prompt");
+            prompt.setProperty("type", "text");
+            prompt.setProperty("body", "benchmark prompt " + i);
+            prompt.setProperty("read", 0);
+            prompts.add(prompt);
+
+            if (prompts.size() == 500) {
+                datastoreService.put(prompts);
+                prompts.clear();
+            }
+        }
+        datastoreService.put(prompts);
+    }
+
+    @TearDown(Level.Iteration)
+    public void shutDownPromptService() {
+        // Otherwise every iteration leaves a refill thread behind
+        promptService.shutdown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownServices() {
+        services.tearDown();
+    }
+
+    /**
+     * Hands out every seeded prompt once. Prompts can only be handed out once, so this reports the
+     * time to drain {@value #PROMPTS_PER_ITERATION} prompts rather than a steady-state rate.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = PROMPTS_PER_ITERATION)
+    @Measurement(iterations = 5, batchSize = PROMPTS_PER_ITERATION)
+    public String getOnePrompt() {
+        return promptService.getOnePrompt();
+    }
+
+    @Benchmark
+    public StatusResponse savePrompt() {
+        return promptService.savePrompt("text", "saved prompt " + saved++);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.benchmarks;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.io.CharStreams;
+import com.google.gson.Gson;
+import com.google.speech.tools.voxetta.data.ErrorResponse;
+import com.google.speech.tools.voxetta.data.JsonSerialization;
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.PromptBuilder;
+import com.google.speech.tools.voxetta.data.StatusResponse;
+import com.google.speech.tools.voxetta.data.UrlResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks turning entities into Prompts and responses into JSON.
+ * <p>
+ * The "reflective" benchmarks serialize the way responses were serialized before
+ * {@link JsonSerialization}, with a new reflective Gson per call, as a baseline. Compare
+ * gc.alloc.rate.norm with -prof gc to see the allocation saved per response.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+    private final LocalServices services = new LocalServices();
+    private Entity promptEntity;
+    private StatusResponse statusResponse;
+    private ErrorResponse errorResponse;
+    private UrlResponse urlResponse;
+    private Prompt prompt;
+
+    // Stands in for a servlet response's writer
+    private final Writer responseWriter = CharStreams.nullWriter();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Keys need an app id, which comes from the stub environment
+        services.setUp();
+
+        promptEntity = new Entity("Prompt", 5629499534213120L);
+        promptEntity.setProperty("type", "text");
+        promptEntity.setProperty("body", "The quick brown fox jumps over the lazy dog.");
+        promptEntity.setProperty("read", 0);
+
+        statusResponse = new StatusResponse(true);
+        errorResponse = new ErrorResponse(false, "Error: Failed to upload Utterance to Datastore.");
+        urlResponse = new UrlResponse(true,
+            "https://voxetta.appspot.com/_ah/upload/AMmfu6Z2i3bV7c0vU5oD1h4b0G3fW/ALBNUaYAAAAA");
+        prompt = new PromptBuilder().buildFromEntity(promptEntity);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        services.tearDown();
+    }
+
+    @Benchmark
+    public Prompt buildFromEntity() {
+        return new PromptBuilder().buildFromEntity(promptEntity);
+    }
+
+    @Benchmark
+    public String statusResponseToJson() {
+        return statusResponse.toJson();
+    }
+
+    @Benchmark
+    public String errorResponseToJson() {
+        return errorResponse.toJson();
+    }
+
+    @Benchmark
+    public String urlResponseToJson() {
+        return urlResponse.toJson();
+    }
+
+    @Benchmark
+    public void urlResponseWriteTo() throws IOException {
+        urlResponse.writeTo(responseWriter);
+    }
+
+    @Benchmark
+    public String urlResponseToJsonReflective() {
+        return new Gson().toJson(urlResponse);
+    }
+
+    @Benchmark
+    public String promptToJson() {
+        return JsonSerialization.toJson(prompt);
+    }
+
+    @Benchmark
+    public void promptWriteTo() throws IOException {
+        JsonSerialization.writeTo(prompt, responseWriter);
+    }
+
+    @Benchmark
+    public String promptToJsonReflective() {
+        return new Gson().toJson(prompt);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.benchmarks;
+
+import com.google.speech.tools.voxetta.data.Utterance;
+import com.google.speech.tools.voxetta.services.DatastoreUtteranceService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link DatastoreUtteranceService} against the local Datastore stub.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtteranceServiceBenchmark {
+
+    private final LocalServices services = new LocalServices();
+    private DatastoreUtteranceService utteranceService;
+    private Utterance utterance;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        services.setUp();
+        utteranceService = new DatastoreUtteranceService();
+        utterance = new Utterance.UtteranceBuilder()
+            .setAudio("benchmark-blob-key")
+            .setUserId("benchmark-user")
+            .setPromptId("42")
+            .setDevice("desktop")
+            .setAge(30)
+            .setGender("f")
+            .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        services.tearDown();
+    }
+
+    @Benchmark
+    public void saveUtterance() {
+        utteranceService.saveUtterance(utterance);
+    }
+}
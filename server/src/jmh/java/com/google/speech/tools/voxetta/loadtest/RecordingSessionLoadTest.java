@@ -0,0 +1,346 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.loadtest;
+
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.speech.tools.voxetta.utils.ThreadFactories;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Load generator that replays recording sessions against a running server, e.g. the local dev
+ * server with its Datastore and Blobstore stubs.
+ * <p>
+ * Sessions arrive at a fixed rate (an open model, so a slow server does not slow the arrivals
+ * down). Each session runs the UI's recording cycle a number of times: GET "/prompt", GET
+ * "/blobstore-utterance-upload-link", then a multipart POST of a short audio clip to the upload
+ * URL. Latency is recorded per endpoint in HdrHistograms. A request's latency is measured from
+ * when it should have been sent, so queueing in the generator counts against the server instead
+ * of hiding it (coordinated omission).
+ * <p>
+ * Options are system properties:
+ * <ul>
+ *   <li>loadtest.baseUrl (default http://localhost:8080)
+ *   <li>loadtest.sessionsPerSecond (default 50)
+ *   <li>loadtest.durationSeconds (default 60)
+ *   <li>loadtest.cyclesPerSession (default 10)
+ *   <li>loadtest.clients, the most sessions in flight at once (default 2000)
+ *   <li>loadtest.sessionStep, to fetch prompts and upload URLs together from "/session/next"
+ *       instead (default false)
+ *   <li>loadtest.outputDir, where .hgrm percentile distributions are written
+ *       (default target/loadtest)
+ * </ul>
+ */
+public class RecordingSessionLoadTest {
+
+    private static final String[] ENDPOINTS =
+        {"prompt", "upload-link", "session-step", "upload-utterance"};
+
+    // Latencies are tracked up to a minute with three significant digits.
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final String baseUrl = System.getProperty("loadtest.baseUrl", "http://localhost:8080");
+    private final int sessionsPerSecond = Integer.getInteger("loadtest.sessionsPerSecond", 50);
+    private final int durationSeconds = Integer.getInteger("loadtest.durationSeconds", 60);
+    private final int cyclesPerSession = Integer.getInteger("loadtest.cyclesPerSession", 10);
+    private final int clients = Integer.getInteger("loadtest.clients", 2000);
+    private final boolean sessionStep = Boolean.getBoolean("loadtest.sessionStep");
+    private final File outputDir =
+        new File(System.getProperty("loadtest.outputDir", "target/loadtest"));
+
+    private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Set<Long> handedOutPrompts = ConcurrentHashMap.newKeySet();
+    private final LongAdder promptsHandedOut = new LongAdder();
+    private final LongAdder duplicatePrompts = new LongAdder();
+    private final LongAdder emptyPrompts = new LongAdder();
+    private final LongAdder droppedSessions = new LongAdder();
+
+    // A second of silent 16kHz mono 16-bit WAV, standing in for a recording
+    private final byte[] audio = silentWav(16000);
+
+    public static void main(String[] args) throws Exception {
+        new RecordingSessionLoadTest().run();
+    }
+
+    private void run() throws InterruptedException, IOException {
+        for (String endpoint : ENDPOINTS) {
+            recorders.put(endpoint, new Recorder(MAX_LATENCY_MICROS, 3));
+            errors.put(endpoint, new LongAdder());
+        }
+
+        ExecutorService sessions = Executors.newFixedThreadPool(clients,
+            ThreadFactories.background("loadtest-client-%d"));
+        ScheduledExecutorService arrivals = Executors.newSingleThreadScheduledExecutor();
+
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / sessionsPerSecond;
+        long startNanos = System.nanoTime();
+        LongAdder inFlight = new LongAdder();
+
+        arrivals.scheduleAtFixedRate(() -> {
+            long intendedStart = System.nanoTime();
+            if (inFlight.sum() >= clients) {
+                droppedSessions.increment();
+                return;
+            }
+            inFlight.increment();
+            sessions.execute(() -> {
+                try {
+                    runSession(intendedStart);
+                } finally {
+                    inFlight.decrement();
+                }
+            });
+        }, 0, intervalNanos, TimeUnit.NANOSECONDS);
+
+        System.out.printf("Sending %d sessions/s to %s for %ds%n",
+            sessionsPerSecond, baseUrl, durationSeconds);
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        arrivals.shutdownNow();
+        sessions.shutdown();
+        sessions.awaitTermination(1, TimeUnit.MINUTES);
+
+        report(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+    }
+
+    private void runSession(long intendedStart) {
+        String userId = "loadtest-" + UUID.randomUUID();
+
+        // Only the first request of a session may have waited for its arrival slot
+        long start = intendedStart;
+        for (int cycle = 0; cycle < cyclesPerSession; cycle++) {
+            JsonObject prompt;
+            String uploadUrl;
+
+            if (sessionStep) {
+                JsonObject step = getJson("session-step", "/session/next", start);
+                if (step == null) {
+                    return;
+                }
+                prompt = step.getAsJsonObject("prompt");
+                JsonElement stepUrl = step.get("uploadUrl");
+                uploadUrl = stepUrl == null || stepUrl.isJsonNull() ? null : stepUrl.getAsString();
+            } else {
+                prompt = getJson("prompt", "/prompt", start);
+                JsonObject link = prompt == null ? null
+                    : getJson("upload-link", "/blobstore-utterance-upload-link", System.nanoTime());
+                uploadUrl = link == null || !link.get("success").getAsBoolean()
+                    ? null : link.get("url").getAsString();
+            }
+
+            if (prompt == null || uploadUrl == null) {
+                return;
+            }
+
+            String promptId = "";
+            if (prompt.size() == 0) {
+                emptyPrompts.increment();
+            } else {
+                promptsHandedOut.increment();
+                promptId = prompt.get("id").getAsString();
+                if (!handedOutPrompts.add(prompt.get("id").getAsLong())) {
+                    duplicatePrompts.increment();
+                }
+            }
+
+            uploadUtterance(uploadUrl, userId, promptId);
+            start = System.nanoTime();
+        }
+    }
+
+    private JsonObject getJson(String endpoint, String path, long startNanos) {
+        try {
+            HttpURLConnection connection = open(baseUrl + path);
+            String body = readBody(connection);
+            record(endpoint, startNanos);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                errors.get(endpoint).increment();
+                return null;
+            }
+            return JsonParser.parseString(body).getAsJsonObject();
+        } catch (IOException | RuntimeException e) {
+            record(endpoint, startNanos);
+            errors.get(endpoint).increment();
+            return null;
+        }
+    }
+
+    private void uploadUtterance(String uploadUrl, String userId, String promptId) {
+        String boundary = "loadtest" + UUID.randomUUID().toString().replace("-", "");
+        long start = System.nanoTime();
+        try {
+            // The dev server hands out absolute upload URLs
+            HttpURLConnection connection = open(uploadUrl.startsWith("/")
+                ? baseUrl + uploadUrl : uploadUrl);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type",
+                "multipart/form-data; boundary=" + boundary);
+
+            try (OutputStream out = connection.getOutputStream()) {
+                writeField(out, boundary, "userId", userId);
+                writeField(out, boundary, "gender", "other");
+                writeField(out, boundary, "userAge", "30");
+                writeField(out, boundary, "deviceType", "loadtest");
+                writeField(out, boundary, "promptId", promptId);
+                write(out, "--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"audio\"; filename=\"blob\"\r\n"
+                    + "Content-Type: audio/wav\r\n\r\n");
+                out.write(audio);
+                write(out, "\r\n--" + boundary + "--\r\n");
+            }
+
+            String body = readBody(connection);
+            record("upload-utterance", start);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK
+                || !JsonParser.parseString(body).getAsJsonObject().get("success").getAsBoolean()) {
+                errors.get("upload-utterance").increment();
+            }
+        } catch (IOException | RuntimeException e) {
+            record("upload-utterance", start);
+            errors.get("upload-utterance").increment();
+        }
+    }
+
+    private void record(String endpoint, long startNanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        recorders.get(endpoint).recordValue(Math.min(micros, MAX_LATENCY_MICROS));
+    }
+
+    private void report(long elapsedSeconds) throws IOException {
+        outputDir.mkdirs();
+        PrintStream out = System.out;
+
+        out.printf("%nRan for %ds, dropped %d sessions that found every client busy%n",
+            elapsedSeconds, droppedSessions.sum());
+        out.printf("%-18s %10s %8s %10s %10s %10s %10s%n",
+            "endpoint", "requests", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms");
+
+        for (String endpoint : ENDPOINTS) {
+            Histogram histogram = recorders.get(endpoint).getIntervalHistogram();
+            long requests = histogram.getTotalCount();
+            if (requests == 0) {
+                continue;
+            }
+            out.printf("%-18s %10d %7.2f%% %10.2f %10.2f %10.2f %10.2f%n",
+                endpoint, requests, percent(errors.get(endpoint).sum(), requests),
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMaxValue() / 1000.0);
+
+            try (PrintStream hgrm = new PrintStream(
+                new FileOutputStream(new File(outputDir, endpoint + ".hgrm")))) {
+                histogram.outputPercentileDistribution(hgrm, 1000.0);
+            }
+        }
+
+        out.printf("%nPrompts handed out: %d, duplicates: %d (%.3f%%), empty responses: %d%n",
+            promptsHandedOut.sum(), duplicatePrompts.sum(),
+            percent(duplicatePrompts.sum(), promptsHandedOut.sum()), emptyPrompts.sum());
+        out.printf("Percentile distributions (in ms) written to %s%n", outputDir.getAbsolutePath());
+    }
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0 : 100.0 * part / total;
+    }
+
+    private static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(10));
+        connection.setReadTimeout((int) TimeUnit.SECONDS.toMillis(60));
+        return connection;
+    }
+
+    private static String readBody(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() < 400
+            ? connection.getInputStream() : connection.getErrorStream();
+        if (in == null) {
+            return "";
+        }
+        try (InputStream body = in) {
+            return new String(ByteStreams.toByteArray(body), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void writeField(OutputStream out, String boundary, String name, String value)
+        throws IOException {
+        write(out, "--" + boundary + "\r\n"
+            + "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n"
+            + value + "\r\n");
+    }
+
+    private static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] silentWav(int samples) {
+        int dataLength = samples * 2;
+        ByteArrayOutputStream wav = new ByteArrayOutputStream(44 + dataLength);
+        writeAscii(wav, "RIFF");
+        writeInt(wav, 36 + dataLength);
+        writeAscii(wav, "WAVEfmt ");
+        writeInt(wav, 16);
+        writeShort(wav, 1);
+        writeShort(wav, 1);
+        writeInt(wav, 16000);
+        writeInt(wav, 16000 * 2);
+        writeShort(wav, 2);
+        writeShort(wav, 16);
+        writeAscii(wav, "data");
+        writeInt(wav, dataLength);
+        wav.write(new byte[dataLength], 0, dataLength);
+        return wav.toByteArray();
+    }
+
+    private static void writeAscii(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value & 0xffff);
+        writeShort(out, value >>> 16);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+}
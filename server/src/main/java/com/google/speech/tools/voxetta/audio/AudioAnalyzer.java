@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Measures the quality of a recording in a single pass over a channel.
+ * <p>
+ * Every recording is read through one buffer from a {@link ByteBufferPool} and decoded a few
+ * samples at a time, so the memory used per recording is fixed, however long it is. WAV
+ * recordings are decoded in full; WebM/Opus recordings are parsed for their duration only (see
+ * {@link AudioQuality#isDecoded()}).
+ */
+public class AudioAnalyzer {
+
+    private static final ByteBufferPool defaultPool = new ByteBufferPool(
+        Integer.getInteger("voxetta.qc.bufferBytes", 64 * 1024),
+        Runtime.getRuntime().availableProcessors() * 2);
+
+    private final ByteBufferPool bufferPool;
+
+    public AudioAnalyzer() {
+        this(defaultPool);
+    }
+
+    /**
+     * @param bufferPool Pool of read buffers. Buffers must hold at least 64 bytes.
+     */
+    public AudioAnalyzer(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Reads a recording to its end and measures it.
+     *
+     * @param channel The recording. Not closed.
+     * @return the recording's measurements.
+     * @throws UnsupportedAudioFileException if the recording is in a format this cannot read.
+     * @throws IOException                   if the channel cannot be read or ends early.
+     */
+    public AudioQuality analyze(ReadableByteChannel channel)
+        throws IOException, UnsupportedAudioFileException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            ChannelReader reader = new ChannelReader(channel, buffer);
+            reader.require(12);
+
+            switch (describeContainer(buffer)) {
+                case "wav":
+                    return WavDecoder.analyze(reader);
+                case "webm":
+                    return WebmOpusReader.analyze(reader);
+                default:
+                    throw new UnsupportedAudioFileException(
+                        "Unsupported audio format: " + describeContainer(buffer));
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Names the container of a recording from its first 12 bytes, without consuming them.
+     *
+     * @param header At least 12 bytes, starting at the buffer's position.
+     * @return "wav", "webm", "ogg" or "unknown".
+     */
+    public static String describeContainer(ByteBuffer header) {
+        int start = header.position();
+        if (matches(header, start, "RIFF") && matches(header, start + 8, "WAVE")) {
+            return "wav";
+        }
+        if ((header.get(start) & 0xFF) == 0x1A && (header.get(start + 1) & 0xFF) == 0x45
+            && (header.get(start + 2) & 0xFF) == 0xDF && (header.get(start + 3) & 0xFF) == 0xA3) {
+            return "webm";
+        }
+        if (matches(header, start, "OggS")) {
+            return "ogg";
+        }
+        return "unknown";
+    }
+
+    private static boolean matches(ByteBuffer bytes, int offset, String tag) {
+        for (int i = 0; i < tag.length(); i++) {
+            if (bytes.get(offset + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
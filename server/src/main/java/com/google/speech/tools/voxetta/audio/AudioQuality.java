@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.audio;
+
+/**
+ * Measurements of a recording, as computed by {@link AudioAnalyzer}. Amplitudes are normalized
+ * to [0, 1] of full scale. Recordings that could not be decoded only have a duration; their other
+ * measurements are NaN.
+ */
+public final class AudioQuality {
+
+    /** Recordings shorter than this are rejected, as in the browser's check. */
+    public static final double MIN_DURATION_SECONDS = 2.0;
+
+    /** Recordings whose peak stays below this are considered silent. */
+    public static final double MIN_PEAK = 0.2;
+
+    /** Recordings with a larger share of clipped samples are considered distorted. */
+    public static final double MAX_CLIPPING_RATIO = 0.01;
+
+    /** Recordings with less voice activity than this are considered to have no speech. */
+    public static final double MIN_VOICED_SECONDS = 0.5;
+
+    private final double durationSeconds;
+    private final double rms;
+    private final double peak;
+    private final double clippingRatio;
+    private final double snrDb;
+    private final double voicedSeconds;
+
+    /**
+     * @param durationSeconds Length of the recording.
+     * @param rms             Root mean square amplitude over all samples.
+     * @param peak            Largest absolute amplitude.
+     * @param clippingRatio   Share of samples at or near full scale.
+     * @param snrDb           Estimated signal-to-noise ratio, in decibels.
+     * @param voicedSeconds   Time in frames that were detected as speech.
+     */
+    public AudioQuality(double durationSeconds, double rms, double peak, double clippingRatio,
+        double snrDb, double voicedSeconds) {
+        this.durationSeconds = durationSeconds;
+        this.rms = rms;
+        this.peak = peak;
+        this.clippingRatio = clippingRatio;
+        this.snrDb = snrDb;
+        this.voicedSeconds = voicedSeconds;
+    }
+
+    /**
+     * @return the measurements of a recording whose audio could not be decoded.
+     */
+    public static AudioQuality durationOnly(double durationSeconds) {
+        return new AudioQuality(durationSeconds, Double.NaN, Double.NaN, Double.NaN, Double.NaN,
+            Double.NaN);
+    }
+
+    /**
+     * @return whether the audio was decoded, so that more than the duration was measured.
+     */
+    public boolean isDecoded() {
+        return !Double.isNaN(rms);
+    }
+
+    public double getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public double getRms() {
+        return rms;
+    }
+
+    public double getPeak() {
+        return peak;
+    }
+
+    public double getClippingRatio() {
+        return clippingRatio;
+    }
+
+    public double getSnrDb() {
+        return snrDb;
+    }
+
+    public double getVoicedSeconds() {
+        return voicedSeconds;
+    }
+
+    /**
+     * @return why the recording should not be used, or null if it passes.
+     */
+    public String getFailureReason() {
+        if (durationSeconds < MIN_DURATION_SECONDS) {
+            return "Recording is too short";
+        }
+        if (!isDecoded()) {
+            return null;
+        }
+        if (peak < MIN_PEAK) {
+            return "Recording is too silent";
+        }
+        if (clippingRatio > MAX_CLIPPING_RATIO) {
+            return "Recording is clipped";
+        }
+        if (voicedSeconds < MIN_VOICED_SECONDS) {
+            return "Recording has no speech";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.audio;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct {@link ByteBuffer}s, so that reading a recording does not allocate
+ * a buffer, and the memory used for reading stays fixed however many recordings are read.
+ * <p>
+ * Buffers are created on demand; at most {@code maxPooled} released buffers are kept for reuse.
+ */
+public class ByteBufferPool {
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int bufferBytes;
+    private final int maxPooled;
+
+    /**
+     * @param bufferBytes Capacity of each buffer.
+     * @param maxPooled   Maximum number of idle buffers kept.
+     */
+    public ByteBufferPool(int bufferBytes, int maxPooled) {
+        this.bufferBytes = bufferBytes;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a cleared buffer, which must be given back with {@link #release}.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferBytes);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives back a buffer taken with {@link #acquire}. The caller must not use it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            buffers.add(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of idle buffers.
+     */
+    public int size() {
+        return pooled.get();
+    }
+
+    public int getBufferBytes() {
+        return bufferBytes;
+    }
+}
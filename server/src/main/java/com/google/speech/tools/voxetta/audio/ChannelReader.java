@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.audio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a channel through a single fixed-size buffer. Callers {@link #ensure} the bytes they are
+ * about to parse are buffered, then read them straight from {@link #buffer()}.
+ */
+class ChannelReader {
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private boolean endOfStream;
+
+    /**
+     * @param channel The channel to read.
+     * @param buffer  The buffer to read through; its contents are discarded.
+     */
+    ChannelReader(ReadableByteChannel channel, ByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+        buffer.clear().limit(0);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return the buffer, positioned at the next unread byte and limited to the buffered bytes.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Buffers at least {@code count} unread bytes, unless the channel ends first.
+     *
+     * @param count Number of bytes needed. At most the buffer's capacity.
+     * @return whether that many bytes are buffered.
+     */
+    boolean ensure(int count) throws IOException {
+        if (buffer.remaining() >= count) {
+            return true;
+        }
+
+        buffer.compact();
+        try {
+            while (buffer.position() < count && !endOfStream) {
+                if (channel.read(buffer) < 0) {
+                    endOfStream = true;
+                }
+            }
+        } finally {
+            buffer.flip();
+        }
+        return buffer.remaining() >= count;
+    }
+
+    /**
+     * Like {@link #ensure}, but the bytes are required.
+     */
+    void require(int count) throws IOException {
+        if (!ensure(count)) {
+            throw new EOFException("Recording ended unexpectedly");
+        }
+    }
+
+    /**
+     * Skips bytes, reading them through the buffer when they are not buffered yet.
+     *
+     * @return whether that many bytes were skipped before the channel ended.
+     */
+    boolean skip(long count) throws IOException {
+        while (count > 0) {
+            if (!buffer.hasRemaining() && !ensure(1)) {
+                return false;
+            }
+            int skipped = (int) Math.min(count, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            count -= skipped;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.audio;
+
+/**
+ * Accumulates level, frame energy and voice activity statistics of decoded samples, in memory
+ * that does not grow with the length of the recording.
+ * <p>
+ * Samples are grouped into 20 ms frames. Frame energies are kept as a histogram with 1 dB bins,
+ * from which the noise floor and speech level are read as percentiles to estimate the SNR. A
+ * frame is voiced when it is well above an adaptive noise floor that drops immediately to quieter
+ * frames and rises slowly otherwise; voicing is held for a few frames to bridge short pauses.
+ */
+class FrameStats {
+
+    static final int FRAME_MILLIS = 20;
+
+    // Samples this close to full scale count as clipped.
+    private static final double CLIPPING_LEVEL = 0.999;
+
+    // Frame energies below this are counted in the lowest bin.
+    private static final int MIN_ENERGY_DB = -100;
+
+    // Frame energy percentiles taken as the noise floor and the speech level.
+    private static final double NOISE_PERCENTILE = 0.1;
+    private static final double SIGNAL_PERCENTILE = 0.9;
+
+    // A frame is voiced this far above the noise floor, and never below the absolute minimum.
+    private static final double VOICE_MARGIN_DB = 12;
+    private static final double MIN_VOICE_DB = -50;
+    private static final double NOISE_FLOOR_RISE_DB = 0.05;
+    private static final int HANGOVER_FRAMES = 10;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int samplesPerFrame;
+
+    private long samples;
+    private long clipped;
+    private double sumOfSquares;
+    private double peak;
+
+    private double frameSumOfSquares;
+    private int frameSamples;
+    private final long[] energyHistogram = new long[-MIN_ENERGY_DB + 1];
+    private long frames;
+
+    private double noiseFloorDb = Double.NaN;
+    private int hangover;
+    private long voicedFrames;
+
+    /**
+     * @param sampleRate Samples per second per channel.
+     * @param channels   Number of interleaved channels.
+     */
+    FrameStats(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.samplesPerFrame = Math.max(1, sampleRate * FRAME_MILLIS / 1000) * channels;
+    }
+
+    /**
+     * Adds the next sample, scaled to [-1, 1].
+     */
+    void add(double sample) {
+        double magnitude = Math.abs(sample);
+        double square = magnitude * magnitude;
+
+        samples++;
+        sumOfSquares += square;
+        frameSumOfSquares += square;
+        if (magnitude > peak) {
+            peak = magnitude;
+        }
+        if (magnitude >= CLIPPING_LEVEL) {
+            clipped++;
+        }
+
+        if (++frameSamples == samplesPerFrame) {
+            endFrame(frameSumOfSquares / frameSamples);
+            frameSumOfSquares = 0;
+            frameSamples = 0;
+        }
+    }
+
+    private void endFrame(double meanSquare) {
+        double energyDb = Math.max(10 * Math.log10(Math.max(meanSquare, 1e-12)), MIN_ENERGY_DB);
+        energyHistogram[(int) Math.round(energyDb) - MIN_ENERGY_DB]++;
+        frames++;
+
+        if (Double.isNaN(noiseFloorDb) || energyDb < noiseFloorDb) {
+            noiseFloorDb = energyDb;
+        } else {
+            noiseFloorDb += NOISE_FLOOR_RISE_DB;
+        }
+
+        if (energyDb > noiseFloorDb + VOICE_MARGIN_DB && energyDb > MIN_VOICE_DB) {
+            hangover = HANGOVER_FRAMES;
+        }
+        if (hangover > 0) {
+            hangover--;
+            voicedFrames++;
+        }
+    }
+
+    private double percentileDb(double percentile) {
+        long rank = (long) (percentile * (frames - 1));
+        long seen = 0;
+        for (int bin = 0; bin < energyHistogram.length; bin++) {
+            seen += energyHistogram[bin];
+            if (seen > rank) {
+                return bin + MIN_ENERGY_DB;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the measurements of the samples added so far.
+     */
+    AudioQuality toQuality() {
+        double snrDb = frames == 0
+            ? 0 : percentileDb(SIGNAL_PERCENTILE) - percentileDb(NOISE_PERCENTILE);
+        return new AudioQuality(
+            (double) (samples / channels) / sampleRate,
+            samples == 0 ? 0 : Math.sqrt(sumOfSquares / samples),
+            Math.min(peak, 1.0),
+            samples == 0 ? 0 : (double) clipped / samples,
+            snrDb,
+            voicedFrames * FRAME_MILLIS / 1000.0);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Decodes a WAV recording incrementally, feeding each sample to a {@link FrameStats}.
+ * <p>
+ * Supports 8, 16, 24 and 32-bit integer PCM and 32-bit float samples, with any number of
+ * channels.
+ */
+class WavDecoder {
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_FLOAT = 3;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private WavDecoder() {
+    }
+
+    /**
+     * @param reader Reader positioned at the start of a RIFF/WAVE file.
+     */
+    static AudioQuality analyze(ChannelReader reader)
+        throws IOException, UnsupportedAudioFileException {
+        ByteBuffer buffer = reader.buffer();
+        reader.require(12);
+        buffer.position(buffer.position() + 12);
+
+        Format format = null;
+        while (true) {
+            reader.require(8);
+            int chunkId = buffer.getInt();
+            long chunkSize = buffer.getInt() & 0xFFFFFFFFL;
+
+            if (chunkId == tag("fmt ")) {
+                reader.require(chunkSize >= 26 ? 26 : 16);
+                format = Format.parse(buffer, chunkSize);
+                reader.skip(chunkSize - 16 + (chunkSize & 1));
+            } else if (chunkId == tag("data")) {
+                if (format == null) {
+                    throw new UnsupportedAudioFileException("WAV data chunk precedes its format");
+                }
+                // Recorders that stream WAV leave the size at 0 or the maximum; read to the end.
+                long dataBytes = chunkSize == 0 || chunkSize == 0xFFFFFFFFL
+                    ? Long.MAX_VALUE : chunkSize;
+                return decode(reader, format, dataBytes);
+            } else if (!reader.skip(chunkSize + (chunkSize & 1))) {
+                throw new UnsupportedAudioFileException("WAV file has no data chunk");
+            }
+        }
+    }
+
+    private static AudioQuality decode(ChannelReader reader, Format format, long dataBytes)
+        throws IOException {
+        ByteBuffer buffer = reader.buffer();
+        FrameStats stats = new FrameStats(format.sampleRate, format.channels);
+        int bytesPerSample = format.bitsPerSample / 8;
+
+        long remaining = dataBytes - dataBytes % bytesPerSample;
+        while (remaining > 0 && reader.ensure(bytesPerSample)) {
+            long available = Math.min(buffer.remaining() / bytesPerSample,
+                remaining / bytesPerSample);
+            for (long i = 0; i < available; i++) {
+                stats.add(format.nextSample(buffer));
+            }
+            remaining -= available * bytesPerSample;
+        }
+
+        return stats.toQuality();
+    }
+
+    // A chunk id as read by a little-endian getInt().
+    private static int tag(String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+
+    private static class Format {
+
+        private final boolean floatingPoint;
+        private final int channels;
+        private final int sampleRate;
+        private final int bitsPerSample;
+
+        private Format(boolean floatingPoint, int channels, int sampleRate, int bitsPerSample) {
+            this.floatingPoint = floatingPoint;
+            this.channels = channels;
+            this.sampleRate = sampleRate;
+            this.bitsPerSample = bitsPerSample;
+        }
+
+        // Parses a buffered format chunk, leaving the buffer after its first 16 bytes.
+        private static Format parse(ByteBuffer fmt, long chunkSize)
+            throws UnsupportedAudioFileException {
+            int start = fmt.position();
+            int formatTag = fmt.getShort(start) & 0xFFFF;
+            int channels = fmt.getShort(start + 2) & 0xFFFF;
+            int sampleRate = fmt.getInt(start + 4);
+            int bitsPerSample = fmt.getShort(start + 14) & 0xFFFF;
+
+            if (formatTag == FORMAT_EXTENSIBLE && chunkSize >= 26) {
+                // The sub-format GUID starts with the actual format tag.
+                formatTag = fmt.getShort(start + 24) & 0xFFFF;
+            }
+            fmt.position(start + 16);
+
+            boolean supported = channels > 0 && sampleRate > 0
+                && (formatTag == FORMAT_PCM && (bitsPerSample == 8 || bitsPerSample == 16
+                    || bitsPerSample == 24 || bitsPerSample == 32)
+                || formatTag == FORMAT_FLOAT && bitsPerSample == 32);
+            if (!supported) {
+                throw new UnsupportedAudioFileException(String.format(
+                    "Unsupported WAV encoding: format %d, %d bits, %d channels, %d Hz",
+                    formatTag, bitsPerSample, channels, sampleRate));
+            }
+
+            return new Format(formatTag == FORMAT_FLOAT, channels, sampleRate, bitsPerSample);
+        }
+
+        // Reads the next sample, scaled to [-1, 1].
+        private double nextSample(ByteBuffer buffer) {
+            if (floatingPoint) {
+                return buffer.getFloat();
+            }
+            switch (bitsPerSample) {
+                case 8:
+                    // 8-bit WAV samples are unsigned.
+                    return ((buffer.get() & 0xFF) - 128) / 128.0;
+                case 16:
+                    return buffer.getShort() / 32768.0;
+                case 24:
+                    int low = buffer.getShort() & 0xFFFF;
+                    return ((buffer.get() << 16) | low) / 8388608.0;
+                default:
+                    return buffer.getInt() / 2147483648.0;
+            }
+        }
+    }
+}
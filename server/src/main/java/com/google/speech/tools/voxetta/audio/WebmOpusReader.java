@@ -0,0 +1,260 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Reads the Opus packets of a WebM recording, as produced by browsers' MediaRecorder, and
+ * measures its duration from the packets' table-of-contents bytes.
+ * <p>
+ * Only the first few bytes of each block are read, so memory use does not depend on the length
+ * of the recording. Opus audio is not decoded, so levels, clipping, SNR and voice activity are not
+ * measured.
+ */
+class WebmOpusReader {
+
+    private static final int EBML = 0x1A45DFA3;
+    private static final int SEGMENT = 0x18538067;
+    private static final int TRACKS = 0x1654AE6B;
+    private static final int TRACK_ENTRY = 0xAE;
+    private static final int TRACK_NUMBER = 0xD7;
+    private static final int CODEC_ID = 0x86;
+    private static final int CLUSTER = 0x1F43B675;
+    private static final int BLOCK_GROUP = 0xA0;
+    private static final int BLOCK = 0xA1;
+    private static final int SIMPLE_BLOCK = 0xA3;
+
+    private static final long UNKNOWN_SIZE = -1;
+
+    // Lacing bits of a block's flags (Matroska block structure).
+    private static final int LACING_MASK = 0x06;
+    private static final int XIPH_LACING = 0x02;
+    private static final int FIXED_SIZE_LACING = 0x04;
+
+    // Opus frame durations in units of 2.5 ms, by TOC configuration number (RFC 6716 3.1).
+    private static final int[] FRAME_DURATION_UNITS = {
+        4, 8, 16, 24, 4, 8, 16, 24, 4, 8, 16, 24,  // SILK
+        4, 8, 4, 8,                                 // Hybrid
+        1, 2, 4, 8, 1, 2, 4, 8, 1, 2, 4, 8, 1, 2, 4, 8  // CELT
+    };
+
+    private final ChannelReader reader;
+    private final ByteBuffer buffer;
+
+    private long opusTrack = -1;
+    private long trackNumber = -1;
+    private String codecId;
+    private long durationUnits;
+
+    private WebmOpusReader(ChannelReader reader) {
+        this.reader = reader;
+        this.buffer = reader.buffer();
+    }
+
+    /**
+     * @param reader Reader positioned at the start of an EBML document.
+     */
+    static AudioQuality analyze(ChannelReader reader)
+        throws IOException, UnsupportedAudioFileException {
+        return new WebmOpusReader(reader).read();
+    }
+
+    private AudioQuality read() throws IOException, UnsupportedAudioFileException {
+        // Masters are entered rather than skipped, so their (often unknown) sizes do not matter.
+        while (reader.ensure(2)) {
+            int id = readId();
+            long size = readSize();
+
+            switch (id) {
+                case SEGMENT:
+                case TRACKS:
+                case CLUSTER:
+                case BLOCK_GROUP:
+                    break;
+                case TRACK_ENTRY:
+                    endTrackEntry();
+                    break;
+                case TRACK_NUMBER:
+                    if (size < 1 || size > 8) {
+                        throw new UnsupportedAudioFileException("Malformed WebM track number");
+                    }
+                    trackNumber = readUnsigned(size);
+                    break;
+                case CODEC_ID:
+                    codecId = readString(size);
+                    break;
+                case BLOCK:
+                case SIMPLE_BLOCK:
+                    endTrackEntry();
+                    readBlock(size);
+                    break;
+                default:
+                    if (size == UNKNOWN_SIZE || !reader.skip(size)) {
+                        return toQuality();
+                    }
+            }
+        }
+        return toQuality();
+    }
+
+    private AudioQuality toQuality() throws UnsupportedAudioFileException {
+        endTrackEntry();
+        if (opusTrack < 0) {
+            throw new UnsupportedAudioFileException("WebM recording has no Opus track");
+        }
+        return AudioQuality.durationOnly(durationUnits / 400.0);
+    }
+
+    // Track entries are not delimited here, so a track's fields are taken together once the next
+    // entry or the first block starts.
+    private void endTrackEntry() {
+        if (opusTrack < 0 && "A_OPUS".equals(codecId)) {
+            opusTrack = trackNumber;
+        }
+        codecId = null;
+    }
+
+    private void readBlock(long size) throws IOException {
+        reader.require(1);
+        int trackLength = vintLength(buffer.get(buffer.position()));
+        // Track number, 16-bit timecode and flags.
+        int headerLength = trackLength + 3;
+        if (size < headerLength + 1 || !reader.ensure(headerLength)) {
+            reader.skip(size);
+            return;
+        }
+
+        long track = readVint(false);
+        buffer.getShort();
+        int flags = buffer.get() & 0xFF;
+        long consumed = headerLength;
+
+        int lacing = flags & LACING_MASK;
+        int laces = 1;
+        if (lacing != 0 && reader.ensure(1)) {
+            // Laced blocks hold several packets; they are assumed to match the first one.
+            laces = (buffer.get() & 0xFF) + 1;
+            consumed++;
+            if (lacing != FIXED_SIZE_LACING) {
+                consumed += skipLaceSizes(lacing, laces, size - consumed);
+            }
+        }
+
+        // The first packet's TOC byte, and for code 3 the frame count that follows it.
+        if (track == opusTrack && consumed < size && reader.ensure(1)) {
+            int toc = buffer.get(buffer.position()) & 0xFF;
+            int frames = 1;
+            switch (toc & 0x03) {
+                case 1:
+                case 2:
+                    frames = 2;
+                    break;
+                case 3:
+                    frames = consumed + 1 < size && reader.ensure(2)
+                        ? buffer.get(buffer.position() + 1) & 0x3F
+                        : 0;
+                    break;
+                default:
+            }
+            durationUnits += (long) laces * frames * FRAME_DURATION_UNITS[toc >> 3];
+        }
+
+        reader.skip(size - consumed);
+    }
+
+    // Xiph and EBML lacing put the sizes of all but the last packet before the first one. Returns
+    // the number of bytes skipped, stopping early if the sizes run past the block or the recording.
+    private long skipLaceSizes(int lacing, int laces, long remaining) throws IOException {
+        long skipped = 0;
+        for (int lace = 1; lace < laces && skipped < remaining && reader.ensure(1); lace++) {
+            if (lacing == XIPH_LACING) {
+                // Each size is a run of 255s ended by a smaller byte.
+                int sizeByte;
+                do {
+                    sizeByte = buffer.get() & 0xFF;
+                    skipped++;
+                } while (sizeByte == 0xFF && skipped < remaining && reader.ensure(1));
+            } else {
+                // The first size is a vint, the others signed differences of the same length.
+                int length = vintLength(buffer.get(buffer.position()));
+                if (skipped + length > remaining || !reader.ensure(length)) {
+                    break;
+                }
+                buffer.position(buffer.position() + length);
+                skipped += length;
+            }
+        }
+        return skipped;
+    }
+
+    private int readId() throws IOException {
+        reader.require(1);
+        int length = vintLength(buffer.get(buffer.position()));
+        reader.require(length);
+        int id = 0;
+        for (int i = 0; i < length; i++) {
+            id = (id << 8) | (buffer.get() & 0xFF);
+        }
+        return id;
+    }
+
+    private long readSize() throws IOException {
+        reader.require(1);
+        reader.require(vintLength(buffer.get(buffer.position())));
+        return readVint(true);
+    }
+
+    // Reads a buffered variable-length integer, without its length marker.
+    private long readVint(boolean size) {
+        int first = buffer.get() & 0xFF;
+        int length = vintLength((byte) first);
+        long value = first & (0xFF >> length);
+        boolean allOnes = value == (0xFF >> length);
+        for (int i = 1; i < length; i++) {
+            int next = buffer.get() & 0xFF;
+            value = (value << 8) | next;
+            allOnes &= next == 0xFF;
+        }
+        return size && allOnes ? UNKNOWN_SIZE : value;
+    }
+
+    private static int vintLength(byte first) {
+        int length = Integer.numberOfLeadingZeros(first & 0xFF) - 23;
+        return Math.min(Math.max(length, 1), 8);
+    }
+
+    private long readUnsigned(long size) throws IOException {
+        reader.require((int) size);
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | (buffer.get() & 0xFF);
+        }
+        return value;
+    }
+
+    private String readString(long size) throws IOException {
+        byte[] bytes = new byte[(int) Math.min(size, 64)];
+        reader.require(bytes.length);
+        buffer.get(bytes);
+        reader.skip(size - bytes.length);
+        return new String(bytes, StandardCharsets.US_ASCII).trim();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.data;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.List;
+
+/** 
+ * A BulkUploadResponse is the container for a servlet's response to a bulk prompt upload.  
+ */
+public class BulkUploadResponse extends StatusResponse {
+
+  private int saved;
+  private int failed;
+  private List<RowError> errors;
+
+  /**
+   * Creates a new BulkUploadResponse.
+   *
+   * @param success Represents if every row was saved. 
+   * @param saved The number of prompts saved.
+   * @param failed The number of rows that could not be saved.
+   * @param errors The reasons rows could not be saved, ordered by row. May be truncated.
+   */ 
+  public BulkUploadResponse(boolean success, int saved, int failed, List<RowError> errors) {
+    super(success);
+    this.saved = saved;
+    this.failed = failed;
+    this.errors = errors;
+  }
+
+  @Override
+  protected void writeFields(JsonWriter writer) throws IOException {
+    super.writeFields(writer);
+    writer.name("saved").value(saved);
+    writer.name("failed").value(failed);
+    if (errors == null) {
+      return;
+    }
+
+    writer.name("errors").beginArray();
+    for (RowError rowError : errors) {
+      writer.beginObject();
+      writer.name("row").value(rowError.row);
+      writer.name("error").value(rowError.error);
+      writer.endObject();
+    }
+    writer.endArray();
+  }
+
+  /**
+   * Return the number of prompts saved.
+   */
+  public int getSaved() {
+    return saved;
+  }
+
+  /**
+   * Return the number of rows that could not be saved.
+   */
+  public int getFailed() {
+    return failed;
+  }
+
+  /**
+   * Return the reasons rows could not be saved.
+   */
+  public List<RowError> getErrors() {
+    return errors;
+  }
+
+  /** 
+   * The reason a single row of a bulk upload could not be saved.  
+   */
+  public static class RowError {
+
+    private int row;
+    private String error;
+
+    /**
+     * @param row The 1-based row number in the upload.
+     * @param error The error message associated with the row.
+     */
+    public RowError(int row, String error) {
+      this.row = row;
+      this.error = error;
+    }
+
+    /**
+     * Return the 1-based row number in the upload.
+     */
+    public int getRow() {
+      return row;
+    }
+
+    /**
+     * Return the error message associated with the row.
+     */
+    public String getError() {
+      return error;
+    }
+  }
+}
@@ -16,6 +16,9 @@
 
 package com.google.speech.tools.voxetta.data;
 
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
 /** 
  * An ErrorResponse is the container for a servlet's response to a front-end fetch request upon failure.  
  */
@@ -33,4 +36,10 @@ public class ErrorResponse extends StatusResponse {
     super(success);
     this.error = error;
   }
+
+  @Override
+  protected void writeFields(JsonWriter writer) throws IOException {
+    super.writeFields(writer);
+    writer.name("error").value(error);
+  }
 }
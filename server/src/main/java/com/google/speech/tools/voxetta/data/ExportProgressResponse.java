@@ -0,0 +1,87 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.data;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/** 
+ * An ExportProgressResponse is the container for a servlet's response to a request to export
+ * utterances, which may take several requests to complete.  
+ */
+public class ExportProgressResponse extends StatusResponse {
+
+  private int shardsWritten;
+  private long utterances;
+  private long missingAudio;
+  private boolean done;
+
+  /**
+   * Creates a new ExportProgressResponse.
+   *
+   * @param success Represents if a backend fetch was successful or not. 
+   * @param shardsWritten The number of shards written by this request.
+   * @param utterances The number of utterances exported so far, by every request.
+   * @param missingAudio The number of exported utterances whose audio could not be found.
+   * @param done Whether every utterance has been exported.
+   */ 
+  public ExportProgressResponse(boolean success, int shardsWritten, long utterances,
+      long missingAudio, boolean done) {
+    super(success);
+    this.shardsWritten = shardsWritten;
+    this.utterances = utterances;
+    this.missingAudio = missingAudio;
+    this.done = done;
+  }
+
+  @Override
+  protected void writeFields(JsonWriter writer) throws IOException {
+    super.writeFields(writer);
+    writer.name("shardsWritten").value(shardsWritten);
+    writer.name("utterances").value(utterances);
+    writer.name("missingAudio").value(missingAudio);
+    writer.name("done").value(done);
+  }
+
+  /**
+   * Return the number of shards written by this request.
+   */
+  public int getShardsWritten() {
+    return shardsWritten;
+  }
+
+  /**
+   * Return the number of utterances exported so far, by every request.
+   */
+  public long getUtterances() {
+    return utterances;
+  }
+
+  /**
+   * Return the number of exported utterances whose audio could not be found.
+   */
+  public long getMissingAudio() {
+    return missingAudio;
+  }
+
+  /**
+   * Return whether every utterance has been exported.
+   */
+  public boolean isDone() {
+    return done;
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * Shared JSON serialization for client-facing data.
+ * <p>
+ * {@link Prompt} and every {@link StatusResponse} are written by hand-written type adapters rather
+ * than by reflection, and the configured {@link Gson} is built once and shared, since it is
+ * thread-safe. Output matches what a default {@code new Gson()} produced: null fields are left
+ * out and enums are written by name. Reading them back goes through reflection, as before.
+ */
+public final class JsonSerialization {
+
+    private static final Gson GSON = new GsonBuilder()
+        .registerTypeAdapterFactory(new HandWrittenAdapterFactory<>(Prompt.class,
+            JsonSerialization::writePromptFields))
+        .registerTypeAdapterFactory(new HandWrittenAdapterFactory<>(StatusResponse.class,
+            StatusResponse::writeFields))
+        .create();
+
+    private JsonSerialization() {
+    }
+
+    /**
+     * @return the shared Gson instance, for types without a dedicated adapter.
+     */
+    public static Gson gson() {
+        return GSON;
+    }
+
+    /**
+     * @return a JSON representation of the value.
+     */
+    public static String toJson(Object value) {
+        StringWriter out = new StringWriter(64);
+        try {
+            writeTo(value, out);
+        } catch (IOException e) {
+            // StringWriter never throws
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes a JSON representation of the value straight to {@code out}, without building an
+     * intermediate String. {@code out} is flushed but not closed.
+     *
+     * @param value The value to write.
+     * @param out   Destination of the JSON, e.g. a servlet response's writer.
+     */
+    public static void writeTo(Object value, Writer out) throws IOException {
+        JsonWriter writer = GSON.newJsonWriter(out);
+        if (value == null) {
+            writer.nullValue();
+        } else {
+            writeValue(value, writer);
+        }
+        writer.flush();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void writeValue(T value, JsonWriter writer) throws IOException {
+        TypeAdapter<T> adapter = (TypeAdapter<T>) GSON.getAdapter(value.getClass());
+        adapter.write(writer, value);
+    }
+
+    /**
+     * Writes one type's fields into an already open JSON object.
+     */
+    private interface FieldWriter<T> {
+
+        void writeFields(T value, JsonWriter writer) throws IOException;
+    }
+
+    // Writes values of a type and its subtypes with a FieldWriter. Reads are rare and fall back to
+    // the reflective adapter Gson would otherwise use, which expects the same field names.
+    private static class HandWrittenAdapterFactory<B> implements TypeAdapterFactory {
+
+        private final Class<B> baseType;
+        private final FieldWriter<B> fieldWriter;
+
+        private HandWrittenAdapterFactory(Class<B> baseType, FieldWriter<B> fieldWriter) {
+            this.baseType = baseType;
+            this.fieldWriter = fieldWriter;
+        }
+
+        @Override
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (!baseType.isAssignableFrom(type.getRawType())) {
+                return null;
+            }
+
+            TypeAdapter<T> reflective = gson.getDelegateAdapter(this, type);
+            return new TypeAdapter<T>() {
+                @Override
+                public void write(JsonWriter writer, T value) throws IOException {
+                    if (value == null) {
+                        writer.nullValue();
+                        return;
+                    }
+
+                    writer.beginObject();
+                    fieldWriter.writeFields(baseType.cast(value), writer);
+                    writer.endObject();
+                }
+
+                @Override
+                public T read(JsonReader reader) throws IOException {
+                    return reflective.read(reader);
+                }
+            };
+        }
+    }
+
+    // The lease token is left out: prompts' JSON is cached and shared by every client.
+    private static void writePromptFields(Prompt prompt, JsonWriter writer) throws IOException {
+        writer.name("id").value(prompt.getId());
+        writer.name("type").value(prompt.getType() == null ? null : prompt.getType().name());
+        writer.name("body").value(prompt.getBody());
+    }
+}
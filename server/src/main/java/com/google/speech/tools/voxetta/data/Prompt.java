@@ -24,6 +24,7 @@ public class Prompt {
     private final long id;
     private final Type type;
     private final String body;
+    private final String leaseToken;
 
     /**
      * Determines the "type" of prompt and dictates what to expect in the prompt body.
@@ -41,9 +42,29 @@ public class Prompt {
      * @param body {String} body (or content) of the prompt.
      */
     public Prompt(long id, Type type, String body) throws IllegalArgumentException {
+        this(id, type, body, null);
+    }
+
+    /**
+     * @param id         {long} database ID of the prompt.
+     * @param type       {Type} type of prompt this is.
+     * @param body       {String} body (or content) of the prompt.
+     * @param leaseToken {String} secret that lets whoever was handed the prompt release it, or
+     *                   null if the prompt is not leased.
+     */
+    public Prompt(long id, Type type, String body, String leaseToken) {
         this.id = id;
         this.body = body;
         this.type = type;
+        this.leaseToken = leaseToken;
+    }
+
+    /**
+     * @param leaseToken {String} secret of the prompt's lease.
+     * @return {Prompt} a copy of this prompt handed out under the given lease.
+     */
+    public Prompt withLeaseToken(String leaseToken) {
+        return new Prompt(id, type, body, leaseToken);
     }
 
     /**
@@ -66,4 +87,12 @@ public class Prompt {
     public String getBody() {
         return body;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return {String} secret of the lease the prompt was handed out under, or null. It is sent to
+     * the client next to the prompt's JSON, never as part of it, since that JSON is cached.
+     */
+    public String getLeaseToken() {
+        return leaseToken;
+    }
+}
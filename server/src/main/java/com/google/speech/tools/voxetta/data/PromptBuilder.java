@@ -28,6 +28,7 @@ public class PromptBuilder {
     private long id;
     private Type type;
     private String body;
+    private String leaseToken;
 
     public PromptBuilder() {
     }
@@ -55,6 +56,11 @@ public class PromptBuilder {
         return this;
     }
 
+    public PromptBuilder setLeaseToken(String leaseToken) {
+        this.leaseToken = leaseToken;
+        return this;
+    }
+
     /**
      * Builds a Prompt instance with the properties of a Prompt entity.
      *
@@ -66,10 +72,11 @@ public class PromptBuilder {
             .setId((long) entity.getKey().getId())
             .setType((String) entity.getProperty("type"))
             .setBody((String) entity.getProperty("body"))
+            .setLeaseToken((String) entity.getProperty("leaseToken"))
             .build();
     }
 
     public Prompt build() {
-        return new Prompt(id, type, body);
+        return new Prompt(id, type, body, leaseToken);
     }
 }
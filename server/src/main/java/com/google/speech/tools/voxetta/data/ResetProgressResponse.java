@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.data;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/** 
+ * A ResetProgressResponse is the container for a servlet's response to a request to reset prompts,
+ * which may take several requests to complete.  
+ */
+public class ResetProgressResponse extends StatusResponse {
+
+  private int scanned;
+  private int reset;
+  private String cursor;
+  private boolean done;
+
+  /**
+   * Creates a new ResetProgressResponse.
+   *
+   * @param success Represents if a backend fetch was successful or not. 
+   * @param scanned The number of prompts looked at by this request.
+   * @param reset The number of prompts made unread by this request.
+   * @param cursor The cursor to resume from, or null when done.
+   * @param done Whether every prompt has been looked at.
+   */ 
+  public ResetProgressResponse(boolean success, int scanned, int reset, String cursor,
+      boolean done) {
+    super(success);
+    this.scanned = scanned;
+    this.reset = reset;
+    this.cursor = cursor;
+    this.done = done;
+  }
+
+  @Override
+  protected void writeFields(JsonWriter writer) throws IOException {
+    super.writeFields(writer);
+    writer.name("scanned").value(scanned);
+    writer.name("reset").value(reset);
+    writer.name("cursor").value(cursor);
+    writer.name("done").value(done);
+  }
+
+  /**
+   * Return the number of prompts made unread by this request.
+   */
+  public int getReset() {
+    return reset;
+  }
+
+  /**
+   * Return the cursor to resume from, or null when done.
+   */
+  public String getCursor() {
+    return cursor;
+  }
+
+  /**
+   * Return whether every prompt has been looked at.
+   */
+  public boolean isDone() {
+    return done;
+  }
+}
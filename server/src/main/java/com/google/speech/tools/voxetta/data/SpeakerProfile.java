@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.data;
+
+import java.util.Locale;
+
+/**
+ * Demographics of a speaker, reduced to the bucket recordings are balanced across.
+ * <p>
+ * A bucket combines the speaker's age band, gender and device, e.g. "30-44|female|mobile".
+ * Gender and device are compared case-insensitively, and missing values form an "unknown" group
+ * of their own.
+ */
+public final class SpeakerProfile {
+
+    /**
+     * Profile of a speaker nothing is known about.
+     */
+    public static final SpeakerProfile UNKNOWN = new SpeakerProfile(0, null, null);
+
+    private static final String UNKNOWN_VALUE = "unknown";
+
+    // Longer genders and devices are cut off, so a bucket name stays short.
+    private static final int MAX_VALUE_LENGTH = 32;
+
+    private final int age;
+    private final String gender;
+    private final String device;
+
+    /**
+     * @param age    Age of the speaker, or 0 if unknown.
+     * @param gender Gender of the speaker, or null if unknown.
+     * @param device Device the speaker records on, or null if unknown.
+     */
+    public SpeakerProfile(int age, String gender, String device) {
+        this.age = age;
+        this.gender = normalize(gender);
+        this.device = normalize(device);
+    }
+
+    /**
+     * @return the bucket the speaker's recordings count towards.
+     */
+    public String getBucket() {
+        return ageBand(age) + "|" + gender + "|" + device;
+    }
+
+    private static String ageBand(int age) {
+        if (age <= 0) {
+            return UNKNOWN_VALUE;
+        } else if (age < 18) {
+            return "under-18";
+        } else if (age < 30) {
+            return "18-29";
+        } else if (age < 45) {
+            return "30-44";
+        } else if (age < 60) {
+            return "45-59";
+        }
+        return "60+";
+    }
+
+    private static String normalize(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return UNKNOWN_VALUE;
+        }
+
+        String normalized = value.trim().toLowerCase(Locale.ROOT).replace('|', '-');
+        return normalized.length() > MAX_VALUE_LENGTH
+            ? normalized.substring(0, MAX_VALUE_LENGTH) : normalized;
+    }
+
+    @Override
+    public String toString() {
+        return getBucket();
+    }
+}
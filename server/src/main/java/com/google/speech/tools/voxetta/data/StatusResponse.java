@@ -17,7 +17,9 @@
 package com.google.speech.tools.voxetta.data;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Writer;
 
 /** 
  * A StatusResponse is the container for a servlet's response to a front-end fetch request.  
@@ -41,8 +43,29 @@ public class StatusResponse {
    * @return a JSON representation.
    */
   public String toJson() {
-    Gson gson = new Gson();
-    return gson.toJson(this);
+    return JsonSerialization.toJson(this);
+  }
+
+  /** 
+   * Writes a JSON representation of a StatusResponse straight to a writer, followed by a line
+   * separator, as the servlets' println of {@link #toJson()} used to.
+   *
+   * @param out The writer, e.g. a servlet response's writer. It is flushed but not closed.
+   */
+  public void writeTo(Writer out) throws IOException {
+    JsonSerialization.writeTo(this, out);
+    out.write(System.lineSeparator());
+    out.flush();
+  }
+
+  /** 
+   * Writes the response's fields into an already open JSON object. Subclasses with fields of
+   * their own must call this first and then write theirs.
+   *
+   * @param writer The writer, positioned inside the response's object.
+   */
+  protected void writeFields(JsonWriter writer) throws IOException {
+    writer.name("success").value(success);
   }
 
   /**
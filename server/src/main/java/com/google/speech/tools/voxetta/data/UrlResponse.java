@@ -16,6 +16,9 @@
 
 package com.google.speech.tools.voxetta.data;
 
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
 /** 
  * A UrlResponse is the container for a servlet's response to a front-end fetch request for a URL.  
  */
@@ -33,4 +36,10 @@ public class UrlResponse extends StatusResponse {
     super(success);
     this.url = url;
   }
+
+  @Override
+  protected void writeFields(JsonWriter writer) throws IOException {
+    super.writeFields(writer);
+    writer.name("url").value(url);
+  }
 }
@@ -30,6 +30,7 @@ public final class Utterance {
   private String device; 
   private int age;
   private String gender; 
+  private String idempotencyKey;
 
   /**
    * Creates a new Utterance.
@@ -42,12 +43,25 @@ public final class Utterance {
    * @param gender The gender of the speaker. Must be non-null.
    */ 
   public Utterance(String audio, String userId, String promptId, String device, int age, String gender) {
+    this(audio, userId, promptId, device, age, gender, null);
+  }
+
+  /**
+   * Creates a new Utterance that is saved at most once.
+   *
+   * @param idempotencyKey Identifies the upload, so that retries of it are only saved once. May be
+   *     null if the upload cannot be identified.
+   * @see #Utterance(String, String, String, String, int, String)
+   */
+  public Utterance(String audio, String userId, String promptId, String device, int age, String gender,
+      String idempotencyKey) {
     this.audio = audio; 
     this.userId = userId; 
     this.promptId = promptId;
     this.device = device; 
     this.age = age; 
     this.gender = gender; 
+    this.idempotencyKey = idempotencyKey;
 
     verifyConstructorLegality();
   }
@@ -107,6 +121,13 @@ public final class Utterance {
     return gender;
   }
 
+  /**
+   * Return the key that identifies the upload of this Utterance, or null if it has none.
+   */
+  public String getIdempotencyKey() {
+    return idempotencyKey;
+  }
+
   /**
    * A builder for the Utterance object. 
    */
@@ -117,6 +138,7 @@ public final class Utterance {
     private String device; 
     private int age;
     private String gender; 
+    private String idempotencyKey;
 
     public UtteranceBuilder() {}
 
@@ -168,11 +190,20 @@ public final class Utterance {
       return this;
     }
 
+    /**
+     * Set the key that identifies the upload, so that retries of it are only saved once.
+     */
+    public UtteranceBuilder setIdempotencyKey(String idempotencyKey) {
+      this.idempotencyKey = idempotencyKey;
+      return this;
+    }
+
     /**
      * Return a newly built Utterance.
      */
     public Utterance build() {
-      return new Utterance(this.audio, this.userId, this.promptId, this.device, this.age, this.gender);
+      return new Utterance(this.audio, this.userId, this.promptId, this.device, this.age, this.gender,
+          this.idempotencyKey);
     }
   }
 }
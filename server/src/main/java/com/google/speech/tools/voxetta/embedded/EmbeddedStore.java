@@ -0,0 +1,475 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.embedded;
+
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.PromptBuilder;
+import com.google.speech.tools.voxetta.data.Utterance;
+import com.google.speech.tools.voxetta.utils.LeaseTokens;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prompt and utterance storage in a local directory, for running without Datastore.
+ * <p>
+ * Every change is appended to a {@link RecordLog} ("prompts.log" or "utterances.log") and
+ * applied to an in-memory index, which is rebuilt from the logs when the store is opened. Prompts
+ * go through the same states as in Datastore: unread, leased until an expiry time, and confirmed.
+ * Expired leases are reclaimed when prompts are handed out, so no sweeper is needed. The prompt log
+ * is compacted when it is opened if most of its records are superseded lease changes.
+ * <p>
+ * One store is shared by everything that opens the same directory in a process; methods are
+ * thread-safe.
+ */
+public class EmbeddedStore implements Closeable {
+
+    private static final Map<Path, EmbeddedStore> openStores = new ConcurrentHashMap<>();
+
+    private static final byte PROMPT_SAVED = 1;
+    private static final byte PROMPT_LEASED = 2;
+    private static final byte PROMPT_RELEASED = 3;
+    private static final byte PROMPT_CONFIRMED = 4;
+    private static final byte UTTERANCE_SAVED = 1;
+
+    // Compact the prompt log once it holds this many more records than there are prompts.
+    private static final int COMPACTION_SLACK = 1000;
+
+    private enum State {
+        UNREAD,
+        LEASED,
+        CONFIRMED
+    }
+
+    private static class PromptRecord {
+
+        private final Prompt prompt;
+        private State state = State.UNREAD;
+        private long leaseExpiry;
+        private String leaseToken;
+
+        private PromptRecord(Prompt prompt) {
+            this.prompt = prompt;
+        }
+    }
+
+    private static class Lease {
+
+        private final long promptId;
+        private final long expiry;
+
+        private Lease(long promptId, long expiry) {
+            this.promptId = promptId;
+            this.expiry = expiry;
+        }
+    }
+
+    private final Path directory;
+    private final boolean sync;
+    private final Map<Long, PromptRecord> prompts = new HashMap<>();
+    // May hold prompts that are no longer unread; they are skipped when polled.
+    private final Deque<Long> unread = new ArrayDeque<>();
+    // Leases in the order they were handed out, which is also the order they expire in.
+    private final Deque<Lease> leases = new ArrayDeque<>();
+    private long lastPromptId;
+    private long utterances;
+    private final Set<String> idempotencyKeys = new HashSet<>();
+    // Number of utterances recorded for each prompt that has any
+    private final Map<Long, Long> recordings = new HashMap<>();
+
+    private RecordLog promptLog;
+    private RecordLog utteranceLog;
+
+    private EmbeddedStore(Path directory, boolean sync) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.sync = sync;
+
+        promptLog = openPromptLog();
+        if (promptLog.records() > 2L * prompts.size() + COMPACTION_SLACK) {
+            promptLog.close();
+            RecordLog.rewrite(directory.resolve("prompts.log"), snapshot());
+            clearPrompts();
+            promptLog = openPromptLog();
+        }
+
+        utteranceLog = new RecordLog(directory.resolve("utterances.log"), sync,
+            this::replayUtterance);
+    }
+
+    /**
+     * Returns the store kept in a directory, opening it if this process has not yet.
+     *
+     * @param directory The directory the store's files are kept in. Created if missing.
+     * @param sync      Whether every change is forced to disk before it returns. Only applies
+     *                  when the store is opened by this call.
+     */
+    public static EmbeddedStore open(Path directory, boolean sync) {
+        return openStores.computeIfAbsent(directory.toAbsolutePath().normalize(), path -> {
+            try {
+                return new EmbeddedStore(path, sync);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to open embedded store in " + path, e);
+            }
+        });
+    }
+
+    private RecordLog openPromptLog() throws IOException {
+        long now = System.currentTimeMillis();
+        RecordLog log = new RecordLog(directory.resolve("prompts.log"), sync, this::replay);
+
+        // Leases that ran out while the store was closed are over.
+        for (PromptRecord record : prompts.values()) {
+            if (record.state == State.LEASED && record.leaseExpiry <= now) {
+                record.state = State.UNREAD;
+            }
+        }
+        List<Long> promptIds = new ArrayList<>(prompts.keySet());
+        promptIds.sort(null);
+        for (long promptId : promptIds) {
+            PromptRecord record = prompts.get(promptId);
+            if (record.state == State.UNREAD) {
+                unread.add(promptId);
+            } else if (record.state == State.LEASED) {
+                leases.add(new Lease(promptId, record.leaseExpiry));
+            }
+        }
+        List<Lease> byExpiry = new ArrayList<>(leases);
+        byExpiry.sort((a, b) -> Long.compare(a.expiry, b.expiry));
+        leases.clear();
+        leases.addAll(byExpiry);
+
+        return log;
+    }
+
+    private void replay(ByteBuffer record) {
+        byte type = record.get();
+        long promptId = record.getLong();
+
+        if (type == PROMPT_SAVED) {
+            String promptType = readString(record);
+            String body = readString(record);
+            prompts.put(promptId, new PromptRecord(
+                new PromptBuilder().setId(promptId).setType(promptType).setBody(body).build()));
+            lastPromptId = Math.max(lastPromptId, promptId);
+            return;
+        }
+
+        PromptRecord prompt = prompts.get(promptId);
+        if (prompt == null) {
+            return;
+        }
+        switch (type) {
+            case PROMPT_LEASED:
+                prompt.state = State.LEASED;
+                prompt.leaseExpiry = record.getLong();
+                break;
+            case PROMPT_RELEASED:
+                prompt.state = State.UNREAD;
+                break;
+            case PROMPT_CONFIRMED:
+                prompt.state = State.CONFIRMED;
+                break;
+            default:
+        }
+    }
+
+    private void replayUtterance(ByteBuffer record) {
+        if (record.get() != UTTERANCE_SAVED) {
+            return;
+        }
+        utterances++;
+
+        readString(record);
+        readString(record);
+        countRecording(readString(record));
+        readString(record);
+        record.getInt();
+        readString(record);
+        String idempotencyKey = readString(record);
+        if (idempotencyKey != null) {
+            idempotencyKeys.add(idempotencyKey);
+        }
+    }
+
+    private void countRecording(String promptId) {
+        try {
+            recordings.merge(Long.parseLong(promptId), 1L, Long::sum);
+        } catch (NumberFormatException e) {
+            // Uploads from older clients name no prompt
+        }
+    }
+
+    private void clearPrompts() {
+        prompts.clear();
+        unread.clear();
+        leases.clear();
+    }
+
+    // The fewest records that recreate the current prompts.
+    private List<byte[]> snapshot() {
+        List<Long> promptIds = new ArrayList<>(prompts.keySet());
+        promptIds.sort(null);
+
+        List<byte[]> records = new ArrayList<>();
+        for (long promptId : promptIds) {
+            PromptRecord prompt = prompts.get(promptId);
+            records.add(savedRecord(prompt.prompt));
+            if (prompt.state == State.LEASED) {
+                records.add(leasedRecord(promptId, prompt.leaseExpiry));
+            } else if (prompt.state == State.CONFIRMED) {
+                records.add(promptRecord(PROMPT_CONFIRMED, promptId));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Adds an unread prompt.
+     *
+     * @throws IllegalArgumentException if the type is not a valid prompt type.
+     */
+    public synchronized Prompt savePrompt(String type, String body) throws IOException {
+        Prompt prompt = new PromptBuilder().setId(lastPromptId + 1).setType(type).setBody(body)
+            .build();
+        promptLog.append(savedRecord(prompt));
+
+        lastPromptId = prompt.getId();
+        prompts.put(prompt.getId(), new PromptRecord(prompt));
+        unread.add(prompt.getId());
+        return prompt;
+    }
+
+    /**
+     * Leases the next unread prompt, first making prompts with expired leases unread again.
+     *
+     * @param now         The current time, in milliseconds since the epoch.
+     * @param leaseMillis How long the prompt is leased for.
+     * @return the leased prompt, or null if there are no unread prompts.
+     */
+    public synchronized Prompt leaseNext(long now, long leaseMillis) throws IOException {
+        while (!leases.isEmpty() && leases.peek().expiry <= now) {
+            Lease lease = leases.poll();
+            PromptRecord prompt = prompts.get(lease.promptId);
+            if (prompt.state == State.LEASED && prompt.leaseExpiry == lease.expiry) {
+                prompt.state = State.UNREAD;
+                unread.add(lease.promptId);
+            }
+        }
+
+        Long promptId;
+        while ((promptId = unread.poll()) != null) {
+            PromptRecord prompt = prompts.get(promptId);
+            if (prompt.state != State.UNREAD) {
+                continue;
+            }
+
+            long expiry = now + leaseMillis;
+            promptLog.append(leasedRecord(promptId, expiry));
+            prompt.state = State.LEASED;
+            prompt.leaseExpiry = expiry;
+            prompt.leaseToken = LeaseTokens.newToken();
+            leases.add(new Lease(promptId, expiry));
+            return prompt.prompt.withLeaseToken(prompt.leaseToken);
+        }
+        return null;
+    }
+
+    /**
+     * Makes a leased prompt unread again. Lease tokens are only kept in memory, so leases granted
+     * before the store was reopened cannot be released and run out instead.
+     *
+     * @param leaseToken The token the prompt was leased under.
+     * @return whether the prompt was leased under that token.
+     */
+    public synchronized boolean release(long promptId, String leaseToken, long now)
+        throws IOException {
+        PromptRecord prompt = prompts.get(promptId);
+        if (prompt == null || prompt.state != State.LEASED || prompt.leaseExpiry <= now
+            || !LeaseTokens.matches(prompt.leaseToken, leaseToken)) {
+            return false;
+        }
+
+        promptLog.append(promptRecord(PROMPT_RELEASED, promptId));
+        prompt.state = State.UNREAD;
+        unread.add(promptId);
+        return true;
+    }
+
+    /**
+     * Marks a leased prompt as recorded, so it is never handed out again. As with releasing, only
+     * leases granted since the store was opened can be confirmed.
+     *
+     * @param leaseToken The token the prompt was leased under.
+     * @return whether the prompt was leased under that token.
+     */
+    public synchronized boolean confirm(long promptId, String leaseToken) throws IOException {
+        PromptRecord prompt = prompts.get(promptId);
+        if (prompt == null || prompt.state != State.LEASED
+            || !LeaseTokens.matches(prompt.leaseToken, leaseToken)) {
+            return false;
+        }
+
+        promptLog.append(promptRecord(PROMPT_CONFIRMED, promptId));
+        prompt.state = State.CONFIRMED;
+        return true;
+    }
+
+    /**
+     * Appends an utterance, unless one with the same idempotency key was saved before.
+     *
+     * @return whether the utterance was saved.
+     */
+    public synchronized boolean saveUtterance(Utterance utterance) throws IOException {
+        String idempotencyKey = utterance.getIdempotencyKey();
+        if (idempotencyKey != null && idempotencyKeys.contains(idempotencyKey)) {
+            return false;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(UTTERANCE_SAVED);
+            writeString(out, utterance.getAudio());
+            writeString(out, utterance.getUserId());
+            writeString(out, utterance.getPromptId());
+            writeString(out, utterance.getDevice());
+            out.writeInt(utterance.getAge());
+            writeString(out, utterance.getGender());
+            writeString(out, idempotencyKey);
+        }
+
+        utteranceLog.append(bytes.toByteArray());
+        utterances++;
+        countRecording(utterance.getPromptId());
+        if (idempotencyKey != null) {
+            idempotencyKeys.add(idempotencyKey);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of prompts that are neither leased nor recorded.
+     */
+    public synchronized int unreadPrompts() {
+        int count = 0;
+        for (PromptRecord prompt : prompts.values()) {
+            if (prompt.state == State.UNREAD) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of utterances saved.
+     */
+    public synchronized long utterances() {
+        return utterances;
+    }
+
+    /**
+     * @param promptId Id of the prompt.
+     * @return the number of utterances saved for the prompt.
+     */
+    public synchronized long recordings(long promptId) {
+        return recordings.getOrDefault(promptId, 0L);
+    }
+
+    /**
+     * @return the directory the store's files are kept in.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Closes the store's logs. The store can be opened again afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        openStores.remove(directory, this);
+        promptLog.close();
+        utteranceLog.close();
+    }
+
+    private static byte[] savedRecord(Prompt prompt) {
+        return record(PROMPT_SAVED, prompt.getId(), out -> {
+            writeString(out, prompt.getType().name().toLowerCase());
+            writeString(out, prompt.getBody());
+        });
+    }
+
+    private static byte[] leasedRecord(long promptId, long expiry) {
+        return record(PROMPT_LEASED, promptId, out -> out.writeLong(expiry));
+    }
+
+    private static byte[] promptRecord(byte type, long promptId) {
+        return record(type, promptId, out -> { });
+    }
+
+    private interface Fields {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] record(byte type, long promptId, Fields fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeLong(promptId);
+            fields.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Strings are stored as their UTF-8 length and bytes; null as length -1.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(record.array(), record.arrayOffset() + record.position(), length,
+            StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return value;
+    }
+}
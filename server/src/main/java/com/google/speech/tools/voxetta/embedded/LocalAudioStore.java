@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.embedded;
+
+import com.google.common.io.BaseEncoding;
+import com.google.speech.tools.voxetta.audio.AudioAnalyzer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps recordings as files on the local filesystem, named by the SHA-256 of their content.
+ * <p>
+ * Uploads are streamed to a temporary file with {@link FileChannel#transferFrom}, hashed on the
+ * way, and then moved to their final name, so only a small copy buffer is held in memory no matter
+ * how large the recording is. A recording that is uploaded twice is stored once.
+ */
+public class LocalAudioStore {
+
+    private static final Pattern KEY = Pattern.compile("[0-9a-f]{64}");
+
+    // Bytes transferred per transferFrom call.
+    private static final long TRANSFER_CHUNK_BYTES = 1024 * 1024;
+
+    private final Path directory;
+    private final Path temporaryDirectory;
+
+    /**
+     * @param directory The directory recordings are kept in. Created if missing.
+     */
+    public LocalAudioStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.temporaryDirectory = Files.createDirectories(directory.resolve("tmp"));
+    }
+
+    /**
+     * Stores a recording.
+     *
+     * @param audio The recording. Read to the end but not closed.
+     * @return the recording's key, which is the hex-encoded SHA-256 of its content.
+     */
+    public String save(InputStream audio) throws IOException {
+        MessageDigest digest = sha256();
+        Path temporary = Files.createTempFile(temporaryDirectory, "upload", ".partial");
+
+        try {
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.WRITE);
+                 ReadableByteChannel in = Channels.newChannel(new DigestInputStream(audio, digest))) {
+                long position = 0;
+                long transferred;
+                while ((transferred = out.transferFrom(in, position, TRANSFER_CHUNK_BYTES)) > 0) {
+                    position += transferred;
+                }
+                out.force(true);
+            }
+
+            String key = BaseEncoding.base16().lowerCase().encode(digest.digest());
+            Path file = path(key);
+            if (Files.exists(file)) {
+                return key;
+            }
+
+            Files.createDirectories(file.getParent());
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // The same recording was stored by another upload in the meantime.
+            }
+            return key;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Opens a stored recording for reading.
+     *
+     * @param key The recording's key.
+     * @return the recording, or null if the key is malformed or nothing is stored under it.
+     */
+    public FileChannel open(String key) throws IOException {
+        if (key == null || !KEY.matcher(key).matches()) {
+            return null;
+        }
+
+        Path file = path(key);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    /**
+     * Guesses the MIME type of a recording from its first bytes.
+     *
+     * @param recording The recording, positioned anywhere. Its position is not changed.
+     * @return the recording's MIME type, or "application/octet-stream" if it is not recognized.
+     */
+    public static String contentType(FileChannel recording) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        recording.read(header, 0);
+        header.position(0);
+
+        switch (AudioAnalyzer.describeContainer(header)) {
+            case "wav":
+                return "audio/wav";
+            case "webm":
+                return "audio/webm";
+            case "ogg":
+                return "audio/ogg";
+            default:
+                return "application/octet-stream";
+        }
+    }
+
+    // Spreads recordings over subdirectories named by the first two bytes of their key.
+    private Path path(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(key);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.embedded;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of records, each stored as its length, a CRC-32 of its content, and the
+ * content.
+ * <p>
+ * Records are only ever appended. A record that was cut short by a crash, or fails its checksum,
+ * ends the log: it and anything after it are discarded when the log is opened.
+ */
+class RecordLog implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(RecordLog.class.getName());
+
+    private static final int HEADER_BYTES = 8;
+
+    // Larger records are taken to be corruption rather than allocated.
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final boolean sync;
+    private long records;
+
+    /**
+     * Opens a log, creating it if needed, and replays its records.
+     *
+     * @param file   The log file.
+     * @param sync   Whether every append is forced to disk before it returns.
+     * @param replay Called with each intact record, in order. The buffer is only valid during the
+     *               call.
+     */
+    RecordLog(Path file, boolean sync, Consumer<ByteBuffer> replay) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        this.sync = sync;
+
+        long end = replay(replay);
+        if (end < channel.size()) {
+            logger.warning("Discarding " + (channel.size() - end) + " bytes of torn records at the"
+                + " end of " + file);
+            channel.truncate(end);
+        }
+        channel.position(end);
+    }
+
+    // Returns the offset just after the last intact record.
+    private long replay(Consumer<ByteBuffer> handler) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        CRC32 crc = new CRC32();
+        long offset = 0;
+
+        while (true) {
+            header.clear();
+            if (readFully(header, offset) < HEADER_BYTES) {
+                return offset;
+            }
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || length > MAX_RECORD_BYTES) {
+                return offset;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(length);
+            if (readFully(record, offset + HEADER_BYTES) < length) {
+                return offset;
+            }
+            crc.reset();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                return offset;
+            }
+
+            record.flip();
+            handler.accept(record);
+            records++;
+            offset += HEADER_BYTES + length;
+        }
+    }
+
+    private int readFully(ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Appends a record. Returns once it is written, and with sync enabled, durable.
+     */
+    synchronized void append(byte[] record) throws IOException {
+        ByteBuffer framed = frame(record);
+        while (framed.hasRemaining()) {
+            channel.write(framed);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+        records++;
+    }
+
+    /**
+     * @return the number of records in the log.
+     */
+    synchronized long records() {
+        return records;
+    }
+
+    private static ByteBuffer frame(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer framed = ByteBuffer.allocate(HEADER_BYTES + record.length);
+        framed.putInt(record.length).putInt((int) crc.getValue()).put(record);
+        framed.flip();
+        return framed;
+    }
+
+    /**
+     * Replaces a log's content with the given records, atomically. The log must not be open.
+     */
+    static void rewrite(Path file, Iterable<byte[]> records) throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (byte[] record : records) {
+                ByteBuffer framed = frame(record);
+                while (framed.hasRemaining()) {
+                    out.write(framed);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
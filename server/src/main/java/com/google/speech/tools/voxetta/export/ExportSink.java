@@ -0,0 +1,62 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Where an export's files and checkpoint are stored.
+ * <p>
+ * Files appear atomically: a file that was not committed, e.g. because the export was
+ * interrupted, is never visible, so a resumed export can simply write it again.
+ */
+public interface ExportSink {
+
+    /**
+     * Starts writing a file, which replaces any file of the same name once committed.
+     *
+     * @param name Name of the file, relative to the export.
+     * @return the file to write.
+     */
+    PendingFile create(String name) throws IOException;
+
+    /**
+     * Reads a whole file.
+     *
+     * @param name Name of the file, relative to the export.
+     * @return the file's content, or null if there is no such file.
+     */
+    byte[] read(String name) throws IOException;
+
+    /**
+     * A file being written. Closing it without committing it discards it.
+     */
+    interface PendingFile extends Closeable {
+
+        /**
+         * @return the stream the file's content is written to.
+         */
+        OutputStream stream();
+
+        /**
+         * Makes the file visible with everything written to its stream.
+         */
+        void commit() throws IOException;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.export;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Stores an export in a local directory. Files are written under a temporary name and renamed
+ * into place when they are committed.
+ */
+public class FileSystemExportSink implements ExportSink {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final Path directory;
+
+    /**
+     * @param directory The directory the export is written to. Created if missing.
+     */
+    public FileSystemExportSink(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public PendingFile create(String name) throws IOException {
+        Path target = directory.resolve(name);
+        Path partial = directory.resolve(name + ".partial");
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(partial), BUFFER_BYTES);
+
+        return new PendingFile() {
+            private boolean done;
+
+            @Override
+            public OutputStream stream() {
+                return out;
+            }
+
+            @Override
+            public void commit() throws IOException {
+                out.close();
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+                done = true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!done) {
+                    done = true;
+                    out.close();
+                    Files.deleteIfExists(partial);
+                }
+            }
+        };
+    }
+
+    @Override
+    public byte[] read(String name) throws IOException {
+        try {
+            return Files.readAllBytes(directory.resolve(name));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
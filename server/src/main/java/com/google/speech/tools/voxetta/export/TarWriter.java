@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a POSIX ustar archive of regular files to a stream, one entry at a time.
+ */
+public class TarWriter {
+
+    private static final int BLOCK_SIZE = 512;
+    private static final int MAX_NAME_LENGTH = 100;
+
+    private final OutputStream out;
+    private final long modifiedSeconds;
+
+    /**
+     * @param out             The stream the archive is written to. Not closed.
+     * @param modifiedSeconds Modification time of every entry, in seconds since the epoch.
+     */
+    public TarWriter(OutputStream out, long modifiedSeconds) {
+        this.out = out;
+        this.modifiedSeconds = modifiedSeconds;
+    }
+
+    /**
+     * Adds a regular file to the archive.
+     *
+     * @param name    Name of the file; at most 100 ASCII characters.
+     * @param content Content of the file.
+     */
+    public void addFile(String name, byte[] content) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        if (nameBytes.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Tar entry name is too long: " + name);
+        }
+
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        writeOctal(header, 100, 8, 0644);
+        writeOctal(header, 108, 8, 0);
+        writeOctal(header, 116, 8, 0);
+        writeOctal(header, 124, 12, content.length);
+        writeOctal(header, 136, 12, modifiedSeconds);
+        header[156] = '0';
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+        // The checksum is computed with its own field filled with spaces.
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        writeOctal(header, 148, 7, checksum);
+        header[155] = ' ';
+
+        out.write(header);
+        out.write(content);
+        out.write(new byte[padding(content.length)]);
+    }
+
+    /**
+     * Ends the archive. Nothing may be added afterwards.
+     */
+    public void finish() throws IOException {
+        out.write(new byte[2 * BLOCK_SIZE]);
+        out.flush();
+    }
+
+    private static int padding(long length) {
+        return (int) ((BLOCK_SIZE - length % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    // Zero-padded octal digits followed by a NUL.
+    private static void writeOctal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        if (digits.length() > length - 1) {
+            throw new IllegalArgumentException("Tar header value is too large: " + value);
+        }
+        int start = offset + length - 1 - digits.length();
+        Arrays.fill(header, offset, start, (byte) '0');
+        for (int i = 0; i < digits.length(); i++) {
+            header[start + i] = (byte) digits.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+}
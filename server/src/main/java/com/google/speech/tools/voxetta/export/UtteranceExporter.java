@@ -0,0 +1,403 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.export;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Text;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.speech.tools.voxetta.data.ExportProgressResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Exports every Utterance, with its prompt and audio, as sharded WebDataset-style tar archives.
+ * <p>
+ * Utterances are read in key order, {@code shardSize} at a time with a query cursor. Each page
+ * becomes one shard: "shard-000000.tar" holds a "&lt;key&gt;.json" file with the utterance's
+ * properties and prompt, and a "&lt;key&gt;.wav" or ".webm" file with its audio, and
+ * "shard-000000.jsonl" lists the same metadata one utterance per line. Audio is fetched on a
+ * worker pool, at most {@code maxInFlight} recordings at a time, while entries are written in
+ * order.
+ * <p>
+ * After every shard a checkpoint with the cursor of the next one is saved, so an interrupted or
+ * time-boxed export resumes where it stopped; a shard that was being written is written again.
+ * When every utterance has been exported, "manifest.json" lists the shards.
+ */
+public class UtteranceExporter {
+
+    static final String CHECKPOINT = "checkpoint.json";
+    static final String MANIFEST = "manifest.json";
+
+    // Datastore accepts at most 1000 keys per batched get.
+    private static final int MAX_GET_BATCH_SIZE = 1000;
+
+    /**
+     * Reads the audio of a recording.
+     */
+    @VisibleForTesting
+    interface AudioSource {
+
+        /**
+         * @return the recording, or null if it does not exist.
+         */
+        byte[] read(String audioKey) throws IOException;
+    }
+
+    private final DatastoreService datastoreService;
+    private final AudioSource audioSource;
+    private final ExportSink sink;
+    private final Executor executor;
+    private final int shardSize;
+    private final int maxInFlight;
+
+    /**
+     * Creates an exporter that reads audio from Blobstore.
+     *
+     * @param datastoreService The service utterances and prompts are read with.
+     * @param sink             Where the export is written.
+     * @param executor         Executor audio is fetched on.
+     * @param shardSize        Number of utterances per shard.
+     * @param maxInFlight      Maximum number of recordings fetched or held at once.
+     */
+    public UtteranceExporter(DatastoreService datastoreService, ExportSink sink, Executor executor,
+        int shardSize, int maxInFlight) {
+        this(datastoreService, UtteranceExporter::readBlob, sink, executor, shardSize, maxInFlight);
+    }
+
+    @VisibleForTesting
+    UtteranceExporter(DatastoreService datastoreService, AudioSource audioSource,
+        ExportSink sink, Executor executor, int shardSize, int maxInFlight) {
+        this.datastoreService = datastoreService;
+        this.audioSource = audioSource;
+        this.sink = sink;
+        this.executor = executor;
+        this.shardSize = shardSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Exports shards, resuming from the sink's checkpoint, until every utterance is exported or
+     * the time budget runs out. The shard in progress when the budget runs out is finished.
+     *
+     * @param timeBudgetMillis How long to keep starting new shards.
+     * @return the progress of the export.
+     * @throws IOException if a shard could not be written; the export can be resumed.
+     */
+    public ExportProgressResponse run(long timeBudgetMillis) throws IOException {
+        long start = System.currentTimeMillis();
+        Checkpoint checkpoint = Checkpoint.read(sink);
+        int shardsWritten = 0;
+
+        while (!checkpoint.done && (shardsWritten == 0
+            || System.currentTimeMillis() - start < timeBudgetMillis)) {
+            FetchOptions fetchOptions = FetchOptions.Builder.withLimit(shardSize)
+                .chunkSize(Math.min(shardSize, 500));
+            if (checkpoint.cursor != null) {
+                fetchOptions.startCursor(Cursor.fromWebSafeString(checkpoint.cursor));
+            }
+            QueryResultList<Entity> page =
+                datastoreService.prepare(new Query("Utterance")).asQueryResultList(fetchOptions);
+
+            if (!page.isEmpty()) {
+                String shardName = String.format("shard-%06d", checkpoint.shards.size());
+                long missingAudio = writeShard(shardName, page);
+
+                checkpoint.shards.add(shardName);
+                checkpoint.utterances += page.size();
+                checkpoint.missingAudio += missingAudio;
+                checkpoint.cursor = page.getCursor().toWebSafeString();
+                shardsWritten++;
+            }
+
+            if (page.size() < shardSize) {
+                checkpoint.done = true;
+                writeManifest(checkpoint);
+            }
+            checkpoint.write(sink);
+        }
+
+        return new ExportProgressResponse(true, shardsWritten, checkpoint.utterances,
+            checkpoint.missingAudio, checkpoint.done);
+    }
+
+    // Returns the number of utterances whose audio is missing.
+    private long writeShard(String shardName, List<Entity> utterances) throws IOException {
+        Map<Long, Entity> prompts = getPrompts(utterances);
+        long missingAudio = 0;
+
+        try (ExportSink.PendingFile tarFile = sink.create(shardName + ".tar");
+            ExportSink.PendingFile indexFile = sink.create(shardName + ".jsonl")) {
+            TarWriter tar = new TarWriter(tarFile.stream(), System.currentTimeMillis() / 1000);
+            OutputStream index = indexFile.stream();
+
+            // Fetches run ahead of the writer by up to maxInFlight recordings.
+            Deque<PendingAudio> pending = new ArrayDeque<>();
+            for (Entity utterance : utterances) {
+                pending.add(fetch(utterance));
+                if (pending.size() >= maxInFlight) {
+                    missingAudio += write(pending.poll(), prompts, tar, index);
+                }
+            }
+            while (!pending.isEmpty()) {
+                missingAudio += write(pending.poll(), prompts, tar, index);
+            }
+
+            tar.finish();
+            tarFile.commit();
+            indexFile.commit();
+        }
+
+        return missingAudio;
+    }
+
+    private PendingAudio fetch(Entity utterance) {
+        Object audioKey = utterance.getProperty("audioKey");
+        CompletableFuture<byte[]> audio = audioKey == null
+            ? CompletableFuture.completedFuture(null)
+            : CompletableFuture.supplyAsync(() -> {
+                try {
+                    return audioSource.read(audioKey.toString());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+        return new PendingAudio(utterance, audio);
+    }
+
+    // Returns 1 if the utterance's audio is missing, 0 otherwise.
+    private int write(PendingAudio pending, Map<Long, Entity> prompts, TarWriter tar,
+        OutputStream index) throws IOException {
+        byte[] audio;
+        try {
+            audio = pending.audio.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof UncheckedIOException
+                ? ((UncheckedIOException) e.getCause()).getCause()
+                : new IOException("Failed to read audio of " + pending.utterance.getKey(), e);
+        }
+
+        String name = entryName(pending.utterance.getKey());
+        JsonObject metadata = toJson(pending.utterance);
+        Entity prompt = prompts.get(parsePromptId(pending.utterance.getProperty("promptId")));
+        if (prompt != null) {
+            metadata.addProperty("promptType", String.valueOf(prompt.getProperty("type")));
+            metadata.addProperty("promptBody", String.valueOf(prompt.getProperty("body")));
+        }
+        if (audio != null) {
+            metadata.addProperty("audioFile", name + "." + audioExtension(audio));
+            metadata.addProperty("audioBytes", audio.length);
+        }
+
+        byte[] json = metadata.toString().getBytes(StandardCharsets.UTF_8);
+        tar.addFile(name + ".json", json);
+        if (audio != null) {
+            tar.addFile(name + "." + audioExtension(audio), audio);
+        }
+        index.write(json);
+        index.write('\n');
+
+        return audio == null ? 1 : 0;
+    }
+
+    private Map<Long, Entity> getPrompts(List<Entity> utterances) {
+        List<Key> promptKeys = new ArrayList<>();
+        for (Entity utterance : utterances) {
+            Long promptId = parsePromptId(utterance.getProperty("promptId"));
+            if (promptId != null) {
+                promptKeys.add(KeyFactory.createKey("Prompt", promptId));
+            }
+        }
+
+        Map<Long, Entity> prompts = new HashMap<>();
+        for (int start = 0; start < promptKeys.size(); start += MAX_GET_BATCH_SIZE) {
+            List<Key> batch =
+                promptKeys.subList(start, Math.min(start + MAX_GET_BATCH_SIZE, promptKeys.size()));
+            for (Entity prompt : datastoreService.get(batch).values()) {
+                prompts.put(prompt.getKey().getId(), prompt);
+            }
+        }
+        return prompts;
+    }
+
+    private void writeManifest(Checkpoint checkpoint) throws IOException {
+        JsonObject manifest = new JsonObject();
+        manifest.addProperty("utterances", checkpoint.utterances);
+        manifest.addProperty("missingAudio", checkpoint.missingAudio);
+        manifest.addProperty("shardSize", shardSize);
+        JsonArray shards = new JsonArray();
+        for (String shard : checkpoint.shards) {
+            shards.add(shard + ".tar");
+        }
+        manifest.add("shards", shards);
+
+        try (ExportSink.PendingFile file = sink.create(MANIFEST)) {
+            file.stream().write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+            file.commit();
+        }
+    }
+
+    private static Long parsePromptId(Object promptId) {
+        try {
+            return promptId == null ? null : Long.parseLong(promptId.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // WebDataset groups files by the part of their name before the first dot.
+    @VisibleForTesting
+    static String entryName(Key key) {
+        if (key.getName() == null) {
+            return "utterance-" + key.getId();
+        }
+        String name = key.getName().replaceAll("[^A-Za-z0-9_-]", "_");
+        return "utterance-" + (name.length() > 80 ? name.substring(0, 80) : name);
+    }
+
+    private static JsonObject toJson(Entity utterance) {
+        JsonObject json = new JsonObject();
+        json.addProperty("key", KeyFactory.keyToString(utterance.getKey()));
+        for (Map.Entry<String, Object> property : utterance.getProperties().entrySet()) {
+            Object value = property.getValue();
+            if (value instanceof Number) {
+                json.addProperty(property.getKey(), (Number) value);
+            } else if (value instanceof Boolean) {
+                json.addProperty(property.getKey(), (Boolean) value);
+            } else if (value instanceof Text) {
+                json.addProperty(property.getKey(), ((Text) value).getValue());
+            } else if (value != null) {
+                json.addProperty(property.getKey(), value.toString());
+            }
+        }
+        return json;
+    }
+
+    private static String audioExtension(byte[] audio) {
+        if (audio.length >= 4 && audio[0] == 'R' && audio[1] == 'I' && audio[2] == 'F'
+            && audio[3] == 'F') {
+            return "wav";
+        }
+        if (audio.length >= 4 && (audio[0] & 0xFF) == 0x1A && (audio[1] & 0xFF) == 0x45
+            && (audio[2] & 0xFF) == 0xDF && (audio[3] & 0xFF) == 0xA3) {
+            return "webm";
+        }
+        return "bin";
+    }
+
+    private static byte[] readBlob(String audioKey) {
+        BlobKey blobKey = new BlobKey(audioKey);
+        BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
+        if (blobInfo == null) {
+            return null;
+        }
+
+        BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+        byte[] audio = new byte[(int) blobInfo.getSize()];
+        int position = 0;
+        while (position < audio.length) {
+            int count = Math.min(audio.length - position, BlobstoreService.MAX_BLOB_FETCH_SIZE);
+            byte[] chunk = blobstoreService.fetchData(blobKey, position, position + count - 1);
+            System.arraycopy(chunk, 0, audio, position, chunk.length);
+            position += chunk.length;
+        }
+        return audio;
+    }
+
+    private static class PendingAudio {
+
+        private final Entity utterance;
+        private final CompletableFuture<byte[]> audio;
+
+        private PendingAudio(Entity utterance, CompletableFuture<byte[]> audio) {
+            this.utterance = utterance;
+            this.audio = audio;
+        }
+    }
+
+    // Progress saved after every shard.
+    private static class Checkpoint {
+
+        private String cursor;
+        private final List<String> shards = new ArrayList<>();
+        private long utterances;
+        private long missingAudio;
+        private boolean done;
+
+        private static Checkpoint read(ExportSink sink) throws IOException {
+            Checkpoint checkpoint = new Checkpoint();
+            byte[] saved = sink.read(CHECKPOINT);
+            if (saved == null) {
+                return checkpoint;
+            }
+
+            JsonObject json =
+                JsonParser.parseString(new String(saved, StandardCharsets.UTF_8)).getAsJsonObject();
+            checkpoint.cursor = json.get("cursor").isJsonNull()
+                ? null : json.get("cursor").getAsString();
+            for (JsonElement shard : json.getAsJsonArray("shards")) {
+                checkpoint.shards.add(shard.getAsString());
+            }
+            checkpoint.utterances = json.get("utterances").getAsLong();
+            checkpoint.missingAudio = json.get("missingAudio").getAsLong();
+            checkpoint.done = json.get("done").getAsBoolean();
+            return checkpoint;
+        }
+
+        private void write(ExportSink sink) throws IOException {
+            JsonObject json = new JsonObject();
+            json.addProperty("cursor", cursor);
+            JsonArray shardNames = new JsonArray();
+            shards.forEach(shardNames::add);
+            json.add("shards", shardNames);
+            json.addProperty("utterances", utterances);
+            json.addProperty("missingAudio", missingAudio);
+            json.addProperty("done", done);
+
+            try (ExportSink.PendingFile file = sink.create(CHECKPOINT)) {
+                file.stream().write(json.toString().getBytes(StandardCharsets.UTF_8));
+                file.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution over fixed buckets, in the shape Prometheus histograms are exported in.
+ * Recording is a bucket lookup and two uncontended adds, so it is cheap enough for every request.
+ */
+public class Histogram {
+
+    /** Upper bounds of the default buckets, in seconds. */
+    public static final double[] DEFAULT_BOUNDS_SECONDS =
+        {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private final double[] boundsSeconds;
+    private final long[] boundsNanos;
+
+    // counts[i] holds values in (bounds[i - 1], bounds[i]]; the last one holds everything larger.
+    private final LongAdder[] counts;
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+        this(DEFAULT_BOUNDS_SECONDS);
+    }
+
+    /**
+     * @param boundsSeconds Ascending upper bounds of the buckets, in seconds.
+     */
+    public Histogram(double[] boundsSeconds) {
+        this.boundsSeconds = boundsSeconds.clone();
+        this.boundsNanos = new long[boundsSeconds.length];
+        for (int i = 0; i < boundsSeconds.length; i++) {
+            boundsNanos[i] = (long) (boundsSeconds[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        this.counts = new LongAdder[boundsSeconds.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one value.
+     *
+     * @param nanos The value, in nanoseconds.
+     */
+    public void record(long nanos) {
+        int bucket = Arrays.binarySearch(boundsNanos, nanos);
+        counts[bucket >= 0 ? bucket : -bucket - 1].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Records one operation that started at {@code startNanos}, as returned by
+     * {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the buckets' upper bounds in seconds, not including the final, unbounded bucket.
+     */
+    public double[] getBoundsSeconds() {
+        return boundsSeconds.clone();
+    }
+
+    /**
+     * @return for each bucket, how many values were at most its upper bound. The last entry counts
+     *     every value.
+     */
+    public long[] getCumulativeCounts() {
+        long[] cumulative = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i].sum();
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (LongAdder count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    public double getSumSeconds() {
+        return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.metrics;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Named counters, gauges, timers and histograms for this instance, exposed by the "/metrics"
+ * endpoint as JSON or in the Prometheus text format.
+ * <p>
+ * A metric may have labels, given as alternating names and values, e.g.
+ * {@code histogram("http_request_duration_seconds", "endpoint", "/prompt")}. Each distinct set of
+ * label values is a separate series. Metrics live as long as the instance and are created on first
+ * use, so callers on hot paths should look a metric up once and keep it.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Family<Counter>> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Family<LongSupplier>> gauges =
+        new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Family<Timer>> timers = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Family<Histogram>> histograms =
+        new ConcurrentSkipListMap<>();
+
+    /**
+     * @return the registry shared by the whole instance.
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return the counter with the given name and labels, created if needed.
+     */
+    public Counter counter(String name, String... labels) {
+        return series(counters, name, labels, Counter::new);
+    }
+
+    /**
+     * Registers a gauge, a value that is read whenever metrics are reported. Replaces any gauge
+     * registered under the same name and labels.
+     *
+     * @param name   Name of the gauge.
+     * @param value  Supplies the gauge's current value.
+     * @param labels Alternating label names and values.
+     */
+    public void gauge(String name, LongSupplier value, String... labels) {
+        gauges.computeIfAbsent(name, key -> new Family<>()).series.put(labelText(labels), value);
+    }
+
+    /**
+     * @return the timer with the given name and labels, created if needed.
+     */
+    public Timer timer(String name, String... labels) {
+        return series(timers, name, labels, Timer::new);
+    }
+
+    /**
+     * @return the histogram with the given name and labels, created with the default buckets if
+     *     needed.
+     */
+    public Histogram histogram(String name, String... labels) {
+        return series(histograms, name, labels, Histogram::new);
+    }
+
+    /**
+     * Writes every metric as a JSON object, with metrics sorted by name.
+     *
+     * @param out Destination of the JSON.
+     */
+    public void writeJson(Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+
+        writer.name("counters").beginObject();
+        for (Map.Entry<String, Counter> counter : flatten(counters).entrySet()) {
+            writer.name(counter.getKey()).value(counter.getValue().get());
+        }
+        writer.endObject();
+
+        writer.name("gauges").beginObject();
+        for (Map.Entry<String, LongSupplier> gauge : flatten(gauges).entrySet()) {
+            writer.name(gauge.getKey()).value(gauge.getValue().getAsLong());
+        }
+        writer.endObject();
+
+        writer.name("timers").beginObject();
+        for (Map.Entry<String, Timer> entry : flatten(timers).entrySet()) {
+            Timer timer = entry.getValue();
+            writer.name(entry.getKey()).beginObject();
+            writer.name("count").value(timer.getCount());
+            writer.name("totalMillis").value(timer.getTotalMillis());
+            writer.name("meanMillis").value(timer.getMeanMillis());
+            writer.name("maxMillis").value(timer.getMaxMillis());
+            writer.endObject();
+        }
+        writer.endObject();
+
+        writer.name("histograms").beginObject();
+        for (Map.Entry<String, Histogram> entry : flatten(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            double[] bounds = histogram.getBoundsSeconds();
+            long[] cumulativeCounts = histogram.getCumulativeCounts();
+
+            writer.name(entry.getKey()).beginObject();
+            writer.name("count").value(histogram.getCount());
+            writer.name("sumSeconds").value(histogram.getSumSeconds());
+            writer.name("buckets").beginObject();
+            for (int i = 0; i < bounds.length; i++) {
+                writer.name(Double.toString(bounds[i])).value(cumulativeCounts[i]);
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+        writer.endObject();
+
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format (version 0.0.4). Names are
+     * prefixed with "voxetta_", and characters Prometheus does not allow become underscores.
+     *
+     * @param out Destination of the metrics.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        for (Map.Entry<String, Family<Counter>> family : counters.entrySet()) {
+            String name = prometheusName(family.getKey());
+            if (!name.endsWith("_total")) {
+                name += "_total";
+            }
+            out.write("# TYPE " + name + " counter\n");
+            for (Map.Entry<String, Counter> series : family.getValue().series.entrySet()) {
+                writeSample(out, name, series.getKey(), series.getValue().get());
+            }
+        }
+
+        for (Map.Entry<String, Family<LongSupplier>> family : gauges.entrySet()) {
+            String name = prometheusName(family.getKey());
+            out.write("# TYPE " + name + " gauge\n");
+            for (Map.Entry<String, LongSupplier> series : family.getValue().series.entrySet()) {
+                writeSample(out, name, series.getKey(), series.getValue().getAsLong());
+            }
+        }
+
+        for (Map.Entry<String, Family<Timer>> family : timers.entrySet()) {
+            String name = prometheusName(family.getKey()) + "_seconds";
+            out.write("# TYPE " + name + " summary\n");
+            for (Map.Entry<String, Timer> series : family.getValue().series.entrySet()) {
+                Timer timer = series.getValue();
+                writeSample(out, name + "_sum", series.getKey(), timer.getTotalMillis() / 1000);
+                writeSample(out, name + "_count", series.getKey(), timer.getCount());
+            }
+        }
+
+        for (Map.Entry<String, Family<Histogram>> family : histograms.entrySet()) {
+            String name = prometheusName(family.getKey());
+            out.write("# TYPE " + name + " histogram\n");
+            for (Map.Entry<String, Histogram> series : family.getValue().series.entrySet()) {
+                Histogram histogram = series.getValue();
+                String labels = series.getKey();
+                String bucketPrefix = labels.isEmpty() ? "le=" : labels + ",le=";
+                double[] bounds = histogram.getBoundsSeconds();
+                long[] cumulativeCounts = histogram.getCumulativeCounts();
+
+                for (int i = 0; i < bounds.length; i++) {
+                    writeSample(out, name + "_bucket", bucketPrefix + "\"" + bounds[i] + "\"",
+                        cumulativeCounts[i]);
+                }
+                writeSample(out, name + "_bucket", bucketPrefix + "\"+Inf\"",
+                    cumulativeCounts[bounds.length]);
+                writeSample(out, name + "_sum", labels, histogram.getSumSeconds());
+                writeSample(out, name + "_count", labels, cumulativeCounts[bounds.length]);
+            }
+        }
+
+        out.flush();
+    }
+
+    private static <T> T series(ConcurrentMap<String, Family<T>> families, String name,
+        String[] labels, Supplier<T> factory) {
+        return families.computeIfAbsent(name, key -> new Family<>())
+            .series.computeIfAbsent(labelText(labels), key -> factory.get());
+    }
+
+    private static <T> Map<String, T> flatten(ConcurrentMap<String, Family<T>> families) {
+        Map<String, T> flattened = new ConcurrentSkipListMap<>();
+        for (Map.Entry<String, Family<T>> family : families.entrySet()) {
+            for (Map.Entry<String, T> series : family.getValue().series.entrySet()) {
+                String labels = series.getKey();
+                flattened.put(labels.isEmpty() ? family.getKey()
+                    : family.getKey() + "{" + labels + "}", series.getValue());
+            }
+        }
+        return flattened;
+    }
+
+    // Formats labels as they appear between braces, e.g. endpoint="/prompt",method="GET"
+    private static String labelText(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"").append(labels[i + 1]
+                .replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return text.toString();
+    }
+
+    private static String prometheusName(String name) {
+        return "voxetta_" + name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    private static void writeSample(Writer out, String name, String labels, double value)
+        throws IOException {
+        out.write(name);
+        if (!labels.isEmpty()) {
+            out.write("{" + labels + "}");
+        }
+        out.write(' ');
+        out.write(value == Math.rint(value) && !Double.isInfinite(value)
+            ? Long.toString((long) value) : Double.toString(value));
+        out.write('\n');
+    }
+
+    private static class Family<T> {
+
+        // Series by label text, sorted so the output is stable
+        private final ConcurrentMap<String, T> series = new ConcurrentSkipListMap<>();
+    }
+}
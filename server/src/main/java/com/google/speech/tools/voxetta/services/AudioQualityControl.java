@@ -0,0 +1,213 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.speech.tools.voxetta.audio.AudioAnalyzer;
+import com.google.speech.tools.voxetta.audio.AudioQuality;
+import com.google.speech.tools.voxetta.metrics.Histogram;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import com.google.speech.tools.voxetta.utils.ThreadFactories;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/** 
+ * Checks the quality of uploaded recordings off the request path.
+ *
+ * <p>Each recording is streamed from Blobstore and measured by an {@link AudioAnalyzer} on a
+ * bounded worker pool, one worker per core by default. Recordings are read with one Blobstore
+ * fetch per pooled read buffer, so memory use per check is fixed. The measurements are written
+ * back to the recording's Utterance entity as "qc*" properties; "qcStatus" is "passed",
+ * "failed", "unsupported" (the recording is not in a format the server can read) or "error".
+ * WebM/Opus recordings are not decoded, so only their duration is checked and "qcDecoded" is
+ * false. When the pool's queue is full the recording is left unchecked rather than slowing down
+ * uploads.
+ *
+ * <p>With write-behind enabled the Utterance entity may not exist yet when its check finishes,
+ * so the write-back is retried a few times before it is given up.
+ *
+ * <p>Checks run on background threads, so on App Engine they need basic or manual scaling (see
+ * {@link ThreadFactories#background(String)}); "voxetta.qc.enabled" is off by default.
+ */
+public class AudioQualityControl {
+
+  private static final Logger logger = Logger.getLogger(AudioQualityControl.class.getName());
+
+  private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+  private static final Histogram checkLatency = metrics.histogram("qc_check_duration_seconds");
+
+  private static final int DEFAULT_THREADS =
+      Integer.getInteger("voxetta.qc.threads", Runtime.getRuntime().availableProcessors());
+  private static final int DEFAULT_QUEUE_CAPACITY =
+      Integer.getInteger("voxetta.qc.queueCapacity", 500);
+
+  private static final int WRITE_BACK_ATTEMPTS = 5;
+  private static final long WRITE_BACK_RETRY_MILLIS = 1000;
+
+  /** 
+   * Opens the audio of a recording for reading.
+   */
+  @VisibleForTesting
+  interface AudioSource {
+    ReadableByteChannel open(String audioKey) throws IOException;
+  }
+
+  private final AudioSource audioSource;
+  private final Executor executor;
+  private final ScheduledExecutorService retryScheduler;
+  private final AudioAnalyzer analyzer = new AudioAnalyzer();
+
+  private volatile DatastoreService datastoreService;
+
+  /** 
+   * Creates a checker that reads recordings from Blobstore on its own worker pool.
+   *
+   * @param datastoreService The service results are written back with.
+   */
+  public AudioQualityControl(DatastoreService datastoreService) {
+    this(datastoreService,
+        AudioQualityControl::openBlob,
+        new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(DEFAULT_QUEUE_CAPACITY),
+            ThreadFactories.background("audio-qc-%d")),
+        Executors.newSingleThreadScheduledExecutor(ThreadFactories.background("audio-qc-retry-%d")));
+  }
+
+  @VisibleForTesting
+  AudioQualityControl(DatastoreService datastoreService, AudioSource audioSource,
+      Executor executor, ScheduledExecutorService retryScheduler) {
+    this.datastoreService = datastoreService;
+    this.audioSource = audioSource;
+    this.executor = executor;
+    this.retryScheduler = retryScheduler;
+  }
+
+  private static ReadableByteChannel openBlob(String audioKey) throws IOException {
+    BlobKey blobKey = new BlobKey(audioKey);
+    BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
+    if (blobInfo == null) {
+      throw new FileNotFoundException("No blob " + audioKey);
+    }
+
+    BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+    return new BlobReadChannel(blobstoreService, blobKey, blobInfo.getSize());
+  }
+
+  /** 
+   * Schedules a check of a recording. Returns immediately.
+   *
+   * @param utteranceKey The key of the recording's Utterance entity, which results are saved to.
+   * @param audioKey The Blobstore key of the recording, as stored in its Utterance's "audioKey".
+   */
+  public void submit(Key utteranceKey, String audioKey) {
+    if (audioKey == null) {
+      return;
+    }
+
+    try {
+      executor.execute(() -> check(utteranceKey, audioKey));
+    } catch (RejectedExecutionException e) {
+      metrics.counter("qc_checks", "status", "rejected").increment();
+      logger.warning("Quality check queue is full; leaving " + audioKey + " unchecked");
+    }
+  }
+
+  private void check(Key utteranceKey, String audioKey) {
+    long start = System.nanoTime();
+    Entity results = new Entity("Utterance");
+
+    try (ReadableByteChannel audio = audioSource.open(audioKey)) {
+      AudioQuality quality = analyzer.analyze(audio);
+      String failureReason = quality.getFailureReason();
+
+      results.setProperty("qcStatus", failureReason == null ? "passed" : "failed");
+      results.setProperty("qcReason", failureReason);
+      results.setProperty("qcDecoded", quality.isDecoded());
+      results.setProperty("qcDurationSeconds", quality.getDurationSeconds());
+      if (quality.isDecoded()) {
+        results.setProperty("qcRms", quality.getRms());
+        results.setProperty("qcPeak", quality.getPeak());
+        results.setProperty("qcClippingRatio", quality.getClippingRatio());
+        results.setProperty("qcSnrDb", quality.getSnrDb());
+        results.setProperty("qcVoicedSeconds", quality.getVoicedSeconds());
+      }
+    } catch (UnsupportedAudioFileException e) {
+      results.setProperty("qcStatus", "unsupported");
+      results.setProperty("qcReason", e.getMessage());
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "Quality check of " + audioKey + " failed", e);
+      results.setProperty("qcStatus", "error");
+      results.setProperty("qcReason", String.valueOf(e.getMessage()));
+    } finally {
+      checkLatency.recordSince(start);
+    }
+
+    metrics.counter("qc_checks", "status", (String) results.getProperty("qcStatus")).increment();
+    writeBack(utteranceKey, audioKey, results, 1);
+  }
+
+  private void writeBack(Key utteranceKey, String audioKey, Entity results, int attempt) {
+    try {
+      Entity utterance = datastoreService.get(utteranceKey);
+      utterance.setPropertiesFrom(results);
+      datastoreService.put(utterance);
+      return;
+    } catch (EntityNotFoundException e) {
+      // Not written by the write-behind buffer yet
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to save quality check of " + audioKey, e);
+    }
+
+    if (attempt < WRITE_BACK_ATTEMPTS) {
+      retryScheduler.schedule(() -> writeBack(utteranceKey, audioKey, results, attempt + 1),
+          WRITE_BACK_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    } else {
+      metrics.counter("qc_checks", "status", "unsaved").increment();
+      logger.warning("Gave up saving quality check of " + audioKey);
+    }
+  }
+
+  /** 
+   * Allow the checker's Datastore service to be set for mocking purposes.
+   *
+   * @param inputService The service to serve as the DatastoreService.
+   */
+  @VisibleForTesting
+  public void setDatastoreService(DatastoreService inputService) {
+    datastoreService = inputService; 
+  }
+}
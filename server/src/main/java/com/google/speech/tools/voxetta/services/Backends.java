@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.speech.tools.voxetta.embedded.EmbeddedStore;
+import com.google.speech.tools.voxetta.embedded.LocalAudioStore;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+
+/**
+ * Creates the prompt and utterance services of the configured storage backend, instrumented.
+ * <p>
+ * The backend is chosen with the "voxetta.backend" system property: "datastore" (the default)
+ * uses Datastore and Blobstore, "embedded" uses an {@link EmbeddedStore} in the directory named by
+ * "voxetta.embedded.dataDir". Bulk prompt uploads, the prompt debug endpoints and the export always
+ * use Datastore.
+ */
+public final class Backends {
+
+    private static final boolean EMBEDDED =
+        "embedded".equalsIgnoreCase(System.getProperty("voxetta.backend"));
+
+    private Backends() {
+    }
+
+    /**
+     * @return whether the embedded backend is configured.
+     */
+    public static boolean isEmbedded() {
+        return EMBEDDED;
+    }
+
+    /**
+     * @return the instance's prompt service. It is created once and shared by every servlet, so
+     *     all requests hand out prompts from the same claimed batches and recently-claimed set.
+     */
+    public static PromptService promptService() {
+        return PromptServiceHolder.INSTANCE;
+    }
+
+    public static UtteranceService utteranceService() {
+        return new InstrumentedUtteranceService(EMBEDDED
+            ? new EmbeddedUtteranceService(embeddedStore(), audioStore())
+            : new DatastoreUtteranceService());
+    }
+
+    /**
+     * @return the store recordings are kept in by the embedded backend, in the "audio" directory
+     *     of its data directory.
+     */
+    public static LocalAudioStore audioStore() {
+        try {
+            return new LocalAudioStore(embeddedStore().getDirectory().resolve("audio"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open audio store", e);
+        }
+    }
+
+    // Created on first use, so the backend's configuration is only read once it is needed.
+    private static final class PromptServiceHolder {
+
+        private static final PromptService INSTANCE = new InstrumentedPromptService(EMBEDDED
+            ? new EmbeddedPromptService(embeddedStore())
+            : new DatastorePromptService());
+    }
+
+    private static EmbeddedStore embeddedStore() {
+        return EmbeddedStore.open(Paths.get(System.getProperty("voxetta.embedded.dataDir",
+            "voxetta-data")), Boolean.getBoolean("voxetta.embedded.sync"));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Claims prompts with one query and one batched, non-transactional put.
+ * <p>
+ * This is the cheapest claiming mode, but two instances claiming at the same time can both claim
+ * the same prompts. It is only used when "voxetta.prompts.claimMode" is "batch", which is safe
+ * only while a single instance serves prompts, e.g. with manual scaling and one instance.
+ */
+public class BatchPromptClaimer implements PromptClaimer {
+
+    private static final int RECENTLY_CLAIMED_LIMIT = 2000;
+
+    // Non-ancestor queries are eventually consistent, so a prompt claimed by the previous batch
+    // may still show up as unread.
+    private final Map<Long, Boolean> recentlyClaimed = new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > RECENTLY_CLAIMED_LIMIT;
+        }
+    };
+
+    @Override
+    public synchronized List<Entity> claim(DatastoreService datastoreService, int limit) {
+        Filter unreadFilter = new FilterPredicate("read", FilterOperator.EQUAL, 0);
+        List<Entity> unreadEntities = datastoreService.prepare(new Query("Prompt")
+            .setFilter(unreadFilter))
+            .asList(FetchOptions.Builder.withLimit(limit).chunkSize(limit));
+
+        long now = System.currentTimeMillis();
+        List<Entity> claimedEntities = new ArrayList<>();
+        for (Entity entity : unreadEntities) {
+            if (recentlyClaimed.containsKey(entity.getKey().getId())) {
+                continue;
+            }
+
+            PromptLeases.lease(entity, now);
+            claimedEntities.add(entity);
+        }
+
+        if (claimedEntities.isEmpty()) {
+            return claimedEntities;
+        }
+
+        // Mark the whole batch as read in one round-trip.
+        datastoreService.put(claimedEntities);
+
+        for (Entity entity : claimedEntities) {
+            recentlyClaimed.put(entity.getKey().getId(), true);
+        }
+
+        return claimedEntities;
+    }
+}
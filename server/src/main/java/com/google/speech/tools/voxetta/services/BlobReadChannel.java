@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/** 
+ * Reads a blob with one Blobstore fetch per read, straight into the caller's buffer, so that
+ * reading a blob buffers no more than the caller does.
+ */
+class BlobReadChannel implements ReadableByteChannel {
+
+  private final BlobstoreService blobstoreService;
+  private final BlobKey blobKey;
+  private final long size;
+  private long position;
+  private boolean open = true;
+
+  /** 
+   * @param blobstoreService The service the blob is fetched from.
+   * @param blobKey The blob to read.
+   * @param size The size of the blob, in bytes.
+   */
+  BlobReadChannel(BlobstoreService blobstoreService, BlobKey blobKey, long size) {
+    this.blobstoreService = blobstoreService;
+    this.blobKey = blobKey;
+    this.size = size;
+  }
+
+  @Override
+  public int read(ByteBuffer destination) {
+    if (position >= size) {
+      return -1;
+    }
+
+    long count = Math.min(Math.min(destination.remaining(), size - position),
+        BlobstoreService.MAX_BLOB_FETCH_SIZE);
+    if (count == 0) {
+      return 0;
+    }
+
+    byte[] data = blobstoreService.fetchData(blobKey, position, position + count - 1);
+    destination.put(data);
+    position += data.length;
+    return data.length;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() {
+    open = false;
+  }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
+import com.google.speech.tools.voxetta.utils.LeaseTokens;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Hands out the prompt that still needs the most recordings from a speaker's demographic bucket.
+ * <p>
+ * Every prompt should be recorded {@code recordingsPerBucket} times by speakers of each bucket
+ * (see {@link SpeakerProfile#getBucket()}). A prompt's demand in a bucket is that target, less
+ * the recordings already made and the hand-outs that may still be recorded. Ties go to the lowest
+ * prompt id, so a bucket works through every prompt before handing one out again.
+ * <p>
+ * To bound memory, a bucket does not sort all prompts. It keeps only its {@code maxCandidates}
+ * most needed ones in a sorted set, so the next prompt is found and its demand updated in
+ * O(log maxCandidates), and remembers the least needed of them as a bound that every other prompt
+ * falls behind. Once the candidates run out they are refilled by walking the prompts in id order;
+ * prompts the bucket has no recordings or hand-outs of are all needed equally and most, so the
+ * walk usually stops after {@code maxCandidates} prompts. The candidates are first filled when a
+ * speaker of the bucket asks for a prompt, and once {@code maxBuckets} buckets are known,
+ * speakers of new buckets are counted as unknown.
+ * <p>
+ * A hand-out counts against demand until it is recorded, released, or {@code handOutMillis} have
+ * passed. Recordings are also kept as deltas until {@link #drainDeltas()} takes them to be
+ * persisted. All methods are synchronized.
+ */
+public class CoverageScheduler {
+
+    private static final String UNKNOWN_BUCKET = SpeakerProfile.UNKNOWN.getBucket();
+
+    private final int recordingsPerBucket;
+    private final long handOutMillis;
+    private final int maxBuckets;
+    private final int maxCandidates;
+
+    // By id, the order buckets refill their candidates in.
+    private final NavigableMap<Long, Prompt> prompts = new TreeMap<>();
+    private final Map<String, Bucket> buckets = new HashMap<>();
+
+    // Oldest first; every hand-out lasts equally long, so also soonest to expire first.
+    private final Deque<HandOut> handOuts = new ArrayDeque<>();
+
+    /**
+     * @param recordingsPerBucket Recordings each prompt needs from each bucket.
+     * @param handOutMillis       How long a prompt that was handed out may still be recorded.
+     * @param maxBuckets          Number of buckets tracked before new ones count as unknown.
+     * @param maxCandidates       Number of most needed prompts each bucket keeps sorted.
+     */
+    public CoverageScheduler(int recordingsPerBucket, long handOutMillis, int maxBuckets,
+        int maxCandidates) {
+        this.recordingsPerBucket = recordingsPerBucket;
+        this.handOutMillis = handOutMillis;
+        this.maxBuckets = maxBuckets;
+        this.maxCandidates = maxCandidates;
+    }
+
+    /**
+     * Makes a prompt available to be handed out. Adding a known prompt again does nothing.
+     *
+     * @param prompt The prompt.
+     */
+    public synchronized void addPrompt(Prompt prompt) {
+        if (prompts.putIfAbsent(prompt.getId(), prompt) != null) {
+            return;
+        }
+
+        for (Bucket bucket : buckets.values()) {
+            bucket.refresh(prompt.getId());
+        }
+    }
+
+    /**
+     * @param promptId Database ID of the prompt.
+     * @return whether the prompt can be handed out.
+     */
+    public synchronized boolean hasPrompt(long promptId) {
+        return prompts.containsKey(promptId);
+    }
+
+    /**
+     * Hands out the prompt most needed from a speaker's bucket.
+     *
+     * @param speaker The speaker who will record the prompt.
+     * @param now     Current time in milliseconds.
+     * @return the prompt, with the lease token of its hand-out, or null if the bucket needs no
+     *     more recordings of any prompt.
+     */
+    public synchronized Prompt next(SpeakerProfile speaker, long now) {
+        expireHandOuts(now);
+
+        Bucket bucket = bucket(speaker.getBucket());
+        Need most = bucket.mostNeeded();
+        if (most == null) {
+            return null;
+        }
+
+        HandOut handOut = new HandOut(most.promptId, bucket, now + handOutMillis,
+            LeaseTokens.newToken());
+        handOuts.addLast(handOut);
+        bucket.handOuts.computeIfAbsent(most.promptId, id -> new ArrayDeque<>()).addLast(handOut);
+        bucket.refresh(most.promptId);
+
+        return prompts.get(most.promptId).withLeaseToken(handOut.token);
+    }
+
+    /**
+     * Counts a recording of a prompt towards a speaker's bucket, ending the hand-out it was made
+     * for. Prompts are never retired here, so the recording is counted even when its hand-out is
+     * unknown, e.g. because it was handed out by another instance.
+     *
+     * @param promptId   Database ID of the prompt.
+     * @param leaseToken The lease token the prompt was handed out with.
+     * @param speaker    The speaker who recorded it.
+     * @return whether a hand-out under that token was ended.
+     */
+    public synchronized boolean recorded(long promptId, String leaseToken,
+        SpeakerProfile speaker) {
+        Bucket bucket = bucket(speaker.getBucket());
+        bucket.recorded.merge(promptId, 1L, Long::sum);
+        bucket.deltas.merge(promptId, 1L, Long::sum);
+        bucket.refresh(promptId);
+
+        return release(promptId, leaseToken);
+    }
+
+    /**
+     * Ends a hand-out of a prompt, e.g. because it was skipped.
+     *
+     * @param promptId   Database ID of the prompt.
+     * @param leaseToken The lease token the prompt was handed out with.
+     * @return whether the prompt was handed out under that token and not yet recorded.
+     */
+    public synchronized boolean release(long promptId, String leaseToken) {
+        for (Bucket bucket : buckets.values()) {
+            Deque<HandOut> open = bucket.handOuts.get(promptId);
+            if (open == null) {
+                continue;
+            }
+
+            for (HandOut handOut : open) {
+                if (LeaseTokens.matches(handOut.token, leaseToken)) {
+                    open.remove(handOut);
+                    close(handOut);
+                    bucket.refresh(promptId);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the persisted number of recordings of a prompt from a bucket. Recordings made here and
+     * not yet drained are added on top.
+     *
+     * @param promptId Database ID of the prompt.
+     * @param bucket   Name of the bucket.
+     * @param count    Number of recordings persisted.
+     */
+    public synchronized void setPersistedCount(long promptId, String bucket, long count) {
+        Bucket target = buckets.computeIfAbsent(bucket, name -> new Bucket());
+        target.recorded.put(promptId, count + target.deltas.getOrDefault(promptId, 0L));
+        target.refresh(promptId);
+    }
+
+    /**
+     * Takes the recordings counted since the last drain, so they can be persisted.
+     *
+     * @return the number of new recordings, by prompt id and then bucket name.
+     */
+    public synchronized Map<Long, Map<String, Long>> drainDeltas() {
+        Map<Long, Map<String, Long>> drained = new HashMap<>();
+        for (Map.Entry<String, Bucket> bucket : buckets.entrySet()) {
+            for (Map.Entry<Long, Long> delta : bucket.getValue().deltas.entrySet()) {
+                drained.computeIfAbsent(delta.getKey(), id -> new HashMap<>())
+                    .put(bucket.getKey(), delta.getValue());
+            }
+            bucket.getValue().deltas.clear();
+        }
+        return drained;
+    }
+
+    /**
+     * Puts back deltas that could not be persisted, so the next drain includes them.
+     *
+     * @param deltas Deltas as returned by {@link #drainDeltas()}.
+     */
+    public synchronized void restoreDeltas(Map<Long, Map<String, Long>> deltas) {
+        for (Map.Entry<Long, Map<String, Long>> prompt : deltas.entrySet()) {
+            for (Map.Entry<String, Long> delta : prompt.getValue().entrySet()) {
+                buckets.computeIfAbsent(delta.getKey(), name -> new Bucket())
+                    .deltas.merge(prompt.getKey(), delta.getValue(), Long::sum);
+            }
+        }
+    }
+
+    /**
+     * @param promptId Database ID of the prompt.
+     * @param speaker  A speaker of the bucket.
+     * @return how many more times the prompt may be handed out to speakers of the bucket.
+     */
+    public synchronized long demand(long promptId, SpeakerProfile speaker) {
+        Bucket bucket = buckets.get(speaker.getBucket());
+        return bucket == null ? recordingsPerBucket : bucket.demand(promptId);
+    }
+
+    /**
+     * @return the number of prompts that can be handed out.
+     */
+    public synchronized int promptCount() {
+        return prompts.size();
+    }
+
+    /**
+     * @return the number of buckets recordings are counted in.
+     */
+    public synchronized int bucketCount() {
+        return buckets.size();
+    }
+
+    // Speakers of new buckets count as unknown once maxBuckets are tracked, both for the prompts
+    // they are handed out and for the recordings they make. Only persisted counts and restored
+    // deltas keep their own bucket.
+    private Bucket bucket(String name) {
+        Bucket bucket = buckets.get(name);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        if (buckets.size() >= maxBuckets && !name.equals(UNKNOWN_BUCKET)) {
+            return bucket(UNKNOWN_BUCKET);
+        }
+
+        bucket = new Bucket();
+        buckets.put(name, bucket);
+        return bucket;
+    }
+
+    private void expireHandOuts(long now) {
+        while (!handOuts.isEmpty() && handOuts.peekFirst().expiry <= now) {
+            HandOut handOut = handOuts.pollFirst();
+            if (handOut.open) {
+                handOut.bucket.handOuts.get(handOut.promptId).remove(handOut);
+                close(handOut);
+                handOut.bucket.refresh(handOut.promptId);
+            }
+        }
+    }
+
+    private static void close(HandOut handOut) {
+        if (handOut == null) {
+            return;
+        }
+
+        handOut.open = false;
+        Deque<HandOut> open = handOut.bucket.handOuts.get(handOut.promptId);
+        if (open.isEmpty()) {
+            handOut.bucket.handOuts.remove(handOut.promptId);
+        }
+    }
+
+    private class Bucket {
+
+        private final Map<Long, Long> recorded = new HashMap<>();
+        private final Map<Long, Long> deltas = new HashMap<>();
+        private final Map<Long, Deque<HandOut>> handOuts = new HashMap<>();
+
+        // The most needed prompts, at most maxCandidates; null until someone asks for a prompt.
+        private TreeSet<Need> candidates;
+        private Map<Long, Need> candidateByPrompt;
+
+        // Every prompt with demand left that is not a candidate falls behind this, and every
+        // candidate is at or before it; null while the candidates hold all such prompts.
+        private Need bound;
+
+        private Need mostNeeded() {
+            if (candidates == null || (candidates.isEmpty() && bound != null)) {
+                refill();
+            }
+            return candidates.isEmpty() ? null : candidates.first();
+        }
+
+        private void refill() {
+            candidates = new TreeSet<>();
+            candidateByPrompt = new HashMap<>();
+            bound = null;
+
+            for (long promptId : prompts.keySet()) {
+                // The remaining prompts have higher ids, so none is needed more than a full set
+                // of candidates that are all needed most.
+                if (candidates.size() == maxCandidates
+                    && candidates.last().demand == recordingsPerBucket) {
+                    bound = candidates.last();
+                    return;
+                }
+                refresh(promptId);
+            }
+        }
+
+        private long demand(long promptId) {
+            Deque<HandOut> open = handOuts.get(promptId);
+            return recordingsPerBucket - recorded.getOrDefault(promptId, 0L)
+                - (open == null ? 0 : open.size());
+        }
+
+        // Re-sorts a prompt after its demand changed: O(log maxCandidates).
+        private void refresh(long promptId) {
+            if (candidates == null) {
+                return;
+            }
+
+            Need old = candidateByPrompt.remove(promptId);
+            if (old != null) {
+                candidates.remove(old);
+            }
+
+            long demand = demand(promptId);
+            if (demand <= 0 || !prompts.containsKey(promptId)) {
+                return;
+            }
+
+            Need need = new Need(promptId, demand);
+            if (bound != null && need.compareTo(bound) > 0) {
+                return;
+            }
+
+            candidates.add(need);
+            candidateByPrompt.put(promptId, need);
+            if (candidates.size() > maxCandidates) {
+                candidateByPrompt.remove(candidates.pollLast().promptId);
+                bound = candidates.last();
+            }
+        }
+    }
+
+    private static class Need implements Comparable<Need> {
+
+        private final long promptId;
+        private final long demand;
+
+        private Need(long promptId, long demand) {
+            this.promptId = promptId;
+            this.demand = demand;
+        }
+
+        @Override
+        public int compareTo(Need other) {
+            int byDemand = Long.compare(other.demand, demand);
+            return byDemand != 0 ? byDemand : Long.compare(promptId, other.promptId);
+        }
+    }
+
+    private static class HandOut {
+
+        private final long promptId;
+        private final Bucket bucket;
+        private final long expiry;
+        private final String token;
+        private boolean open = true;
+
+        private HandOut(long promptId, Bucket bucket, long expiry, String token) {
+            this.promptId = promptId;
+            this.bucket = bucket;
+            this.expiry = expiry;
+            this.token = token;
+        }
+    }
+}
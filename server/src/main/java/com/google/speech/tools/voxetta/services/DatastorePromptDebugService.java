@@ -16,51 +16,217 @@
 
 package com.google.speech.tools.voxetta.services;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
-import com.google.gson.Gson;
-import com.google.speech.tools.voxetta.data.StatusResponse;
-import java.util.LinkedList;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.stream.JsonWriter;
+import com.google.speech.tools.voxetta.data.ResetProgressResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class DatastorePromptDebugService {
 
-    private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    private Gson gson = new Gson();
+    private static final int STREAM_CHUNK_SIZE = 500;
+
+    private static final long DEFAULT_TIME_BUDGET_MILLIS =
+        TimeUnit.SECONDS.toMillis(Long.getLong("voxetta.prompts.resetTimeBudgetSeconds", 30));
+
+    private DatastoreService datastore = InstrumentedDatastoreService.create();
+    private PromptRecordingCounter recordingCounter = new PromptRecordingCounter(datastore);
+    private boolean coverageMode = PromptCoverage.isEnabled();
+    private long timeBudgetMillis = DEFAULT_TIME_BUDGET_MILLIS;
 
     /**
-     * Retrieves all prompts in the database as Entities. Primarily for manual debugging.
+     * Resets the read status of prompts to 0 so they can be used again, and ends their leases.
+     * Primarily for manual debugging.
+     * <p>
+     * Prompts are read one page at a time with a query cursor and the changed ones are written
+     * back with one batched put per page. A single call stops after a time budget and returns the
+     * cursor to resume from, so resetting a large corpus takes several calls. Re-running a reset,
+     * or resuming one from an old cursor, is always safe.
      *
-     * @return {String} JSON array of all Prompt Entities.
+     * @param startCursor Web-safe cursor returned by a previous call, or null to start over.
+     * @param batchSize   Number of prompts read and written per round-trip.
+     * @param onlyRead    Whether to only look at prompts whose "read" property is not 0.
+     * @return the progress made by this call.
      */
-    public StatusResponse resetAllToUnread() {
+    public ResetProgressResponse resetAllToUnread(String startCursor, int batchSize,
+        boolean onlyRead) {
 
-        Iterable<Entity> iterableResults = datastore.prepare(new Query("Prompt")).asIterable();
+        Query query = new Query("Prompt");
+        if (onlyRead) {
+            query.setFilter(new FilterPredicate("read", FilterOperator.GREATER_THAN, 0));
+        }
+        PreparedQuery preparedQuery = datastore.prepare(query);
 
-        for (Entity entity : iterableResults) {
-            entity.setProperty("read", 0);
-            datastore.put(entity);
+        Cursor cursor = startCursor == null ? null : Cursor.fromWebSafeString(startCursor);
+        long deadline = System.currentTimeMillis() + timeBudgetMillis;
+        int scanned = 0;
+        int reset = 0;
+
+        do {
+            FetchOptions fetchOptions = FetchOptions.Builder.withLimit(batchSize)
+                .chunkSize(batchSize);
+            if (cursor != null) {
+                fetchOptions.startCursor(cursor);
+            }
+
+            QueryResultList<Entity> page = preparedQuery.asQueryResultList(fetchOptions);
+
+            List<Entity> changedEntities = new ArrayList<>();
+            for (Entity entity : page) {
+                if (!PromptLeases.isUnread(entity) || PromptLeases.isLeased(entity)) {
+                    PromptLeases.release(entity);
+                    changedEntities.add(entity);
+                }
+            }
+
+            if (!changedEntities.isEmpty()) {
+                datastore.put(changedEntities);
+            }
+
+            scanned += page.size();
+            reset += changedEntities.size();
+
+            if (page.size() < batchSize) {
+                return new ResetProgressResponse(true, scanned, reset, null, true);
+            }
+            cursor = page.getCursor();
+        } while (System.currentTimeMillis() < deadline);
+
+        return new ResetProgressResponse(true, scanned, reset, cursor.toWebSafeString(), false);
+    }
+
+    /**
+     * Writes one page of prompts as a JSON object of the form
+     * {@code {"prompts": [...], "cursor": "..."}}. Primarily for manual debugging.
+     * <p>
+     * The cursor is null on the last page. Only the id, type, body and read status of each prompt
+     * are fetched, using a projection query; the number of utterances recorded for each prompt is
+     * read from its {@link PromptRecordingCounter} or, in coverage mode, its synced
+     * {@link PromptCoverage} counts, in one batch for the whole page.
+     *
+     * @param out         Writer the JSON is written to.
+     * @param startCursor Web-safe cursor returned with the previous page, or null for the first.
+     * @param limit       Maximum number of prompts on the page.
+     * @throws IllegalArgumentException if the cursor is malformed; nothing is written then.
+     */
+    public void writePromptPage(Writer out, String startCursor, int limit) throws IOException {
+
+        FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit).chunkSize(limit);
+        if (startCursor != null) {
+            fetchOptions.startCursor(Cursor.fromWebSafeString(startCursor));
+        }
+
+        QueryResultList<Entity> page =
+            datastore.prepare(projectionQuery()).asQueryResultList(fetchOptions);
+
+        List<Long> promptIds = new ArrayList<>();
+        for (Entity entity : page) {
+            promptIds.add(entity.getKey().getId());
         }
+        Map<Long, Long> recordings = coverageMode
+            ? PromptCoverage.persistedTotals(datastore, promptIds)
+            : recordingCounter.counts(promptIds);
 
-        return new StatusResponse(true);
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("prompts");
+        writer.beginArray();
+        for (Entity entity : page) {
+            writePrompt(writer, entity);
+            writer.name("recordings").value(recordings.get(entity.getKey().getId()));
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.name("cursor");
+        if (page.size() < limit) {
+            writer.nullValue();
+        } else {
+            writer.value(page.getCursor().toWebSafeString());
+        }
+        writer.endObject();
+        writer.flush();
     }
 
     /**
-     * Resets the read status of all prompts to 0 so they can be used again. Primarily for manual
-     * debugging.
+     * Writes every prompt as a JSON array, streaming them straight from Datastore so that memory
+     * use does not depend on the number of prompts. Primarily for manual debugging.
      *
-     * @return a boolean denoting success or failure.
+     * @param out Writer the JSON is written to.
      */
-    public String getAllPrompts() {
+    public void writeAllPrompts(Writer out) throws IOException {
 
-        Iterable<Entity> iterableResults = datastore.prepare(new Query("Prompt")).asIterable();
+        Iterable<Entity> iterableResults = datastore.prepare(projectionQuery())
+            .asIterable(FetchOptions.Builder.withChunkSize(STREAM_CHUNK_SIZE));
 
-        LinkedList<Entity> prompts = new LinkedList<Entity>();
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
         for (Entity entity : iterableResults) {
-            prompts.add(entity);
+            writePrompt(writer, entity);
+            writer.endObject();
         }
+        writer.endArray();
+        writer.flush();
+    }
+
+    // Requires the composite index on (type, body, read) in datastore-indexes.xml.
+    private static Query projectionQuery() {
+        return new Query("Prompt")
+            .addProjection(new PropertyProjection("type", String.class))
+            .addProjection(new PropertyProjection("body", String.class))
+            .addProjection(new PropertyProjection("read", Long.class));
+    }
+
+    // Leaves the object open, so callers can add fields.
+    private static void writePrompt(JsonWriter writer, Entity entity) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(entity.getKey().getId());
+        writer.name("type").value((String) entity.getProperty("type"));
+        writer.name("body").value((String) entity.getProperty("body"));
+        writer.name("read").value((Long) entity.getProperty("read"));
+    }
+
+    /**
+     * Allow the service's Datastore service to be set for mocking purposes.
+     *
+     * @param inputService The service to serve as the DatastoreService.
+     */
+    @VisibleForTesting
+    public void setDatastoreService(DatastoreService inputService) {
+        datastore = inputService;
+        recordingCounter.setDatastoreService(inputService);
+    }
+
+    /**
+     * Allow coverage mode to be set for testing purposes.
+     *
+     * @param inputCoverageMode Whether recording counts are read from PromptCoverage.
+     */
+    @VisibleForTesting
+    public void setCoverageMode(boolean inputCoverageMode) {
+        coverageMode = inputCoverageMode;
+    }
 
-        return gson.toJson(prompts);
+    /**
+     * Allow the time budget of a single reset call to be set for testing purposes.
+     *
+     * @param millis How long a reset call may keep reading pages.
+     */
+    @VisibleForTesting
+    public void setTimeBudgetMillis(long millis) {
+        timeBudgetMillis = millis;
     }
 }
@@ -18,33 +18,38 @@ package com.google.speech.tools.voxetta.services;
 
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
-
-import com.google.appengine.api.datastore.FetchOptions.Builder;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.Filter;
-import com.google.appengine.api.datastore.Query.FilterOperator;
-
-
-import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.gson.Gson;
 
 import com.google.speech.tools.voxetta.data.ErrorResponse;
 import com.google.speech.tools.voxetta.data.Prompt;
 import com.google.speech.tools.voxetta.data.PromptBuilder;
-
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
 import com.google.speech.tools.voxetta.data.StatusResponse;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.ConcurrentModificationException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Implements prompt service using Google Datastore API.
+ * <p>
+ * When the "voxetta.prompts.claimMode" system property is "coverage", prompts are not retired
+ * after one recording. Instead a {@link PromptCoverage} hands out the prompt that still needs the
+ * most recordings from the speaker's demographic bucket, and the "read" flag is left alone.
  */
 public class DatastorePromptService implements PromptService {
 
-    private DatastoreService datastoreService = DatastoreServiceFactory.getDatastoreService();
-    private Gson gson = new Gson();
+    private static final Logger logger = Logger.getLogger(DatastorePromptService.class.getName());
+
+    private static final byte[] EMPTY_JSON = "{}".getBytes(StandardCharsets.UTF_8);
+
+    private DatastoreService datastoreService = InstrumentedDatastoreService.create();
+    private PromptDispenser dispenser = new PromptDispenser(datastoreService);
+    private PromptJsonCache promptJsonCache = PromptJsonCache.getDefault();
+    private PromptCoverage coverage =
+        PromptCoverage.isEnabled() ? PromptCoverage.getDefault() : null;
 
     public DatastorePromptService() {
     }
@@ -53,12 +58,7 @@ public class DatastorePromptService implements PromptService {
     public StatusResponse savePrompt(String type, String body) {
 
         // TODO(eldrickb): validation
-        Entity promptEntity = new Entity("Prompt");
-
-        promptEntity.setProperty("type", type);
-        promptEntity.setProperty("body", body);
-
-        promptEntity.setProperty("read", 0);
+        Entity promptEntity = createPromptEntity(type, body);
 
         try {
             datastoreService.put(promptEntity);
@@ -66,41 +66,160 @@ public class DatastorePromptService implements PromptService {
             return new ErrorResponse(false, "Error: Unknown Datastore Failure Exception");
         }
 
+        promptJsonCache.put(promptEntity);
+        if (coverage != null) {
+            addToCoverage(promptEntity);
+        }
         return new StatusResponse(true);
     }
 
+    private void addToCoverage(Entity promptEntity) {
+        try {
+            coverage.added(new PromptBuilder().buildFromEntity(promptEntity));
+        } catch (IllegalArgumentException e) {
+            // Malformed prompts are never handed out
+        }
+    }
+
+    /**
+     * Creates a new, unread Prompt entity.
+     *
+     * @param type Type of the prompt.
+     * @param body The body of the prompt.
+     * @return an entity ready to be put.
+     */
+    static Entity createPromptEntity(String type, String body) {
+        Entity promptEntity = new Entity("Prompt");
+
+        promptEntity.setProperty("type", type);
+        promptEntity.setProperty("body", body);
+
+        promptEntity.setProperty("read", 0);
+        promptEntity.setProperty("shard", ShardedPromptClaimer.getDefault().randomShard());
+
+        return promptEntity;
+    }
+
     /**
      * Returns one prompt from the database.
      * <p>
-     * When it is retrieved, its "read" property is updated to 1. Once that happens, it can no
-     * longer be retrieved via this function.
+     * Prompts are claimed ahead of time in batches by a {@link PromptDispenser}; when a prompt is
+     * claimed its "read" property is updated to 1 and it is leased. Once that happens, it can no
+     * longer be retrieved via this function unless the lease is released or expires.
      *
      * @return one prompt from the Prompt database.
      */
     @Override
     public String getOnePrompt() {
+        return new String(getOnePromptJson(), StandardCharsets.UTF_8);
+    }
 
-        // get the prompt
-        Filter unreadFilter = new FilterPredicate("read", FilterOperator.EQUAL, 0);
-        List<Entity> unreadQueries = datastoreService.prepare(new Query("Prompt")
-            .setFilter(unreadFilter))
-            .asList(Builder.withLimit(1));
+    /**
+     * Returns one prompt from the database as JSON, served from the {@link PromptJsonCache} when
+     * the prompt was served or saved before.
+     *
+     * @return one prompt from the Prompt database.
+     */
+    @Override
+    public byte[] getOnePromptJson() {
+        return getOnePromptJson(SpeakerProfile.UNKNOWN);
+    }
+
+    /**
+     * Returns one prompt from the database as JSON. In coverage mode it is the prompt most needed
+     * from the speaker's bucket; otherwise the speaker is ignored.
+     *
+     * @param speaker The speaker who will record the prompt.
+     * @return one prompt from the Prompt database.
+     */
+    @Override
+    public byte[] getOnePromptJson(SpeakerProfile speaker) {
+
+        Prompt retrievedPrompt = coverage != null ? coverage.next(speaker) : dispenser.next();
 
         // if none, return empty json
-        if (unreadQueries.size() < 1) {
-            return gson.toJson(new Object());
+        if (retrievedPrompt == null) {
+            return EMPTY_JSON;
         }
 
-        // TODO(eldrickb): transactionize
-        Entity retrievedEntity = unreadQueries.get(0);
+        // return the prompt as JSON, with the token that lets the client release it
+        return PromptJsonCache.withLeaseToken(promptJsonCache.get(retrievedPrompt),
+            retrievedPrompt);
+    }
+
+    /**
+     * Makes a leased prompt unread again. Prompts that were already recorded, or leased under a
+     * different token, are left untouched.
+     */
+    @Override
+    public StatusResponse releasePrompt(long promptId, String leaseToken) {
+        if (coverage != null) {
+            return coverage.release(promptId, leaseToken) ? new StatusResponse(true)
+                : new ErrorResponse(false, "Error: Prompt is not leased");
+        }
+
+        try {
+            boolean released = PromptLeases.updateIf(datastoreService,
+                KeyFactory.createKey("Prompt", promptId),
+                entity -> PromptLeases.isLeased(entity)
+                    && PromptLeases.holdsLease(entity, leaseToken),
+                PromptLeases::release);
+
+            if (!released) {
+                return new ErrorResponse(false, "Error: Prompt is not leased");
+            }
+        } catch (DatastoreFailureException | ConcurrentModificationException e) {
+            return new ErrorResponse(false, "Error: Unknown Datastore Failure Exception");
+        }
+
+        return new StatusResponse(true);
+    }
+
+    /**
+     * Ends the lease of a prompt for good. Prompts that are not leased, or leased under a
+     * different token, are left untouched, so an upload can only retire the prompt it was
+     * handed.
+     */
+    @Override
+    public void confirmPrompt(long promptId, String leaseToken) {
+        confirmPrompt(promptId, leaseToken, SpeakerProfile.UNKNOWN);
+    }
+
+    /**
+     * Ends the lease of a prompt for good or, in coverage mode, counts the recording towards the
+     * speaker's bucket.
+     */
+    @Override
+    public void confirmPrompt(long promptId, String leaseToken, SpeakerProfile speaker) {
+        if (coverage != null) {
+            coverage.recorded(promptId, leaseToken, speaker);
+            return;
+        }
 
-        // set prompt as read
-        retrievedEntity.setProperty("read", 1);
-        datastoreService.put(retrievedEntity);
+        try {
+            boolean confirmed = PromptLeases.updateIf(datastoreService,
+                KeyFactory.createKey("Prompt", promptId),
+                entity -> PromptLeases.isLeased(entity)
+                    && PromptLeases.holdsLease(entity, leaseToken),
+                PromptLeases::confirm);
+
+            if (!confirmed) {
+                logger.info("Ignored recording of prompt " + promptId + ", which is not leased "
+                    + "under the uploader's token");
+            }
+        } catch (DatastoreFailureException | ConcurrentModificationException e) {
+            // The lease expires on its own; at worst the prompt is recorded once more.
+            logger.log(Level.WARNING, "Failed to confirm lease of prompt " + promptId, e);
+        }
+    }
 
-        // return the prompt as JSON
-        Prompt retrievedPrompt = new PromptBuilder().buildFromEntity(retrievedEntity);
-        return gson.toJson(retrievedPrompt);
+    /**
+     * Stops the background work of this service's prompt dispenser. Only needed for services
+     * discarded before the instance ends, e.g. in benchmarks; the service must not be used
+     * afterwards.
+     */
+    public void shutdown() {
+        dispenser.shutdown();
     }
 
     /**
@@ -111,5 +230,16 @@ public class DatastorePromptService implements PromptService {
     @VisibleForTesting
     public void setDatastoreService(DatastoreService inputService) {
         datastoreService = inputService;
+        dispenser.setDatastoreService(inputService);
+    }
+
+    /**
+     * Allow the service's coverage to be set for testing purposes.
+     *
+     * @param inputCoverage The coverage to hand out prompts from, or null to claim them instead.
+     */
+    @VisibleForTesting
+    void setCoverage(PromptCoverage inputCoverage) {
+        coverage = inputCoverage;
     }
 }
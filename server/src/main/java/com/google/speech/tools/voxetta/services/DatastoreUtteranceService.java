@@ -21,28 +21,105 @@ import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.common.annotations.VisibleForTesting; 
 import com.google.speech.tools.voxetta.data.Utterance; 
+import com.google.speech.tools.voxetta.metrics.Counter;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
 
 /** 
  * Functionality for uploading audio files to Blobstore & uploading the related Utterance
  * object to Datastore.  
+ *
+ * <p>When the "voxetta.utterances.writeBehind" system property is true, Utterance entities are
+ * written through a shared {@link UtteranceWriteBuffer} instead of one put per request.
+ *
+ * <p>When the "voxetta.qc.enabled" system property is true, every saved recording is checked in
+ * the background by a shared {@link AudioQualityControl}.
+ *
+ * <p>Utterances with an idempotency key are saved under it, at most once. Retries of an upload
+ * this instance saved recently are recognized by {@link RecentKeys} without calling Datastore;
+ * others are looked up and put in one transaction on the key, so of concurrent retries that reach
+ * different instances only one saves the Utterance. Keyed Utterances therefore bypass the write
+ * buffer.
+ *
+ * <p>Every saved Utterance that names a prompt adds one to the prompt's
+ * {@link PromptRecordingCounter}, except in coverage mode, where {@link PromptCoverage} already
+ * counts each recording per bucket and the sum of those counts is the prompt's total.
  */
 public class DatastoreUtteranceService implements UtteranceService {
+
+  private static final Logger logger =
+      Logger.getLogger(DatastoreUtteranceService.class.getName());
+
+  private static final boolean WRITE_BEHIND = Boolean.getBoolean("voxetta.utterances.writeBehind");
+  private static final boolean QUALITY_CONTROL = Boolean.getBoolean("voxetta.qc.enabled");
+
+  // One buffer and one worker pool per instance, so they are shared across requests.
+  private static UtteranceWriteBuffer sharedWriteBuffer;
+  private static AudioQualityControl sharedQualityControl;
+
+  // Concurrent retries of one upload contend for its key; the losers look it up again.
+  private static final int MAX_CREATE_ATTEMPTS = 3;
+
+  private static final Counter duplicates =
+      MetricsRegistry.getDefault().counter("utterance_duplicate_uploads");
   
-  private DatastoreService datastoreService = DatastoreServiceFactory.getDatastoreService();
+  private DatastoreService datastoreService = InstrumentedDatastoreService.create();
   private BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+  private UploadUrlPool uploadUrlPool = UploadUrlPool.getDefault();
+  private UtteranceWriteBuffer writeBuffer = WRITE_BEHIND ? getSharedWriteBuffer() : null;
+  private AudioQualityControl qualityControl =
+      QUALITY_CONTROL ? getSharedQualityControl() : null;
+  private RecentKeys recentKeys = RecentKeys.getDefault();
+  private PromptRecordingCounter recordingCounter = new PromptRecordingCounter(datastoreService);
+  private boolean coverageMode = PromptCoverage.isEnabled();
+
+  private static synchronized UtteranceWriteBuffer getSharedWriteBuffer() {
+    if (sharedWriteBuffer == null) {
+      sharedWriteBuffer = new UtteranceWriteBuffer(InstrumentedDatastoreService.create(),
+          Integer.getInteger("voxetta.utterances.bufferCapacity", 1000),
+          Integer.getInteger("voxetta.utterances.flushBatchSize", 100),
+          Long.getLong("voxetta.utterances.flushDelayMillis", 200L));
+    }
+    return sharedWriteBuffer;
+  }
+
+  private static synchronized AudioQualityControl getSharedQualityControl() {
+    if (sharedQualityControl == null) {
+      sharedQualityControl = new AudioQualityControl(InstrumentedDatastoreService.create());
+    }
+    return sharedQualityControl;
+  }
 
   @Override 
-  public void saveUtterance(Utterance utterance) {
-    // Create and initialize a new Utterance Entity
-    Entity utteranceEntity = new Entity("Utterance");
+  public boolean saveUtterance(Utterance utterance) {
+    String keyName = utterance.getIdempotencyKey();
+
+    // Drop retries of uploads saved recently without a round-trip to Datastore
+    if (keyName != null && !recentKeys.add(keyName)) {
+      duplicates.increment();
+      return false;
+    }
+
+    // Create and initialize a new Utterance Entity, named by its idempotency key if it has one
+    Entity utteranceEntity = keyName == null
+        ? new Entity("Utterance")
+        : new Entity("Utterance", keyName);
+    if (keyName == null && writeBuffer != null && qualityControl != null) {
+      // Quality control finds the entity by key, which a buffered entity only gets once written
+      utteranceEntity = new Entity(datastoreService.allocateIds("Utterance", 1).getStart());
+    }
     utteranceEntity.setProperty("audioKey", utterance.getAudio());
     utteranceEntity.setProperty("userId", utterance.getUserId());
     utteranceEntity.setProperty("promptId", utterance.getPromptId());
@@ -50,10 +127,76 @@ public class DatastoreUtteranceService implements UtteranceService {
     utteranceEntity.setProperty("age", utterance.getAge());
     utteranceEntity.setProperty("gender", utterance.getGender());
     
-    // Store the Utterance Entity in Datastore 
-    datastoreService.put(utteranceEntity); 
+    try {
+      if (keyName != null) {
+        // A retry that reached another instance, or came after the key was forgotten, finds the
+        // Utterance already saved
+        if (!createIfAbsent(utteranceEntity)) {
+          duplicates.increment();
+          return false;
+        }
+      } else if (writeBuffer != null) {
+        // Leave the Utterance Entity to the write buffer
+        writeBuffer.enqueue(utteranceEntity);
+      } else {
+        datastoreService.put(utteranceEntity); 
+      }
+    } catch (RuntimeException e) {
+      // Let a retry save it
+      if (keyName != null) {
+        recentKeys.remove(keyName);
+      }
+      throw e;
+    }
+
+    if (!coverageMode) {
+      countRecording(utterance.getPromptId());
+    }
+
+    // Check the recording once the request no longer waits for it
+    if (qualityControl != null) {
+      qualityControl.submit(utteranceEntity.getKey(), utterance.getAudio());
+    }
+    return true;
   }
-  
+
+  // The Utterance is saved either way, so a failed increment only leaves the count one short
+  private void countRecording(String promptId) {
+    try {
+      recordingCounter.increment(Long.parseLong(promptId));
+    } catch (NumberFormatException e) {
+      // Uploads from older clients name no prompt
+    } catch (DatastoreFailureException | ConcurrentModificationException e) {
+      logger.log(Level.WARNING, "Failed to count recording of prompt " + promptId, e);
+    }
+  }
+
+  // Puts the entity unless one with its key exists, atomically; returns whether this call put it
+  private boolean createIfAbsent(Entity entity) {
+    for (int attempt = 1; ; attempt++) {
+      Transaction transaction = datastoreService.beginTransaction();
+      try {
+        try {
+          datastoreService.get(transaction, entity.getKey());
+          return false;
+        } catch (EntityNotFoundException e) {
+          // Not saved yet
+        }
+        datastoreService.put(transaction, entity);
+        transaction.commit();
+        return true;
+      } catch (ConcurrentModificationException e) {
+        if (attempt == MAX_CREATE_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
   @Override
   public String getAudioBlob(HttpServletRequest request) {
     Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
@@ -68,9 +211,21 @@ public class DatastoreUtteranceService implements UtteranceService {
     return blobKeys.get(0).getKeyString();
   }
 
+  /**
+   * Returns the MD5 hash Blobstore computed while the audio file was uploaded.
+   */
+  @Override
+  public String getAudioHash(HttpServletRequest request, String audio) {
+    List<BlobInfo> blobInfos = blobstoreService.getBlobInfos(request).get("audio");
+    if (blobInfos == null || blobInfos.isEmpty()) {
+      return null;
+    }
+    return blobInfos.get(0).getMd5Hash();
+  }
+
   @Override
   public String getAudioBlobUploadUrl() {
-    return blobstoreService.createUploadUrl("/upload-utterance"); 
+    return uploadUrlPool.take(); 
   }
 
   /** 
@@ -81,15 +236,64 @@ public class DatastoreUtteranceService implements UtteranceService {
   @VisibleForTesting
   public void setDatastoreService(DatastoreService inputService) {
     datastoreService = inputService; 
+    recordingCounter.setDatastoreService(inputService);
+    if (writeBuffer != null) {
+      writeBuffer.setDatastoreService(inputService);
+    }
+    if (qualityControl != null) {
+      qualityControl.setDatastoreService(inputService);
+    }
+  }
+
+  /** 
+   * Allow coverage mode to be set for testing purposes.
+   *
+   * @param inputCoverageMode Whether recordings are left to PromptCoverage to count.
+   */
+  @VisibleForTesting
+  public void setCoverageMode(boolean inputCoverageMode) {
+    coverageMode = inputCoverageMode; 
+  }
+
+  /** 
+   * Allow the service's write buffer to be set for testing purposes. Null writes synchronously.
+   *
+   * @param inputBuffer The buffer Utterance entities are written through.
+   */
+  @VisibleForTesting
+  public void setWriteBuffer(UtteranceWriteBuffer inputBuffer) {
+    writeBuffer = inputBuffer; 
+  }
+
+  /** 
+   * Allow the service's quality checker to be set for testing purposes. Null skips checks.
+   *
+   * @param inputQualityControl The checker saved recordings are submitted to.
+   */
+  @VisibleForTesting
+  public void setQualityControl(AudioQualityControl inputQualityControl) {
+    qualityControl = inputQualityControl; 
+  }
+
+  /** 
+   * Allow the service's recently saved keys to be set for testing purposes.
+   *
+   * @param inputKeys The keys retried uploads are recognized by.
+   */
+  @VisibleForTesting
+  void setRecentKeys(RecentKeys inputKeys) {
+    recentKeys = inputKeys; 
   }
 
   /** 
-   * Allow the servlet's Blobstore service to be set for mocking purposes.
+   * Allow the servlet's Blobstore service to be set for mocking purposes. Upload URLs then come
+   * from a pool of its own rather than the shared one.
    *
    * @param inputService The service to serve as the BlobstoreService.
    */
   @VisibleForTesting
   public void setBlobstoreService(BlobstoreService inputService) {
     blobstoreService = inputService; 
+    uploadUrlPool = new UploadUrlPool(inputService, "/upload-utterance");
   }
 }
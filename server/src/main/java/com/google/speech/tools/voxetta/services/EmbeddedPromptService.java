@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.speech.tools.voxetta.data.ErrorResponse;
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
+import com.google.speech.tools.voxetta.data.StatusResponse;
+import com.google.speech.tools.voxetta.embedded.EmbeddedStore;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implements prompt service using an {@link EmbeddedStore}, with the same leasing behavior as
+ * {@link DatastorePromptService}. Prompts are handed out once each, whoever the speaker is.
+ */
+public class EmbeddedPromptService implements PromptService {
+
+    private static final Logger logger = Logger.getLogger(EmbeddedPromptService.class.getName());
+
+    private static final byte[] EMPTY_JSON = "{}".getBytes(StandardCharsets.UTF_8);
+
+    private final EmbeddedStore store;
+    private final PromptJsonCache promptJsonCache = PromptJsonCache.getDefault();
+
+    /**
+     * @param store The store prompts are kept in.
+     */
+    public EmbeddedPromptService(EmbeddedStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public StatusResponse savePrompt(String type, String body) {
+        try {
+            store.savePrompt(type, body);
+        } catch (IllegalArgumentException e) {
+            return new ErrorResponse(false, "Error: Invalid prompt type");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to save prompt", e);
+            return new ErrorResponse(false, "Error: Failed to save prompt");
+        }
+        return new StatusResponse(true);
+    }
+
+    @Override
+    public String getOnePrompt() {
+        return new String(getOnePromptJson(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] getOnePromptJson() {
+        Prompt prompt;
+        try {
+            prompt = store.leaseNext(System.currentTimeMillis(), PromptLeases.LEASE_MILLIS);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to lease prompt", e);
+        }
+
+        return prompt == null ? EMPTY_JSON
+            : PromptJsonCache.withLeaseToken(promptJsonCache.get(prompt), prompt);
+    }
+
+    @Override
+    public byte[] getOnePromptJson(SpeakerProfile speaker) {
+        return getOnePromptJson();
+    }
+
+    @Override
+    public StatusResponse releasePrompt(long promptId, String leaseToken) {
+        try {
+            if (!store.release(promptId, leaseToken, System.currentTimeMillis())) {
+                return new ErrorResponse(false, "Error: Prompt is not leased");
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to release prompt " + promptId, e);
+            return new ErrorResponse(false, "Error: Failed to release prompt");
+        }
+        return new StatusResponse(true);
+    }
+
+    @Override
+    public void confirmPrompt(long promptId, String leaseToken) {
+        try {
+            store.confirm(promptId, leaseToken);
+        } catch (IOException e) {
+            // The lease expires on its own; at worst the prompt is recorded once more.
+            logger.log(Level.WARNING, "Failed to confirm lease of prompt " + promptId, e);
+        }
+    }
+
+    @Override
+    public void confirmPrompt(long promptId, String leaseToken, SpeakerProfile speaker) {
+        confirmPrompt(promptId, leaseToken);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.speech.tools.voxetta.data.Utterance;
+import com.google.speech.tools.voxetta.embedded.EmbeddedStore;
+import com.google.speech.tools.voxetta.embedded.LocalAudioStore;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Part;
+
+/**
+ * Functionality for saving audio files and Utterances in an {@link EmbeddedStore}.
+ *
+ * <p>Audio is uploaded straight to the Utterance Upload Servlet as the "audio" part of the form,
+ * without Blobstore, and kept in a {@link LocalAudioStore}.
+ */
+public class EmbeddedUtteranceService implements UtteranceService {
+
+  private static final String UPLOAD_URL = "/upload-utterance";
+
+  private final EmbeddedStore store;
+  private final LocalAudioStore audioStore;
+
+  /**
+   * @param store The store Utterances are kept in.
+   * @param audioStore The store recordings are kept in.
+   */
+  public EmbeddedUtteranceService(EmbeddedStore store, LocalAudioStore audioStore) {
+    this.store = store;
+    this.audioStore = audioStore;
+  }
+
+  @Override
+  public boolean saveUtterance(Utterance utterance) {
+    try {
+      return store.saveUtterance(utterance);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to save utterance", e);
+    }
+  }
+
+  @Override
+  public String getAudioBlob(HttpServletRequest request) {
+    try {
+      Part audio = request.getPart("audio");
+
+      // Return null if an audio file was not uploaded
+      if (audio == null) {
+        return null;
+      }
+
+      try (InputStream in = audio.getInputStream()) {
+        return audioStore.save(in);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to save audio", e);
+    } catch (ServletException e) {
+      // Only thrown if the request is not a multipart request.
+      return null;
+    }
+  }
+
+  /**
+   * Returns the audio file's key, which is already the SHA-256 hash of its content.
+   */
+  @Override
+  public String getAudioHash(HttpServletRequest request, String audio) {
+    return audio;
+  }
+
+  @Override
+  public String getAudioBlobUploadUrl() {
+    return UPLOAD_URL;
+  }
+}
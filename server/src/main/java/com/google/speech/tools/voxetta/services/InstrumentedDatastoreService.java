@@ -0,0 +1,691 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Index.IndexState;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.speech.tools.voxetta.metrics.Counter;
+import com.google.speech.tools.voxetta.metrics.Histogram;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * {@link DatastoreService} that records every call made through it, then forwards the call to a
+ * real service.
+ * <p>
+ * For each operation and entity kind it records latency in "datastore_call_duration_seconds",
+ * failures in "datastore_call_errors", and the number of entities read or written in
+ * "datastore_entities". Their approximate size is recorded in "datastore_bytes" only when
+ * "voxetta.datastore.estimateSize" is true, since estimating it walks every property. Query time
+ * includes iterating over the results. A query slower than "voxetta.datastore.slowQueryMillis" is
+ * logged with its shape: its kind, filters, sort orders and fetch options, with filter values left
+ * out.
+ * <p>
+ * {@code asList} and {@code asQueryResultList} results are fetched in full before they are
+ * returned, so that their cost is recorded with the call. A query iterator is recorded once it
+ * runs out; {@link QueryResultIterator} cannot be closed, so one that is abandoned before that is
+ * recorded, up to its last use, after it has been garbage collected.
+ */
+public class InstrumentedDatastoreService implements DatastoreService {
+
+    private static final Logger logger =
+        Logger.getLogger(InstrumentedDatastoreService.class.getName());
+
+    private static final boolean ENABLED =
+        Boolean.parseBoolean(System.getProperty("voxetta.datastore.instrument", "true"));
+
+    private static final long SLOW_QUERY_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("voxetta.datastore.slowQueryMillis", 200L));
+
+    private static final boolean ESTIMATE_SIZE =
+        Boolean.getBoolean("voxetta.datastore.estimateSize");
+
+    private final DatastoreService delegate;
+    private final MetricsRegistry metrics;
+    private final long slowQueryNanos;
+    private final boolean estimateSize;
+
+    // Iterators not yet run out; collected ones are recorded the next time a query is prepared.
+    private final ReferenceQueue<Object> abandonedIterators = new ReferenceQueue<>();
+    private final Set<OpenIterator> openIterators = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param delegate The service calls are forwarded to.
+     */
+    public InstrumentedDatastoreService(DatastoreService delegate) {
+        this(delegate, MetricsRegistry.getDefault(), SLOW_QUERY_NANOS, ESTIMATE_SIZE);
+    }
+
+    @VisibleForTesting
+    InstrumentedDatastoreService(DatastoreService delegate, MetricsRegistry metrics,
+        long slowQueryNanos, boolean estimateSize) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.slowQueryNanos = slowQueryNanos;
+        this.estimateSize = estimateSize;
+    }
+
+    /**
+     * Returns the Datastore service the services use by default: the platform's service,
+     * instrumented unless "voxetta.datastore.instrument" is false.
+     */
+    public static DatastoreService create() {
+        DatastoreService datastoreService = DatastoreServiceFactory.getDatastoreService();
+        return ENABLED ? new InstrumentedDatastoreService(datastoreService) : datastoreService;
+    }
+
+    @Override
+    public Entity get(Key key) throws EntityNotFoundException {
+        return get(null, key);
+    }
+
+    @Override
+    public Entity get(Transaction txn, Key key) throws EntityNotFoundException {
+        Call call = new Call("get", key.getKind());
+        try {
+            Entity entity = txn == null ? delegate.get(key) : delegate.get(txn, key);
+            call.entity(entity);
+            return call.succeeded(entity);
+        } catch (EntityNotFoundException e) {
+            // A missing entity is an answer, not a failure.
+            call.succeeded(null);
+            throw e;
+        } catch (RuntimeException e) {
+            throw call.failed(e);
+        }
+    }
+
+    @Override
+    public Map<Key, Entity> get(Iterable<Key> keys) {
+        return get(null, keys);
+    }
+
+    @Override
+    public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys) {
+        Call call = new Call("get", kindOfKeys(keys));
+        try {
+            Map<Key, Entity> entities = txn == null ? delegate.get(keys) : delegate.get(txn, keys);
+            call.entities(entities.values());
+            return call.succeeded(entities);
+        } catch (RuntimeException e) {
+            throw call.failed(e);
+        }
+    }
+
+    @Override
+    public Key put(Entity entity) {
+        return put(null, entity);
+    }
+
+    @Override
+    public Key put(Transaction txn, Entity entity) {
+        Call call = new Call("put", entity.getKind());
+        call.entity(entity);
+        try {
+            return call.succeeded(txn == null ? delegate.put(entity) : delegate.put(txn, entity));
+        } catch (RuntimeException e) {
+            throw call.failed(e);
+        }
+    }
+
+    @Override
+    public List<Key> put(Iterable<Entity> entities) {
+        return put(null, entities);
+    }
+
+    @Override
+    public List<Key> put(Transaction txn, Iterable<Entity> entities) {
+        Iterator<Entity> first = entities.iterator();
+        Call call = new Call("put", first.hasNext() ? first.next().getKind() : "*");
+        call.entities(entities);
+        try {
+            return call.succeeded(
+                txn == null ? delegate.put(entities) : delegate.put(txn, entities));
+        } catch (RuntimeException e) {
+            throw call.failed(e);
+        }
+    }
+
+    @Override
+    public void delete(Key... keys) {
+        delete(null, Arrays.asList(keys));
+    }
+
+    @Override
+    public void delete(Transaction txn, Key... keys) {
+        delete(txn, Arrays.asList(keys));
+    }
+
+    @Override
+    public void delete(Iterable<Key> keys) {
+        delete(null, keys);
+    }
+
+    @Override
+    public void delete(Transaction txn, Iterable<Key> keys) {
+        Call call = new Call("delete", kindOfKeys(keys));
+        try {
+            if (txn == null) {
+                delegate.delete(keys);
+            } else {
+                delegate.delete(txn, keys);
+            }
+            call.succeeded(null);
+        } catch (RuntimeException e) {
+            throw call.failed(e);
+        }
+    }
+
+    @Override
+    public PreparedQuery prepare(Query query) {
+        recordAbandonedIterators();
+        return new InstrumentedPreparedQuery(query, delegate.prepare(query));
+    }
+
+    @Override
+    public PreparedQuery prepare(Transaction txn, Query query) {
+        recordAbandonedIterators();
+        return new InstrumentedPreparedQuery(query, delegate.prepare(txn, query));
+    }
+
+    private void recordAbandonedIterators() {
+        Reference<?> abandoned;
+        while ((abandoned = abandonedIterators.poll()) != null) {
+            OpenIterator open = (OpenIterator) abandoned;
+            openIterators.remove(open);
+            open.query.finish(open.call, open.fetchOptions, open.call.lastUsed);
+        }
+    }
+
+    @Override
+    public Transaction beginTransaction() {
+        return timed("beginTransaction", "*", delegate::beginTransaction);
+    }
+
+    @Override
+    public Transaction beginTransaction(TransactionOptions options) {
+        return timed("beginTransaction", "*", () -> delegate.beginTransaction(options));
+    }
+
+    @Override
+    public KeyRange allocateIds(String kind, long num) {
+        return timed("allocateIds", kind, () -> delegate.allocateIds(kind, num));
+    }
+
+    @Override
+    public KeyRange allocateIds(Key parent, String kind, long num) {
+        return timed("allocateIds", kind, () -> delegate.allocateIds(parent, kind, num));
+    }
+
+    @Override
+    public KeyRangeState allocateIdRange(KeyRange range) {
+        return timed("allocateIdRange", range.getStart().getKind(),
+            () -> delegate.allocateIdRange(range));
+    }
+
+    @Override
+    public DatastoreAttributes getDatastoreAttributes() {
+        return delegate.getDatastoreAttributes();
+    }
+
+    @Override
+    public Map<Index, IndexState> getIndexes() {
+        return delegate.getIndexes();
+    }
+
+    @Override
+    public Transaction getCurrentTransaction() {
+        return delegate.getCurrentTransaction();
+    }
+
+    @Override
+    public Transaction getCurrentTransaction(Transaction returnedIfNoTxn) {
+        return delegate.getCurrentTransaction(returnedIfNoTxn);
+    }
+
+    @Override
+    public Collection<Transaction> getActiveTransactions() {
+        return delegate.getActiveTransactions();
+    }
+
+    private <T> T timed(String operation, String kind, Supplier<T> action) {
+        Call call = new Call(operation, kind);
+        try {
+            return call.succeeded(action.get());
+        } catch (RuntimeException e) {
+            throw call.failed(e);
+        }
+    }
+
+    private static String kindOfKeys(Iterable<Key> keys) {
+        Iterator<Key> iterator = keys.iterator();
+        return iterator.hasNext() ? iterator.next().getKind() : "*";
+    }
+
+    /**
+     * Describes a query without its filter values, e.g.
+     * {@code Prompt WHERE (read = ? AND shard = ?) ORDER BY __key__ ASC LIMIT 500}.
+     */
+    @VisibleForTesting
+    static String describe(Query query, FetchOptions fetchOptions) {
+        StringBuilder shape = new StringBuilder(query.getKind() == null ? "*" : query.getKind());
+
+        if (query.isKeysOnly()) {
+            shape.append(" KEYS ONLY");
+        }
+        if (!query.getProjections().isEmpty()) {
+            shape.append(" PROJECT ").append(query.getProjections().size()).append(" properties");
+        }
+        if (query.getAncestor() != null) {
+            shape.append(" ANCESTOR ?");
+        }
+        if (query.getFilter() != null) {
+            shape.append(" WHERE ").append(describe(query.getFilter()));
+        }
+        if (!query.getSortPredicates().isEmpty()) {
+            StringJoiner sorts = new StringJoiner(", ", " ORDER BY ", "");
+            for (SortPredicate sort : query.getSortPredicates()) {
+                sorts.add(sort.getPropertyName() + " " + sort.getDirection());
+            }
+            shape.append(sorts);
+        }
+        if (fetchOptions != null && fetchOptions.getLimit() != null) {
+            shape.append(" LIMIT ").append(fetchOptions.getLimit());
+        }
+        if (fetchOptions != null && fetchOptions.getStartCursor() != null) {
+            shape.append(" FROM CURSOR");
+        }
+        return shape.toString();
+    }
+
+    private static String describe(Filter filter) {
+        if (filter instanceof FilterPredicate) {
+            FilterPredicate predicate = (FilterPredicate) filter;
+            return predicate.getPropertyName() + " " + predicate.getOperator() + " ?";
+        }
+        if (filter instanceof CompositeFilter) {
+            CompositeFilter composite = (CompositeFilter) filter;
+            StringJoiner parts = new StringJoiner(" " + composite.getOperator() + " ", "(", ")");
+            for (Filter subFilter : composite.getSubFilters()) {
+                parts.add(describe(subFilter));
+            }
+            return parts.toString();
+        }
+        return filter.getClass().getSimpleName();
+    }
+
+    // Rough serialized size: property names and values, ignoring encoding overhead.
+    private static long estimateSize(Entity entity) {
+        long size = entity.getKey().toString().length();
+        for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+            size += property.getKey().length() + estimateSize(property.getValue());
+        }
+        return size;
+    }
+
+    private static long estimateSize(Object value) {
+        if (value instanceof String) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8).length;
+        } else if (value instanceof Text) {
+            return ((Text) value).getValue().length();
+        } else if (value instanceof Blob) {
+            return ((Blob) value).getBytes().length;
+        } else if (value instanceof ShortBlob) {
+            return ((ShortBlob) value).getBytes().length;
+        } else if (value instanceof Collection) {
+            long size = 0;
+            for (Object element : (Collection<?>) value) {
+                size += estimateSize(element);
+            }
+            return size;
+        }
+        return 8;
+    }
+
+    /**
+     * One call, from when it was made until it returned. Records its metrics when it ends.
+     */
+    private class Call {
+
+        private final String operation;
+        private final String kind;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean recorded = new AtomicBoolean();
+        private volatile long lastUsed = start;
+        private volatile long entities;
+        private volatile long bytes;
+
+        private Call(String operation, String kind) {
+            this.operation = operation;
+            this.kind = kind;
+        }
+
+        private void entity(Entity entity) {
+            if (entity != null) {
+                entities++;
+                if (estimateSize) {
+                    bytes += estimateSize(entity);
+                }
+            }
+        }
+
+        private void entities(Iterable<Entity> entities) {
+            for (Entity entity : entities) {
+                entity(entity);
+            }
+        }
+
+        private <T> T succeeded(T result) {
+            record(System.nanoTime() - start);
+            return result;
+        }
+
+        private RuntimeException failed(RuntimeException e) {
+            if (record(System.nanoTime() - start)) {
+                metrics.counter("datastore_call_errors", "operation", operation, "kind", kind)
+                    .increment();
+            }
+            return e;
+        }
+
+        // Records the call unless it already was; returns whether it was recorded now.
+        private boolean record(long elapsedNanos) {
+            if (!recorded.compareAndSet(false, true)) {
+                return false;
+            }
+
+            histogram().record(elapsedNanos);
+            if (entities > 0) {
+                counter("datastore_entities").add(entities);
+                if (estimateSize) {
+                    counter("datastore_bytes").add(bytes);
+                }
+            }
+            return true;
+        }
+
+        private Histogram histogram() {
+            return metrics.histogram("datastore_call_duration_seconds",
+                "operation", operation, "kind", kind);
+        }
+
+        private Counter counter(String name) {
+            return metrics.counter(name, "operation", operation, "kind", kind);
+        }
+    }
+
+    /**
+     * Query whose time to run and iterate is recorded under operation "query".
+     */
+    private class InstrumentedPreparedQuery implements PreparedQuery {
+
+        private final Query query;
+        private final PreparedQuery delegateQuery;
+
+        private InstrumentedPreparedQuery(Query query, PreparedQuery delegateQuery) {
+            this.query = query;
+            this.delegateQuery = delegateQuery;
+        }
+
+        private String kind() {
+            return query.getKind() == null ? "*" : query.getKind();
+        }
+
+        private void finish(Call call, FetchOptions fetchOptions) {
+            finish(call, fetchOptions, System.nanoTime());
+        }
+
+        private void finish(Call call, FetchOptions fetchOptions, long end) {
+            long elapsed = end - call.start;
+            if (call.record(elapsed) && elapsed > slowQueryNanos) {
+                logger.warning(String.format("Slow query (%d ms, %d entities): %s",
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), call.entities,
+                    describe(query, fetchOptions)));
+            }
+        }
+
+        private <T> T run(FetchOptions fetchOptions, Supplier<T> action,
+            Function<T, Iterable<Entity>> results) {
+            Call call = new Call("query", kind());
+            try {
+                T result = action.get();
+                if (results != null) {
+                    call.entities(results.apply(result));
+                }
+                finish(call, fetchOptions);
+                return result;
+            } catch (RuntimeException e) {
+                throw call.failed(e);
+            }
+        }
+
+        @Override
+        public List<Entity> asList(FetchOptions fetchOptions) {
+            return run(fetchOptions, () -> delegateQuery.asList(fetchOptions), list -> list);
+        }
+
+        @Override
+        public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions) {
+            return run(fetchOptions, () -> delegateQuery.asQueryResultList(fetchOptions),
+                list -> list);
+        }
+
+        @Override
+        public Iterable<Entity> asIterable(FetchOptions fetchOptions) {
+            return asQueryResultIterable(fetchOptions);
+        }
+
+        @Override
+        public QueryResultIterable<Entity> asQueryResultIterable(FetchOptions fetchOptions) {
+            return () -> asQueryResultIterator(fetchOptions);
+        }
+
+        @Override
+        public Iterable<Entity> asIterable() {
+            return asQueryResultIterable();
+        }
+
+        @Override
+        public QueryResultIterable<Entity> asQueryResultIterable() {
+            return () -> asQueryResultIterator();
+        }
+
+        @Override
+        public Iterator<Entity> asIterator(FetchOptions fetchOptions) {
+            return asQueryResultIterator(fetchOptions);
+        }
+
+        @Override
+        public Iterator<Entity> asIterator() {
+            return asQueryResultIterator();
+        }
+
+        @Override
+        public QueryResultIterator<Entity> asQueryResultIterator(FetchOptions fetchOptions) {
+            Call call = new Call("query", kind());
+            try {
+                return new InstrumentedIterator(call, fetchOptions,
+                    delegateQuery.asQueryResultIterator(fetchOptions));
+            } catch (RuntimeException e) {
+                throw call.failed(e);
+            }
+        }
+
+        @Override
+        public QueryResultIterator<Entity> asQueryResultIterator() {
+            Call call = new Call("query", kind());
+            try {
+                return new InstrumentedIterator(call, null, delegateQuery.asQueryResultIterator());
+            } catch (RuntimeException e) {
+                throw call.failed(e);
+            }
+        }
+
+        @Override
+        public Entity asSingleEntity() throws TooManyResultsException {
+            Call call = new Call("query", kind());
+            try {
+                Entity entity = delegateQuery.asSingleEntity();
+                call.entity(entity);
+                finish(call, null);
+                return entity;
+            } catch (RuntimeException e) {
+                throw call.failed(e);
+            }
+        }
+
+        @Override
+        public int countEntities(FetchOptions fetchOptions) {
+            return run(fetchOptions, () -> delegateQuery.countEntities(fetchOptions), null);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public int countEntities() {
+            return run(null, delegateQuery::countEntities, null);
+        }
+
+        /**
+         * Counts entities as they are iterated over, and records the query once it runs out.
+         */
+        private class InstrumentedIterator implements QueryResultIterator<Entity> {
+
+            private final Call call;
+            private final FetchOptions fetchOptions;
+            private final QueryResultIterator<Entity> delegateIterator;
+            private final OpenIterator open;
+            private boolean finished;
+
+            private InstrumentedIterator(Call call, FetchOptions fetchOptions,
+                QueryResultIterator<Entity> delegateIterator) {
+                this.call = call;
+                this.fetchOptions = fetchOptions;
+                this.delegateIterator = delegateIterator;
+
+                open = new OpenIterator(this, InstrumentedPreparedQuery.this, call, fetchOptions);
+                openIterators.add(open);
+            }
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    boolean hasNext = delegateIterator.hasNext();
+                    call.lastUsed = System.nanoTime();
+                    if (!hasNext && !finished) {
+                        finished();
+                        finish(call, fetchOptions);
+                    }
+                    return hasNext;
+                } catch (RuntimeException e) {
+                    finished();
+                    throw call.failed(e);
+                }
+            }
+
+            @Override
+            public Entity next() {
+                try {
+                    Entity entity = delegateIterator.next();
+                    call.lastUsed = System.nanoTime();
+                    call.entity(entity);
+                    return entity;
+                } catch (RuntimeException e) {
+                    finished();
+                    throw call.failed(e);
+                }
+            }
+
+            private void finished() {
+                finished = true;
+                openIterators.remove(open);
+            }
+
+            @Override
+            public void remove() {
+                delegateIterator.remove();
+            }
+
+            @Override
+            public List<Index> getIndexList() {
+                return delegateIterator.getIndexList();
+            }
+
+            @Override
+            public Cursor getCursor() {
+                return delegateIterator.getCursor();
+            }
+        }
+    }
+
+    /**
+     * Tracks a query iterator until it runs out, so that it is still recorded if it is abandoned.
+     */
+    private class OpenIterator extends PhantomReference<Object> {
+
+        private final InstrumentedPreparedQuery query;
+        private final Call call;
+        private final FetchOptions fetchOptions;
+
+        private OpenIterator(Object iterator, InstrumentedPreparedQuery query, Call call,
+            FetchOptions fetchOptions) {
+            super(iterator, abandonedIterators);
+            this.query = query;
+            this.call = call;
+            this.fetchOptions = fetchOptions;
+        }
+    }
+}
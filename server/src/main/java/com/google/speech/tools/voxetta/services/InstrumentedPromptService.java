@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
+import com.google.speech.tools.voxetta.data.StatusResponse;
+import com.google.speech.tools.voxetta.metrics.Counter;
+import com.google.speech.tools.voxetta.metrics.Histogram;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+
+/**
+ * {@link PromptService} decorator that records the latency and failures of every call under
+ * "backend_call_duration_seconds" and "backend_call_errors", labelled service="prompt".
+ */
+public class InstrumentedPromptService implements PromptService {
+
+    private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    private static final Histogram saveLatency = latency("savePrompt");
+    private static final Histogram getLatency = latency("getOnePrompt");
+    private static final Histogram releaseLatency = latency("releasePrompt");
+    private static final Histogram confirmLatency = latency("confirmPrompt");
+    private static final Counter saveErrors = errors("savePrompt");
+    private static final Counter getErrors = errors("getOnePrompt");
+    private static final Counter releaseErrors = errors("releasePrompt");
+    private static final Counter confirmErrors = errors("confirmPrompt");
+
+    private final PromptService delegate;
+
+    /**
+     * @param delegate The service whose calls are recorded.
+     */
+    public InstrumentedPromptService(PromptService delegate) {
+        this.delegate = delegate;
+    }
+
+    private static Histogram latency(String call) {
+        return metrics.histogram("backend_call_duration_seconds", "service", "prompt", "call", call);
+    }
+
+    private static Counter errors(String call) {
+        return metrics.counter("backend_call_errors", "service", "prompt", "call", call);
+    }
+
+    @Override
+    public StatusResponse savePrompt(String type, String body) {
+        long start = System.nanoTime();
+        try {
+            StatusResponse response = delegate.savePrompt(type, body);
+            if (!response.getSuccess()) {
+                saveErrors.increment();
+            }
+            return response;
+        } catch (RuntimeException e) {
+            saveErrors.increment();
+            throw e;
+        } finally {
+            saveLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public String getOnePrompt() {
+        long start = System.nanoTime();
+        try {
+            return delegate.getOnePrompt();
+        } catch (RuntimeException e) {
+            getErrors.increment();
+            throw e;
+        } finally {
+            getLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public byte[] getOnePromptJson() {
+        long start = System.nanoTime();
+        try {
+            return delegate.getOnePromptJson();
+        } catch (RuntimeException e) {
+            getErrors.increment();
+            throw e;
+        } finally {
+            getLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public byte[] getOnePromptJson(SpeakerProfile speaker) {
+        long start = System.nanoTime();
+        try {
+            return delegate.getOnePromptJson(speaker);
+        } catch (RuntimeException e) {
+            getErrors.increment();
+            throw e;
+        } finally {
+            getLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public StatusResponse releasePrompt(long promptId, String leaseToken) {
+        long start = System.nanoTime();
+        try {
+            StatusResponse response = delegate.releasePrompt(promptId, leaseToken);
+            if (!response.getSuccess()) {
+                releaseErrors.increment();
+            }
+            return response;
+        } catch (RuntimeException e) {
+            releaseErrors.increment();
+            throw e;
+        } finally {
+            releaseLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public void confirmPrompt(long promptId, String leaseToken) {
+        long start = System.nanoTime();
+        try {
+            delegate.confirmPrompt(promptId, leaseToken);
+        } catch (RuntimeException e) {
+            confirmErrors.increment();
+            throw e;
+        } finally {
+            confirmLatency.recordSince(start);
+        }
+    }
+
+    @Override
+    public void confirmPrompt(long promptId, String leaseToken, SpeakerProfile speaker) {
+        long start = System.nanoTime();
+        try {
+            delegate.confirmPrompt(promptId, leaseToken, speaker);
+        } catch (RuntimeException e) {
+            confirmErrors.increment();
+            throw e;
+        } finally {
+            confirmLatency.recordSince(start);
+        }
+    }
+}
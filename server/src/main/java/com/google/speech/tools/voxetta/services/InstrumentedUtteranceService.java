@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.speech.tools.voxetta.data.Utterance;
+import com.google.speech.tools.voxetta.metrics.Counter;
+import com.google.speech.tools.voxetta.metrics.Histogram;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import javax.servlet.http.HttpServletRequest;
+
+/** 
+ * {@link UtteranceService} decorator that records the latency and failures of every call under
+ * "backend_call_duration_seconds" and "backend_call_errors", labelled service="utterance".
+ */
+public class InstrumentedUtteranceService implements UtteranceService {
+
+  private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+  private static final Histogram saveLatency = latency("saveUtterance");
+  private static final Histogram blobLatency = latency("getAudioBlob");
+  private static final Histogram uploadUrlLatency = latency("getAudioBlobUploadUrl");
+  private static final Counter saveErrors = errors("saveUtterance");
+  private static final Counter blobErrors = errors("getAudioBlob");
+  private static final Counter uploadUrlErrors = errors("getAudioBlobUploadUrl");
+
+  private final UtteranceService delegate;
+
+  /**
+   * @param delegate The service whose calls are recorded.
+   */
+  public InstrumentedUtteranceService(UtteranceService delegate) {
+    this.delegate = delegate;
+  }
+
+  private static Histogram latency(String call) {
+    return metrics.histogram("backend_call_duration_seconds", "service", "utterance", "call", call);
+  }
+
+  private static Counter errors(String call) {
+    return metrics.counter("backend_call_errors", "service", "utterance", "call", call);
+  }
+
+  @Override
+  public boolean saveUtterance(Utterance utterance) {
+    long start = System.nanoTime();
+    try {
+      return delegate.saveUtterance(utterance);
+    } catch (RuntimeException e) {
+      saveErrors.increment();
+      throw e;
+    } finally {
+      saveLatency.recordSince(start);
+    }
+  }
+
+  @Override
+  public String getAudioBlob(HttpServletRequest request) {
+    long start = System.nanoTime();
+    try {
+      return delegate.getAudioBlob(request);
+    } catch (RuntimeException e) {
+      blobErrors.increment();
+      throw e;
+    } finally {
+      blobLatency.recordSince(start);
+    }
+  }
+
+  @Override
+  public String getAudioHash(HttpServletRequest request, String audio) {
+    return delegate.getAudioHash(request, audio);
+  }
+
+  @Override
+  public String getAudioBlobUploadUrl() {
+    long start = System.nanoTime();
+    try {
+      return delegate.getAudioBlobUploadUrl();
+    } catch (RuntimeException e) {
+      uploadUrlErrors.increment();
+      throw e;
+    } finally {
+      uploadUrlLatency.recordSince(start);
+    }
+  }
+}
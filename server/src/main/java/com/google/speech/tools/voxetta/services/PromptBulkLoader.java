@@ -0,0 +1,366 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.speech.tools.voxetta.data.BulkUploadResponse;
+import com.google.speech.tools.voxetta.data.BulkUploadResponse.RowError;
+import com.google.speech.tools.voxetta.data.PromptBuilder;
+import com.google.speech.tools.voxetta.utils.ThreadFactories;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads prompts in bulk from a streamed NDJSON or CSV upload.
+ * <p>
+ * Rows are validated one at a time and grouped into batches that are written with one batched
+ * put each. Up to {@code parallelism} batches are written at the same time; reading the upload
+ * pauses while that many are in flight, so memory use stays bounded no matter how large the
+ * upload is. Rows that fail validation or belong to a batch that could not be written are reported
+ * individually.
+ */
+public class PromptBulkLoader {
+
+    /**
+     * Supported upload formats.
+     * NDJSON = one JSON object with "type" and "body" per line
+     * CSV = "type,body" records, optionally preceded by a "type,body" header
+     */
+    public enum Format {
+        NDJSON,
+        CSV
+    }
+
+    private static final int DEFAULT_PARALLELISM =
+        Integer.getInteger("voxetta.prompts.ingestParallelism", 4);
+
+    // Only this many row errors are returned; the rest are still counted.
+    private static final int MAX_REPORTED_ERRORS = 1000;
+
+    // Without background threads, each batch is written on a new thread of the upload's request;
+    // load() waits for all of them, and its permits bound how many run at once.
+    private static final Executor defaultExecutor = ThreadFactories.backgroundThreadsAvailable()
+        ? Executors.newFixedThreadPool(DEFAULT_PARALLELISM,
+            ThreadFactories.background("prompt-ingest-%d"))
+        : command -> ThreadFactories.request().newThread(command).start();
+
+    private DatastoreService datastoreService = InstrumentedDatastoreService.create();
+    private final Executor executor;
+    private final int parallelism;
+
+    public PromptBulkLoader() {
+        this(defaultExecutor, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param executor    Executor batched puts run on.
+     * @param parallelism Maximum number of batched puts in flight per upload.
+     */
+    @VisibleForTesting
+    PromptBulkLoader(Executor executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Validates and saves every row of an upload.
+     *
+     * @param reader    The upload.
+     * @param format    Format of the upload.
+     * @param batchSize Number of prompts written per batched put.
+     * @return how many rows were saved, and why the others were not.
+     */
+    public BulkUploadResponse load(Reader reader, Format format, int batchSize)
+        throws IOException {
+
+        RowReader rows = format == Format.CSV
+            ? new CsvRowReader(reader)
+            : new NdjsonRowReader(reader);
+        Upload upload = new Upload();
+
+        List<Entity> batch = new ArrayList<>();
+        List<Integer> batchRows = new ArrayList<>();
+
+        Row row;
+        while ((row = rows.next()) != null) {
+            try {
+                validate(row);
+                batch.add(DatastorePromptService.createPromptEntity(row.type, row.body));
+            } catch (IllegalArgumentException e) {
+                upload.fail(row.number, e.getMessage());
+                continue;
+            }
+            batchRows.add(row.number);
+
+            if (batch.size() == batchSize) {
+                submit(upload, batch, batchRows);
+                batch = new ArrayList<>();
+                batchRows = new ArrayList<>();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            submit(upload, batch, batchRows);
+        }
+
+        // Holding every permit means every batch has been written.
+        upload.inFlight.acquireUninterruptibly(parallelism);
+
+        return upload.toResponse();
+    }
+
+    private void validate(Row row) {
+        if (row.error != null) {
+            throw new IllegalArgumentException(row.error);
+        }
+
+        new PromptBuilder().setType(row.type);
+
+        if (row.body.trim().isEmpty()) {
+            throw new IllegalArgumentException("Prompt body is empty");
+        }
+    }
+
+    private void submit(Upload upload, List<Entity> batch, List<Integer> batchRows) {
+        upload.inFlight.acquireUninterruptibly();
+
+        try {
+            executor.execute(() -> {
+                try {
+                    datastoreService.put(batch);
+                    upload.saved.addAndGet(batch.size());
+                } catch (DatastoreFailureException e) {
+                    upload.failAll(batchRows, "Error: Unknown Datastore Failure Exception");
+                } catch (RuntimeException e) {
+                    // e.g. a timeout or an entity Datastore refuses; nothing in the batch is saved
+                    upload.failAll(batchRows, "Error: Failed to save prompt");
+                } finally {
+                    upload.inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            upload.inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Allow the loader's Datastore service to be set for mocking purposes.
+     *
+     * @param inputService The service to serve as the DatastoreService.
+     */
+    @VisibleForTesting
+    public void setDatastoreService(DatastoreService inputService) {
+        datastoreService = inputService;
+    }
+
+    // Progress of a single upload, shared with the threads writing its batches.
+    private class Upload {
+
+        private final Semaphore inFlight = new Semaphore(parallelism);
+        private final AtomicInteger saved = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final List<RowError> errors = Collections.synchronizedList(new ArrayList<>());
+
+        private void fail(int rowNumber, String error) {
+            failed.incrementAndGet();
+            errors.add(new RowError(rowNumber, error));
+        }
+
+        private void failAll(List<Integer> rowNumbers, String error) {
+            for (int rowNumber : rowNumbers) {
+                fail(rowNumber, error);
+            }
+        }
+
+        private BulkUploadResponse toResponse() {
+            List<RowError> reportedErrors = new ArrayList<>(errors);
+            reportedErrors.sort(Comparator.comparingInt(RowError::getRow));
+            if (reportedErrors.size() > MAX_REPORTED_ERRORS) {
+                reportedErrors = new ArrayList<>(reportedErrors.subList(0, MAX_REPORTED_ERRORS));
+            }
+
+            return new BulkUploadResponse(failed.get() == 0, saved.get(), failed.get(),
+                reportedErrors);
+        }
+    }
+
+    private static class Row {
+
+        private final int number;
+        private final String type;
+        private final String body;
+        private final String error;
+
+        private Row(int number, String type, String body, String error) {
+            this.number = number;
+            this.type = type;
+            this.body = body;
+            this.error = error;
+        }
+
+        private static Row malformed(int number, String error) {
+            return new Row(number, null, null, error);
+        }
+    }
+
+    private interface RowReader {
+
+        /**
+         * @return the next non-blank row, or null at the end of the upload.
+         */
+        Row next() throws IOException;
+    }
+
+    private static class NdjsonRowReader implements RowReader {
+
+        private final BufferedReader reader;
+        private int lineNumber;
+
+        private NdjsonRowReader(Reader reader) {
+            this.reader = new BufferedReader(reader);
+        }
+
+        @Override
+        public Row next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                lineNumber++;
+            } while (line != null && line.trim().isEmpty());
+
+            if (line == null) {
+                return null;
+            }
+
+            try {
+                JsonObject object = JsonParser.parseString(line).getAsJsonObject();
+                JsonElement type = object.get("type");
+                JsonElement body = object.get("body");
+
+                if (type == null || body == null || !type.isJsonPrimitive()
+                    || !body.isJsonPrimitive()) {
+                    return Row.malformed(lineNumber, "Row must have string \"type\" and \"body\"");
+                }
+
+                return new Row(lineNumber, type.getAsString(), body.getAsString(), null);
+            } catch (JsonParseException | IllegalStateException e) {
+                return Row.malformed(lineNumber, "Row is not a JSON object");
+            }
+        }
+    }
+
+    private static class CsvRowReader implements RowReader {
+
+        private final BufferedReader reader;
+        private int recordNumber;
+
+        private CsvRowReader(Reader reader) {
+            this.reader = new BufferedReader(reader);
+        }
+
+        @Override
+        public Row next() throws IOException {
+            List<String> fields;
+            do {
+                fields = readRecord();
+                recordNumber++;
+
+                // Skip blank lines and an optional header.
+                if (fields != null && recordNumber == 1 && fields.size() == 2
+                    && fields.get(0).equalsIgnoreCase("type")
+                    && fields.get(1).equalsIgnoreCase("body")) {
+                    fields = readRecord();
+                    recordNumber++;
+                }
+            } while (fields != null && fields.size() == 1 && fields.get(0).isEmpty());
+
+            if (fields == null) {
+                return null;
+            }
+
+            if (fields.size() != 2) {
+                return Row.malformed(recordNumber, "Expected 2 columns but found " + fields.size());
+            }
+
+            return new Row(recordNumber, fields.get(0).trim(), fields.get(1), null);
+        }
+
+        // Reads one RFC 4180 record; quoted fields may contain commas, quotes and newlines.
+        private List<String> readRecord() throws IOException {
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean inQuotes = false;
+            boolean readAnything = false;
+
+            int c;
+            while ((c = reader.read()) != -1) {
+                readAnything = true;
+                char ch = (char) c;
+
+                if (inQuotes) {
+                    if (ch != '"') {
+                        field.append(ch);
+                        continue;
+                    }
+
+                    // A doubled quote is an escaped quote; a single one ends the quoted part.
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        field.append('"');
+                    } else {
+                        inQuotes = false;
+                        reader.reset();
+                    }
+                } else if (ch == '"') {
+                    inQuotes = true;
+                } else if (ch == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (ch == '\n') {
+                    break;
+                } else if (ch != '\r') {
+                    field.append(ch);
+                }
+            }
+
+            if (!readAnything) {
+                return null;
+            }
+
+            fields.add(field.toString());
+            return fields;
+        }
+    }
+}
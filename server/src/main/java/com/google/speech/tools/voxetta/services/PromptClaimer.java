@@ -0,0 +1,39 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import java.util.List;
+
+/**
+ * Strategy for claiming unread prompts from Datastore.
+ * <p>
+ * A claimed prompt has been leased in Datastore (see {@link PromptLeases}) and must not be returned
+ * by a later claim until its lease is released.
+ */
+public interface PromptClaimer {
+
+    /**
+     * Claims up to {@code limit} unread prompts.
+     *
+     * @param datastoreService The service prompts are claimed from.
+     * @param limit            Maximum number of prompts to claim.
+     * @return the claimed Prompt entities; empty if there are no unread prompts left.
+     */
+    public List<Entity> claim(DatastoreService datastoreService, int limit);
+}
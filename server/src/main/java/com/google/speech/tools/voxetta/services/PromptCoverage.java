@@ -0,0 +1,507 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Iterables;
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.PromptBuilder;
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import com.google.speech.tools.voxetta.utils.ShutdownHooks;
+import com.google.speech.tools.voxetta.utils.ThreadFactories;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a {@link CoverageScheduler} in step with Datastore.
+ * <p>
+ * The scheduler is loaded with every prompt and then every persisted recording count, and
+ * reloaded every {@code reloadMinutes} to pick up prompts saved and recordings made on other
+ * instances. Recordings made on this instance are added to the persisted counts every
+ * {@code syncSeconds}, in cross-group transactions of up to 25 prompts each, and the merged counts
+ * are handed back to the scheduler.
+ * <p>
+ * Loads read one page of entities at a time with a query cursor, so prompts are handed out from
+ * what has been loaded so far. Where background threads are available, loads, syncs and reloads
+ * run on one. Elsewhere each request that asks for a prompt does whatever is due for up to
+ * {@code loadMillisPerRequest}, unless another request is already doing it. A reload only reads
+ * the keys of prompts, fetching the ones not yet known, and only the counts updated since shortly
+ * before the previous load began.
+ * <p>
+ * Counts are kept in one "PromptCoverage" entity per prompt, with the same id as the prompt, one
+ * unindexed property per bucket holding its number of recordings, and an indexed "updated"
+ * property holding when it was last written. They are the only recording counts kept in coverage
+ * mode: uploads skip the {@link PromptRecordingCounter}, so the two cannot drift apart, and
+ * {@link #persistedTotals} adds up a prompt's buckets instead.
+ */
+public class PromptCoverage {
+
+    public static final String KIND = "PromptCoverage";
+
+    private static final Logger logger = Logger.getLogger(PromptCoverage.class.getName());
+
+    private static final int DEFAULT_RECORDINGS_PER_BUCKET =
+        Integer.getInteger("voxetta.coverage.recordingsPerBucket", 1);
+    private static final int DEFAULT_MAX_BUCKETS =
+        Integer.getInteger("voxetta.coverage.maxBuckets", 256);
+    private static final long DEFAULT_SYNC_SECONDS =
+        Long.getLong("voxetta.coverage.syncSeconds", 10);
+    private static final long DEFAULT_RELOAD_MINUTES =
+        Long.getLong("voxetta.coverage.reloadMinutes", 10);
+    private static final int DEFAULT_CANDIDATES_PER_BUCKET =
+        Integer.getInteger("voxetta.coverage.candidatesPerBucket", 1000);
+    private static final long DEFAULT_LOAD_MILLIS_PER_REQUEST =
+        Long.getLong("voxetta.coverage.loadMillisPerRequest", 200);
+
+    // Bucket names always contain "|", so this property cannot be mistaken for one.
+    private static final String UPDATED = "updated";
+
+    // Counts written by other instances whose clocks run behind, or whose transactions committed
+    // late, are still picked up by the next reload.
+    private static final long UPDATED_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    // Datastore allows at most this many entity groups per cross-group transaction.
+    private static final int MAX_GROUPS_PER_TRANSACTION = 25;
+
+    private static final int LOAD_CHUNK_SIZE = 500;
+
+    // Datastore allows at most this many keys per batch get.
+    private static final int MAX_KEYS_PER_GET = 1000;
+
+    private static PromptCoverage defaultCoverage;
+
+    private final CoverageScheduler scheduler;
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private DatastoreService datastoreService;
+    private long loadMillisPerRequest = DEFAULT_LOAD_MILLIS_PER_REQUEST;
+
+    // Whether requests leave loads, syncs and reloads to a background thread.
+    private boolean backgroundThread;
+
+    // Progress of the current load, if any; guarded by syncLock. The first load is due at once.
+    private Phase phase = Phase.DONE;
+    private Cursor cursor;
+    private long loadStartedAt;
+    private long countsUpdatedSince = Long.MIN_VALUE;
+    private boolean loaded;
+    private long nextSyncAt;
+    private long nextReloadAt;
+
+    private enum Phase {
+        PROMPTS, COUNTS, DONE
+    }
+
+    /**
+     * @param datastoreService The service prompts and counts are kept in.
+     * @param scheduler        The scheduler to keep in step.
+     */
+    @VisibleForTesting
+    PromptCoverage(DatastoreService datastoreService, CoverageScheduler scheduler) {
+        this.datastoreService = datastoreService;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return whether prompts are handed out by coverage, i.e. the "voxetta.prompts.claimMode"
+     *     system property is "coverage".
+     */
+    public static boolean isEnabled() {
+        return "coverage".equalsIgnoreCase(System.getProperty("voxetta.prompts.claimMode"));
+    }
+
+    /**
+     * Reads the persisted number of recordings of several prompts, summed over every bucket.
+     * Recordings are only included once the instance that counted them has synced them.
+     *
+     * @param datastoreService The service counts are kept in.
+     * @param promptIds        Database IDs of the prompts.
+     * @return the number of recordings of each of the prompts, including those with none.
+     */
+    public static Map<Long, Long> persistedTotals(DatastoreService datastoreService,
+        Collection<Long> promptIds) {
+        Map<Long, Long> totals = new HashMap<>();
+        List<Key> keys = new ArrayList<>();
+        for (long promptId : promptIds) {
+            totals.put(promptId, 0L);
+            keys.add(KeyFactory.createKey(KIND, promptId));
+        }
+
+        for (int from = 0; from < keys.size(); from += MAX_KEYS_PER_GET) {
+            List<Key> batch = keys.subList(from, Math.min(keys.size(), from + MAX_KEYS_PER_GET));
+            for (Entity entity : datastoreService.get(batch).values()) {
+                long total = 0;
+                for (Map.Entry<String, Object> count : entity.getProperties().entrySet()) {
+                    if (!count.getKey().equals(UPDATED)) {
+                        total += (Long) count.getValue();
+                    }
+                }
+                totals.put(entity.getKey().getId(), total);
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Returns the coverage shared by the whole instance, creating it and scheduling its syncs and
+     * reloads on first use.
+     */
+    public static synchronized PromptCoverage getDefault() {
+        if (defaultCoverage == null) {
+            defaultCoverage = new PromptCoverage(InstrumentedDatastoreService.create(),
+                new CoverageScheduler(DEFAULT_RECORDINGS_PER_BUCKET, PromptLeases.LEASE_MILLIS,
+                    DEFAULT_MAX_BUCKETS, DEFAULT_CANDIDATES_PER_BUCKET));
+            defaultCoverage.start();
+        }
+        return defaultCoverage;
+    }
+
+    private void start() {
+        if (ThreadFactories.backgroundThreadsAvailable()) {
+            backgroundThread = true;
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactories.background("prompt-coverage-%d"));
+            executor.scheduleWithFixedDelay(() -> maintainQuietly(Long.MAX_VALUE), 0,
+                DEFAULT_SYNC_SECONDS, TimeUnit.SECONDS);
+
+            // Give unsynced recordings a chance to be counted when the instance shuts down.
+            ShutdownHooks.add(this::syncQuietly);
+        }
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.gauge("coverage_prompts", scheduler::promptCount);
+        metrics.gauge("coverage_buckets", scheduler::bucketCount);
+    }
+
+    /**
+     * Hands out the prompt most needed from a speaker's bucket, among the prompts loaded so far.
+     *
+     * @param speaker The speaker who will record the prompt.
+     * @return the prompt, or null if the bucket needs no more recordings.
+     */
+    public Prompt next(SpeakerProfile speaker) {
+        if (!backgroundThread && syncLock.tryLock()) {
+            try {
+                maintainQuietly(loadMillisPerRequest);
+            } finally {
+                syncLock.unlock();
+            }
+        }
+        return scheduler.next(speaker, System.currentTimeMillis());
+    }
+
+    /**
+     * Counts a recording of a prompt towards a speaker's bucket. It is persisted with the next
+     * sync.
+     *
+     * @param promptId   Database ID of the prompt.
+     * @param leaseToken The lease token the prompt was handed out with.
+     * @param speaker    The speaker who recorded it.
+     */
+    public void recorded(long promptId, String leaseToken, SpeakerProfile speaker) {
+        scheduler.recorded(promptId, leaseToken, speaker);
+    }
+
+    /**
+     * Lets a prompt that was handed out but will not be recorded be handed out again.
+     *
+     * @param promptId   Database ID of the prompt.
+     * @param leaseToken The lease token the prompt was handed out with.
+     * @return whether the prompt had been handed out under that token.
+     */
+    public boolean release(long promptId, String leaseToken) {
+        return scheduler.release(promptId, leaseToken);
+    }
+
+    /**
+     * Makes a freshly saved prompt available without waiting for the next reload.
+     *
+     * @param prompt The prompt.
+     */
+    public void added(Prompt prompt) {
+        scheduler.addPrompt(prompt);
+    }
+
+    /**
+     * Finishes the current load, or loads every prompt and persisted count again if none is
+     * under way.
+     */
+    public void reload() {
+        syncLock.lock();
+        try {
+            if (phase == Phase.DONE) {
+                startLoad(System.currentTimeMillis());
+            }
+            while (phase != Phase.DONE) {
+                loadPage();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // Does whatever is due, loading page by page until the time budget runs out, but at least one
+    // page. Only called while holding syncLock.
+    private void maintain(long budgetMillis) {
+        long now = System.currentTimeMillis();
+        long deadline = budgetMillis == Long.MAX_VALUE ? Long.MAX_VALUE : now + budgetMillis;
+
+        if (loaded && now >= nextSyncAt) {
+            sync();
+            nextSyncAt = now + TimeUnit.SECONDS.toMillis(DEFAULT_SYNC_SECONDS);
+        }
+        if (phase == Phase.DONE && now >= nextReloadAt) {
+            startLoad(now);
+        }
+        while (phase != Phase.DONE) {
+            loadPage();
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+        }
+    }
+
+    private void startLoad(long now) {
+        phase = Phase.PROMPTS;
+        cursor = null;
+        loadStartedAt = now;
+    }
+
+    // Reads the next page of the current load and moves on to the next phase after its last page.
+    private void loadPage() {
+        Query query;
+        if (phase == Phase.PROMPTS) {
+            query = new Query("Prompt");
+            if (loaded) {
+                query.setKeysOnly();
+            }
+        } else {
+            query = new Query(KIND);
+            if (countsUpdatedSince != Long.MIN_VALUE) {
+                query.setFilter(new FilterPredicate(UPDATED, FilterOperator.GREATER_THAN_OR_EQUAL,
+                    countsUpdatedSince));
+            }
+        }
+
+        FetchOptions fetchOptions = FetchOptions.Builder.withLimit(LOAD_CHUNK_SIZE)
+            .chunkSize(LOAD_CHUNK_SIZE);
+        if (cursor != null) {
+            fetchOptions.startCursor(cursor);
+        }
+        QueryResultList<Entity> page = datastoreService.prepare(query)
+            .asQueryResultList(fetchOptions);
+
+        if (phase == Phase.PROMPTS) {
+            addPrompts(page);
+        } else {
+            for (Entity entity : page) {
+                setPersistedCounts(entity);
+            }
+        }
+
+        if (page.size() < LOAD_CHUNK_SIZE) {
+            cursor = null;
+            if (phase == Phase.PROMPTS) {
+                phase = Phase.COUNTS;
+            } else {
+                phase = Phase.DONE;
+                loaded = true;
+                countsUpdatedSince = loadStartedAt - UPDATED_MARGIN_MILLIS;
+                nextReloadAt = loadStartedAt + TimeUnit.MINUTES.toMillis(DEFAULT_RELOAD_MINUTES);
+            }
+        } else {
+            cursor = page.getCursor();
+        }
+    }
+
+    // Adds a page of prompts, fetching the ones not yet known if only their keys were read.
+    private void addPrompts(List<Entity> page) {
+        List<Key> unknown = new ArrayList<>();
+        List<Entity> entities = new ArrayList<>();
+        for (Entity entity : page) {
+            if (scheduler.hasPrompt(entity.getKey().getId())) {
+                continue;
+            }
+            if (entity.getProperties().isEmpty()) {
+                unknown.add(entity.getKey());
+            } else {
+                entities.add(entity);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            entities.addAll(datastoreService.get(unknown).values());
+        }
+
+        for (Entity entity : entities) {
+            try {
+                scheduler.addPrompt(new PromptBuilder().buildFromEntity(entity));
+            } catch (IllegalArgumentException e) {
+                logger.warning("Skipping malformed prompt " + entity.getKey().getId());
+            }
+        }
+    }
+
+    /**
+     * Adds the recordings counted on this instance since the last sync to the persisted counts.
+     * Prompts whose transaction fails are retried with the next sync.
+     */
+    public void sync() {
+        syncLock.lock();
+        try {
+            Map<Long, Map<String, Long>> deltas = scheduler.drainDeltas();
+
+            List<Long> synced = new ArrayList<>(deltas.keySet());
+            for (List<Long> promptIds : Iterables.partition(synced, MAX_GROUPS_PER_TRANSACTION)) {
+                Map<Long, Map<String, Long>> batch = new HashMap<>();
+                for (long promptId : promptIds) {
+                    batch.put(promptId, deltas.get(promptId));
+                }
+
+                try {
+                    for (Entity entity : addDeltas(batch)) {
+                        setPersistedCounts(entity);
+                    }
+                } catch (DatastoreFailureException | ConcurrentModificationException e) {
+                    logger.log(Level.WARNING, "Failed to sync coverage of " + promptIds.size()
+                        + " prompts", e);
+                    scheduler.restoreDeltas(batch);
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    // Adds deltas to their prompts' counts in one transaction and returns the updated entities.
+    private List<Entity> addDeltas(Map<Long, Map<String, Long>> deltas) {
+        List<Key> keys = new ArrayList<>();
+        for (long promptId : deltas.keySet()) {
+            keys.add(KeyFactory.createKey(KIND, promptId));
+        }
+
+        Transaction transaction =
+            datastoreService.beginTransaction(TransactionOptions.Builder.withXG(true));
+        try {
+            Map<Key, Entity> existing = datastoreService.get(transaction, keys);
+            long now = System.currentTimeMillis();
+
+            List<Entity> updated = new ArrayList<>();
+            for (Key key : keys) {
+                Entity entity = existing.containsKey(key) ? existing.get(key) : new Entity(key);
+                for (Map.Entry<String, Long> delta : deltas.get(key.getId()).entrySet()) {
+                    Long count = (Long) entity.getProperty(delta.getKey());
+                    entity.setUnindexedProperty(delta.getKey(),
+                        (count == null ? 0 : count) + delta.getValue());
+                }
+                entity.setProperty(UPDATED, now);
+                updated.add(entity);
+            }
+
+            datastoreService.put(transaction, updated);
+            transaction.commit();
+            return updated;
+        } finally {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+        }
+    }
+
+    private void setPersistedCounts(Entity entity) {
+        long promptId = entity.getKey().getId();
+        for (Map.Entry<String, Object> count : entity.getProperties().entrySet()) {
+            if (count.getKey().equals(UPDATED)) {
+                continue;
+            }
+            scheduler.setPersistedCount(promptId, count.getKey(), (Long) count.getValue());
+        }
+    }
+
+    private void syncQuietly() {
+        // Never let an exception cancel the scheduled sync.
+        try {
+            sync();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Coverage sync failed", e);
+        }
+    }
+
+    private void maintainQuietly(long budgetMillis) {
+        // Never let an exception cancel the scheduled maintenance or fail a request; a page that
+        // failed to load is read again next time.
+        syncLock.lock();
+        try {
+            maintain(budgetMillis);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Coverage maintenance failed", e);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Sets how long each request that asks for a prompt may spend loading.
+     *
+     * @param millis Time budget in milliseconds.
+     */
+    @VisibleForTesting
+    void setLoadMillisPerRequest(long millis) {
+        loadMillisPerRequest = millis;
+    }
+
+    /**
+     * @return the scheduler kept in step.
+     */
+    @VisibleForTesting
+    CoverageScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Allow the coverage's Datastore service to be set for mocking purposes.
+     *
+     * @param inputService The service to serve as the DatastoreService.
+     */
+    @VisibleForTesting
+    public void setDatastoreService(DatastoreService inputService) {
+        datastoreService = inputService;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.PromptBuilder;
+import com.google.speech.tools.voxetta.utils.ThreadFactories;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands out unread prompts from an in-memory queue.
+ * <p>
+ * Prompts are claimed from Datastore in batches of up to {@code batchSize} by a
+ * {@link PromptClaimer}. Claimed prompts are served from a lock-free queue, and a refill is
+ * scheduled in the background whenever the queue drops below its low-water mark, so most requests
+ * never wait on Datastore.
+ * <p>
+ * Claimed prompts are leased (see {@link PromptLeases}). A prompt that has waited in the queue for
+ * so long that its lease is about to expire is dropped instead of handed out; the lease sweeper
+ * makes it unread again.
+ * <p>
+ * The claiming mode is chosen with the "voxetta.prompts.claimMode" system property. By default
+ * prompts are claimed transactionally by {@link ShardedPromptClaimer}, so instances never hand
+ * out the same prompt; "batch" uses the cheaper {@link BatchPromptClaimer}, which is only safe
+ * while a single instance serves prompts.
+ */
+public class PromptDispenser {
+
+    private static final Logger logger = Logger.getLogger(PromptDispenser.class.getName());
+
+    private static final int DEFAULT_BATCH_SIZE =
+        Integer.getInteger("voxetta.prompts.batchSize", 500);
+    private static final int DEFAULT_LOW_WATER_MARK =
+        Integer.getInteger("voxetta.prompts.lowWaterMark", 100);
+
+    // Once Datastore reports no unread prompts, don't query it again for this long.
+    private static final long EMPTY_BACKOFF_MILLIS = 1000;
+
+    // Don't hand out a prompt with less than this much of its lease left.
+    private static final long MIN_REMAINING_LEASE_MILLIS = PromptLeases.LEASE_MILLIS / 2;
+
+    private final Queue<LeasedPrompt> prompts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+    private final Object claimLock = new Object();
+
+    private final PromptClaimer claimer;
+    private final int batchSize;
+    private final int lowWaterMark;
+    private final Executor refillExecutor;
+
+    private DatastoreService datastoreService;
+    private volatile long emptyUntil;
+
+    /**
+     * Creates a dispenser that refills on its own background thread, or on the thread that finds
+     * the queue low where background threads are not available.
+     *
+     * @param datastoreService The service prompts are claimed from.
+     */
+    public PromptDispenser(DatastoreService datastoreService) {
+        this(datastoreService, defaultClaimer(), DEFAULT_BATCH_SIZE, DEFAULT_LOW_WATER_MARK,
+            ThreadFactories.backgroundOrDirect("prompt-refill-%d"));
+    }
+
+    /**
+     * @param datastoreService The service prompts are claimed from.
+     * @param claimer          Strategy used to claim prompts.
+     * @param batchSize        Maximum number of prompts claimed per Datastore round-trip.
+     * @param lowWaterMark     Queue size below which a background refill is scheduled.
+     * @param refillExecutor   Executor background refills run on.
+     */
+    @VisibleForTesting
+    PromptDispenser(DatastoreService datastoreService, PromptClaimer claimer, int batchSize,
+        int lowWaterMark, Executor refillExecutor) {
+        this.datastoreService = datastoreService;
+        this.claimer = claimer;
+        this.batchSize = batchSize;
+        this.lowWaterMark = lowWaterMark;
+        this.refillExecutor = refillExecutor;
+    }
+
+    private static PromptClaimer defaultClaimer() {
+        if ("batch".equalsIgnoreCase(System.getProperty("voxetta.prompts.claimMode"))) {
+            return new BatchPromptClaimer();
+        }
+        return ShardedPromptClaimer.getDefault();
+    }
+
+    /**
+     * Returns the next claimed prompt. Only blocks on Datastore when the queue is empty.
+     *
+     * @return a prompt that has not been handed out before, or null if none are left.
+     */
+    public Prompt next() {
+        Prompt prompt = poll();
+
+        if (prompt == null) {
+            refill();
+            prompt = poll();
+        }
+
+        if (size.get() < lowWaterMark) {
+            scheduleRefill();
+        }
+
+        return prompt;
+    }
+
+    /**
+     * @return the number of claimed prompts waiting to be handed out.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Stops the dispenser's background refill thread, if it has one. The dispenser must not be
+     * used afterwards; prompts it claimed but did not hand out run out their leases.
+     */
+    public void shutdown() {
+        if (refillExecutor instanceof ExecutorService) {
+            ((ExecutorService) refillExecutor).shutdown();
+        }
+    }
+
+    /**
+     * Allow the dispenser's Datastore service to be set for mocking purposes.
+     *
+     * @param inputService The service to serve as the DatastoreService.
+     */
+    @VisibleForTesting
+    public void setDatastoreService(DatastoreService inputService) {
+        datastoreService = inputService;
+    }
+
+    private Prompt poll() {
+        long handoutDeadline = System.currentTimeMillis() + MIN_REMAINING_LEASE_MILLIS;
+
+        LeasedPrompt leasedPrompt;
+        while ((leasedPrompt = prompts.poll()) != null) {
+            size.decrementAndGet();
+            if (leasedPrompt.leaseExpiry >= handoutDeadline) {
+                return leasedPrompt.prompt;
+            }
+        }
+        return null;
+    }
+
+    private void scheduleRefill() {
+        if (System.currentTimeMillis() < emptyUntil || !refillScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        refillExecutor.execute(() -> {
+            try {
+                refill();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Background prompt refill failed", e);
+            } finally {
+                refillScheduled.set(false);
+            }
+        });
+    }
+
+    private void refill() {
+        synchronized (claimLock) {
+            // Another thread may have refilled while this one was waiting for the lock.
+            if (size.get() >= Math.max(lowWaterMark, 1)
+                || System.currentTimeMillis() < emptyUntil) {
+                return;
+            }
+
+            for (LeasedPrompt prompt : claimBatch()) {
+                prompts.add(prompt);
+                size.incrementAndGet();
+            }
+        }
+    }
+
+    // Must be called while holding claimLock.
+    private List<LeasedPrompt> claimBatch() {
+        List<Entity> claimedEntities = claimer.claim(datastoreService, batchSize);
+
+        if (claimedEntities.isEmpty()) {
+            emptyUntil = System.currentTimeMillis() + EMPTY_BACKOFF_MILLIS;
+        }
+
+        List<LeasedPrompt> claimedPrompts = new ArrayList<>();
+        for (Entity entity : claimedEntities) {
+            try {
+                claimedPrompts.add(new LeasedPrompt(new PromptBuilder().buildFromEntity(entity),
+                    PromptLeases.getLeaseExpiry(entity)));
+            } catch (IllegalArgumentException e) {
+                // Malformed prompts stay claimed so they are not retried on every refill.
+                logger.warning("Skipping malformed prompt " + entity.getKey());
+            }
+        }
+
+        return claimedPrompts;
+    }
+
+    private static class LeasedPrompt {
+
+        private final Prompt prompt;
+        private final long leaseExpiry;
+
+        private LeasedPrompt(Prompt prompt, long leaseExpiry) {
+            this.prompt = prompt;
+            this.leaseExpiry = leaseExpiry;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.speech.tools.voxetta.data.JsonSerialization;
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.PromptBuilder;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of prompts' client-facing JSON, encoded as UTF-8 and keyed by prompt id.
+ * <p>
+ * A prompt's type and body never change once it is saved, so its JSON can be encoded once and
+ * then copied straight to every response that serves it. Entries are added when a prompt is saved
+ * on this instance or first served, and the least recently used ones are evicted once the cache
+ * holds {@code maxBytes} of JSON.
+ * <p>
+ * Hits, misses, evictions, entry count and memory footprint are reported as "prompt_json_cache_*"
+ * gauges in the {@link MetricsRegistry}.
+ */
+public class PromptJsonCache {
+
+    private static final long DEFAULT_MAX_BYTES =
+        Long.getLong("voxetta.prompts.jsonCacheBytes", 16L << 20);
+
+    // Rough per-entry cost beyond the JSON itself: the key, the array header and the cache entry.
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static final PromptJsonCache DEFAULT = new PromptJsonCache(DEFAULT_MAX_BYTES);
+
+    static {
+        DEFAULT.registerMetrics(MetricsRegistry.getDefault());
+    }
+
+    private final AtomicLong weightBytes = new AtomicLong();
+    private final Cache<Long, byte[]> cache;
+
+    /**
+     * @param maxBytes Approximate memory the cache may use, including per-entry overhead.
+     */
+    @VisibleForTesting
+    PromptJsonCache(long maxBytes) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher((Long id, byte[] json) -> weigh(json))
+            .removalListener(removal -> weightBytes.addAndGet(-weigh(removal.getValue())))
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * @return the cache shared by the whole instance.
+     */
+    public static PromptJsonCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a prompt's JSON, encoding and caching it if needed.
+     *
+     * @param prompt The prompt to serve.
+     * @return the prompt's UTF-8 encoded JSON. Callers must not modify it.
+     */
+    public byte[] get(Prompt prompt) {
+        try {
+            return cache.get(prompt.getId(), () -> {
+                byte[] json = encode(prompt);
+                weightBytes.addAndGet(weigh(json));
+                return json;
+            });
+        } catch (ExecutionException e) {
+            // Encoding a Prompt does not throw checked exceptions
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Adds a prompt's lease token to its cached JSON, for the response that hands it out.
+     *
+     * @param json   The prompt's JSON, as returned by {@link #get(Prompt)}.
+     * @param prompt The prompt, as handed out.
+     * @return the JSON with a "leaseToken" field, or the JSON itself if the prompt is not leased.
+     */
+    public static byte[] withLeaseToken(byte[] json, Prompt prompt) {
+        if (prompt.getLeaseToken() == null) {
+            return json;
+        }
+
+        // Lease tokens are hex, so they need no escaping
+        byte[] field = (",\"leaseToken\":\"" + prompt.getLeaseToken() + "\"}")
+            .getBytes(StandardCharsets.UTF_8);
+        byte[] withToken = Arrays.copyOf(json, json.length - 1 + field.length);
+        System.arraycopy(field, 0, withToken, json.length - 1, field.length);
+        return withToken;
+    }
+
+    /**
+     * Caches the JSON of a freshly saved prompt. Malformed prompts are not cached.
+     *
+     * @param entity A Prompt entity with a complete key.
+     */
+    public void put(Entity entity) {
+        Prompt prompt;
+        try {
+            prompt = new PromptBuilder().buildFromEntity(entity);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        byte[] json = encode(prompt);
+        weightBytes.addAndGet(weigh(json));
+        cache.put(prompt.getId(), json);
+    }
+
+    /**
+     * @return hit, miss and eviction counts since the instance started.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return the approximate memory used by cached entries, in bytes.
+     */
+    public long weightBytes() {
+        return weightBytes.get();
+    }
+
+    @VisibleForTesting
+    void registerMetrics(MetricsRegistry metrics) {
+        metrics.gauge("prompt_json_cache_hits", () -> cache.stats().hitCount());
+        metrics.gauge("prompt_json_cache_misses", () -> cache.stats().missCount());
+        metrics.gauge("prompt_json_cache_hit_rate_percent",
+            () -> Math.round(cache.stats().hitRate() * 100));
+        metrics.gauge("prompt_json_cache_evictions", () -> cache.stats().evictionCount());
+        metrics.gauge("prompt_json_cache_entries", cache::size);
+        metrics.gauge("prompt_json_cache_bytes", weightBytes::get);
+    }
+
+    private static byte[] encode(Prompt prompt) {
+        return JsonSerialization.toJson(prompt).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int weigh(byte[] json) {
+        return json.length + ENTRY_OVERHEAD_BYTES;
+    }
+}
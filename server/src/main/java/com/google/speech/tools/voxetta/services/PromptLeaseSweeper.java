@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+/**
+ * Makes prompts whose lease has expired unread again.
+ * <p>
+ * Each run reclaims at most {@code batchSize} prompts, found through the built-in index on
+ * "leaseExpiry", so the cost of a sweep is bounded no matter how many prompts exist. Sweeps are
+ * run by cron through {@code PromptLeaseSweepServlet}.
+ */
+public class PromptLeaseSweeper {
+
+    private static final int DEFAULT_BATCH_SIZE =
+        Integer.getInteger("voxetta.prompts.sweepBatchSize", 500);
+
+    // Cross-group transactions may touch at most 25 entity groups; every prompt is its own group.
+    private static final int MAX_PROMPTS_PER_TRANSACTION = 25;
+
+    private DatastoreService datastoreService = InstrumentedDatastoreService.create();
+    private final int batchSize;
+
+    public PromptLeaseSweeper() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param batchSize Maximum number of prompts reclaimed per run.
+     */
+    public PromptLeaseSweeper(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Reclaims up to {@code batchSize} prompts whose lease has expired.
+     *
+     * @return the number of prompts made unread again.
+     */
+    public int sweep() {
+        long now = System.currentTimeMillis();
+
+        List<Key> expiredKeys = new ArrayList<>();
+        Query expiredQuery = new Query("Prompt")
+            .setFilter(new FilterPredicate("leaseExpiry", FilterOperator.LESS_THAN, now))
+            .setKeysOnly();
+        for (Entity entity : datastoreService.prepare(expiredQuery)
+            .asIterable(FetchOptions.Builder.withLimit(batchSize))) {
+            expiredKeys.add(entity.getKey());
+        }
+
+        int reclaimed = 0;
+        for (List<Key> keys : Lists.partition(expiredKeys, MAX_PROMPTS_PER_TRANSACTION)) {
+            reclaimed += reclaimInTransaction(keys, now);
+        }
+        return reclaimed;
+    }
+
+    private int reclaimInTransaction(List<Key> keys, long now) {
+        Transaction txn = datastoreService.beginTransaction(TransactionOptions.Builder.withXG(true));
+        try {
+            List<Entity> expired = new ArrayList<>();
+            for (Entity entity : datastoreService.get(txn, keys).values()) {
+                // The lease may have been confirmed or released since the query ran.
+                if (PromptLeases.isLeased(entity) && PromptLeases.getLeaseExpiry(entity) < now) {
+                    PromptLeases.release(entity);
+                    expired.add(entity);
+                }
+            }
+
+            if (!expired.isEmpty()) {
+                datastoreService.put(txn, expired);
+            }
+            txn.commit();
+            return expired.size();
+        } catch (ConcurrentModificationException e) {
+            // Picked up again by the next sweep.
+            return 0;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+
+    /**
+     * Allow the sweeper's Datastore service to be set for mocking purposes.
+     *
+     * @param inputService The service to serve as the DatastoreService.
+     */
+    @VisibleForTesting
+    public void setDatastoreService(DatastoreService inputService) {
+        datastoreService = inputService;
+    }
+}
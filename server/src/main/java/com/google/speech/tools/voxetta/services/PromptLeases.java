@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.speech.tools.voxetta.utils.LeaseTokens;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Helpers for the lease lifecycle of Prompt entities.
+ * <p>
+ * A prompt is unread while "read" is 0. Claiming it sets "read" to 1 and records a "leaseExpiry"
+ * timestamp. The lease is then either confirmed once an utterance is recorded for the prompt,
+ * which removes "leaseExpiry" and keeps the prompt read for good, or released (on skip or expiry),
+ * which makes the prompt unread again.
+ * <p>
+ * Each lease has a random "leaseToken" that is only given to whoever the prompt was handed out
+ * to, so nobody else can release it.
+ */
+public final class PromptLeases {
+
+    public static final long LEASE_MILLIS =
+        TimeUnit.MINUTES.toMillis(Long.getLong("voxetta.prompts.leaseMinutes", 30));
+
+    private PromptLeases() {
+    }
+
+    /**
+     * @return whether {@code token} is the token of the prompt's current lease.
+     */
+    public static boolean holdsLease(Entity entity, String token) {
+        Object leaseToken = entity.getProperty("leaseToken");
+        return leaseToken instanceof String && LeaseTokens.matches((String) leaseToken, token);
+    }
+
+    /**
+     * @return whether the prompt can be claimed.
+     */
+    public static boolean isUnread(Entity entity) {
+        Object read = entity.getProperty("read");
+        return read instanceof Number && ((Number) read).longValue() == 0;
+    }
+
+    /**
+     * @return whether the prompt is claimed but not yet recorded.
+     */
+    public static boolean isLeased(Entity entity) {
+        return entity.hasProperty("leaseExpiry");
+    }
+
+    /**
+     * @return the time in milliseconds at which the prompt's lease expires.
+     */
+    public static long getLeaseExpiry(Entity entity) {
+        return (Long) entity.getProperty("leaseExpiry");
+    }
+
+    /**
+     * Marks the prompt as claimed until {@code now} plus the lease duration.
+     */
+    public static void lease(Entity entity, long now) {
+        entity.setProperty("read", 1);
+        entity.setProperty("leaseExpiry", now + LEASE_MILLIS);
+        entity.setUnindexedProperty("leaseToken", LeaseTokens.newToken());
+    }
+
+    /**
+     * Marks the prompt as unread so it can be claimed again.
+     */
+    public static void release(Entity entity) {
+        entity.setProperty("read", 0);
+        entity.removeProperty("leaseExpiry");
+        entity.removeProperty("leaseToken");
+    }
+
+    /**
+     * Marks the prompt as recorded so it is never claimed again.
+     */
+    public static void confirm(Entity entity) {
+        entity.setProperty("read", 1);
+        entity.removeProperty("leaseExpiry");
+        entity.removeProperty("leaseToken");
+    }
+
+    /**
+     * Transactionally applies {@code update} to a prompt, but only if {@code condition} holds.
+     *
+     * @return whether the prompt existed, satisfied the condition and was updated.
+     */
+    public static boolean updateIf(DatastoreService datastoreService, Key key,
+        Predicate<Entity> condition, Consumer<Entity> update) {
+
+        Transaction txn = datastoreService.beginTransaction();
+        try {
+            Entity entity = datastoreService.get(txn, key);
+            if (!condition.test(entity)) {
+                return false;
+            }
+
+            update.accept(entity);
+            datastoreService.put(txn, entity);
+            txn.commit();
+            return true;
+        } catch (EntityNotFoundException e) {
+            return false;
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.annotations.VisibleForTesting;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Counts the utterances recorded for each prompt, without queries.
+ * <p>
+ * Each prompt's count is split across up to {@code shardCount} "PromptRecordingCount" entities
+ * named "{promptId}:{shard}". An increment updates one random shard in a single-entity
+ * transaction, so concurrent recordings of the same prompt rarely contend for one entity. A count
+ * is read by getting every shard's key in one batch and adding them up.
+ */
+public class PromptRecordingCounter {
+
+    public static final String KIND = "PromptRecordingCount";
+
+    private static final int DEFAULT_SHARD_COUNT =
+        Integer.getInteger("voxetta.prompts.recordingCountShards", 8);
+
+    // A contended increment is retried this many times, on a new random shard each time.
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Datastore allows at most this many keys per batch get.
+    private static final int MAX_KEYS_PER_GET = 1000;
+
+    private DatastoreService datastoreService;
+    private final int shardCount;
+
+    /**
+     * @param datastoreService The service counts are kept in.
+     */
+    public PromptRecordingCounter(DatastoreService datastoreService) {
+        this(datastoreService, DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * @param datastoreService The service counts are kept in.
+     * @param shardCount       Number of entities each prompt's count is split across.
+     */
+    @VisibleForTesting
+    PromptRecordingCounter(DatastoreService datastoreService, int shardCount) {
+        this.datastoreService = datastoreService;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Adds one recording to a prompt's count.
+     *
+     * @param promptId Database ID of the prompt.
+     * @throws ConcurrentModificationException if every attempt lost to a concurrent increment.
+     */
+    public void increment(long promptId) {
+        for (int attempt = 1; ; attempt++) {
+            Key key = shardKey(promptId, ThreadLocalRandom.current().nextInt(shardCount));
+            Transaction transaction = datastoreService.beginTransaction();
+            try {
+                Entity shard;
+                try {
+                    shard = datastoreService.get(transaction, key);
+                } catch (EntityNotFoundException e) {
+                    shard = new Entity(key);
+                    shard.setUnindexedProperty("count", 0L);
+                }
+                shard.setUnindexedProperty("count", (Long) shard.getProperty("count") + 1);
+
+                datastoreService.put(transaction, shard);
+                transaction.commit();
+                return;
+            } catch (ConcurrentModificationException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param promptId Database ID of the prompt.
+     * @return the number of utterances recorded for the prompt.
+     */
+    public long count(long promptId) {
+        return counts(Collections.singletonList(promptId)).get(promptId);
+    }
+
+    /**
+     * Reads the counts of several prompts with as few batch gets as possible.
+     *
+     * @param promptIds Database IDs of the prompts.
+     * @return the number of utterances recorded for each of the prompts, including those with
+     *     none.
+     */
+    public Map<Long, Long> counts(Collection<Long> promptIds) {
+        Map<Long, Long> counts = new HashMap<>();
+        List<Key> keys = new ArrayList<>();
+        for (long promptId : promptIds) {
+            counts.put(promptId, 0L);
+            for (int shard = 0; shard < shardCount; shard++) {
+                keys.add(shardKey(promptId, shard));
+            }
+        }
+
+        for (int from = 0; from < keys.size(); from += MAX_KEYS_PER_GET) {
+            List<Key> batch = keys.subList(from, Math.min(keys.size(), from + MAX_KEYS_PER_GET));
+            for (Entity shard : datastoreService.get(batch).values()) {
+                long promptId = promptId(shard.getKey());
+                counts.put(promptId, counts.get(promptId) + (Long) shard.getProperty("count"));
+            }
+        }
+        return counts;
+    }
+
+    private static Key shardKey(long promptId, int shard) {
+        return KeyFactory.createKey(KIND, promptId + ":" + shard);
+    }
+
+    private static long promptId(Key shardKey) {
+        String name = shardKey.getName();
+        return Long.parseLong(name.substring(0, name.indexOf(':')));
+    }
+
+    /**
+     * Allow the counter's Datastore service to be set for mocking purposes.
+     *
+     * @param inputService The service to serve as the DatastoreService.
+     */
+    @VisibleForTesting
+    public void setDatastoreService(DatastoreService inputService) {
+        datastoreService = inputService;
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.google.speech.tools.voxetta.services;
 
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
 import com.google.speech.tools.voxetta.data.StatusResponse;
 
 /**
@@ -39,4 +40,51 @@ public interface PromptService {
      * @return one prompt from the Prompt database.
      */
     public String getOnePrompt();
+
+    /**
+     * Retrieves one prompt from the database, as UTF-8 encoded JSON ready to be copied to a
+     * response.
+     *
+     * @return one prompt from the Prompt database, or an empty JSON object if there are none.
+     *     Callers must not modify the returned array.
+     */
+    public byte[] getOnePromptJson();
+
+    /**
+     * Retrieves one prompt for a speaker, as UTF-8 encoded JSON ready to be copied to a response.
+     * Services that do not balance recordings across speakers ignore the speaker.
+     *
+     * @param speaker The speaker who will record the prompt.
+     * @return one prompt from the Prompt database, or an empty JSON object if there are none.
+     *     Callers must not modify the returned array.
+     */
+    public byte[] getOnePromptJson(SpeakerProfile speaker);
+
+    /**
+     * Returns a prompt that was handed out but will not be recorded (e.g. it was skipped), so it
+     * can be handed out again. Only whoever the prompt was handed out to knows its lease token.
+     *
+     * @param promptId   Database ID of the prompt.
+     * @param leaseToken The "leaseToken" the prompt was handed out with.
+     * @return a StatusResponse denoting success or failure.
+     */
+    public StatusResponse releasePrompt(long promptId, String leaseToken);
+
+    /**
+     * Marks a prompt that was handed out as recorded, so it is never handed out again. Like
+     * releasing, only whoever holds the prompt's lease can do so.
+     *
+     * @param promptId   Database ID of the prompt.
+     * @param leaseToken The "leaseToken" the prompt was handed out with.
+     */
+    public void confirmPrompt(long promptId, String leaseToken);
+
+    /**
+     * Marks a prompt that was handed out as recorded by a speaker.
+     *
+     * @param promptId   Database ID of the prompt.
+     * @param leaseToken The "leaseToken" the prompt was handed out with.
+     * @param speaker    The speaker who recorded it.
+     */
+    public void confirmPrompt(long promptId, String leaseToken, SpeakerProfile speaker);
 }
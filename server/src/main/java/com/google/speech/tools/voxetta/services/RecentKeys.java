@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+
+/** 
+ * Remembers the idempotency keys of recently saved Utterances, so that retried uploads can be
+ * recognized without a round-trip to Datastore. Bounded in size; the least recently saved keys
+ * are forgotten first.
+ */
+class RecentKeys {
+
+  private static final RecentKeys defaultKeys = new RecentKeys(
+      Integer.getInteger("voxetta.utterances.recentKeys", 10000),
+      TimeUnit.MINUTES.toMillis(Long.getLong("voxetta.utterances.recentKeyMinutes", 10L)));
+
+  private final Cache<String, Boolean> keys;
+
+  /**
+   * @param maximumSize Number of keys remembered at most.
+   * @param expiryMillis How long a key is remembered for.
+   */
+  RecentKeys(long maximumSize, long expiryMillis) {
+    keys = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(expiryMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * @return the keys shared by every service in this instance.
+   */
+  static RecentKeys getDefault() {
+    return defaultKeys;
+  }
+
+  /**
+   * Remembers a key.
+   *
+   * @return true if the key was not already remembered.
+   */
+  boolean add(String key) {
+    return keys.asMap().putIfAbsent(key, Boolean.TRUE) == null;
+  }
+
+  /**
+   * Forgets a key, e.g. because saving its Utterance failed.
+   */
+  void remove(String key) {
+    keys.invalidate(key);
+  }
+}
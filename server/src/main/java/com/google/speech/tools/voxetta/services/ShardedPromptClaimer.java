@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Claims prompts transactionally, spreading claims across logical shards.
+ * <p>
+ * Every prompt is assigned a random "shard" property when it is saved. A claim starts at a random
+ * shard, looks up unread keys in that shard, and marks them read in a small cross-group
+ * transaction that re-checks each prompt first. Concurrent claimers usually start in different
+ * shards, so they rarely contend, and when they do the losing transaction is simply retried in
+ * the next shard. A prompt can never be claimed twice.
+ */
+public class ShardedPromptClaimer implements PromptClaimer {
+
+    public static final int DEFAULT_SHARD_COUNT =
+        Integer.getInteger("voxetta.prompts.shardCount", 16);
+
+    // Cross-group transactions may touch at most 25 entity groups; every prompt is its own group.
+    private static final int MAX_PROMPTS_PER_TRANSACTION = 25;
+
+    private static final ShardedPromptClaimer DEFAULT = new ShardedPromptClaimer();
+
+    private final int shardCount;
+
+    public ShardedPromptClaimer() {
+        this(DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * @param shardCount Number of shards prompts are spread across.
+     */
+    public ShardedPromptClaimer(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * @return the claimer with the configured number of shards, which new prompts are saved for.
+     */
+    public static ShardedPromptClaimer getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return a random one of this claimer's shards, for a newly saved prompt.
+     */
+    public int randomShard() {
+        return ThreadLocalRandom.current().nextInt(shardCount);
+    }
+
+    @Override
+    public List<Entity> claim(DatastoreService datastoreService, int limit) {
+        List<Entity> claimedEntities = new ArrayList<>();
+        int firstShard = ThreadLocalRandom.current().nextInt(shardCount);
+
+        for (int i = 0; i < shardCount && claimedEntities.size() < limit; i++) {
+            Filter shardFilter =
+                new FilterPredicate("shard", FilterOperator.EQUAL, (firstShard + i) % shardCount);
+            claimFrom(datastoreService, shardFilter, limit, claimedEntities);
+        }
+
+        // Prompts saved before sharding was introduced have no shard, so they are only found
+        // once every shard has run dry.
+        if (claimedEntities.size() < limit) {
+            claimFrom(datastoreService, null, limit, claimedEntities);
+        }
+
+        return claimedEntities;
+    }
+
+    // Claims from one shard (or from all prompts if shardFilter is null) until it runs dry.
+    private void claimFrom(DatastoreService datastoreService, Filter shardFilter, int limit,
+        List<Entity> claimedEntities) {
+
+        Filter unreadFilter = new FilterPredicate("read", FilterOperator.EQUAL, 0);
+        Query query = new Query("Prompt")
+            .setFilter(shardFilter == null
+                ? unreadFilter
+                : CompositeFilterOperator.and(unreadFilter, shardFilter))
+            .setKeysOnly();
+
+        while (claimedEntities.size() < limit) {
+            int wanted = Math.min(limit - claimedEntities.size(), MAX_PROMPTS_PER_TRANSACTION);
+
+            List<Key> candidateKeys = new ArrayList<>();
+            for (Entity entity : datastoreService.prepare(query)
+                .asIterable(FetchOptions.Builder.withLimit(wanted))) {
+                candidateKeys.add(entity.getKey());
+            }
+
+            if (candidateKeys.isEmpty()) {
+                return;
+            }
+
+            List<Entity> claimed = claimInTransaction(datastoreService, candidateKeys);
+
+            // Another instance got to this shard first; let the caller move to the next one.
+            if (claimed.isEmpty()) {
+                return;
+            }
+
+            claimedEntities.addAll(claimed);
+        }
+    }
+
+    private List<Entity> claimInTransaction(DatastoreService datastoreService,
+        List<Key> candidateKeys) {
+
+        Transaction txn = datastoreService.beginTransaction(TransactionOptions.Builder.withXG(true));
+        try {
+            long now = System.currentTimeMillis();
+            List<Entity> claimed = new ArrayList<>();
+            for (Entity entity : datastoreService.get(txn, candidateKeys).values()) {
+                // The query may be stale; only claim what is still unread inside the transaction.
+                if (PromptLeases.isUnread(entity)) {
+                    PromptLeases.lease(entity, now);
+                    claimed.add(entity);
+                }
+            }
+
+            if (!claimed.isEmpty()) {
+                datastoreService.put(txn, claimed);
+            }
+            txn.commit();
+            return claimed;
+        } catch (ConcurrentModificationException e) {
+            return new ArrayList<>();
+        } finally {
+            if (txn.isActive()) {
+                txn.rollback();
+            }
+        }
+    }
+}
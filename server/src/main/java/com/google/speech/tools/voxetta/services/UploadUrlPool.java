@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.speech.tools.voxetta.metrics.Counter;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import com.google.speech.tools.voxetta.metrics.Timer;
+import com.google.speech.tools.voxetta.utils.ThreadFactories;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** 
+ * Pool of pre-generated Blobstore upload URLs.
+ *
+ * <p>Each upload URL can be used once, so the pool hands every URL out at most once. URLs are
+ * created in the background whenever the pool drops below its low-water mark, and are discarded
+ * once they are {@code maxAgeMillis} old, safely before Blobstore stops accepting them. A request
+ * that finds the pool empty creates its URL synchronously, as if there were no pool. Where
+ * background threads are not available, the default pool stays empty.
+ *
+ * <p>Hits, misses, discarded URLs and refill latency are reported as "upload_url_pool_*" in the
+ * {@link MetricsRegistry}.
+ */
+public class UploadUrlPool {
+
+  private static final Logger logger = Logger.getLogger(UploadUrlPool.class.getName());
+
+  private static final MetricsRegistry metrics = MetricsRegistry.getDefault();
+  private static final Counter hits = metrics.counter("upload_url_pool_hits");
+  private static final Counter misses = metrics.counter("upload_url_pool_misses");
+  private static final Counter expired = metrics.counter("upload_url_pool_expired");
+  private static final Counter pooled = metrics.counter("upload_url_pool_pooled");
+  private static final Timer refillTimer = metrics.timer("upload_url_pool_refill");
+  private static final Timer createTimer = metrics.timer("upload_url_pool_create");
+
+  private static final int DEFAULT_SIZE = Integer.getInteger("voxetta.uploadUrls.poolSize", 20);
+
+  // Blobstore upload URLs are valid for 10 minutes.
+  private static final long DEFAULT_MAX_AGE_MILLIS =
+      TimeUnit.SECONDS.toMillis(Long.getLong("voxetta.uploadUrls.maxAgeSeconds", 300L));
+
+  private static UploadUrlPool defaultPool;
+
+  private final Queue<PooledUrl> urls = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicBoolean refillScheduled = new AtomicBoolean();
+
+  private final String successPath;
+  private final int targetSize;
+  private final long maxAgeMillis;
+  private final Executor refillExecutor;
+  private final LongSupplier clock;
+
+  private final BlobstoreService blobstoreService;
+
+  /**
+   * Creates a pool that refills on its own background thread. Without background threads, URLs
+   * would be created on the request that found the pool low, so nothing is pooled at all.
+   *
+   * @param blobstoreService The service upload URLs are created with.
+   * @param successPath The path Blobstore forwards completed uploads to.
+   */
+  public UploadUrlPool(BlobstoreService blobstoreService, String successPath) {
+    this(blobstoreService, successPath,
+        ThreadFactories.backgroundThreadsAvailable() ? DEFAULT_SIZE : 0, DEFAULT_MAX_AGE_MILLIS,
+        ThreadFactories.backgroundOrDirect("upload-url-refill-%d"), System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  UploadUrlPool(BlobstoreService blobstoreService, String successPath, int targetSize,
+      long maxAgeMillis, Executor refillExecutor, LongSupplier clock) {
+    this.blobstoreService = blobstoreService;
+    this.successPath = successPath;
+    this.targetSize = targetSize;
+    this.maxAgeMillis = maxAgeMillis;
+    this.refillExecutor = refillExecutor;
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the pool of upload URLs for utterance uploads. It is created once and shared, so an
+   * instance keeps one pool and one refill thread however many services use it.
+   */
+  public static synchronized UploadUrlPool getDefault() {
+    if (defaultPool == null) {
+      defaultPool = new UploadUrlPool(BlobstoreServiceFactory.getBlobstoreService(),
+          "/upload-utterance");
+    }
+    return defaultPool;
+  }
+
+  /**
+   * Returns an upload URL that has not been handed out before.
+   *
+   * @return a pooled URL, or a freshly created one if the pool is empty.
+   */
+  public String take() {
+    String url = poll();
+
+    if (url != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+      url = createUrl();
+    }
+
+    if (size.get() <= targetSize / 2) {
+      scheduleRefill();
+    }
+
+    return url;
+  }
+
+  /**
+   * Return the number of URLs waiting to be handed out.
+   */
+  public int size() {
+    return size.get();
+  }
+
+  private String poll() {
+    long now = clock.getAsLong();
+
+    PooledUrl pooledUrl;
+    while ((pooledUrl = urls.poll()) != null) {
+      size.decrementAndGet();
+      pooled.add(-1);
+      if (now - pooledUrl.createdAt < maxAgeMillis) {
+        return pooledUrl.url;
+      }
+      expired.increment();
+    }
+    return null;
+  }
+
+  private void scheduleRefill() {
+    if (targetSize <= 0 || !refillScheduled.compareAndSet(false, true)) {
+      return;
+    }
+
+    refillExecutor.execute(() -> {
+      try {
+        refill();
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Background upload URL refill failed", e);
+      } finally {
+        refillScheduled.set(false);
+      }
+    });
+  }
+
+  private void refill() {
+    long start = System.nanoTime();
+    while (size.get() < targetSize) {
+      long createdAt = clock.getAsLong();
+      urls.add(new PooledUrl(createUrl(), createdAt));
+      size.incrementAndGet();
+      pooled.increment();
+    }
+    refillTimer.recordSince(start);
+  }
+
+  private String createUrl() {
+    long start = System.nanoTime();
+    try {
+      return blobstoreService.createUploadUrl(successPath);
+    } finally {
+      createTimer.recordSince(start);
+    }
+  }
+
+  private static class PooledUrl {
+
+    private final String url;
+    private final long createdAt;
+
+    private PooledUrl(String url, long createdAt) {
+      this.url = url;
+      this.createdAt = createdAt;
+    }
+  }
+}
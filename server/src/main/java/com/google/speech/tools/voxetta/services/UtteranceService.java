@@ -31,8 +31,9 @@ public interface UtteranceService {
    * Saves an Utterance to an external database.  
    *
    * @param utterance The Utterance to be saved to an external database. 
+   * @return whether the Utterance was stored, rather than dropped as a retry of one already saved.
    */
-  public void saveUtterance(Utterance utterance);
+  public boolean saveUtterance(Utterance utterance);
 
   /** 
    * Return a reference to the just-uploaded audio file. 
@@ -42,6 +43,16 @@ public interface UtteranceService {
    */
   public String getAudioBlob(HttpServletRequest request);
 
+  /** 
+   * Return a hash of the content of the just-uploaded audio file, so that retried uploads of the
+   * same recording can be recognized. Must not require a round-trip to the database.
+   *
+   * @param request The backend request that contains an audio file.
+   * @param audio The reference returned by {@link #getAudioBlob} for the request.
+   * @return a hash of the audio file's content, or null if it is not known.
+   */
+  public String getAudioHash(HttpServletRequest request, String audio);
+
   /** 
    * Return an upload URL that redirects to the Utterance Upload Servlet.
    *
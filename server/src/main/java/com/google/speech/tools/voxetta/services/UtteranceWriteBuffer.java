@@ -0,0 +1,348 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+import com.google.speech.tools.voxetta.utils.ShutdownHooks;
+import com.google.speech.tools.voxetta.utils.ThreadFactories;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** 
+ * Write-behind buffer for Utterance entities.
+ *
+ * <p>Entities are queued in a bounded buffer and written by a single background thread in batched
+ * puts, once {@code batchSize} entities are waiting or the oldest one has waited for
+ * {@code flushDelayMillis}. Failed puts are retried with jittered exponential backoff; a batch that
+ * still fails is handed to a durable fallback, by default a Task Queue task that saves it later.
+ * When the buffer is full, callers write their entity synchronously instead, which slows them down
+ * rather than dropping data.
+ *
+ * <p>Keys are allocated before the first attempt, so a retried or replayed batch overwrites the
+ * same entities instead of creating duplicates.
+ */
+public class UtteranceWriteBuffer {
+
+  /** URL of the task that saves batches the buffer could not write. */
+  public static final String SAVE_TASK_URL = "/tasks/save-utterances";
+
+  private static final Logger logger = Logger.getLogger(UtteranceWriteBuffer.class.getName());
+
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long BASE_BACKOFF_MILLIS = 100;
+
+  // How long a caller waits for room in a full buffer before writing synchronously.
+  private static final long OFFER_TIMEOUT_MILLIS = 50;
+
+  // How often an idle flush thread checks whether the buffer was closed.
+  private static final long IDLE_POLL_MILLIS = 100;
+
+  // Push task payloads are limited to 100KB.
+  private static final int ENTITIES_PER_TASK = 100;
+
+  private final BlockingQueue<Entity> buffer;
+  private final int batchSize;
+  private final long flushDelayMillis;
+  private final Consumer<List<Entity>> fallback;
+  private final Thread flushThread;
+
+  private volatile DatastoreService datastoreService;
+  private volatile boolean closed;
+
+  /**
+   * Creates a buffer and starts its flush thread.
+   *
+   * @param datastoreService The service entities are written to.
+   * @param capacity The maximum number of entities waiting to be written.
+   * @param batchSize The maximum number of entities written per batched put.
+   * @param flushDelayMillis The longest time an entity waits for its batch to fill up.
+   */
+  public UtteranceWriteBuffer(DatastoreService datastoreService, int capacity, int batchSize,
+      long flushDelayMillis) {
+    this(datastoreService, capacity, batchSize, flushDelayMillis,
+        UtteranceWriteBuffer::enqueueSaveTasks);
+  }
+
+  @VisibleForTesting
+  UtteranceWriteBuffer(DatastoreService datastoreService, int capacity, int batchSize,
+      long flushDelayMillis, Consumer<List<Entity>> fallback) {
+    this.datastoreService = datastoreService;
+    this.buffer = new ArrayBlockingQueue<>(capacity);
+    this.batchSize = batchSize;
+    this.flushDelayMillis = flushDelayMillis;
+    this.fallback = fallback;
+
+    this.flushThread = ThreadFactories.background("utterance-flush-%d").newThread(this::flushLoop);
+    this.flushThread.start();
+
+    // Give buffered entities a chance to be written when the instance shuts down.
+    ShutdownHooks.add(this::close);
+  }
+
+  /**
+   * Queues an entity to be written. Blocks and writes synchronously if the buffer stays full.
+   *
+   * @param entity The entity to write.
+   */
+  public void enqueue(Entity entity) {
+    try {
+      if (!closed && buffer.offer(entity, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    datastoreService.put(entity);
+  }
+
+  /**
+   * Return the number of entities waiting to be written.
+   */
+  public int size() {
+    return buffer.size();
+  }
+
+  /**
+   * Stops the flush thread and writes every entity still in the buffer.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    try {
+      flushThread.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    List<Entity> remaining = new ArrayList<>();
+    buffer.drainTo(remaining);
+    for (List<Entity> batch : Lists.partition(remaining, batchSize)) {
+      flush(batch);
+    }
+  }
+
+  /** 
+   * Allow the buffer's Datastore service to be set for mocking purposes.
+   *
+   * @param inputService The service to serve as the DatastoreService.
+   */
+  @VisibleForTesting
+  public void setDatastoreService(DatastoreService inputService) {
+    datastoreService = inputService;
+  }
+
+  private void flushLoop() {
+    while (!closed) {
+      try {
+        Entity first = buffer.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+
+        // Wait for the batch to fill up, but never longer than the flush delay
+        List<Entity> batch = new ArrayList<>(batchSize);
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushDelayMillis);
+        while (batch.size() < batchSize) {
+          Entity next = buffer.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          buffer.drainTo(batch, batchSize - batch.size());
+        }
+
+        flush(batch);
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        logger.log(Level.SEVERE, "Utterance flush loop failed", e);
+      }
+    }
+  }
+
+  private void flush(List<Entity> batch) {
+    List<Entity> keyedBatch = null;
+
+    for (int attempt = 1; ; attempt++) {
+      try {
+        if (keyedBatch == null) {
+          keyedBatch = withAllocatedKeys(batch);
+        }
+        datastoreService.put(keyedBatch);
+        return;
+      } catch (RuntimeException e) {
+        if (attempt == MAX_ATTEMPTS) {
+          logger.log(Level.WARNING, "Giving up on writing " + batch.size() + " utterances", e);
+          fallback.accept(keyedBatch != null ? keyedBatch : batch);
+          return;
+        }
+      }
+
+      try {
+        // Full jitter: sleep anywhere up to the exponential backoff for this attempt
+        long backoff = BASE_BACKOFF_MILLIS << (attempt - 1);
+        Thread.sleep(ThreadLocalRandom.current().nextLong(backoff) + 1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fallback.accept(keyedBatch != null ? keyedBatch : batch);
+        return;
+      }
+    }
+  }
+
+  // Copies entities with incomplete keys onto freshly allocated keys, so retries are idempotent
+  private List<Entity> withAllocatedKeys(List<Entity> batch) {
+    int incomplete = 0;
+    for (Entity entity : batch) {
+      if (!entity.getKey().isComplete()) {
+        incomplete++;
+      }
+    }
+
+    if (incomplete == 0) {
+      return batch;
+    }
+
+    Iterator<Key> keys = datastoreService.allocateIds("Utterance", incomplete).iterator();
+    List<Entity> keyedBatch = new ArrayList<>(batch.size());
+    for (Entity entity : batch) {
+      if (entity.getKey().isComplete()) {
+        keyedBatch.add(entity);
+      } else {
+        Entity keyedEntity = new Entity(keys.next());
+        keyedEntity.setPropertiesFrom(entity);
+        keyedBatch.add(keyedEntity);
+      }
+    }
+    return keyedBatch;
+  }
+
+  /**
+   * Durable fallback: enqueue push tasks that save the entities later.
+   *
+   * @param entities The entities that could not be written.
+   */
+  static void enqueueSaveTasks(List<Entity> entities) {
+    for (List<Entity> chunk : Lists.partition(entities, ENTITIES_PER_TASK)) {
+      String payload = toTaskPayload(chunk);
+      try {
+        QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(SAVE_TASK_URL)
+            .payload(payload.getBytes(StandardCharsets.UTF_8), "application/json"));
+      } catch (RuntimeException e) {
+        // Last resort: keep the data in the logs so it can be replayed by hand
+        logger.log(Level.SEVERE, "Lost utterances, replay this payload: " + payload, e);
+      }
+    }
+  }
+
+  /**
+   * Encodes entities with complete keys and string, boolean or integer properties as JSON.
+   */
+  static String toTaskPayload(List<Entity> entities) {
+    StringWriter out = new StringWriter();
+    try {
+      JsonWriter writer = new JsonWriter(out);
+      writer.beginArray();
+      for (Entity entity : entities) {
+        writer.beginObject();
+        writer.name("key").value(KeyFactory.keyToString(entity.getKey()));
+        writer.name("properties").beginObject();
+        for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+          writer.name(property.getKey());
+          Object value = property.getValue();
+          if (value == null) {
+            writer.nullValue();
+          } else if (value instanceof Number) {
+            writer.value(((Number) value).longValue());
+          } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+          } else {
+            writer.value(value.toString());
+          }
+        }
+        writer.endObject();
+        writer.endObject();
+      }
+      writer.endArray();
+      writer.flush();
+    } catch (IOException e) {
+      // StringWriter never throws
+      throw new IllegalStateException(e);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Decodes entities encoded by {@link #toTaskPayload(List)}.
+   */
+  public static List<Entity> fromTaskPayload(String payload) {
+    List<Entity> entities = new ArrayList<>();
+    for (JsonElement element : JsonParser.parseString(payload).getAsJsonArray()) {
+      JsonObject object = element.getAsJsonObject();
+      Entity entity = new Entity(KeyFactory.stringToKey(object.get("key").getAsString()));
+
+      for (Map.Entry<String, JsonElement> property :
+          object.getAsJsonObject("properties").entrySet()) {
+        JsonElement value = property.getValue();
+        if (value.isJsonNull()) {
+          entity.setProperty(property.getKey(), null);
+          continue;
+        }
+
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        if (primitive.isNumber()) {
+          entity.setProperty(property.getKey(), primitive.getAsLong());
+        } else if (primitive.isBoolean()) {
+          entity.setProperty(property.getKey(), primitive.getAsBoolean());
+        } else {
+          entity.setProperty(property.getKey(), primitive.getAsString());
+        }
+      }
+      entities.add(entity);
+    }
+    return entities;
+  }
+}
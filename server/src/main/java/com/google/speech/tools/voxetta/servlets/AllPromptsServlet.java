@@ -16,6 +16,8 @@
 
 package com.google.speech.tools.voxetta.servlets;
 
+import com.google.speech.tools.voxetta.data.ErrorResponse;
+import com.google.speech.tools.voxetta.data.StatusResponse;
 import com.google.speech.tools.voxetta.services.DatastorePromptDebugService;
 import java.io.IOException;
 import javax.servlet.annotation.WebServlet;
@@ -33,30 +35,79 @@ import com.google.speech.tools.voxetta.services.DatastorePromptService;
 @WebServlet("/prompt/all")
 public class AllPromptsServlet extends HttpServlet {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final int DEFAULT_RESET_BATCH_SIZE = 500;
+
+    // Datastore accepts at most 500 entities per batched put.
+    private static final int MAX_RESET_BATCH_SIZE = 500;
+
     private final DatastorePromptDebugService promptService = new DatastorePromptDebugService();
 
     /**
-     * gets all prompts via PromptService.getAllPrompts()
+     * gets prompts via DatastorePromptDebugService. With a "limit" parameter, one page of prompts
+     * is returned along with a cursor for the next page (passed back as "cursor"); without one,
+     * every prompt is streamed as a JSON array.
      *
-     * @param request
+     * @param request  may contain "limit" and "cursor" parameters.
      * @param response
      * @throws IOException
      */
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        response.getWriter().write(promptService.getAllPrompts());
+        response.setContentType("application/json");
+
+        String limit = getParameter(request, "limit", "");
+        if (limit.isEmpty()) {
+            promptService.writeAllPrompts(response.getWriter());
+            return;
+        }
+
+        try {
+            int pageSize = Integer.parseInt(limit);
+            if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                throw new IllegalArgumentException("limit out of range");
+            }
+
+            String cursor = getParameter(request, "cursor", "");
+            promptService.writePromptPage(response.getWriter(), cursor.isEmpty() ? null : cursor,
+                pageSize);
+        } catch (IllegalArgumentException e) {
+            new ErrorResponse(false, "Error: Invalid page parameters")
+                .writeTo(response.getWriter());
+        }
     }
 
     /**
-     * resets the read status of all prompts.
+     * resets the read status of all prompts, one time-boxed slice at a time. Callers resume by
+     * passing back the returned cursor until the response says it is done.
      *
-     * @param request
+     * @param request  may contain "cursor", "batchSize" and "onlyRead" parameters.
      * @param response
      * @throws IOException
      */
     @Override
     public void doPost(HttpServletRequest request, HttpServletResponse response)
         throws IOException {
-        response.getWriter().write(promptService.resetAllToUnread().toJson());
+
+        StatusResponse resetResponse;
+        try {
+            String cursor = getParameter(request, "cursor", "");
+            int batchSize = Integer.parseInt(
+                getParameter(request, "batchSize", String.valueOf(DEFAULT_RESET_BATCH_SIZE)));
+            boolean onlyRead = Boolean.parseBoolean(getParameter(request, "onlyRead", "true"));
+
+            if (batchSize < 1 || batchSize > MAX_RESET_BATCH_SIZE) {
+                throw new IllegalArgumentException("batchSize out of range");
+            }
+
+            resetResponse = promptService.resetAllToUnread(cursor.isEmpty() ? null : cursor,
+                batchSize, onlyRead);
+        } catch (IllegalArgumentException e) {
+            resetResponse = new ErrorResponse(false, "Error: Invalid reset parameters");
+        }
+
+        response.setContentType("application/json");
+        resetResponse.writeTo(response.getWriter());
     }
 }
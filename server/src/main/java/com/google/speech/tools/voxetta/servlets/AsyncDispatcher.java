@@ -0,0 +1,402 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.speech.tools.voxetta.data.ErrorResponse;
+import com.google.speech.tools.voxetta.metrics.Counter;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import com.google.speech.tools.voxetta.utils.ThreadFactories;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Runs servlet handlers on a dedicated, bounded worker pool instead of the container's request
+ * threads, using {@link AsyncContext}.
+ * <p>
+ * The container thread is handed back as soon as a request is queued, so the number of requests
+ * in progress is no longer capped by the container's thread pool. When every worker is busy and
+ * the queue is full, requests are shed with a 503 and a "Retry-After" header rather than queued
+ * without bound. A request that waits in the queue for longer than the async timeout is shed the
+ * same way. One whose handler is still running at the timeout is answered with a 500 instead, and
+ * whatever the handler writes after that is dropped, since the container may already have
+ * recycled the response.
+ * <p>
+ * Requests that cannot be handled asynchronously, e.g. because a filter in front of the servlet
+ * does not support it, are handled inline on the container thread. So is every request on App
+ * Engine without background threads (see {@link ThreadFactories#backgroundThreadsAvailable()}),
+ * since handlers call Datastore and Blobstore, which only request threads may do there.
+ */
+final class AsyncDispatcher {
+
+    private static final Logger logger = Logger.getLogger(AsyncDispatcher.class.getName());
+
+    private static final int THREADS = Integer.getInteger("voxetta.async.threads", 64);
+    private static final int QUEUE_CAPACITY =
+        Integer.getInteger("voxetta.async.queueCapacity", 256);
+    private static final long TIMEOUT_MILLIS =
+        TimeUnit.SECONDS.toMillis(Long.getLong("voxetta.async.timeoutSeconds", 30));
+
+    private static final int RETRY_AFTER_SECONDS = 1;
+
+    private static final AsyncDispatcher defaultDispatcher = create(MetricsRegistry.getDefault());
+
+    /**
+     * Handles a single request.
+     */
+    interface Handler {
+
+        void handle(HttpServletRequest request, HttpServletResponse response) throws IOException;
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+    private final Counter shed;
+    private final Counter timeouts;
+
+    /**
+     * @param executor      Executor handlers run on, or null to handle every request inline. Its
+     *                      queue should be bounded, so that excess requests are rejected and shed.
+     * @param timeoutMillis How long a request may take, including its wait in the queue.
+     * @param metrics       Registry the pool's metrics are recorded in.
+     */
+    @VisibleForTesting
+    AsyncDispatcher(ThreadPoolExecutor executor, long timeoutMillis, MetricsRegistry metrics) {
+        this.executor = executor;
+        this.timeoutMillis = timeoutMillis;
+
+        shed = metrics.counter("async_requests_shed");
+        timeouts = metrics.counter("async_requests_timed_out");
+        if (executor != null) {
+            metrics.gauge("async_requests_queued", () -> executor.getQueue().size());
+            metrics.gauge("async_requests_active", executor::getActiveCount);
+        }
+    }
+
+    /**
+     * Creates a dispatcher with a worker pool where background threads are available, and one
+     * that handles every request inline otherwise.
+     *
+     * @param metrics Registry the pool's metrics are recorded in.
+     */
+    @VisibleForTesting
+    static AsyncDispatcher create(MetricsRegistry metrics) {
+        if (!ThreadFactories.backgroundThreadsAvailable()) {
+            return new AsyncDispatcher(null, TIMEOUT_MILLIS, metrics);
+        }
+
+        return new AsyncDispatcher(
+            new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), ThreadFactories.background("async-%d")),
+            TIMEOUT_MILLIS, metrics);
+    }
+
+    /**
+     * @return the dispatcher shared by all servlets.
+     */
+    static AsyncDispatcher getDefault() {
+        return defaultDispatcher;
+    }
+
+    /**
+     * Handles a request on the worker pool, or inline if there is no pool or the request does not
+     * support async.
+     */
+    void dispatch(HttpServletRequest request, HttpServletResponse response, Handler handler)
+        throws IOException {
+        if (executor == null || !request.isAsyncSupported()) {
+            handler.handle(request, response);
+            return;
+        }
+
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(timeoutMillis);
+
+        // Whoever claims the request first, the worker or the timeout, gets to answer it. Once
+        // the worker has claimed it, the timeout can still cut its answer short.
+        AtomicBoolean claimed = new AtomicBoolean();
+        GuardedResponse guarded = new GuardedResponse(response);
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (claimed.compareAndSet(false, true)) {
+                    shed(response);
+                    context.complete();
+                } else {
+                    guarded.timeOut(context);
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        try {
+            executor.execute(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    handler.handle(request, guarded);
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to handle " + request.getRequestURI(), e);
+                    guarded.fail();
+                } finally {
+                    guarded.finish(context);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            claimed.set(true);
+            shed(response);
+            context.complete();
+        }
+    }
+
+    private void shed(HttpServletResponse response) throws IOException {
+        shed.increment();
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+        response.setContentType("application/json");
+        new ErrorResponse(false, "Error: Server is busy; retry shortly")
+            .writeTo(response.getWriter());
+    }
+
+    /**
+     * The response as a handler sees it. Once the request has timed out, everything the handler
+     * still does to it is dropped, and only one of the timeout and the handler completes it.
+     */
+    private final class GuardedResponse extends HttpServletResponseWrapper {
+
+        private final HttpServletResponse response;
+        private boolean timedOut;
+        private boolean finished;
+        private PrintWriter writer;
+        private ServletOutputStream outputStream;
+
+        private GuardedResponse(HttpServletResponse response) {
+            super(response);
+            this.response = response;
+        }
+
+        // Answers a request whose handler is still running, unless it has just finished.
+        private synchronized void timeOut(AsyncContext context) throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            timedOut = true;
+
+            timeouts.increment();
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                response.setContentType("application/json");
+                new ErrorResponse(false, "Error: Request timed out")
+                    .writeTo(response.getWriter());
+            }
+            context.complete();
+        }
+
+        private synchronized void fail() {
+            if (!timedOut && !response.isCommitted()) {
+                response.reset();
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
+
+        private synchronized void finish(AsyncContext context) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            context.complete();
+        }
+
+        @Override
+        public synchronized PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                PrintWriter target = timedOut ? null : response.getWriter();
+                writer = new PrintWriter(new Writer() {
+                    @Override
+                    public void write(char[] chars, int offset, int length) {
+                        synchronized (GuardedResponse.this) {
+                            if (!timedOut) {
+                                target.write(chars, offset, length);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void flush() {
+                        synchronized (GuardedResponse.this) {
+                            if (!timedOut) {
+                                target.flush();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void close() {
+                        flush();
+                    }
+                });
+            }
+            return writer;
+        }
+
+        @Override
+        public synchronized ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                ServletOutputStream target = timedOut ? null : response.getOutputStream();
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        synchronized (GuardedResponse.this) {
+                            if (!timedOut) {
+                                target.write(b);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        synchronized (GuardedResponse.this) {
+                            if (!timedOut) {
+                                target.write(bytes, offset, length);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        synchronized (GuardedResponse.this) {
+                            if (!timedOut) {
+                                target.flush();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        throw new UnsupportedOperationException("Handlers write blocking");
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public synchronized void setStatus(int status) {
+            if (!timedOut) {
+                response.setStatus(status);
+            }
+        }
+
+        @Override
+        public synchronized void sendError(int status) throws IOException {
+            if (!timedOut) {
+                response.sendError(status);
+            }
+        }
+
+        @Override
+        public synchronized void sendError(int status, String message) throws IOException {
+            if (!timedOut) {
+                response.sendError(status, message);
+            }
+        }
+
+        @Override
+        public synchronized void setHeader(String name, String value) {
+            if (!timedOut) {
+                response.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public synchronized void addHeader(String name, String value) {
+            if (!timedOut) {
+                response.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public synchronized void setContentType(String type) {
+            if (!timedOut) {
+                response.setContentType(type);
+            }
+        }
+
+        @Override
+        public synchronized void setCharacterEncoding(String charset) {
+            if (!timedOut) {
+                response.setCharacterEncoding(charset);
+            }
+        }
+
+        @Override
+        public synchronized void setContentLengthLong(long length) {
+            if (!timedOut) {
+                response.setContentLengthLong(length);
+            }
+        }
+
+        @Override
+        public synchronized void reset() {
+            if (!timedOut) {
+                response.reset();
+            }
+        }
+
+        @Override
+        public synchronized void flushBuffer() throws IOException {
+            if (!timedOut) {
+                response.flushBuffer();
+            }
+        }
+    }
+}
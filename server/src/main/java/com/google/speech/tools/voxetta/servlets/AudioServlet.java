@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.speech.tools.voxetta.embedded.LocalAudioStore;
+import com.google.speech.tools.voxetta.services.Backends;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.speech.tools.voxetta.utils.ParamParser.getParameter;
+
+/**
+ * Servlet that plays back a recording, given the audio key of its utterance.
+ * <p>
+ * Single byte ranges are honored, so players can seek. With the embedded backend recordings are
+ * copied from the {@link LocalAudioStore} file to the response with
+ * {@link FileChannel#transferTo}; otherwise Blobstore serves them.
+ */
+@WebServlet("/audio")
+public class AudioServlet extends HttpServlet {
+
+    // "bytes=first-last", "bytes=first-" or "bytes=-suffixLength"
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private LocalAudioStore audioStore = Backends.isEmbedded() ? Backends.audioStore() : null;
+    private BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+
+    /**
+     * Writes a recording, or the requested range of it.
+     *
+     * @param request  must contain "key", the audio key of the utterance, and may have a "Range"
+     *                 header.
+     * @param response
+     * @throws IOException
+     */
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+
+        String key = getParameter(request, "key", "");
+        if (key.isEmpty()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        if (audioStore == null) {
+            blobstoreService.serve(new BlobKey(key), request.getHeader("Range"), response);
+            return;
+        }
+
+        try (FileChannel recording = audioStore.open(key)) {
+            if (recording == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+
+            // Keys are content hashes, so a key's content never changes.
+            response.setHeader("ETag", '"' + key + '"');
+            response.setHeader("Cache-Control", "private, max-age=31536000, immutable");
+            response.setHeader("Accept-Ranges", "bytes");
+            if (('"' + key + '"').equals(request.getHeader("If-None-Match"))) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            long length = recording.size();
+            long first = 0;
+            long last = length - 1;
+
+            String range = request.getHeader("Range");
+            Matcher matcher = range == null ? null : RANGE.matcher(range.trim());
+            if (matcher != null && matcher.matches()
+                && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+                try {
+                    if (matcher.group(1).isEmpty()) {
+                        first = Math.max(0, length - Long.parseLong(matcher.group(2)));
+                    } else {
+                        first = Long.parseLong(matcher.group(1));
+                        if (!matcher.group(2).isEmpty()) {
+                            last = Math.min(last, Long.parseLong(matcher.group(2)));
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    // Too long to be a valid offset
+                    first = length;
+                }
+
+                if (first >= length || first > last) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + length);
+            }
+            // Other range forms, such as multiple ranges, are answered with the whole recording.
+
+            response.setContentType(LocalAudioStore.contentType(recording));
+            response.setContentLengthLong(last - first + 1);
+
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = first;
+            while (position <= last) {
+                position += recording.transferTo(position, last - position + 1, out);
+            }
+        }
+    }
+
+    /**
+     * Allow the servlet's audio store to be set for testing purposes.
+     *
+     * @param inputStore The store recordings are served from, or null to serve from Blobstore.
+     */
+    @VisibleForTesting
+    public void setAudioStore(LocalAudioStore inputStore) {
+        audioStore = inputStore;
+    }
+}
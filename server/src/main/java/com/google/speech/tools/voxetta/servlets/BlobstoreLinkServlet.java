@@ -21,7 +21,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.speech.tools.voxetta.data.ErrorResponse;
 import com.google.speech.tools.voxetta.data.StatusResponse;
 import com.google.speech.tools.voxetta.data.UrlResponse; 
-import com.google.speech.tools.voxetta.services.DatastoreUtteranceService;
+import com.google.speech.tools.voxetta.services.Backends;
 import com.google.speech.tools.voxetta.services.UtteranceService;
 import java.io.IOException;
 import javax.servlet.annotation.WebServlet;
@@ -32,24 +32,28 @@ import javax.servlet.http.HttpServletResponse;
 /** 
  * Servlet that returns a Blobstore URL. 
  */
-@WebServlet("/blobstore-utterance-upload-link")
+@WebServlet(value = "/blobstore-utterance-upload-link", asyncSupported = true)
 public class BlobstoreLinkServlet extends HttpServlet {
 
-  private UtteranceService service = new DatastoreUtteranceService(); 
+  private UtteranceService service = Backends.utteranceService();
+  private final AsyncDispatcher dispatcher = AsyncDispatcher.getDefault();
  
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    dispatcher.dispatch(request, response, this::writeUploadUrl);
+  }
+
+  private void writeUploadUrl(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
     response.setContentType("application/json");
 
     // Create and return a Blobstore Upload URL  
     try {
       String uploadUrl = service.getAudioBlobUploadUrl();
-      String successJson = new UrlResponse(true, uploadUrl).toJson();
-      response.getWriter().println(successJson); 
+      new UrlResponse(true, uploadUrl).writeTo(response.getWriter());
     } catch (BlobstoreFailureException e) {
-      String failureJson = 
-          new ErrorResponse(false, "Error: Failed to upload audio file to Blobstore.").toJson();
-      response.getWriter().println(failureJson);
+      new ErrorResponse(false, "Error: Failed to upload audio file to Blobstore.")
+          .writeTo(response.getWriter());
     }
   }
 
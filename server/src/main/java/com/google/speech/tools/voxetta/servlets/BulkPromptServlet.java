@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.speech.tools.voxetta.data.ErrorResponse;
+import com.google.speech.tools.voxetta.data.StatusResponse;
+import com.google.speech.tools.voxetta.services.PromptBulkLoader;
+import com.google.speech.tools.voxetta.services.PromptBulkLoader.Format;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.speech.tools.voxetta.utils.ParamParser.getQueryParameter;
+
+/**
+ * Servlet that handles the "/prompt/bulk" endpoint, which loads many prompts from one upload.
+ * <p>
+ * The request body is either NDJSON or CSV; the format is taken from the "format" parameter, or
+ * from the content type if the parameter is missing. Parameters are only read from the query
+ * string, since reading them from a form-encoded body would consume the upload.
+ */
+@WebServlet("/prompt/bulk")
+public class BulkPromptServlet extends HttpServlet {
+
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    // Datastore accepts at most 500 entities per batched put.
+    private static final int MAX_BATCH_SIZE = 500;
+
+    private PromptBulkLoader loader = new PromptBulkLoader();
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+
+        String contentType = request.getContentType();
+        String defaultFormat =
+            contentType != null && contentType.contains("csv") ? "csv" : "ndjson";
+
+        StatusResponse uploadResponse;
+        try {
+            Format format = Format.valueOf(
+                getQueryParameter(request, "format", defaultFormat).toUpperCase());
+            int batchSize = Integer.parseInt(
+                getQueryParameter(request, "batchSize", String.valueOf(DEFAULT_BATCH_SIZE)));
+
+            if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+                throw new IllegalArgumentException("batchSize out of range");
+            }
+
+            if (request.getCharacterEncoding() == null) {
+                request.setCharacterEncoding("UTF-8");
+            }
+
+            uploadResponse = loader.load(request.getReader(), format, batchSize);
+        } catch (IllegalArgumentException e) {
+            uploadResponse = new ErrorResponse(false, "Error: Invalid upload parameters");
+        }
+
+        response.setContentType("application/json");
+        uploadResponse.writeTo(response.getWriter());
+    }
+
+    /**
+     * Allow the servlet's loader to be set for mocking purposes.
+     *
+     * @param inputLoader The loader to serve as the PromptBulkLoader.
+     */
+    @VisibleForTesting
+    public void setLoader(PromptBulkLoader inputLoader) {
+        loader = inputLoader;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.speech.tools.voxetta.data.ErrorResponse;
+import com.google.speech.tools.voxetta.data.StatusResponse;
+import com.google.speech.tools.voxetta.export.FileSystemExportSink;
+import com.google.speech.tools.voxetta.export.UtteranceExporter;
+import com.google.speech.tools.voxetta.services.InstrumentedDatastoreService;
+import com.google.speech.tools.voxetta.utils.ThreadFactories;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.speech.tools.voxetta.utils.ParamParser.getParameter;
+
+/**
+ * Servlet that exports utterances with their prompts and audio to a directory, one time-boxed
+ * slice at a time (see {@link UtteranceExporter}). Callers repeat the request with the same
+ * "outputDir" until the response says it is done; progress is kept in the directory itself.
+ * <p>
+ * "outputDir" names a directory under the "voxetta.export.root" directory; paths that lead
+ * outside of it are rejected. web.xml limits the servlet to admins.
+ * <p>
+ * On App Engine the instance's disk is held in memory and lost with the instance, taking the
+ * checkpoint with it, so the servlet refuses to export there unless "voxetta.export.durableRoot"
+ * declares that the export root is on durable storage.
+ */
+@WebServlet("/export")
+public class ExportServlet extends HttpServlet {
+
+    private static final Logger logger = Logger.getLogger(ExportServlet.class.getName());
+
+    private static final int DEFAULT_SHARD_SIZE = 1000;
+    private static final int MAX_SHARD_SIZE = 10000;
+
+    private static final int THREADS = Integer.getInteger("voxetta.export.threads", 8);
+    private static final int MAX_IN_FLIGHT =
+        Integer.getInteger("voxetta.export.maxInFlightFetches", 32);
+    private static final long TIME_BUDGET_MILLIS =
+        TimeUnit.SECONDS.toMillis(Long.getLong("voxetta.export.timeBudgetSeconds", 30));
+
+    private static final Path EXPORT_ROOT =
+        Paths.get(System.getProperty("voxetta.export.root", "/tmp/voxetta-export"));
+    private static final boolean DURABLE_ROOT = Boolean.getBoolean("voxetta.export.durableRoot");
+
+    // Without background threads, audio is fetched on threads of the export request itself; at
+    // most MAX_IN_FLIGHT of them run at once, and each shard waits for its fetches.
+    private static final Executor fetchExecutor = ThreadFactories.backgroundThreadsAvailable()
+        ? Executors.newFixedThreadPool(THREADS, ThreadFactories.background("export-fetch-%d"))
+        : command -> ThreadFactories.request().newThread(command).start();
+
+    /**
+     * exports the next shards of utterances.
+     *
+     * @param request  must contain "outputDir", relative to the export root, and may contain
+     *                 "shardSize", which only takes effect for shards not yet written.
+     * @param response
+     * @throws IOException
+     */
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+
+        response.setContentType("application/json");
+
+        if (!hasDurableSink(
+            SystemProperty.environment.value() == SystemProperty.Environment.Value.Production,
+            DURABLE_ROOT)) {
+            new ErrorResponse(false, "Error: Export needs durable storage; set "
+                + "voxetta.export.durableRoot once voxetta.export.root is on it")
+                .writeTo(response.getWriter());
+            return;
+        }
+
+        StatusResponse exportResponse;
+        try {
+            String outputDir = getParameter(request, "outputDir", "");
+            int shardSize = Integer.parseInt(
+                getParameter(request, "shardSize", String.valueOf(DEFAULT_SHARD_SIZE)));
+
+            if (shardSize < 1 || shardSize > MAX_SHARD_SIZE) {
+                throw new IllegalArgumentException("Invalid export parameters");
+            }
+
+            UtteranceExporter exporter = new UtteranceExporter(
+                InstrumentedDatastoreService.create(),
+                new FileSystemExportSink(resolveOutputDir(EXPORT_ROOT, outputDir)), fetchExecutor,
+                shardSize, MAX_IN_FLIGHT);
+            exportResponse = exporter.run(TIME_BUDGET_MILLIS);
+        } catch (IllegalArgumentException e) {
+            // Also thrown for malformed paths (InvalidPathException) and cursors
+            exportResponse = new ErrorResponse(false, "Error: Invalid export parameters");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Export failed", e);
+            exportResponse = new ErrorResponse(false, "Error: Export failed; retry to resume");
+        }
+
+        exportResponse.writeTo(response.getWriter());
+    }
+
+    /**
+     * @param onAppEngine Whether this instance runs on App Engine (not the dev server), whose disk
+     *                    is not durable.
+     * @param durableRoot Whether the export root is declared to be on durable storage.
+     * @return whether an export's files and checkpoint outlive the instance writing them.
+     */
+    @VisibleForTesting
+    static boolean hasDurableSink(boolean onAppEngine, boolean durableRoot) {
+        return !onAppEngine || durableRoot;
+    }
+
+    /**
+     * Resolves an export's directory under the export root.
+     *
+     * @param root      The directory every export is written under.
+     * @param outputDir The export's directory, relative to the root.
+     * @return the directory, strictly inside the root.
+     * @throws IllegalArgumentException if outputDir is empty, absolute, or leads out of the root.
+     */
+    @VisibleForTesting
+    static Path resolveOutputDir(Path root, String outputDir) {
+        Path normalizedRoot = root.toAbsolutePath().normalize();
+        Path relative = Paths.get(outputDir);
+        Path resolved = normalizedRoot.resolve(relative).normalize();
+
+        if (outputDir.isEmpty() || relative.isAbsolute() || !resolved.startsWith(normalizedRoot)
+            || resolved.equals(normalizedRoot)) {
+            throw new IllegalArgumentException("Invalid export directory");
+        }
+        return resolved;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.speech.tools.voxetta.metrics.Counter;
+import com.google.speech.tools.voxetta.metrics.Histogram;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRegistration;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Filter that records latency, in-flight requests and errors for every endpoint.
+ * <p>
+ * Endpoints are the paths servlets are mapped to; any other path is recorded as "other", so
+ * arbitrary URLs cannot create new metric series. Requests slower than
+ * "voxetta.metrics.slowRequestMillis" are logged with their Cloud Trace id, so they can be found
+ * in the request logs and traces. Requests handled asynchronously are recorded when they complete,
+ * not when the container thread returns.
+ */
+@WebFilter(value = "/*", asyncSupported = true)
+public class MetricsFilter implements Filter {
+
+    private static final Logger logger = Logger.getLogger(MetricsFilter.class.getName());
+
+    private static final long SLOW_REQUEST_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("voxetta.metrics.slowRequestMillis", 1000L));
+
+    private static final String OTHER_ENDPOINT = "other";
+
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    // Built once in init, then only read
+    private final Map<String, EndpointMetrics> endpoints = new HashMap<>();
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        for (ServletRegistration servlet :
+            filterConfig.getServletContext().getServletRegistrations().values()) {
+            for (String mapping : servlet.getMappings()) {
+                if (mapping.startsWith("/") && !mapping.contains("*")) {
+                    endpoints.put(mapping, new EndpointMetrics(mapping));
+                }
+            }
+        }
+        endpoints.put(OTHER_ENDPOINT, new EndpointMetrics(OTHER_ENDPOINT));
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        EndpointMetrics endpoint =
+            endpoints.getOrDefault(httpRequest.getServletPath(), endpoints.get(OTHER_ENDPOINT));
+
+        long start = System.nanoTime();
+        endpoint.inFlight.incrementAndGet();
+        boolean failed = true;
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            failed = false;
+
+            // Requests handled asynchronously are recorded once they complete
+            if (request.isAsyncStarted()) {
+                async = true;
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        record(httpRequest, (HttpServletResponse) response, endpoint, start, false);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            }
+        } finally {
+            if (!async) {
+                record(httpRequest, (HttpServletResponse) response, endpoint, start, failed);
+            }
+        }
+    }
+
+    private void record(HttpServletRequest request, HttpServletResponse response,
+        EndpointMetrics endpoint, long start, boolean threw) {
+        endpoint.inFlight.decrementAndGet();
+        long elapsed = System.nanoTime() - start;
+        endpoint.latency.record(elapsed);
+        if (threw || response.getStatus() >= 500) {
+            endpoint.errors.increment();
+        }
+        if (elapsed > SLOW_REQUEST_NANOS) {
+            logger.warning(String.format("Slow request: %s %s took %d ms (trace %s)",
+                request.getMethod(), request.getRequestURI(),
+                TimeUnit.NANOSECONDS.toMillis(elapsed),
+                request.getHeader("X-Cloud-Trace-Context")));
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private class EndpointMetrics {
+
+        private final Histogram latency;
+        private final Counter errors;
+        private final AtomicLong inFlight = new AtomicLong();
+
+        private EndpointMetrics(String endpoint) {
+            latency = metrics.histogram("http_request_duration_seconds", "endpoint", endpoint);
+            errors = metrics.counter("http_request_errors", "endpoint", endpoint);
+            metrics.gauge("http_requests_in_flight", inFlight::get, "endpoint", endpoint);
+        }
+    }
+}
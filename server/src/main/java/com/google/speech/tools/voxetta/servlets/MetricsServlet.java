@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.speech.tools.voxetta.utils.ParamParser.getParameter;
+
+/**
+ * Servlet that handles the "/metrics" endpoint, which reports this instance's metrics as JSON, or
+ * in the Prometheus text format when called with "format=prometheus". web.xml limits the servlet to
+ * admins.
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+        if ("prometheus".equals(getParameter(request, "format", "json"))) {
+            response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            MetricsRegistry.getDefault().writePrometheus(response.getWriter());
+        } else {
+            response.setContentType("application/json");
+            MetricsRegistry.getDefault().writeJson(response.getWriter());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.speech.tools.voxetta.services.Backends;
+import com.google.speech.tools.voxetta.services.PromptLeaseSweeper;
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Cron handler that reclaims prompts with expired leases, scheduled in cron.xml.
+ * <p>
+ * Sweeping on a request keeps it working under automatic scaling, where background threads
+ * cannot call Datastore. The embedded backend reclaims expired leases itself, so nothing is swept
+ * for it.
+ */
+@WebServlet(PromptLeaseSweepServlet.URL)
+public class PromptLeaseSweepServlet extends HttpServlet {
+
+    /**
+     * URL cron calls the servlet at.
+     */
+    public static final String URL = "/tasks/sweep-prompt-leases";
+
+    private static final Logger logger = Logger.getLogger(PromptLeaseSweepServlet.class.getName());
+
+    private PromptLeaseSweeper sweeper = new PromptLeaseSweeper();
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // App Engine strips this header from external requests, so only cron can call this
+        if (!"true".equals(request.getHeader("X-Appengine-Cron"))) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        if (!Backends.isEmbedded()) {
+            int reclaimed = sweeper.sweep();
+            if (reclaimed > 0) {
+                logger.info("Reclaimed " + reclaimed + " prompts with expired leases");
+            }
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Allow the servlet's sweeper to be set for mocking purposes.
+     *
+     * @param inputSweeper The sweeper to run.
+     */
+    @VisibleForTesting
+    public void setSweeper(PromptLeaseSweeper inputSweeper) {
+        sweeper = inputSweeper;
+    }
+}
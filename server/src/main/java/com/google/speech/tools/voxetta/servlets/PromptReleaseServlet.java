@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.speech.tools.voxetta.data.ErrorResponse;
+import com.google.speech.tools.voxetta.data.StatusResponse;
+import com.google.speech.tools.voxetta.services.Backends;
+import com.google.speech.tools.voxetta.services.PromptService;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.speech.tools.voxetta.utils.ParamParser.getParameter;
+
+/**
+ * Servlet that handles the "/prompt/release" endpoint, which gives back a skipped prompt. The
+ * caller must send the "leaseToken" the prompt was handed out with.
+ */
+@WebServlet("/prompt/release")
+public class PromptReleaseServlet extends HttpServlet {
+
+    private PromptService promptService = Backends.promptService();
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+
+        StatusResponse releaseResponse;
+        try {
+            long promptId = Long.parseLong(getParameter(request, "id", ""));
+            releaseResponse = promptService.releasePrompt(promptId,
+                getParameter(request, "leaseToken", ""));
+        } catch (NumberFormatException e) {
+            releaseResponse = new ErrorResponse(false, "Error: Invalid prompt id");
+        }
+
+        response.setContentType("application/json");
+        releaseResponse.writeTo(response.getWriter());
+    }
+
+    /**
+     * Allow the servlet's Prompt Service to be set for mocking purposes.
+     *
+     * @param inputService The service to serve as the PromptService.
+     */
+    @VisibleForTesting
+    public void setService(PromptService inputService) {
+        promptService = inputService;
+    }
+}
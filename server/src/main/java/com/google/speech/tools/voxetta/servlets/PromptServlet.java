@@ -18,6 +18,7 @@ package com.google.speech.tools.voxetta.servlets;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.speech.tools.voxetta.data.StatusResponse;
+import com.google.speech.tools.voxetta.services.Backends;
 import com.google.speech.tools.voxetta.services.PromptService;
 import com.google.speech.tools.voxetta.services.UtteranceService;
 import java.io.IOException;
@@ -27,27 +28,43 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import static com.google.speech.tools.voxetta.utils.ParamParser.getParameter;
+import static com.google.speech.tools.voxetta.utils.ParamParser.getSpeakerProfile;
 
-import com.google.speech.tools.voxetta.services.DatastorePromptService;
 
 /**
  * Servlet that handles the  "/prompt" endpoint
  */
-@WebServlet("/prompt")
+@WebServlet(value = "/prompt", asyncSupported = true)
 public class PromptServlet extends HttpServlet {
 
-    private PromptService promptService = new DatastorePromptService();
+    private PromptService promptService = Backends.promptService();
+    private final AsyncDispatcher dispatcher = AsyncDispatcher.getDefault();
 
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-
-        response.setContentType("application/json");
-        response.getWriter().write(promptService.getOnePrompt());
+        dispatcher.dispatch(request, response, this::writePrompt);
     }
 
     @Override
     public void doPost(HttpServletRequest request, HttpServletResponse response)
         throws IOException {
+        dispatcher.dispatch(request, response, this::savePrompt);
+    }
+
+    private void writePrompt(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+
+        byte[] prompt = promptService.getOnePromptJson(getSpeakerProfile(request));
+
+        // The JSON is already encoded, so copy it straight to the response
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(prompt.length);
+        response.getOutputStream().write(prompt);
+    }
+
+    private void savePrompt(HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
 
         final String type = getParameter(request, "type", "");
         final String body = getParameter(request, "body", "");
@@ -55,7 +72,7 @@ public class PromptServlet extends HttpServlet {
         StatusResponse promptServiceResponse = promptService.savePrompt(type, body);
 
         response.setContentType("application/json");
-        response.getWriter().write(promptServiceResponse.toJson());
+        promptServiceResponse.writeTo(response.getWriter());
     }
 
     /**
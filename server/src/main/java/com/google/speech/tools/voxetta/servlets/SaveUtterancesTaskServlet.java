@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.common.annotations.VisibleForTesting; 
+import com.google.common.io.CharStreams;
+import com.google.speech.tools.voxetta.services.InstrumentedDatastoreService;
+import com.google.speech.tools.voxetta.services.UtteranceWriteBuffer;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** 
+ * Task Queue handler that saves Utterance entities the write buffer could not write itself.
+ * A failed put fails the task, so the queue retries it.
+ */
+@WebServlet(UtteranceWriteBuffer.SAVE_TASK_URL)
+public class SaveUtterancesTaskServlet extends HttpServlet {
+
+  private DatastoreService datastoreService = InstrumentedDatastoreService.create();
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // App Engine strips this header from external requests, so only the queue can call this
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    String payload = CharStreams.toString(request.getReader());
+    datastoreService.put(UtteranceWriteBuffer.fromTaskPayload(payload));
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  /** 
+   * Allow the servlet's Datastore service to be set for mocking purposes.
+   *
+   * @param inputService The service to serve as the DatastoreService.
+   */
+  @VisibleForTesting
+  public void setDatastoreService(DatastoreService inputService) {
+    datastoreService = inputService; 
+  }
+}
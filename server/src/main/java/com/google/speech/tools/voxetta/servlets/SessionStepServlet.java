@@ -0,0 +1,118 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.appengine.api.blobstore.BlobstoreFailureException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.stream.JsonWriter;
+import com.google.speech.tools.voxetta.services.Backends;
+import com.google.speech.tools.voxetta.services.PromptService;
+import com.google.speech.tools.voxetta.services.UtteranceService;
+import com.google.speech.tools.voxetta.utils.ThreadFactories;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.speech.tools.voxetta.utils.ParamParser.getSpeakerProfile;
+
+/**
+ * Servlet that handles the "/session/next" endpoint, which returns the next prompt together with
+ * an upload URL for its recording, so a recording cycle needs one round-trip less.
+ * <p>
+ * The response is {@code {"success": true, "prompt": ..., "uploadUrl": ...}}, where "prompt" is
+ * what "/prompt" would return. If no upload URL could be created, "uploadUrl" is null and the
+ * client falls back to "/blobstore-utterance-upload-link".
+ */
+@WebServlet("/session/next")
+public class SessionStepServlet extends HttpServlet {
+
+    private static final Logger logger = Logger.getLogger(SessionStepServlet.class.getName());
+
+    private PromptService promptService = Backends.promptService();
+    private UtteranceService utteranceService = Backends.utteranceService();
+
+    // Helper threads must not outlive the request on App Engine
+    private Executor executor = command -> ThreadFactories.request().newThread(command).start();
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // Create the upload URL on a helper thread while this one claims the prompt
+        CompletableFuture<String> uploadUrl =
+            CompletableFuture.supplyAsync(utteranceService::getAudioBlobUploadUrl, executor);
+        String prompt = new String(promptService.getOnePromptJson(getSpeakerProfile(request)),
+            StandardCharsets.UTF_8);
+
+        response.setContentType("application/json");
+        JsonWriter writer = new JsonWriter(response.getWriter());
+        writer.beginObject();
+        writer.name("success").value(true);
+        writer.name("prompt").jsonValue(prompt);
+        writer.name("uploadUrl").value(joinUploadUrl(uploadUrl));
+        writer.endObject();
+        writer.flush();
+    }
+
+    private static String joinUploadUrl(CompletableFuture<String> uploadUrl) {
+        try {
+            return uploadUrl.join();
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof BlobstoreFailureException)) {
+                throw e;
+            }
+            logger.log(Level.WARNING, "Failed to create an upload URL", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Allow the servlet's Prompt Service to be set for mocking purposes.
+     *
+     * @param inputService The service to serve as the PromptService.
+     */
+    @VisibleForTesting
+    public void setPromptService(PromptService inputService) {
+        promptService = inputService;
+    }
+
+    /**
+     * Allow the servlet's Utterance Service to be set for mocking purposes.
+     *
+     * @param inputService The service to serve as the UtteranceService.
+     */
+    @VisibleForTesting
+    public void setUtteranceService(UtteranceService inputService) {
+        utteranceService = inputService;
+    }
+
+    /**
+     * Allow the executor the upload URL is created on to be set for testing purposes.
+     *
+     * @param inputExecutor The executor to create upload URLs on.
+     */
+    @VisibleForTesting
+    public void setExecutor(Executor inputExecutor) {
+        executor = inputExecutor;
+    }
+}
@@ -21,50 +21,96 @@ import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.common.annotations.VisibleForTesting; 
 import com.google.speech.tools.voxetta.data.Utterance; 
 import com.google.speech.tools.voxetta.data.ErrorResponse;
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
 import com.google.speech.tools.voxetta.data.StatusResponse; 
-import com.google.speech.tools.voxetta.services.DatastoreUtteranceService; 
+import com.google.speech.tools.voxetta.services.Backends;
+import com.google.speech.tools.voxetta.services.PromptService;
 import com.google.speech.tools.voxetta.services.UtteranceService; 
+import com.google.speech.tools.voxetta.utils.IdempotencyKeys;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import static com.google.speech.tools.voxetta.utils.ParamParser.getParameter;
+
 /** 
  * Servlet that uploads Utterance Entities. 
+ *
+ * <p>Concurrent uploads share the one servlet instance, so everything about an upload is kept in
+ * local variables rather than fields.
  */
-@WebServlet("/upload-utterance")
+@WebServlet(value = "/upload-utterance", asyncSupported = true)
+@MultipartConfig
 public class UtteranceUploadServlet extends HttpServlet {
 
-  private UtteranceService service = new DatastoreUtteranceService(); 
-  private StatusResponse statusResponse; 
-  private String audio;
+  private UtteranceService service = Backends.utteranceService();
+  private PromptService promptService = Backends.promptService();
+  private final AsyncDispatcher dispatcher = AsyncDispatcher.getDefault();
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    dispatcher.dispatch(request, response, this::saveUtterance);
+  }
+
+  private void saveUtterance(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
     response.setContentType("application/json");
 
     // Get the BlobKey of the audio file that has been uploaded to Blobstore
-    audio = service.getAudioBlob(request);
+    String audio = service.getAudioBlob(request);
+
+    // Uploads from older clients carry no prompt id
+    String promptId = getParameter(request, "promptId", "");
+    String userId = request.getParameter("userId");
 
     // Create and save Utterance to Datastore
     Utterance utterance = new Utterance.UtteranceBuilder()
       .setAudio(audio)
-      .setUserId(request.getParameter("userId"))
-      .setPromptId("PROMPTID")
+      .setUserId(userId)
+      .setPromptId(promptId)
       .setDevice(request.getParameter("deviceType"))
       .setAge(Integer.parseInt(request.getParameter("userAge")))
       .setGender(request.getParameter("gender"))
+      .setIdempotencyKey(idempotencyKey(request, userId, promptId, audio))
       .build();
 
     try {
-      service.saveUtterance(utterance);
-      String successJson = new StatusResponse(true).toJson();
-      response.getWriter().println(successJson); 
-    } catch (DatastoreFailureException e) {
-      String failureJson = 
-          new ErrorResponse(false, "Error: Failed to upload Utterance to Datastore.").toJson();
-      response.getWriter().println(failureJson);
+      // A retry of an upload already saved has had its prompt confirmed
+      if (service.saveUtterance(utterance)) {
+        confirmPromptLease(promptId, request.getParameter("leaseToken"), utterance);
+      }
+      new StatusResponse(true).writeTo(response.getWriter());
+    } catch (DatastoreFailureException | UncheckedIOException e) {
+      new ErrorResponse(false, "Error: Failed to upload Utterance to Datastore.")
+          .writeTo(response.getWriter());
+    }
+  }
+
+  // Identify the upload by the key the client sent with every attempt of it or, for older
+  // clients, by what was recorded
+  private String idempotencyKey(HttpServletRequest request, String userId, String promptId,
+      String audio) {
+    String clientKey = request.getParameter("idempotencyKey");
+    if (clientKey != null) {
+      return IdempotencyKeys.fromClientKey(userId, clientKey);
+    }
+    if (promptId.isEmpty() || audio == null) {
+      return null;
+    }
+    return IdempotencyKeys.fromRecording(userId, promptId, service.getAudioHash(request, audio));
+  }
+
+  // End the prompt's lease now that it has been recorded, if the uploader holds it
+  private void confirmPromptLease(String promptId, String leaseToken, Utterance utterance) {
+    try {
+      promptService.confirmPrompt(Long.parseLong(promptId), leaseToken,
+          new SpeakerProfile(utterance.getAge(), utterance.getGender(), utterance.getDevice()));
+    } catch (NumberFormatException e) {
+      // No prompt id was sent, so there is no lease to confirm
     }
   }
 
@@ -77,4 +123,14 @@ public class UtteranceUploadServlet extends HttpServlet {
   public void setService(UtteranceService inputService) {
     service = inputService; 
   }
+
+  /** 
+   * Allow the servlet's Prompt Service to be set for mocking purposes.
+   *
+   * @param inputService The service to serve as the PromptService.
+   */
+  @VisibleForTesting
+  public void setPromptService(PromptService inputService) {
+    promptService = inputService; 
+  }
 }
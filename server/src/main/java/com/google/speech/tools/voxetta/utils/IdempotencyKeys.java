@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.utils;
+
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Derives the keys that identify utterance uploads, so that an upload that is retried is only
+ * saved once.
+ * <p>
+ * Keys are SHA-256 hashes of the user id and either a key the client generated for the upload or
+ * the prompt id and a hash of the recording. Scoping keys by user keeps one client from colliding
+ * with another's uploads, and hashing keeps them short enough to be Datastore key names.
+ */
+public final class IdempotencyKeys {
+
+    // Longer client keys are ignored rather than hashed, since no client needs them.
+    private static final int MAX_CLIENT_KEY_LENGTH = 200;
+
+    private static final Joiner JOINER = Joiner.on('\0');
+
+    private IdempotencyKeys() {
+    }
+
+    /**
+     * @param userId    Id of the speaker.
+     * @param clientKey Key the client sent with every attempt of the upload.
+     * @return the upload's key, or null if the client key is missing or too long.
+     */
+    public static String fromClientKey(String userId, String clientKey) {
+        if (userId == null || clientKey == null || clientKey.isEmpty()
+            || clientKey.length() > MAX_CLIENT_KEY_LENGTH) {
+            return null;
+        }
+        return hash("client", userId, clientKey);
+    }
+
+    /**
+     * @param userId    Id of the speaker.
+     * @param promptId  Id of the prompt that was recorded.
+     * @param audioHash Hash of the recording's content.
+     * @return the upload's key, or null if the prompt or the recording's hash is unknown.
+     */
+    public static String fromRecording(String userId, String promptId, String audioHash) {
+        if (userId == null || promptId == null || promptId.isEmpty() || audioHash == null) {
+            return null;
+        }
+        return hash("recording", userId, promptId, audioHash);
+    }
+
+    private static String hash(Object... parts) {
+        return Hashing.sha256().hashString(JOINER.join(parts), StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.utils;
+
+import com.google.common.io.BaseEncoding;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Creates and checks the tokens prompts are leased under.
+ * <p>
+ * A prompt's lease token is only sent to whoever the prompt was handed out to, so nobody else can
+ * release it. Tokens are 128 random bits, hex encoded.
+ */
+public final class LeaseTokens {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private LeaseTokens() {
+    }
+
+    /**
+     * @return a new, unguessable lease token.
+     */
+    public static String newToken() {
+        byte[] token = new byte[16];
+        random.nextBytes(token);
+        return BaseEncoding.base16().lowerCase().encode(token);
+    }
+
+    /**
+     * Compares lease tokens in constant time.
+     *
+     * @param expected The token the lease was granted under.
+     * @param actual   The token a caller presented.
+     * @return whether both tokens are present and equal.
+     */
+    public static boolean matches(String expected, String actual) {
+        return expected != null && actual != null && MessageDigest.isEqual(
+            expected.getBytes(StandardCharsets.UTF_8), actual.getBytes(StandardCharsets.UTF_8));
+    }
+}
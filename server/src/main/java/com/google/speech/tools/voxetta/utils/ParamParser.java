@@ -16,8 +16,12 @@
 
 package com.google.speech.tools.voxetta.utils;
 
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.util.Optional;
 
 /**
@@ -33,4 +37,69 @@ public class ParamParser {
         String defaultValue) {
         return Optional.ofNullable(request.getParameter(name)).orElse(defaultValue);
     }
+
+    /**
+     * @return the parameter from the request's query string, or the default value if it is not
+     * there. Unlike {@link #getParameter}, this never reads a form-encoded request body, so the
+     * body can still be read as a stream afterwards.
+     */
+    public static String getQueryParameter(HttpServletRequest request, String name,
+        String defaultValue) {
+        String query = request.getQueryString();
+        if (query == null) {
+            return defaultValue;
+        }
+
+        try {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                String key = equals < 0 ? pair : pair.substring(0, equals);
+                if (URLDecoder.decode(key, "UTF-8").equals(name)) {
+                    return equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError("UTF-8 is always supported", e);
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return the request parameter, else the cookie of the same name, or the default value if
+     * neither is found in the request.
+     */
+    public static String getParameterOrCookie(HttpServletRequest request, String name,
+        String defaultValue) {
+        String parameter = request.getParameter(name);
+        if (parameter != null) {
+            return parameter;
+        }
+
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (cookie.getName().equals(name)) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return the profile of the speaker making the request, from the "userAge", "gender" and
+     * "deviceType" parameters or the cookies the client keeps them in. Missing or malformed values
+     * are unknown.
+     */
+    public static SpeakerProfile getSpeakerProfile(HttpServletRequest request) {
+        int age;
+        try {
+            age = Integer.parseInt(getParameterOrCookie(request, "userAge", "0"));
+        } catch (NumberFormatException e) {
+            age = 0;
+        }
+
+        return new SpeakerProfile(age, getParameterOrCookie(request, "gender", null),
+            getParameterOrCookie(request, "deviceType", null));
+    }
 }
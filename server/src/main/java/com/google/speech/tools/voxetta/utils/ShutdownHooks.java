@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.speech.tools.voxetta.utils;
+
+import com.google.appengine.api.LifecycleManager;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs work when App Engine shuts the instance down.
+ * <p>
+ * App Engine stops manual and basic scaling instances through a request to "/_ah/stop", during
+ * which the hook set on {@link LifecycleManager} may still call App Engine APIs such as Datastore.
+ * JVM shutdown hooks run too late for that. The manager only holds one hook, so every hook added
+ * here runs from it, in the order added. Outside App Engine the hooks never run.
+ */
+public final class ShutdownHooks {
+
+    private static final Logger logger = Logger.getLogger(ShutdownHooks.class.getName());
+
+    private static final List<Runnable> hooks = new CopyOnWriteArrayList<>();
+
+    static {
+        LifecycleManager.getInstance().setShutdownHook(ShutdownHooks::runAll);
+    }
+
+    private ShutdownHooks() {
+    }
+
+    /**
+     * Runs {@code hook} when the instance shuts down.
+     *
+     * @param hook Work to do, e.g. writing buffered entities.
+     */
+    public static void add(Runnable hook) {
+        hooks.add(hook);
+    }
+
+    private static void runAll() {
+        for (Runnable hook : hooks) {
+            // One failing hook must not keep the others from running.
+            try {
+                hook.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Shutdown hook failed", e);
+            }
+        }
+    }
+}
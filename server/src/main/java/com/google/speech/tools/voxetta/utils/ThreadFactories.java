@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.utils;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Utility class to create threads for work that runs outside of any request
+ */
+public class ThreadFactories {
+
+    // Only set this where App Engine allows background threads, i.e. basic or manual scaling.
+    private static final boolean BACKGROUND_THREADS =
+        Boolean.getBoolean("voxetta.backgroundThreads");
+
+    /**
+     * @return whether {@link #background(String)} can create threads here: always outside App
+     *     Engine, and on App Engine only when "voxetta.backgroundThreads" is set.
+     */
+    public static boolean backgroundThreadsAvailable() {
+        return SystemProperty.environment.value() == null || BACKGROUND_THREADS;
+    }
+
+    /**
+     * Returns a factory for long-lived background threads.
+     * <p>
+     * On App Engine, only threads created by {@link ThreadManager#backgroundThreadFactory()} may
+     * call App Engine APIs outside of a request, and those require basic or manual scaling, which
+     * is declared by setting "voxetta.backgroundThreads". Outside App Engine (unit tests and
+     * benchmarks), plain daemon threads are used; they inherit the API environment of the thread
+     * that created the factory, so they can use the local service stubs.
+     *
+     * @param nameFormat Format of the thread names, e.g. "prompt-refill-%d".
+     * @throws IllegalStateException on App Engine if background threads are not available.
+     */
+    public static ThreadFactory background(String nameFormat) {
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder().setNameFormat(nameFormat);
+
+        if (SystemProperty.environment.value() == null) {
+            return builder.setDaemon(true).setThreadFactory(inheritingEnvironment()).build();
+        }
+
+        if (!BACKGROUND_THREADS) {
+            throw new IllegalStateException("Background threads for " + nameFormat
+                + " need basic or manual scaling; set voxetta.backgroundThreads if it is declared");
+        }
+        return builder.setThreadFactory(ThreadManager.backgroundThreadFactory()).build();
+    }
+
+    /**
+     * Returns an executor on a single background thread, or, where background threads are not
+     * available, one that runs each task on the calling thread.
+     *
+     * @param nameFormat Format of the thread names, e.g. "prompt-refill-%d".
+     */
+    public static Executor backgroundOrDirect(String nameFormat) {
+        if (!backgroundThreadsAvailable()) {
+            return MoreExecutors.directExecutor();
+        }
+        return Executors.newSingleThreadExecutor(background(nameFormat));
+    }
+
+    /**
+     * Returns a factory for threads that help serve the current request.
+     * <p>
+     * On App Engine these are created by {@link ThreadManager#currentRequestThreadFactory()}, so
+     * they may call App Engine APIs but must finish before the request does. Must be called on a
+     * request thread.
+     */
+    public static ThreadFactory request() {
+        if (SystemProperty.environment.value() != null) {
+            return ThreadManager.currentRequestThreadFactory();
+        }
+
+        // Only reached outside App Engine, where there is no request to tie threads to.
+
+        return new ThreadFactoryBuilder().setDaemon(true)
+            .setThreadFactory(inheritingEnvironment()).build();
+    }
+
+    // Runs new threads with the creating thread's API environment, if it has one. Only used
+    // outside App Engine, where that environment is a local test stub.
+    private static ThreadFactory inheritingEnvironment() {
+        ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        if (environment == null) {
+            return Executors.defaultThreadFactory();
+        }
+
+        return runnable -> Executors.defaultThreadFactory().newThread(() -> {
+            ApiProxy.setEnvironmentForCurrentThread(environment);
+            runnable.run();
+        });
+    }
+}
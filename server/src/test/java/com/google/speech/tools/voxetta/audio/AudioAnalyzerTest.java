@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.audio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AudioAnalyzerTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    // Small buffers, so every recording spans many refills.
+    private final ByteBufferPool bufferPool = new ByteBufferPool(64, 1);
+    private final AudioAnalyzer analyzer = new AudioAnalyzer(bufferPool);
+
+    /**
+     * Builds a mono 16-bit WAV file: {@code silentSeconds} of faint noise followed by
+     * {@code toneSeconds} of a 440 Hz tone at the given amplitude.
+     */
+    private static byte[] wav(double silentSeconds, double toneSeconds, double amplitude) {
+        int silentSamples = (int) (silentSeconds * SAMPLE_RATE);
+        int samples = silentSamples + (int) (toneSeconds * SAMPLE_RATE);
+
+        ByteBuffer wav = ByteBuffer.allocate(44 + samples * 2).order(ByteOrder.LITTLE_ENDIAN);
+        wav.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(36 + samples * 2)
+            .put("WAVE".getBytes(StandardCharsets.US_ASCII))
+            .put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16)
+            .putShort((short) 1).putShort((short) 1).putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2)
+            .putShort((short) 2).putShort((short) 16)
+            .put("data".getBytes(StandardCharsets.US_ASCII)).putInt(samples * 2);
+
+        for (int i = 0; i < samples; i++) {
+            double sample = i < silentSamples
+                ? (i % 2 == 0 ? 0.001 : -0.001)
+                : amplitude * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE);
+            wav.putShort((short) Math.max(Short.MIN_VALUE,
+                Math.min(Short.MAX_VALUE, Math.round(sample * 32768))));
+        }
+        return wav.array();
+    }
+
+    /**
+     * Builds a WebM file as recorded by a browser: unknown-size segment and clusters, and one
+     * SimpleBlock per 20 ms Opus packet.
+     */
+    private static byte[] webm(int packets) throws IOException {
+        // Track 1, timecode, keyframe flag, then a CELT 20 ms single-frame packet.
+        byte[] block = {(byte) 0xA3, (byte) (0x80 + 14), (byte) 0x81, 0, 0, (byte) 0x80,
+            (byte) 0xF8, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        return webm(block, packets);
+    }
+
+    /**
+     * Builds the same WebM file with the given SimpleBlock, header included, repeated.
+     */
+    private static byte[] webm(byte[] block, int blocks) throws IOException {
+        ByteArrayOutputStream webm = new ByteArrayOutputStream();
+        webm.write(new byte[] {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3, (byte) 0x84, 0x42, (byte) 0x82,
+            (byte) 0x81, 0x77});
+        webm.write(new byte[] {0x18, 0x53, (byte) 0x80, 0x67, 0x01, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+
+        byte[] codec = "A_OPUS".getBytes(StandardCharsets.US_ASCII);
+        webm.write(new byte[] {0x16, 0x54, (byte) 0xAE, 0x6B, (byte) (0x80 + 13)});
+        webm.write(new byte[] {(byte) 0xAE, (byte) (0x80 + 11), (byte) 0xD7, (byte) 0x81, 0x01,
+            (byte) 0x86, (byte) (0x80 + codec.length)});
+        webm.write(codec);
+
+        webm.write(new byte[] {0x1F, 0x43, (byte) 0xB6, 0x75, 0x01, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        for (int i = 0; i < blocks; i++) {
+            webm.write(block);
+        }
+        return webm.toByteArray();
+    }
+
+    // Hands out at most a few bytes per read, like a network stream.
+    private static ReadableByteChannel trickle(byte[] bytes) {
+        return Channels.newChannel(new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        });
+    }
+
+    @Test
+    public void analyze_Speechlike_Passes() throws Exception {
+        AudioQuality quality = analyzer.analyze(trickle(wav(1.0, 2.0, 0.5)));
+
+        Assert.assertTrue(quality.isDecoded());
+        Assert.assertEquals(3.0, quality.getDurationSeconds(), 1e-3);
+        Assert.assertEquals(0.5, quality.getPeak(), 1e-3);
+        Assert.assertEquals(0.5 / Math.sqrt(2) * Math.sqrt(2.0 / 3), quality.getRms(), 1e-3);
+        Assert.assertEquals(0, quality.getClippingRatio(), 0);
+        Assert.assertTrue(quality.getSnrDb() > 40);
+        Assert.assertEquals(2.0, quality.getVoicedSeconds(), 0.05);
+        Assert.assertNull(quality.getFailureReason());
+    }
+
+    @Test
+    public void analyze_Short_Fails() throws Exception {
+        AudioQuality quality = analyzer.analyze(trickle(wav(0, 1.5, 0.5)));
+
+        Assert.assertEquals("Recording is too short", quality.getFailureReason());
+    }
+
+    @Test
+    public void analyze_Quiet_Fails() throws Exception {
+        AudioQuality quality = analyzer.analyze(trickle(wav(1.0, 2.0, 0.05)));
+
+        Assert.assertEquals("Recording is too silent", quality.getFailureReason());
+    }
+
+    @Test
+    public void analyze_Clipped_Fails() throws Exception {
+        AudioQuality quality = analyzer.analyze(trickle(wav(0, 3.0, 2.0)));
+
+        Assert.assertTrue(quality.getClippingRatio() > 0.5);
+        Assert.assertEquals("Recording is clipped", quality.getFailureReason());
+    }
+
+    @Test
+    public void analyze_SteadyHum_HasNoSpeech() throws Exception {
+        AudioQuality quality = analyzer.analyze(trickle(wav(0, 3.0, 0.5)));
+
+        Assert.assertEquals(0, quality.getVoicedSeconds(), 0);
+        Assert.assertEquals("Recording has no speech", quality.getFailureReason());
+    }
+
+    @Test
+    public void analyze_WebmOpus_MeasuresDuration() throws Exception {
+        AudioQuality quality = analyzer.analyze(trickle(webm(150)));
+
+        Assert.assertFalse(quality.isDecoded());
+        Assert.assertEquals(3.0, quality.getDurationSeconds(), 1e-9);
+        Assert.assertNull(quality.getFailureReason());
+    }
+
+    @Test
+    public void analyze_WebmOpusLacedCode3_MeasuresDuration() throws Exception {
+        // Xiph lacing of two 4-byte code 3 packets, each three CELT 20 ms frames.
+        byte[] block = {(byte) 0xA3, (byte) (0x80 + 14), (byte) 0x81, 0, 0, (byte) 0x82, 0x01,
+            0x04, (byte) 0xFB, 0x03, 0, 0, (byte) 0xFB, 0x03, 0, 0};
+        byte[] webm = webm(block, 25);
+
+        // One byte per read, so only the bytes ensured are ever buffered.
+        AudioQuality quality = analyzer.analyze(Channels.newChannel(new ByteArrayInputStream(webm) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        }));
+
+        Assert.assertEquals(3.0, quality.getDurationSeconds(), 1e-9);
+    }
+
+    @Test
+    public void analyze_Ogg_IsUnsupported() throws IOException {
+        byte[] ogg = "OggS\0\0\0\0\0\0\0\0".getBytes(StandardCharsets.US_ASCII);
+
+        try {
+            analyzer.analyze(Channels.newChannel(new ByteArrayInputStream(ogg)));
+            Assert.fail();
+        } catch (UnsupportedAudioFileException e) {
+            Assert.assertEquals("Unsupported audio format: ogg", e.getMessage());
+        }
+    }
+
+    @Test
+    public void analyze_ReusesPooledBuffer() throws Exception {
+        analyzer.analyze(trickle(wav(0, 0.1, 0.5)));
+        ByteBuffer pooled = bufferPool.acquire();
+        bufferPool.release(pooled);
+
+        analyzer.analyze(trickle(webm(1)));
+
+        Assert.assertEquals(1, bufferPool.size());
+        Assert.assertSame(pooled, bufferPool.acquire());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.speech.tools.voxetta.data.Prompt.Type;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Verifies that the hand-written adapters write what reflective Gson used to.
+ */
+public class JsonSerializationTest {
+
+    private final Gson reflectiveGson = new Gson();
+
+    private void assertSameJson(Object value) {
+        Assert.assertEquals(JsonParser.parseString(reflectiveGson.toJson(value)),
+            JsonParser.parseString(JsonSerialization.toJson(value)));
+    }
+
+    @Test
+    public void toJson_Prompt_MatchesReflectiveGson() {
+        assertSameJson(new Prompt(42, Type.TEXT, "a \"quoted\" body"));
+        assertSameJson(new Prompt(42, Type.IMAGE, null));
+    }
+
+    @Test
+    public void toJson_Responses_MatchReflectiveGson() {
+        assertSameJson(new StatusResponse(true));
+        assertSameJson(new ErrorResponse(false, "Error: Invalid prompt id"));
+        assertSameJson(new ErrorResponse(false, null));
+        assertSameJson(new UrlResponse(true, "https://example.com/_ah/upload/abc"));
+        assertSameJson(new ResetProgressResponse(true, 10, 4, null, true));
+        assertSameJson(new BulkUploadResponse(false, 3, 1,
+            Arrays.asList(new BulkUploadResponse.RowError(2, "Missing body"))));
+    }
+
+    @Test
+    public void writeTo_Response_WritesSameLineAsPrintln() throws IOException {
+        ErrorResponse response = new ErrorResponse(false, "Error: Invalid prompt id");
+        StringWriter out = new StringWriter();
+
+        response.writeTo(out);
+
+        StringWriter printed = new StringWriter();
+        new PrintWriter(printed).println(response.toJson());
+        Assert.assertEquals(printed.toString(), out.toString());
+    }
+
+    @Test
+    public void gson_ReadsWhatItWrote() {
+        Gson gson = JsonSerialization.gson();
+
+        Prompt prompt = gson.fromJson(JsonSerialization.toJson(new Prompt(42, Type.TEXT, "body")),
+            Prompt.class);
+        String errorJson =
+            JsonSerialization.toJson(new ErrorResponse(false, "Error: Invalid prompt id"));
+        ErrorResponse response = gson.fromJson(errorJson, ErrorResponse.class);
+
+        Assert.assertEquals(42, prompt.getId());
+        Assert.assertEquals(Type.TEXT, prompt.getType());
+        Assert.assertEquals("body", prompt.getBody());
+        Assert.assertEquals(errorJson, JsonSerialization.toJson(response));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.embedded;
+
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.Utterance;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EmbeddedStoreTest {
+
+    private static final long LEASE_MILLIS = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private EmbeddedStore store;
+
+    @Before
+    public void openStore() throws IOException {
+        directory = folder.newFolder("store").toPath();
+        store = EmbeddedStore.open(directory, false);
+    }
+
+    @After
+    public void closeStore() throws IOException {
+        store.close();
+    }
+
+    private EmbeddedStore reopen() throws IOException {
+        store.close();
+        store = EmbeddedStore.open(directory, false);
+        return store;
+    }
+
+    @Test
+    public void leaseNext_HandsOutPromptsInOrderOnce() throws IOException {
+        store.savePrompt("text", "first");
+        store.savePrompt("image", "https://example.com/second.png");
+
+        Prompt first = store.leaseNext(0, LEASE_MILLIS);
+        Prompt second = store.leaseNext(0, LEASE_MILLIS);
+
+        Assert.assertEquals("first", first.getBody());
+        Assert.assertEquals(Prompt.Type.IMAGE, second.getType());
+        Assert.assertNull(store.leaseNext(0, LEASE_MILLIS));
+    }
+
+    @Test
+    public void savePrompt_RejectsInvalidType() throws IOException {
+        try {
+            store.savePrompt("video", "body");
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        Assert.assertEquals(0, store.unreadPrompts());
+    }
+
+    @Test
+    public void release_MakesLeasedPromptUnreadAgain() throws IOException {
+        long promptId = store.savePrompt("text", "body").getId();
+        String leaseToken = store.leaseNext(0, LEASE_MILLIS).getLeaseToken();
+
+        Assert.assertFalse(store.release(promptId, "someone else's", 0));
+        Assert.assertTrue(store.release(promptId, leaseToken, 0));
+        Assert.assertFalse(store.release(promptId, leaseToken, 0));
+        Assert.assertEquals(promptId, store.leaseNext(0, LEASE_MILLIS).getId());
+    }
+
+    @Test
+    public void release_IgnoresConfirmedPrompt() throws IOException {
+        long promptId = store.savePrompt("text", "body").getId();
+        String leaseToken = store.leaseNext(0, LEASE_MILLIS).getLeaseToken();
+        store.confirm(promptId, leaseToken);
+
+        Assert.assertFalse(store.release(promptId, leaseToken, 0));
+        Assert.assertNull(store.leaseNext(0, LEASE_MILLIS));
+    }
+
+    @Test
+    public void leaseNext_ReclaimsExpiredLease() throws IOException {
+        long promptId = store.savePrompt("text", "body").getId();
+        store.leaseNext(0, LEASE_MILLIS);
+
+        Assert.assertNull(store.leaseNext(LEASE_MILLIS - 1, LEASE_MILLIS));
+        Assert.assertEquals(promptId, store.leaseNext(LEASE_MILLIS, LEASE_MILLIS).getId());
+    }
+
+    @Test
+    public void confirm_RequiresLeaseToken() throws IOException {
+        long unleased = store.savePrompt("text", "unleased").getId();
+        Assert.assertFalse(store.confirm(unleased, null));
+
+        long leased = store.leaseNext(0, LEASE_MILLIS).getId();
+        Assert.assertFalse(store.confirm(leased, "someone else's"));
+        Assert.assertEquals(leased, store.leaseNext(LEASE_MILLIS, LEASE_MILLIS).getId());
+    }
+
+    @Test
+    public void confirm_KeepsExpiredLeaseFromBeingReclaimed() throws IOException {
+        long promptId = store.savePrompt("text", "body").getId();
+        String leaseToken = store.leaseNext(0, LEASE_MILLIS).getLeaseToken();
+        Assert.assertTrue(store.confirm(promptId, leaseToken));
+
+        Assert.assertNull(store.leaseNext(LEASE_MILLIS * 2, LEASE_MILLIS));
+    }
+
+    @Test
+    public void open_ReplaysPromptStates() throws IOException {
+        long confirmed = store.savePrompt("text", "confirmed").getId();
+        long leased = store.savePrompt("text", "leased").getId();
+        long unread = store.savePrompt("text", "unread").getId();
+        long now = System.currentTimeMillis();
+        String leaseToken = store.leaseNext(now, LEASE_MILLIS).getLeaseToken();
+        store.leaseNext(now, 60 * LEASE_MILLIS);
+        store.confirm(confirmed, leaseToken);
+        store.saveUtterance(new Utterance.UtteranceBuilder().setAudio("audio").setUserId("user")
+            .setPromptId(Long.toString(confirmed)).setDevice("Pixelbook").setAge(20)
+            .setGender("Female").build());
+
+        reopen();
+
+        Assert.assertEquals(1, store.unreadPrompts());
+        Assert.assertEquals(1, store.utterances());
+        Assert.assertEquals(unread, store.leaseNext(now, LEASE_MILLIS).getId());
+        // Lease tokens are not persisted, so the lease runs out instead of being released
+        Assert.assertFalse(store.release(leased, null, now));
+        Assert.assertNull(store.leaseNext(now, LEASE_MILLIS));
+        Assert.assertEquals(unread + 1, store.savePrompt("text", "new").getId());
+    }
+
+    @Test
+    public void open_DiscardsTornRecord() throws IOException {
+        store.savePrompt("text", "kept");
+        store.savePrompt("text", "torn");
+        store.close();
+
+        // Cut the last record short, as a crash in the middle of an append would.
+        Path log = directory.resolve("prompts.log");
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        store = EmbeddedStore.open(directory, false);
+
+        Assert.assertEquals(1, store.unreadPrompts());
+        Assert.assertEquals("kept", store.leaseNext(0, LEASE_MILLIS).getBody());
+
+        // New records are appended where the intact ones end. The lease above ran out while the
+        // store was closed, so "kept" is unread again.
+        store.savePrompt("text", "after");
+        reopen();
+        Assert.assertEquals(2, store.unreadPrompts());
+    }
+
+    @Test
+    public void saveUtterance_SameIdempotencyKey_SavedOnceAcrossReopen() throws IOException {
+        Utterance utterance = new Utterance.UtteranceBuilder().setAudio("audio").setUserId("user")
+            .setPromptId("1").setDevice("Pixelbook").setAge(20).setGender("Female")
+            .setIdempotencyKey("key").build();
+
+        Assert.assertTrue(store.saveUtterance(utterance));
+        Assert.assertFalse(store.saveUtterance(utterance));
+        reopen();
+        Assert.assertFalse(store.saveUtterance(utterance));
+
+        Assert.assertEquals(1, store.utterances());
+        Assert.assertEquals(1, store.recordings(1));
+        Assert.assertEquals(0, store.recordings(2));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.embedded;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalAudioStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private LocalAudioStore store;
+
+    @Before
+    public void createStore() throws IOException {
+        directory = folder.newFolder("audio").toPath();
+        store = new LocalAudioStore(directory);
+    }
+
+    private static byte[] read(FileChannel channel) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+        while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+        }
+        return bytes.array();
+    }
+
+    private long storedFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    @Test
+    public void save_KeysRecordingBySha256() throws IOException {
+        String key = store.save(new ByteArrayInputStream("abc".getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+            key);
+    }
+
+    @Test
+    public void save_StoresLargeRecordingIntact() throws IOException {
+        byte[] audio = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(audio);
+
+        String key = store.save(new ByteArrayInputStream(audio));
+
+        try (FileChannel recording = store.open(key)) {
+            Assert.assertArrayEquals(audio, read(recording));
+        }
+    }
+
+    @Test
+    public void save_StoresDuplicateRecordingOnce() throws IOException {
+        byte[] audio = "RIFF....WAVEfmt ".getBytes(StandardCharsets.US_ASCII);
+
+        String first = store.save(new ByteArrayInputStream(audio));
+        String second = store.save(new ByteArrayInputStream(audio));
+
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(1, storedFiles());
+    }
+
+    @Test
+    public void open_RejectsMissingAndMalformedKeys() throws IOException {
+        Assert.assertNull(store.open(
+            "0000000000000000000000000000000000000000000000000000000000000000"));
+        Assert.assertNull(store.open("../../etc/passwd"));
+        Assert.assertNull(store.open(null));
+    }
+
+    @Test
+    public void contentType_RecognizesContainers() throws IOException {
+        String wav = store.save(new ByteArrayInputStream(
+            "RIFF....WAVEfmt ".getBytes(StandardCharsets.US_ASCII)));
+        String other = store.save(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+
+        try (FileChannel recording = store.open(wav)) {
+            Assert.assertEquals("audio/wav", LocalAudioStore.contentType(recording));
+        }
+        try (FileChannel recording = store.open(other)) {
+            Assert.assertEquals("application/octet-stream", LocalAudioStore.contentType(recording));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.export;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.speech.tools.voxetta.data.ExportProgressResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UtteranceExporterTest {
+
+    private static final byte[] WAV = "RIFF....WAVEfmt ".getBytes(StandardCharsets.US_ASCII);
+
+    private LocalServiceTestHelper serviceHelper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    private DatastoreService datastoreService;
+    private final Map<String, byte[]> blobs = new HashMap<>();
+    private final MemorySink sink = new MemorySink();
+
+    @Before
+    public void setUpServiceHelper() {
+        serviceHelper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @After
+    public void tearDownServiceHelper() {
+        serviceHelper.tearDown();
+    }
+
+    private UtteranceExporter exporter(int shardSize) {
+        return new UtteranceExporter(datastoreService, blobs::get, sink,
+            MoreExecutors.directExecutor(), shardSize, 2);
+    }
+
+    private void saveUtterances(int count) {
+        Entity prompt = new Entity("Prompt", 7);
+        prompt.setProperty("type", "text");
+        prompt.setProperty("body", "the quick brown fox");
+        datastoreService.put(prompt);
+
+        for (int i = 1; i <= count; i++) {
+            Entity utterance = new Entity("Utterance", i);
+            utterance.setProperty("audioKey", "blob-" + i);
+            utterance.setProperty("promptId", "7");
+            utterance.setProperty("age", 30);
+            datastoreService.put(utterance);
+            blobs.put("blob-" + i, WAV);
+        }
+    }
+
+    // Names and contents of the files in a tar archive.
+    private static Map<String, byte[]> untar(byte[] tar) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        int offset = 0;
+        while (tar[offset] != 0) {
+            String name = new String(tar, offset, 100, StandardCharsets.US_ASCII).trim();
+            int size = Integer.parseInt(
+                new String(tar, offset + 124, 11, StandardCharsets.US_ASCII), 8);
+            byte[] content = new byte[size];
+            System.arraycopy(tar, offset + 512, content, 0, size);
+            files.put(name, content);
+            offset += 512 + (size + 511) / 512 * 512;
+        }
+        return files;
+    }
+
+    @Test
+    public void run_WritesShardsAndManifest() throws IOException {
+        saveUtterances(5);
+        blobs.remove("blob-5");
+
+        ExportProgressResponse progress = exporter(2).run(Long.MAX_VALUE);
+
+        Assert.assertTrue(progress.isDone());
+        Assert.assertEquals(5, progress.getUtterances());
+        Assert.assertEquals(1, progress.getMissingAudio());
+
+        Map<String, byte[]> firstShard = untar(sink.files.get("shard-000000.tar"));
+        Assert.assertEquals(4, firstShard.size());
+        Assert.assertArrayEquals(WAV, firstShard.get("utterance-1.wav"));
+        JsonObject metadata = JsonParser.parseString(
+            new String(firstShard.get("utterance-1.json"), StandardCharsets.UTF_8))
+            .getAsJsonObject();
+        Assert.assertEquals("the quick brown fox", metadata.get("promptBody").getAsString());
+        Assert.assertEquals(30, metadata.get("age").getAsInt());
+        Assert.assertEquals("utterance-1.wav", metadata.get("audioFile").getAsString());
+
+        Assert.assertEquals(1, untar(sink.files.get("shard-000002.tar")).size());
+        Assert.assertEquals(2, new String(sink.files.get("shard-000001.jsonl"),
+            StandardCharsets.UTF_8).split("\n").length);
+
+        JsonObject manifest = JsonParser.parseString(
+            new String(sink.files.get(UtteranceExporter.MANIFEST), StandardCharsets.UTF_8))
+            .getAsJsonObject();
+        Assert.assertEquals(3, manifest.getAsJsonArray("shards").size());
+    }
+
+    @Test
+    public void run_OutOfTime_ResumesFromCheckpoint() throws IOException {
+        saveUtterances(5);
+
+        ExportProgressResponse first = exporter(2).run(0);
+        Assert.assertFalse(first.isDone());
+        Assert.assertEquals(1, first.getShardsWritten());
+        Assert.assertEquals(2, first.getUtterances());
+
+        ExportProgressResponse rest = exporter(2).run(Long.MAX_VALUE);
+        Assert.assertTrue(rest.isDone());
+        Assert.assertEquals(2, rest.getShardsWritten());
+        Assert.assertEquals(5, rest.getUtterances());
+        Assert.assertEquals(Arrays.asList("utterance-5.json", "utterance-5.wav"),
+            new ArrayList<>(untar(sink.files.get("shard-000002.tar")).keySet()));
+    }
+
+    @Test
+    public void run_FailedFetch_LeavesNoPartialShard() throws IOException {
+        saveUtterances(3);
+        UtteranceExporter exporter = new UtteranceExporter(datastoreService, audioKey -> {
+            if (audioKey.equals("blob-3")) {
+                throw new IOException("Blobstore unavailable");
+            }
+            return blobs.get(audioKey);
+        }, sink, Executors.newFixedThreadPool(2), 2, 2);
+
+        try {
+            exporter.run(Long.MAX_VALUE);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("Blobstore unavailable", e.getMessage());
+        }
+
+        Assert.assertTrue(sink.files.containsKey("shard-000000.tar"));
+        Assert.assertFalse(sink.files.containsKey("shard-000001.tar"));
+
+        ExportProgressResponse resumed = exporter(2).run(Long.MAX_VALUE);
+        Assert.assertEquals(1, resumed.getShardsWritten());
+        Assert.assertEquals(3, resumed.getUtterances());
+    }
+
+    @Test
+    public void entryName_NamedKey_IsSanitized() {
+        Assert.assertEquals("utterance-12", UtteranceExporter.entryName(
+            KeyFactory.createKey("Utterance", 12)));
+        Assert.assertEquals("utterance-a_b_c-1", UtteranceExporter.entryName(
+            KeyFactory.createKey("Utterance", "a.b/c-1")));
+    }
+
+    // Keeps committed files in memory.
+    private static class MemorySink implements ExportSink {
+
+        private final Map<String, byte[]> files = new HashMap<>();
+
+        @Override
+        public PendingFile create(String name) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            return new PendingFile() {
+                @Override
+                public OutputStream stream() {
+                    return out;
+                }
+
+                @Override
+                public void commit() {
+                    files.put(name, out.toByteArray());
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public byte[] read(String name) {
+            return files.get(name);
+        }
+    }
+}
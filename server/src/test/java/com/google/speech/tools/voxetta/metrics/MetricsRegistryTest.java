@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    private String prometheusText() throws IOException {
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        return out.toString();
+    }
+
+    @Test
+    public void counter_SameNameAndLabels_ReturnsSameCounter() {
+        Assert.assertSame(metrics.counter("errors", "endpoint", "/prompt"),
+            metrics.counter("errors", "endpoint", "/prompt"));
+        Assert.assertNotSame(metrics.counter("errors", "endpoint", "/prompt"),
+            metrics.counter("errors", "endpoint", "/metrics"));
+    }
+
+    @Test
+    public void writePrometheus_LabelledCounter_WritesTotal() throws IOException {
+        metrics.counter("upload_url_pool_hits").add(3);
+        metrics.counter("http_request_errors", "endpoint", "/prompt").increment();
+
+        String text = prometheusText();
+
+        Assert.assertTrue(text.contains("# TYPE voxetta_upload_url_pool_hits_total counter\n"
+            + "voxetta_upload_url_pool_hits_total 3\n"));
+        Assert.assertTrue(
+            text.contains("voxetta_http_request_errors_total{endpoint=\"/prompt\"} 1\n"));
+    }
+
+    @Test
+    public void writePrometheus_Histogram_WritesCumulativeBuckets() throws IOException {
+        Histogram histogram = metrics.histogram("latency_seconds", "endpoint", "/prompt");
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(300));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+        histogram.record(TimeUnit.SECONDS.toNanos(60));
+
+        String text = prometheusText();
+
+        Assert.assertTrue(text.contains("# TYPE voxetta_latency_seconds histogram\n"));
+        Assert.assertTrue(text.contains(
+            "voxetta_latency_seconds_bucket{endpoint=\"/prompt\",le=\"5.0E-4\"} 1\n"));
+        Assert.assertTrue(text.contains(
+            "voxetta_latency_seconds_bucket{endpoint=\"/prompt\",le=\"0.005\"} 2\n"));
+        Assert.assertTrue(text.contains(
+            "voxetta_latency_seconds_bucket{endpoint=\"/prompt\",le=\"30.0\"} 2\n"));
+        Assert.assertTrue(text.contains(
+            "voxetta_latency_seconds_bucket{endpoint=\"/prompt\",le=\"+Inf\"} 3\n"));
+        Assert.assertTrue(text.contains("voxetta_latency_seconds_count{endpoint=\"/prompt\"} 3\n"));
+    }
+
+    @Test
+    public void writePrometheus_Gauge_ReadsCurrentValue() throws IOException {
+        long[] value = {1};
+        metrics.gauge("in_flight", () -> value[0], "endpoint", "/prompt");
+        value[0] = 5;
+
+        Assert.assertTrue(prometheusText().contains("voxetta_in_flight{endpoint=\"/prompt\"} 5\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void counter_OddLabels_Throws() {
+        metrics.counter("errors", "endpoint");
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Mockito;
+
+/** 
+ * Verifies the intended behavior of AudioQualityControl.java. 
+ */
+public final class AudioQualityControlTest {
+
+  private LocalServiceTestHelper serviceHelper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+          .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+  private DatastoreService datastoreService;
+  private ScheduledExecutorService retryScheduler;
+  private byte[] audio;
+  private AudioQualityControl qualityControl;
+
+  @Before
+  public void setUp() {
+    serviceHelper.setUp();
+    datastoreService = DatastoreServiceFactory.getDatastoreService();
+    retryScheduler = Mockito.mock(ScheduledExecutorService.class);
+    qualityControl = new AudioQualityControl(datastoreService,
+        audioKey -> Channels.newChannel(new ByteArrayInputStream(audio)), MoreExecutors.directExecutor(),
+        retryScheduler);
+  }
+
+  @After
+  public void tearDown() {
+    serviceHelper.tearDown();
+  }
+
+  private Entity saveUtterance(String audioKey) {
+    Entity utterance = new Entity("Utterance");
+    utterance.setProperty("audioKey", audioKey);
+    datastoreService.put(utterance);
+    return utterance;
+  }
+
+  // Half a second of silence, then two and a half seconds of a loud 16 kHz square wave.
+  private static byte[] squareWave() {
+    int samples = 3 * 16000;
+    ByteBuffer wav = ByteBuffer.allocate(44 + samples * 2).order(ByteOrder.LITTLE_ENDIAN);
+    wav.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(36 + samples * 2)
+        .put("WAVE".getBytes(StandardCharsets.US_ASCII))
+        .put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16)
+        .putShort((short) 1).putShort((short) 1).putInt(16000).putInt(32000)
+        .putShort((short) 2).putShort((short) 16)
+        .put("data".getBytes(StandardCharsets.US_ASCII)).putInt(samples * 2);
+    for (int i = 0; i < samples; i++) {
+      short level = (short) (i < 8000 ? 0 : 16000);
+      wav.putShort((short) ((i / 20) % 2 == 0 ? level : -level));
+    }
+    return wav.array();
+  }
+
+  @Test
+  public void submit_Wav_SavesMeasurements() throws Exception {
+    Entity utterance = saveUtterance("blob-1");
+    audio = squareWave();
+
+    qualityControl.submit(utterance.getKey(), "blob-1");
+
+    Entity checked = datastoreService.get(utterance.getKey());
+    Assert.assertEquals("passed", checked.getProperty("qcStatus"));
+    Assert.assertEquals(3.0, (double) checked.getProperty("qcDurationSeconds"), 1e-3);
+    Assert.assertEquals(16000 / 32768.0, (double) checked.getProperty("qcPeak"), 1e-3);
+    Assert.assertEquals(2.5, (double) checked.getProperty("qcVoicedSeconds"), 0.05);
+    Assert.assertEquals("blob-1", checked.getProperty("audioKey"));
+  }
+
+  @Test
+  public void submit_Webm_SavesUnsupported() throws Exception {
+    Entity utterance = saveUtterance("blob-1");
+    audio = new byte[] {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    qualityControl.submit(utterance.getKey(), "blob-1");
+
+    Entity checked = datastoreService.get(utterance.getKey());
+    Assert.assertEquals("unsupported", checked.getProperty("qcStatus"));
+    Assert.assertNull(checked.getProperty("qcPeak"));
+  }
+
+  @Test
+  public void submit_UtteranceNotSavedYet_RetriesWriteBack() {
+    audio = squareWave();
+
+    qualityControl.submit(KeyFactory.createKey("Utterance", "not-saved-yet"), "blob-1");
+
+    Mockito.verify(retryScheduler).schedule(
+        Mockito.any(Runnable.class), Mockito.eq(1000L), Mockito.eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void submit_DatastoreTimesOut_RetriesWriteBack() {
+    Entity utterance = saveUtterance("blob-1");
+    audio = squareWave();
+    DatastoreService timingOut =
+        Mockito.mock(DatastoreService.class, AdditionalAnswers.delegatesTo(datastoreService));
+    Mockito.doThrow(new DatastoreTimeoutException("Timeout"))
+        .when(timingOut).put(Mockito.any(Entity.class));
+    qualityControl.setDatastoreService(timingOut);
+
+    qualityControl.submit(utterance.getKey(), "blob-1");
+
+    Mockito.verify(retryScheduler).schedule(
+        Mockito.any(Runnable.class), Mockito.eq(1000L), Mockito.eq(TimeUnit.MILLISECONDS));
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.Prompt.Type;
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoverageSchedulerTest {
+
+    private static final long HAND_OUT_MILLIS = 1000;
+
+    private static final SpeakerProfile YOUNG_WOMAN = new SpeakerProfile(25, "Female", "Mobile");
+    private static final SpeakerProfile OLD_MAN = new SpeakerProfile(70, "Male", "Desktop");
+
+    private CoverageScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new CoverageScheduler(2, HAND_OUT_MILLIS, 10, 10);
+        for (long id = 1; id <= 3; id++) {
+            scheduler.addPrompt(new Prompt(id, Type.TEXT, "prompt " + id));
+        }
+    }
+
+    private List<Long> handOut(SpeakerProfile speaker, int count, long now) {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Prompt prompt = scheduler.next(speaker, now);
+            ids.add(prompt == null ? null : prompt.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void next_OneBucket_CyclesThroughPromptsUntilEachIsNeededNoMore() {
+        Assert.assertEquals(Arrays.asList(1L, 2L, 3L, 1L, 2L, 3L, null),
+            handOut(YOUNG_WOMAN, 7, 0));
+    }
+
+    @Test
+    public void next_BucketsAreIndependent() {
+        handOut(YOUNG_WOMAN, 6, 0);
+
+        Assert.assertEquals(Arrays.asList(1L, 2L, 3L), handOut(OLD_MAN, 3, 0));
+        Assert.assertEquals(2, scheduler.bucketCount());
+    }
+
+    @Test
+    public void next_PromptRecordedElsewhere_HandsOutMostNeededFirst() {
+        scheduler.setPersistedCount(1, YOUNG_WOMAN.getBucket(), 2);
+        scheduler.setPersistedCount(2, YOUNG_WOMAN.getBucket(), 1);
+
+        Assert.assertEquals(Arrays.asList(3L, 2L, 3L, null), handOut(YOUNG_WOMAN, 4, 0));
+    }
+
+    @Test
+    public void next_HandOutExpires_PromptIsNeededAgain() {
+        handOut(YOUNG_WOMAN, 6, 0);
+        Assert.assertNull(scheduler.next(YOUNG_WOMAN, HAND_OUT_MILLIS - 1));
+
+        Assert.assertEquals(Arrays.asList(1L, 2L, 3L), handOut(YOUNG_WOMAN, 3, HAND_OUT_MILLIS));
+    }
+
+    @Test
+    public void recorded_EndsHandOut_SoItDoesNotExpireIntoDemand() {
+        String leaseToken = scheduler.next(YOUNG_WOMAN, 0).getLeaseToken();
+        Assert.assertTrue(scheduler.recorded(1, leaseToken, YOUNG_WOMAN));
+        Assert.assertEquals(1, scheduler.demand(1, YOUNG_WOMAN));
+
+        // Expiring the recorded hand-out must not give its demand back.
+        scheduler.next(YOUNG_WOMAN, HAND_OUT_MILLIS);
+        Assert.assertEquals(1, scheduler.demand(1, YOUNG_WOMAN));
+    }
+
+    @Test
+    public void recorded_UnderAnotherToken_LeavesHandOutOpen() {
+        String leaseToken = scheduler.next(YOUNG_WOMAN, 0).getLeaseToken();
+
+        Assert.assertFalse(scheduler.recorded(1, "someone else's", YOUNG_WOMAN));
+        Assert.assertEquals(0, scheduler.demand(1, YOUNG_WOMAN));
+        Assert.assertTrue(scheduler.release(1, leaseToken));
+    }
+
+    @Test
+    public void release_HandedOutPrompt_IsNeededAgain() {
+        String leaseToken = scheduler.next(YOUNG_WOMAN, 0).getLeaseToken();
+
+        Assert.assertFalse(scheduler.release(1, "someone else's"));
+        Assert.assertTrue(scheduler.release(1, leaseToken));
+        Assert.assertFalse(scheduler.release(1, leaseToken));
+        Assert.assertEquals(2, scheduler.demand(1, YOUNG_WOMAN));
+    }
+
+    @Test
+    public void addPrompt_AfterBucketIsBuilt_IsHandedOut() {
+        handOut(YOUNG_WOMAN, 6, 0);
+
+        scheduler.addPrompt(new Prompt(4, Type.TEXT, "prompt 4"));
+
+        Assert.assertEquals(4L, scheduler.next(YOUNG_WOMAN, 0).getId());
+    }
+
+    @Test
+    public void drainDeltas_ReturnsRecordingsOnceAndRestoreKeepsThem() {
+        scheduler.recorded(1, null, YOUNG_WOMAN);
+        scheduler.recorded(1, null, YOUNG_WOMAN);
+        scheduler.recorded(2, null, OLD_MAN);
+
+        Map<Long, Map<String, Long>> deltas = scheduler.drainDeltas();
+        Assert.assertEquals(2L, (long) deltas.get(1L).get(YOUNG_WOMAN.getBucket()));
+        Assert.assertEquals(1L, (long) deltas.get(2L).get(OLD_MAN.getBucket()));
+        Assert.assertTrue(scheduler.drainDeltas().isEmpty());
+
+        scheduler.restoreDeltas(deltas);
+        Assert.assertEquals(deltas, scheduler.drainDeltas());
+    }
+
+    @Test
+    public void setPersistedCount_KeepsUndrainedRecordingsOnTop() {
+        scheduler.recorded(1, null, YOUNG_WOMAN);
+
+        // Another instance recorded it too; this instance's recording is not persisted yet.
+        scheduler.setPersistedCount(1, YOUNG_WOMAN.getBucket(), 1);
+
+        Assert.assertEquals(0, scheduler.demand(1, YOUNG_WOMAN));
+    }
+
+    @Test
+    public void next_FewCandidates_HandsOutInSameOrderAsWithAll() {
+        CoverageScheduler few = new CoverageScheduler(2, HAND_OUT_MILLIS, 10, 2);
+        for (long id = 1; id <= 5; id++) {
+            few.addPrompt(new Prompt(id, Type.TEXT, "prompt " + id));
+        }
+        few.setPersistedCount(1, YOUNG_WOMAN.getBucket(), 1);
+        few.setPersistedCount(4, YOUNG_WOMAN.getBucket(), 2);
+
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Prompt prompt = few.next(YOUNG_WOMAN, 0);
+            ids.add(prompt == null ? null : prompt.getId());
+        }
+        Assert.assertEquals(Arrays.asList(2L, 3L, 5L, 1L, 2L, 3L, 5L, null), ids);
+    }
+
+    @Test
+    public void release_FewCandidates_PromptIsHandedOutAgainFirst() {
+        CoverageScheduler few = new CoverageScheduler(1, HAND_OUT_MILLIS, 10, 1);
+        for (long id = 1; id <= 3; id++) {
+            few.addPrompt(new Prompt(id, Type.TEXT, "prompt " + id));
+        }
+
+        String leaseToken = few.next(YOUNG_WOMAN, 0).getLeaseToken();
+        Assert.assertEquals(2L, few.next(YOUNG_WOMAN, 0).getId());
+        Assert.assertTrue(few.release(1, leaseToken));
+
+        Assert.assertEquals(1L, few.next(YOUNG_WOMAN, 0).getId());
+        Assert.assertEquals(3L, few.next(YOUNG_WOMAN, 0).getId());
+        Assert.assertNull(few.next(YOUNG_WOMAN, 0));
+    }
+
+    @Test
+    public void next_TooManyBuckets_NewSpeakersCountAsUnknown() {
+        CoverageScheduler small = new CoverageScheduler(1, HAND_OUT_MILLIS, 1, 10);
+        small.addPrompt(new Prompt(1, Type.TEXT, "prompt 1"));
+
+        Assert.assertNotNull(small.next(YOUNG_WOMAN, 0));
+        Assert.assertNotNull(small.next(OLD_MAN, 0));
+        Assert.assertNull(small.next(SpeakerProfile.UNKNOWN, 0));
+        Assert.assertEquals(2, small.bucketCount());
+    }
+}
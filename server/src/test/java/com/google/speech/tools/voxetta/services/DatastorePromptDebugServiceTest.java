@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.speech.tools.voxetta.data.ResetProgressResponse;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Mockito;
+
+public class DatastorePromptDebugServiceTest extends Mockito {
+
+    private LocalServiceTestHelper serviceHelper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    private DatastoreService datastoreService;
+    private DatastorePromptDebugService service;
+
+    @Before
+    public void setUpServiceHelper() {
+        serviceHelper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+        service = new DatastorePromptDebugService();
+        service.setDatastoreService(datastoreService);
+    }
+
+    @After
+    public void tearDownServiceHelper() {
+        serviceHelper.tearDown();
+    }
+
+    private void savePrompts(int count, int read) {
+        for (int i = 0; i < count; i++) {
+            Entity promptEntity = new Entity("Prompt");
+            promptEntity.setProperty("type", "text");
+            promptEntity.setProperty("body", "prompt " + i);
+            if (read == 0) {
+                promptEntity.setProperty("read", 0);
+            } else {
+                PromptLeases.lease(promptEntity, System.currentTimeMillis());
+            }
+            datastoreService.put(promptEntity);
+        }
+    }
+
+    private int countUnread() {
+        return datastoreService.prepare(new Query("Prompt")
+            .setFilter(new FilterPredicate("read", FilterOperator.EQUAL, 0)))
+            .countEntities(FetchOptions.Builder.withDefaults());
+    }
+
+    @Test
+    public void resetAllToUnread_OnlyRead_ResetsReadPromptsAndSkipsUnread() {
+        savePrompts(7, 1);
+        savePrompts(5, 0);
+
+        ResetProgressResponse progress = service.resetAllToUnread(null, 500, true);
+
+        Assert.assertTrue(progress.isDone());
+        Assert.assertEquals(7, progress.getReset());
+        Assert.assertEquals(12, countUnread());
+    }
+
+    @Test
+    public void resetAllToUnread_TimeBudgetExhausted_ResumesFromCursor() {
+        savePrompts(10, 1);
+        service.setTimeBudgetMillis(0);
+
+        ResetProgressResponse progress = service.resetAllToUnread(null, 4, false);
+        int calls = 1;
+        while (!progress.isDone()) {
+            Assert.assertNotNull(progress.getCursor());
+            progress = service.resetAllToUnread(progress.getCursor(), 4, false);
+            calls++;
+        }
+
+        Assert.assertEquals(3, calls);
+        Assert.assertEquals(10, countUnread());
+    }
+
+    @Test
+    public void resetAllToUnread_ManyPrompts_WritesOneBatchedPutPerPage() {
+        savePrompts(10, 1);
+        DatastoreService spiedService =
+            mock(DatastoreService.class, AdditionalAnswers.delegatesTo(datastoreService));
+        service.setDatastoreService(spiedService);
+
+        service.resetAllToUnread(null, 5, false);
+
+        verify(spiedService, times(2)).put(anyIterable());
+        verify(spiedService, never()).put(any(Entity.class));
+    }
+
+    @Test
+    public void writeAllPrompts_ManyPrompts_StreamsEveryPrompt() throws Exception {
+        savePrompts(3, 1);
+        savePrompts(4, 0);
+
+        StringWriter out = new StringWriter();
+        service.writeAllPrompts(out);
+
+        JsonArray prompts = JsonParser.parseString(out.toString()).getAsJsonArray();
+        Assert.assertEquals(7, prompts.size());
+        JsonObject prompt = prompts.get(0).getAsJsonObject();
+        Assert.assertEquals("text", prompt.get("type").getAsString());
+        Assert.assertTrue(prompt.has("id"));
+        Assert.assertTrue(prompt.has("body"));
+        Assert.assertTrue(prompt.has("read"));
+    }
+
+    @Test
+    public void writePromptPage_FollowingCursors_VisitsEveryPromptOnce() throws Exception {
+        savePrompts(5, 0);
+
+        Set<Long> seenIds = new HashSet<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            StringWriter out = new StringWriter();
+            service.writePromptPage(out, cursor, 2);
+            pages++;
+
+            JsonObject page = JsonParser.parseString(out.toString()).getAsJsonObject();
+            for (JsonElement prompt : page.getAsJsonArray("prompts")) {
+                Assert.assertTrue(seenIds.add(prompt.getAsJsonObject().get("id").getAsLong()));
+            }
+            cursor = page.get("cursor").isJsonNull() ? null : page.get("cursor").getAsString();
+        } while (cursor != null);
+
+        Assert.assertEquals(3, pages);
+        Assert.assertEquals(5, seenIds.size());
+    }
+
+    @Test
+    public void writePromptPage_RecordedPrompts_IncludesRecordingCounts() throws Exception {
+        savePrompts(2, 0);
+        long recordedId = datastoreService.prepare(new Query("Prompt").setKeysOnly())
+            .asList(FetchOptions.Builder.withLimit(1)).get(0).getKey().getId();
+        PromptRecordingCounter counter = new PromptRecordingCounter(datastoreService);
+        counter.increment(recordedId);
+        counter.increment(recordedId);
+
+        StringWriter out = new StringWriter();
+        service.writePromptPage(out, null, 10);
+
+        JsonObject page = JsonParser.parseString(out.toString()).getAsJsonObject();
+        for (JsonElement element : page.getAsJsonArray("prompts")) {
+            JsonObject prompt = element.getAsJsonObject();
+            long expected = prompt.get("id").getAsLong() == recordedId ? 2 : 0;
+            Assert.assertEquals(expected, prompt.get("recordings").getAsLong());
+        }
+    }
+
+    @Test
+    public void writePromptPage_CoverageMode_SumsSyncedBucketCounts() throws Exception {
+        savePrompts(2, 0);
+        long recordedId = datastoreService.prepare(new Query("Prompt").setKeysOnly())
+            .asList(FetchOptions.Builder.withLimit(1)).get(0).getKey().getId();
+        Entity counts = new Entity(KeyFactory.createKey(PromptCoverage.KIND, recordedId));
+        counts.setUnindexedProperty("18-29|female|pixelbook", 2L);
+        counts.setUnindexedProperty("60+|male|pixelbook", 1L);
+        counts.setProperty("updated", System.currentTimeMillis());
+        datastoreService.put(counts);
+        service.setCoverageMode(true);
+
+        StringWriter out = new StringWriter();
+        service.writePromptPage(out, null, 10);
+
+        JsonObject page = JsonParser.parseString(out.toString()).getAsJsonObject();
+        for (JsonElement element : page.getAsJsonArray("prompts")) {
+            JsonObject prompt = element.getAsJsonObject();
+            long expected = prompt.get("id").getAsLong() == recordedId ? 3 : 0;
+            Assert.assertEquals(expected, prompt.get("recordings").getAsLong());
+        }
+    }
+}
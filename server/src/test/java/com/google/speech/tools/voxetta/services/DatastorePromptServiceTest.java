@@ -2,8 +2,10 @@ package com.google.speech.tools.voxetta.services;
 
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
@@ -54,25 +56,25 @@ public class DatastorePromptServiceTest extends Mockito {
     }
 
     @Test
-    public void getOnePrompt_DatastorePromptRetrieval_ReturnsPrompt() {
-
-        // Mock entity
-        Entity mockEntity = new Entity(KeyFactory.createKey("Prompt", 7823648));
-        mockEntity.setProperty("type", "text");
-        mockEntity.setProperty("body", "dummy prompt");
-        String mockEntityAsPromptJson = gson.toJson(new PromptBuilder().buildFromEntity(mockEntity));
-
-        // Mock entityList
-        List<Entity> entityList = new LinkedList<Entity>();
-        entityList.add(mockEntity);
-
-        // Prepare mocked responses
-        when(datastoreService.prepare(any(Query.class))).thenReturn(preparedQuery);
-        when(preparedQuery.asList(any(FetchOptions.class))).thenReturn(entityList);
-
-        // Assert equal
+    public void getOnePrompt_DatastorePromptRetrieval_ReturnsPrompt() throws Exception {
+
+        // Save a prompt to the local Datastore, where it is claimed transactionally
+        DatastoreService localDatastore = DatastoreServiceFactory.getDatastoreService();
+        Entity promptEntity = new Entity(KeyFactory.createKey("Prompt", 7823648));
+        promptEntity.setPropertiesFrom(DatastorePromptService.createPromptEntity("text",
+            "dummy prompt"));
+        Key key = localDatastore.put(promptEntity);
+        String promptJson = gson.toJson(
+            new PromptBuilder().buildFromEntity(localDatastore.get(key)));
+        service.setDatastoreService(localDatastore);
+
+        // Assert equal, apart from the lease token the prompt was handed out under
         String retrievedPrompt = service.getOnePrompt();
-        Assert.assertEquals(mockEntityAsPromptJson, retrievedPrompt);
+        String leaseToken = (String) localDatastore.get(key).getProperty("leaseToken");
+        Assert.assertNotNull(leaseToken);
+        Assert.assertEquals(
+            promptJson.replaceFirst("}$", ",\"leaseToken\":\"" + leaseToken + "\"}"),
+            retrievedPrompt);
     }
 
     @Test
@@ -105,4 +107,85 @@ public class DatastorePromptServiceTest extends Mockito {
         StatusResponse savePromptResponse = service.savePrompt("text", "mock prompt body");
         Assert.assertFalse(savePromptResponse.getSuccess());
     }
+
+    @Test
+    public void releasePrompt_LeasedPrompt_MakesPromptUnread() throws Exception {
+        DatastoreService localDatastore = DatastoreServiceFactory.getDatastoreService();
+        service.setDatastoreService(localDatastore);
+
+        Entity promptEntity = new Entity("Prompt");
+        PromptLeases.lease(promptEntity, System.currentTimeMillis());
+        localDatastore.put(promptEntity);
+        String leaseToken = (String) promptEntity.getProperty("leaseToken");
+
+        StatusResponse releaseResponse =
+            service.releasePrompt(promptEntity.getKey().getId(), leaseToken);
+
+        Assert.assertTrue(releaseResponse.getSuccess());
+        Assert.assertTrue(PromptLeases.isUnread(localDatastore.get(promptEntity.getKey())));
+    }
+
+    @Test
+    public void releasePrompt_SomeoneElsesToken_KeepsLease() throws Exception {
+        DatastoreService localDatastore = DatastoreServiceFactory.getDatastoreService();
+        service.setDatastoreService(localDatastore);
+
+        Entity promptEntity = new Entity("Prompt");
+        PromptLeases.lease(promptEntity, System.currentTimeMillis());
+        localDatastore.put(promptEntity);
+
+        StatusResponse releaseResponse =
+            service.releasePrompt(promptEntity.getKey().getId(), "someone else's");
+
+        Assert.assertFalse(releaseResponse.getSuccess());
+        Assert.assertTrue(PromptLeases.isLeased(localDatastore.get(promptEntity.getKey())));
+    }
+
+    @Test
+    public void releasePrompt_ConfirmedPrompt_ReturnsFalse() throws Exception {
+        DatastoreService localDatastore = DatastoreServiceFactory.getDatastoreService();
+        service.setDatastoreService(localDatastore);
+
+        Entity promptEntity = new Entity("Prompt");
+        PromptLeases.lease(promptEntity, System.currentTimeMillis());
+        localDatastore.put(promptEntity);
+        String leaseToken = (String) promptEntity.getProperty("leaseToken");
+        service.confirmPrompt(promptEntity.getKey().getId(), leaseToken);
+
+        StatusResponse releaseResponse =
+            service.releasePrompt(promptEntity.getKey().getId(), leaseToken);
+
+        Assert.assertFalse(releaseResponse.getSuccess());
+        Entity storedEntity = localDatastore.get(promptEntity.getKey());
+        Assert.assertFalse(PromptLeases.isUnread(storedEntity));
+        Assert.assertFalse(PromptLeases.isLeased(storedEntity));
+    }
+
+    @Test
+    public void confirmPrompt_WithoutLeaseToken_LeavesPromptLeased() throws Exception {
+        DatastoreService localDatastore = DatastoreServiceFactory.getDatastoreService();
+        service.setDatastoreService(localDatastore);
+
+        Entity promptEntity = new Entity("Prompt");
+        PromptLeases.lease(promptEntity, System.currentTimeMillis());
+        localDatastore.put(promptEntity);
+
+        service.confirmPrompt(promptEntity.getKey().getId(), "someone else's");
+        service.confirmPrompt(promptEntity.getKey().getId(), null);
+
+        Assert.assertTrue(PromptLeases.isLeased(localDatastore.get(promptEntity.getKey())));
+    }
+
+    @Test
+    public void confirmPrompt_UnreadPrompt_LeavesPromptUnread() throws Exception {
+        DatastoreService localDatastore = DatastoreServiceFactory.getDatastoreService();
+        service.setDatastoreService(localDatastore);
+
+        Entity promptEntity = DatastorePromptService.createPromptEntity("text", "unread prompt");
+        localDatastore.put(promptEntity);
+
+        service.confirmPrompt(promptEntity.getKey().getId(), null);
+
+        Assert.assertTrue(PromptLeases.isUnread(localDatastore.get(promptEntity.getKey())));
+    }
 }
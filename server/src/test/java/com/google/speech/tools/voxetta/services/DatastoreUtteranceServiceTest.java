@@ -14,19 +14,30 @@
 
 package com.google.speech.tools.voxetta.services;
 
+import static org.mockito.AdditionalAnswers.delegatesTo;
+
+import com.google.appengine.api.blobstore.BlobInfo;
 import com.google.appengine.api.blobstore.BlobstoreFailureException;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.speech.tools.voxetta.data.Utterance; 
 import javax.servlet.http.HttpServletRequest;
 import java.util.ArrayList; 
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -129,4 +140,120 @@ public final class DatastoreUtteranceServiceTest extends Mockito {
     when(blobstoreService.createUploadUrl("/upload-utterance")).thenThrow(BlobstoreFailureException.class);
     String url = service.getAudioBlobUploadUrl();
   }
+
+  @Test
+  public void saveUtterance_RetryWithSameKey_SavesOnceWithoutDatastoreCall() throws Exception {
+    service.setRecentKeys(new RecentKeys(100, 60000));
+    Transaction transaction = mock(Transaction.class);
+    when(datastoreService.beginTransaction()).thenReturn(transaction);
+    when(datastoreService.get(eq(transaction), any(Key.class)))
+        .thenThrow(EntityNotFoundException.class);
+    Utterance utterance = new Utterance("audio", "userId", "promptId", "device", 100, "gender", "key");
+
+    Assert.assertTrue(service.saveUtterance(utterance));
+    Assert.assertFalse(service.saveUtterance(utterance));
+
+    // The retry was dropped before Datastore was looked up or written to
+    verify(datastoreService, times(1)).get(eq(transaction), any(Key.class));
+    verify(datastoreService, times(1)).put(eq(transaction), any(Entity.class));
+  }
+
+  @Test
+  public void saveUtterance_ConcurrentRetrySavedFirst_ReturnsFalse() throws Exception {
+    DatastoreService localDatastore = DatastoreServiceFactory.getDatastoreService();
+    DatastoreService racing = mock(DatastoreService.class, delegatesTo(localDatastore));
+    service.setDatastoreService(racing);
+    service.setRecentKeys(new RecentKeys(100, 60000));
+    Utterance utterance = new Utterance("audio", "userId", "7", "device", 100, "gender", "key");
+
+    // Another instance saves the same upload while this one's transaction is open
+    doAnswer(invocation -> {
+      localDatastore.put((Transaction) null, new Entity("Utterance", "key"));
+      return localDatastore.put(invocation.getArgument(0), invocation.<Entity>getArgument(1));
+    }).when(racing).put(any(Transaction.class), any(Entity.class));
+
+    Assert.assertFalse(service.saveUtterance(utterance));
+    Assert.assertEquals(0, new PromptRecordingCounter(localDatastore).count(7));
+  }
+
+  @Test
+  public void saveUtterance_RetryAfterKeyForgotten_SavesOnceUnderKey() throws Exception {
+    DatastoreService localDatastore = DatastoreServiceFactory.getDatastoreService();
+    service.setDatastoreService(localDatastore);
+    Utterance utterance = new Utterance("audio", "userId", "promptId", "device", 100, "gender", "key");
+
+    service.setRecentKeys(new RecentKeys(100, 60000));
+    Assert.assertTrue(service.saveUtterance(utterance));
+
+    // A quality check result written after the first save must survive the retry
+    Entity saved = localDatastore.get(KeyFactory.createKey("Utterance", "key"));
+    saved.setProperty("qcStatus", "passed");
+    localDatastore.put(saved);
+
+    // As if the retry reached another instance
+    service.setRecentKeys(new RecentKeys(100, 60000));
+    Assert.assertFalse(service.saveUtterance(utterance));
+
+    Assert.assertEquals(1, localDatastore.prepare(new Query("Utterance")).countEntities(
+        FetchOptions.Builder.withDefaults()));
+    Assert.assertEquals("passed",
+        localDatastore.get(KeyFactory.createKey("Utterance", "key")).getProperty("qcStatus"));
+  }
+
+  @Test
+  public void saveUtterance_FailedSave_LetsRetrySave() throws Exception {
+    service.setRecentKeys(new RecentKeys(100, 60000));
+    Transaction transaction = mock(Transaction.class);
+    when(datastoreService.beginTransaction()).thenReturn(transaction);
+    when(datastoreService.get(eq(transaction), any(Key.class)))
+        .thenThrow(EntityNotFoundException.class);
+    doThrow(DatastoreFailureException.class).doNothing().when(transaction).commit();
+    Utterance utterance = new Utterance("audio", "userId", "promptId", "device", 100, "gender", "key");
+
+    try {
+      service.saveUtterance(utterance);
+      Assert.fail();
+    } catch (DatastoreFailureException expected) {
+    }
+    Assert.assertTrue(service.saveUtterance(utterance));
+
+    verify(datastoreService, times(2)).put(eq(transaction), any(Entity.class));
+  }
+
+  @Test
+  public void getAudioHash_BlobUploadCallbackRequest_ReturnsMd5() throws Exception {
+    BlobInfo blobInfo = new BlobInfo(new BlobKey("BlobKey"), "audio/webm", new Date(), "blob", 4,
+        "md5hash");
+    Map<String, List<BlobInfo>> blobInfos = new HashMap<>();
+    blobInfos.put("audio", Collections.singletonList(blobInfo));
+    when(blobstoreService.getBlobInfos(any(HttpServletRequest.class))).thenReturn(blobInfos);
+
+    Assert.assertEquals("md5hash", service.getAudioHash(request, "BlobKey"));
+  }
+
+  @Test
+  public void saveUtterance_WithPromptId_CountsRecordingOfPrompt() throws Exception {
+    DatastoreService localDatastore = DatastoreServiceFactory.getDatastoreService();
+    service.setDatastoreService(localDatastore);
+    service.setRecentKeys(new RecentKeys(100, 60000));
+
+    service.saveUtterance(new Utterance("audio-1", "userId", "7", "device", 100, "gender", "a"));
+    service.saveUtterance(new Utterance("audio-2", "userId", "7", "device", 100, "gender", "b"));
+    // A retry is not counted again
+    service.saveUtterance(new Utterance("audio-2", "userId", "7", "device", 100, "gender", "b"));
+
+    Assert.assertEquals(2, new PromptRecordingCounter(localDatastore).count(7));
+  }
+
+  @Test
+  public void saveUtterance_CoverageMode_LeavesCountingToCoverage() throws Exception {
+    DatastoreService localDatastore = DatastoreServiceFactory.getDatastoreService();
+    service.setDatastoreService(localDatastore);
+    service.setCoverageMode(true);
+
+    Assert.assertTrue(service.saveUtterance(
+        new Utterance("audio-1", "userId", "7", "device", 100, "gender", "a")));
+
+    Assert.assertEquals(0, new PromptRecordingCounter(localDatastore).count(7));
+  }
 }
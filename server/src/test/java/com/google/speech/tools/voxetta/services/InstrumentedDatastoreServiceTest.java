@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InstrumentedDatastoreServiceTest {
+
+    private LocalServiceTestHelper serviceHelper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    private MetricsRegistry metrics;
+    private DatastoreService datastoreService;
+
+    @Before
+    public void setUpServiceHelper() {
+        serviceHelper.setUp();
+        metrics = new MetricsRegistry();
+        datastoreService = new InstrumentedDatastoreService(
+            DatastoreServiceFactory.getDatastoreService(), metrics, Long.MAX_VALUE, true);
+    }
+
+    @After
+    public void tearDownServiceHelper() {
+        serviceHelper.tearDown();
+    }
+
+    private Entity prompt(int read) {
+        Entity promptEntity = new Entity("Prompt");
+        promptEntity.setProperty("body", "dummy prompt");
+        promptEntity.setProperty("read", read);
+        return promptEntity;
+    }
+
+    private long count(String name, String operation) {
+        return metrics.counter(name, "operation", operation, "kind", "Prompt").get();
+    }
+
+    private long calls(String operation) {
+        return metrics.histogram("datastore_call_duration_seconds",
+            "operation", operation, "kind", "Prompt").getCount();
+    }
+
+    @Test
+    public void putAndGet_RecordsCallsAndEntities() throws Exception {
+        datastoreService.put(Arrays.asList(prompt(0), prompt(0)));
+        Entity saved = prompt(1);
+        datastoreService.put(saved);
+
+        Assert.assertEquals(1L, datastoreService.get(saved.getKey()).getProperty("read"));
+
+        Assert.assertEquals(2, calls("put"));
+        Assert.assertEquals(3, count("datastore_entities", "put"));
+        Assert.assertTrue(count("datastore_bytes", "put") > 3 * "dummy prompt".length());
+        Assert.assertEquals(1, calls("get"));
+        Assert.assertEquals(1, count("datastore_entities", "get"));
+    }
+
+    @Test(expected = EntityNotFoundException.class)
+    public void get_MissingEntity_RecordsCallAndRethrows() throws Exception {
+        try {
+            datastoreService.get(KeyFactory.createKey("Prompt", 404));
+        } finally {
+            Assert.assertEquals(1, calls("get"));
+        }
+    }
+
+    @Test
+    public void prepare_Iterable_RecordsQueryOnceExhausted() {
+        datastoreService.put(Arrays.asList(prompt(0), prompt(0), prompt(1)));
+        Query query = new Query("Prompt")
+            .setFilter(new FilterPredicate("read", FilterOperator.EQUAL, 0));
+
+        int found = 0;
+        for (Entity ignored : datastoreService.prepare(query).asIterable()) {
+            Assert.assertEquals(0, calls("query"));
+            found++;
+        }
+
+        Assert.assertEquals(2, found);
+        Assert.assertEquals(1, calls("query"));
+        Assert.assertEquals(2, count("datastore_entities", "query"));
+    }
+
+    @Test
+    public void prepare_IteratorAbandoned_RecordsQueryOnceCollected() throws Exception {
+        datastoreService.put(Arrays.asList(prompt(0), prompt(0), prompt(0)));
+
+        Iterator<Entity> iterator = datastoreService.prepare(new Query("Prompt")).asIterator();
+        iterator.next();
+        iterator = null;
+
+        // Abandoned iterators are recorded when the next query is prepared after collection
+        for (int attempt = 0; attempt < 50 && calls("query") == 0; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+            datastoreService.prepare(new Query("Other"));
+        }
+
+        Assert.assertEquals(1, calls("query"));
+        Assert.assertEquals(1, count("datastore_entities", "query"));
+    }
+
+    @Test
+    public void prepare_AsList_RecordsQuery() {
+        datastoreService.put(Arrays.asList(prompt(0), prompt(0), prompt(0)));
+
+        List<Entity> prompts = datastoreService.prepare(new Query("Prompt"))
+            .asList(FetchOptions.Builder.withLimit(2));
+
+        Assert.assertEquals(2, prompts.size());
+        Assert.assertEquals(1, calls("query"));
+        Assert.assertEquals(2, count("datastore_entities", "query"));
+    }
+
+    @Test
+    public void describe_LeavesOutFilterValues() {
+        Query query = new Query("Prompt")
+            .setFilter(CompositeFilterOperator.and(
+                new FilterPredicate("read", FilterOperator.EQUAL, 0),
+                new FilterPredicate("shard", FilterOperator.EQUAL, 7)))
+            .addSort("leaseExpiry", SortDirection.DESCENDING)
+            .setKeysOnly();
+
+        Assert.assertEquals(
+            "Prompt KEYS ONLY WHERE (read = ? AND shard = ?) ORDER BY leaseExpiry DESCENDING"
+                + " LIMIT 500",
+            InstrumentedDatastoreService.describe(query, FetchOptions.Builder.withLimit(500)));
+    }
+}
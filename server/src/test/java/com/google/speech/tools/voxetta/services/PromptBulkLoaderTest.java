@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.speech.tools.voxetta.data.BulkUploadResponse;
+import com.google.speech.tools.voxetta.services.PromptBulkLoader.Format;
+import java.io.StringReader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Mockito;
+
+public class PromptBulkLoaderTest extends Mockito {
+
+    private LocalServiceTestHelper serviceHelper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    private DatastoreService datastoreService;
+    private PromptBulkLoader loader;
+
+    @Before
+    public void setUpServiceHelper() {
+        serviceHelper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+        loader = new PromptBulkLoader(MoreExecutors.directExecutor(), 2);
+        loader.setDatastoreService(datastoreService);
+    }
+
+    @After
+    public void tearDownServiceHelper() {
+        serviceHelper.tearDown();
+    }
+
+    private int countPrompts() {
+        return datastoreService.prepare(new Query("Prompt"))
+            .countEntities(FetchOptions.Builder.withDefaults());
+    }
+
+    @Test
+    public void load_NdjsonWithInvalidRows_SavesValidRowsAndReportsOthers() throws Exception {
+        String upload = "{\"type\": \"text\", \"body\": \"first\"}\n"
+            + "{\"type\": \"video\", \"body\": \"second\"}\n"
+            + "\n"
+            + "not json\n"
+            + "{\"type\": \"image\", \"body\": \"https://example.com/a.png\"}\n";
+
+        BulkUploadResponse response =
+            loader.load(new StringReader(upload), Format.NDJSON, 500);
+
+        Assert.assertFalse(response.getSuccess());
+        Assert.assertEquals(2, response.getSaved());
+        Assert.assertEquals(2, response.getFailed());
+        Assert.assertEquals(2, response.getErrors().get(0).getRow());
+        Assert.assertEquals(4, response.getErrors().get(1).getRow());
+        Assert.assertEquals(2, countPrompts());
+    }
+
+    @Test
+    public void load_CsvWithQuotedFields_SavesEveryRow() throws Exception {
+        String upload = "type,body\r\n"
+            + "text,plain body\r\n"
+            + "text,\"body with, a comma\"\r\n"
+            + "TEXT,\"body with \"\"quotes\"\" and a\nnewline\"\r\n";
+
+        BulkUploadResponse response = loader.load(new StringReader(upload), Format.CSV, 500);
+
+        Assert.assertTrue(response.getSuccess());
+        Assert.assertEquals(3, response.getSaved());
+
+        boolean foundMultiline = false;
+        for (Entity entity : datastoreService.prepare(new Query("Prompt")).asIterable()) {
+            Assert.assertEquals(0L, entity.getProperty("read"));
+            if ("body with \"quotes\" and a\nnewline".equals(entity.getProperty("body"))) {
+                foundMultiline = true;
+            }
+        }
+        Assert.assertTrue(foundMultiline);
+    }
+
+    @Test
+    public void load_ManyRows_WritesOneBatchedPutPerBatch() throws Exception {
+        StringBuilder upload = new StringBuilder();
+        for (int i = 0; i < 25; i++) {
+            upload.append("text,prompt ").append(i).append('\n');
+        }
+        DatastoreService spiedService =
+            mock(DatastoreService.class, AdditionalAnswers.delegatesTo(datastoreService));
+        loader.setDatastoreService(spiedService);
+
+        BulkUploadResponse response =
+            loader.load(new StringReader(upload.toString()), Format.CSV, 10);
+
+        Assert.assertEquals(25, response.getSaved());
+        verify(spiedService, times(3)).put(anyIterable());
+        verify(spiedService, never()).put(any(Entity.class));
+    }
+
+    @Test
+    public void load_BatchPutFails_ReportsEveryRowOfTheBatch() throws Exception {
+        DatastoreService failingService = mock(DatastoreService.class);
+        when(failingService.put(anyIterable())).thenThrow(new DatastoreFailureException("Failure"));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        loader = new PromptBulkLoader(executor, 2);
+        loader.setDatastoreService(failingService);
+
+        BulkUploadResponse response =
+            loader.load(new StringReader("text,a\ntext,b\ntext,c\n"), Format.CSV, 2);
+        executor.shutdown();
+
+        Assert.assertEquals(0, response.getSaved());
+        Assert.assertEquals(3, response.getFailed());
+        Assert.assertEquals(1, response.getErrors().get(0).getRow());
+        Assert.assertEquals(3, response.getErrors().get(2).getRow());
+    }
+
+    @Test
+    public void load_BatchPutRejected_ReportsEveryRowOfTheBatch() throws Exception {
+        DatastoreService rejectingService = mock(DatastoreService.class);
+        when(rejectingService.put(anyIterable()))
+            .thenThrow(new IllegalArgumentException("entity is too big"));
+        loader.setDatastoreService(rejectingService);
+
+        BulkUploadResponse response =
+            loader.load(new StringReader("text,a\ntext,b\n"), Format.CSV, 500);
+
+        Assert.assertEquals(0, response.getSaved());
+        Assert.assertEquals(2, response.getFailed());
+        Assert.assertEquals("Error: Failed to save prompt", response.getErrors().get(0).getError());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class PromptCoverageTest extends Mockito {
+
+    private static final SpeakerProfile SPEAKER = new SpeakerProfile(25, "Female", "Mobile");
+
+    private LocalServiceTestHelper serviceHelper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    private DatastoreService datastoreService;
+    private PromptCoverage coverage;
+
+    @Before
+    public void setUpServiceHelper() {
+        serviceHelper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+        coverage = new PromptCoverage(datastoreService,
+            new CoverageScheduler(2, PromptLeases.LEASE_MILLIS, 10, 10));
+        coverage.setLoadMillisPerRequest(Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDownServiceHelper() {
+        serviceHelper.tearDown();
+    }
+
+    private long putPrompt(String type, String body) {
+        return datastoreService.put(DatastorePromptService.createPromptEntity(type, body)).getId();
+    }
+
+    @Test
+    public void next_FirstUse_LoadsPromptsAndPersistedCounts() {
+        long recorded = putPrompt("text", "recorded elsewhere");
+        long fresh = putPrompt("text", "fresh");
+        putPrompt("video", "malformed");
+
+        Entity counts = new Entity(KeyFactory.createKey(PromptCoverage.KIND, recorded));
+        counts.setUnindexedProperty(SPEAKER.getBucket(), 2L);
+        datastoreService.put(counts);
+
+        Assert.assertEquals(fresh, coverage.next(SPEAKER).getId());
+        Assert.assertEquals(fresh, coverage.next(SPEAKER).getId());
+        Assert.assertNull(coverage.next(SPEAKER));
+        Assert.assertEquals(2, coverage.getScheduler().promptCount());
+    }
+
+    @Test
+    public void next_NoTimeToLoad_LoadsOnePagePerRequest() {
+        coverage.setLoadMillisPerRequest(0);
+        long recorded = putPrompt("text", "recorded elsewhere");
+        long fresh = putPrompt("text", "fresh");
+
+        Entity counts = new Entity(KeyFactory.createKey(PromptCoverage.KIND, recorded));
+        counts.setUnindexedProperty(SPEAKER.getBucket(), 2L);
+        datastoreService.put(counts);
+
+        // The first request only loads the prompts, so it does not yet know what was recorded.
+        Assert.assertEquals(recorded, coverage.next(SPEAKER).getId());
+        Assert.assertEquals(fresh, coverage.next(SPEAKER).getId());
+        Assert.assertEquals(fresh, coverage.next(SPEAKER).getId());
+        Assert.assertNull(coverage.next(SPEAKER));
+    }
+
+    @Test
+    public void reload_PicksUpPromptsAndCountsWrittenByOtherInstances() throws Exception {
+        long promptId = putPrompt("text", "prompt");
+        String leaseToken = coverage.next(SPEAKER).getLeaseToken();
+        coverage.recorded(promptId, leaseToken, SPEAKER);
+        coverage.sync();
+
+        // Another instance saved a prompt and synced a recording of the first one.
+        long saved = putPrompt("text", "saved elsewhere");
+        Entity counts = datastoreService.get(KeyFactory.createKey(PromptCoverage.KIND, promptId));
+        counts.setUnindexedProperty(SPEAKER.getBucket(), 2L);
+        counts.setProperty("updated", System.currentTimeMillis());
+        datastoreService.put(counts);
+
+        coverage.reload();
+
+        Assert.assertEquals(2, coverage.getScheduler().promptCount());
+        Assert.assertEquals(0, coverage.getScheduler().demand(promptId, SPEAKER));
+        Assert.assertEquals(saved, coverage.next(SPEAKER).getId());
+    }
+
+    @Test
+    public void sync_AddsRecordingsToCountsPersistedByOtherInstances() throws Exception {
+        long promptId = putPrompt("text", "prompt");
+        String leaseToken = coverage.next(SPEAKER).getLeaseToken();
+        coverage.recorded(promptId, leaseToken, SPEAKER);
+
+        // Another instance persisted a recording in the meantime.
+        Entity counts = new Entity(KeyFactory.createKey(PromptCoverage.KIND, promptId));
+        counts.setUnindexedProperty(SPEAKER.getBucket(), 1L);
+        datastoreService.put(counts);
+
+        coverage.sync();
+
+        Entity synced = datastoreService.get(KeyFactory.createKey(PromptCoverage.KIND, promptId));
+        Assert.assertEquals(2L, synced.getProperty(SPEAKER.getBucket()));
+        Assert.assertEquals(0, coverage.getScheduler().demand(promptId, SPEAKER));
+        Assert.assertNull(coverage.next(SPEAKER));
+    }
+
+    @Test
+    public void sync_DatastoreFailure_KeepsRecordingsForNextSync() throws Exception {
+        long promptId = putPrompt("text", "prompt");
+        String leaseToken = coverage.next(SPEAKER).getLeaseToken();
+        coverage.recorded(promptId, leaseToken, SPEAKER);
+
+        DatastoreService failing = Mockito.mock(DatastoreService.class);
+        when(failing.beginTransaction(any(TransactionOptions.class)))
+            .thenThrow(DatastoreFailureException.class);
+        coverage.setDatastoreService(failing);
+        coverage.sync();
+
+        coverage.setDatastoreService(datastoreService);
+        coverage.sync();
+
+        Entity synced = datastoreService.get(KeyFactory.createKey(PromptCoverage.KIND, promptId));
+        Assert.assertEquals(1L, synced.getProperty(SPEAKER.getBucket()));
+    }
+
+    @Test
+    public void promptService_CoverageMode_HandsOutSavedPromptsPerSpeaker() {
+        DatastorePromptService service = new DatastorePromptService();
+        service.setCoverage(coverage);
+        service.setDatastoreService(datastoreService);
+        coverage.next(SPEAKER);
+
+        service.savePrompt("text", "saved after load");
+
+        JsonObject prompt = JsonParser.parseString(
+            new String(service.getOnePromptJson(SPEAKER), StandardCharsets.UTF_8))
+            .getAsJsonObject();
+        long promptId = prompt.get("id").getAsLong();
+        String leaseToken = prompt.get("leaseToken").getAsString();
+        Assert.assertEquals("saved after load", prompt.get("body").getAsString());
+
+        Assert.assertTrue(service.releasePrompt(promptId, leaseToken).getSuccess());
+        Assert.assertFalse(service.releasePrompt(promptId, leaseToken).getSuccess());
+
+        service.confirmPrompt(promptId, leaseToken, SPEAKER);
+        Assert.assertEquals(1, coverage.getScheduler().demand(promptId, SPEAKER));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.speech.tools.voxetta.data.Prompt;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.Mockito;
+
+public class PromptDispenserTest extends Mockito {
+
+    private LocalServiceTestHelper serviceHelper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    private DatastoreService datastoreService;
+
+    @Before
+    public void setUpServiceHelper() {
+        serviceHelper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @After
+    public void tearDownServiceHelper() {
+        serviceHelper.tearDown();
+    }
+
+    private void savePrompts(int count) {
+        for (int i = 0; i < count; i++) {
+            Entity promptEntity = new Entity("Prompt");
+            promptEntity.setProperty("type", "text");
+            promptEntity.setProperty("body", "prompt " + i);
+            promptEntity.setProperty("read", 0);
+            datastoreService.put(promptEntity);
+        }
+    }
+
+    @Test
+    public void next_ManyPrompts_NeverReturnsDuplicates() {
+        savePrompts(25);
+        PromptDispenser dispenser =
+            new PromptDispenser(datastoreService, new BatchPromptClaimer(), 10, 3,
+                MoreExecutors.directExecutor());
+
+        Set<Long> seenIds = new HashSet<>();
+        for (int i = 0; i < 25; i++) {
+            Prompt prompt = dispenser.next();
+            Assert.assertNotNull(prompt);
+            Assert.assertTrue(seenIds.add(prompt.getId()));
+        }
+
+        Assert.assertNull(dispenser.next());
+    }
+
+    @Test
+    public void next_ClaimsBatch_MarksWholeBatchAsRead() {
+        savePrompts(8);
+        PromptDispenser dispenser =
+            new PromptDispenser(datastoreService, new BatchPromptClaimer(), 5, 0,
+                MoreExecutors.directExecutor());
+
+        dispenser.next();
+
+        int unread = datastoreService.prepare(new Query("Prompt")
+            .setFilter(new FilterPredicate("read", FilterOperator.EQUAL, 0)))
+            .countEntities(FetchOptions.Builder.withDefaults());
+        Assert.assertEquals(3, unread);
+        Assert.assertEquals(4, dispenser.size());
+    }
+
+    @Test
+    public void next_ClaimsBatch_WritesWithOneBatchedPut() {
+        savePrompts(5);
+        DatastoreService spiedService =
+            mock(DatastoreService.class, AdditionalAnswers.delegatesTo(datastoreService));
+        PromptDispenser dispenser =
+            new PromptDispenser(spiedService, new BatchPromptClaimer(), 5, 0,
+                MoreExecutors.directExecutor());
+
+        for (int i = 0; i < 5; i++) {
+            dispenser.next();
+        }
+
+        verify(spiedService, times(1)).put(anyIterable());
+        verify(spiedService, never()).put(any(Entity.class));
+    }
+
+    @Test
+    public void next_NoPrompts_ReturnsNull() {
+        PromptDispenser dispenser =
+            new PromptDispenser(datastoreService, new BatchPromptClaimer(), 5, 1,
+                MoreExecutors.directExecutor());
+
+        Assert.assertNull(dispenser.next());
+    }
+
+    @Test
+    public void shutdown_StopsRefillExecutor() {
+        ExecutorService refillExecutor = Executors.newSingleThreadExecutor();
+        PromptDispenser dispenser =
+            new PromptDispenser(datastoreService, new BatchPromptClaimer(), 5, 1, refillExecutor);
+
+        dispenser.shutdown();
+
+        Assert.assertTrue(refillExecutor.isShutdown());
+    }
+}
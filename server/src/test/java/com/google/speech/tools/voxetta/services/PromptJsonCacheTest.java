@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.Prompt.Type;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PromptJsonCacheTest {
+
+    private LocalServiceTestHelper serviceHelper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUpServiceHelper() {
+        serviceHelper.setUp();
+    }
+
+    @After
+    public void tearDownServiceHelper() {
+        serviceHelper.tearDown();
+    }
+
+    @Test
+    public void get_SamePromptTwice_EncodesOnce() {
+        PromptJsonCache cache = new PromptJsonCache(1 << 20);
+        Prompt prompt = new Prompt(7, Type.TEXT, "héllo");
+
+        byte[] first = cache.get(prompt);
+        byte[] second = cache.get(prompt);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals("{\"id\":7,\"type\":\"TEXT\",\"body\":\"héllo\"}",
+            new String(first, StandardCharsets.UTF_8));
+        Assert.assertEquals(1, cache.stats().hitCount());
+        Assert.assertEquals(1, cache.stats().missCount());
+    }
+
+    @Test
+    public void put_SavedPrompt_IsServedFromCache() {
+        PromptJsonCache cache = new PromptJsonCache(1 << 20);
+        Entity entity = new Entity("Prompt", 7);
+        entity.setProperty("type", "text");
+        entity.setProperty("body", "hello");
+
+        cache.put(entity);
+        cache.get(new Prompt(7, Type.TEXT, "hello"));
+
+        Assert.assertEquals(1, cache.stats().hitCount());
+        Assert.assertEquals(0, cache.stats().missCount());
+    }
+
+    @Test
+    public void put_MalformedPrompt_IsNotCached() {
+        PromptJsonCache cache = new PromptJsonCache(1 << 20);
+        Entity entity = new Entity("Prompt", 7);
+        entity.setProperty("type", "video");
+        entity.setProperty("body", "hello");
+
+        cache.put(entity);
+
+        Assert.assertEquals(0, cache.weightBytes());
+    }
+
+    @Test
+    public void get_ManyPrompts_StaysWithinMaxBytes() {
+        PromptJsonCache cache = new PromptJsonCache(4096);
+
+        for (int id = 0; id < 1000; id++) {
+            cache.get(new Prompt(id, Type.TEXT, "prompt body " + id));
+        }
+
+        Assert.assertTrue(cache.weightBytes() <= 4096);
+        Assert.assertTrue(cache.weightBytes() > 0);
+        Assert.assertTrue(cache.stats().evictionCount() > 0);
+    }
+
+    @Test
+    public void registerMetrics_ReportsSnakeCaseGauges() throws IOException {
+        PromptJsonCache cache = new PromptJsonCache(1 << 20);
+        MetricsRegistry metrics = new MetricsRegistry();
+        cache.registerMetrics(metrics);
+        cache.get(new Prompt(7, Type.TEXT, "hello"));
+        cache.get(new Prompt(7, Type.TEXT, "hello"));
+
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+
+        Assert.assertTrue(out.toString().contains("voxetta_prompt_json_cache_hits 1\n"));
+        Assert.assertTrue(out.toString().contains("voxetta_prompt_json_cache_misses 1\n"));
+        Assert.assertTrue(out.toString().contains("voxetta_prompt_json_cache_entries 1\n"));
+    }
+}
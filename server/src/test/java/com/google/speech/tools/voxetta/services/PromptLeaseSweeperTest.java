@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PromptLeaseSweeperTest {
+
+    private LocalServiceTestHelper serviceHelper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    private DatastoreService datastoreService;
+    private PromptLeaseSweeper sweeper;
+
+    @Before
+    public void setUpServiceHelper() {
+        serviceHelper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+        sweeper = new PromptLeaseSweeper(10);
+        sweeper.setDatastoreService(datastoreService);
+    }
+
+    @After
+    public void tearDownServiceHelper() {
+        serviceHelper.tearDown();
+    }
+
+    private Entity savePrompt(int read, Long leaseExpiry) {
+        Entity promptEntity = new Entity("Prompt");
+        promptEntity.setProperty("type", "text");
+        promptEntity.setProperty("body", "dummy prompt");
+        promptEntity.setProperty("read", read);
+        if (leaseExpiry != null) {
+            promptEntity.setProperty("leaseExpiry", leaseExpiry);
+        }
+        datastoreService.put(promptEntity);
+        return promptEntity;
+    }
+
+    @Test
+    public void sweep_ExpiredLease_MakesPromptUnread() throws Exception {
+        Entity expired = savePrompt(1, System.currentTimeMillis() - 1000);
+
+        Assert.assertEquals(1, sweeper.sweep());
+
+        Entity swept = datastoreService.get(expired.getKey());
+        Assert.assertTrue(PromptLeases.isUnread(swept));
+        Assert.assertFalse(PromptLeases.isLeased(swept));
+    }
+
+    @Test
+    public void sweep_ActiveOrConfirmedLease_LeavesPromptRead() throws Exception {
+        Entity active = savePrompt(1, System.currentTimeMillis() + 60000);
+        Entity confirmed = savePrompt(1, null);
+
+        Assert.assertEquals(0, sweeper.sweep());
+
+        Assert.assertFalse(PromptLeases.isUnread(datastoreService.get(active.getKey())));
+        Assert.assertFalse(PromptLeases.isUnread(datastoreService.get(confirmed.getKey())));
+    }
+
+    @Test
+    public void sweep_ManyExpiredLeases_ReclaimsAtMostBatchSizePerRun() {
+        for (int i = 0; i < 15; i++) {
+            savePrompt(1, System.currentTimeMillis() - 1000);
+        }
+
+        Assert.assertEquals(10, sweeper.sweep());
+        Assert.assertEquals(5, sweeper.sweep());
+        Assert.assertEquals(0, sweeper.sweep());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PromptRecordingCounterTest {
+
+    private LocalServiceTestHelper serviceHelper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    private DatastoreService datastoreService;
+
+    @Before
+    public void setUpServiceHelper() {
+        serviceHelper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @After
+    public void tearDownServiceHelper() {
+        serviceHelper.tearDown();
+    }
+
+    @Test
+    public void increment_ManyRecordings_SpreadsAcrossShardsAndAddsUp() {
+        PromptRecordingCounter counter = new PromptRecordingCounter(datastoreService, 4);
+
+        for (int i = 0; i < 40; i++) {
+            counter.increment(7);
+        }
+        counter.increment(8);
+
+        Assert.assertEquals(40, counter.count(7));
+        Assert.assertEquals(1, counter.count(8));
+
+        // At most one entity per shard, and more than one shard in use
+        int shards = datastoreService.prepare(new Query(PromptRecordingCounter.KIND))
+            .countEntities(FetchOptions.Builder.withDefaults());
+        Assert.assertTrue(shards > 2 && shards <= 5);
+    }
+
+    @Test
+    public void counts_PromptsWithoutRecordings_AreZero() {
+        PromptRecordingCounter counter = new PromptRecordingCounter(datastoreService, 4);
+        counter.increment(1);
+
+        Map<Long, Long> counts = counter.counts(Arrays.asList(1L, 2L));
+
+        Assert.assertEquals(1L, (long) counts.get(1L));
+        Assert.assertEquals(0L, (long) counts.get(2L));
+    }
+
+    @Test
+    public void counts_MoreKeysThanOneBatchGet_CountsEveryPrompt() {
+        PromptRecordingCounter counter = new PromptRecordingCounter(datastoreService, 8);
+        List<Long> promptIds = new ArrayList<>();
+        for (long promptId = 1; promptId <= 200; promptId++) {
+            promptIds.add(promptId);
+            counter.increment(promptId);
+        }
+
+        Map<Long, Long> counts = counter.counts(promptIds);
+
+        Assert.assertEquals(200, counts.size());
+        for (long count : counts.values()) {
+            Assert.assertEquals(1, count);
+        }
+    }
+}
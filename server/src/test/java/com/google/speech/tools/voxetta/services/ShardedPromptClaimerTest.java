@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedPromptClaimerTest {
+
+    private static final int SHARD_COUNT = 4;
+
+    private LocalServiceTestHelper serviceHelper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+            .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+    private DatastoreService datastoreService;
+    private ShardedPromptClaimer claimer;
+
+    @Before
+    public void setUpServiceHelper() {
+        serviceHelper.setUp();
+        datastoreService = DatastoreServiceFactory.getDatastoreService();
+        claimer = new ShardedPromptClaimer(SHARD_COUNT);
+    }
+
+    @After
+    public void tearDownServiceHelper() {
+        serviceHelper.tearDown();
+    }
+
+    private void savePrompts(int count, boolean sharded) {
+        for (int i = 0; i < count; i++) {
+            Entity promptEntity = new Entity("Prompt");
+            promptEntity.setProperty("type", "text");
+            promptEntity.setProperty("body", "prompt " + i);
+            promptEntity.setProperty("read", 0);
+            if (sharded) {
+                promptEntity.setProperty("shard", i % SHARD_COUNT);
+            }
+            datastoreService.put(promptEntity);
+        }
+    }
+
+    private int countUnread() {
+        return datastoreService.prepare(new Query("Prompt")
+            .setFilter(new FilterPredicate("read", FilterOperator.EQUAL, 0)))
+            .countEntities(FetchOptions.Builder.withDefaults());
+    }
+
+    @Test
+    public void claim_PromptsAcrossShards_ClaimsUpToLimitAndMarksRead() {
+        savePrompts(40, true);
+
+        List<Entity> claimed = claimer.claim(datastoreService, 30);
+
+        Assert.assertEquals(30, claimed.size());
+        Assert.assertEquals(10, countUnread());
+    }
+
+    @Test
+    public void claim_RepeatedClaims_NeverOverlap() {
+        savePrompts(25, true);
+
+        Set<Long> claimedIds = new HashSet<>();
+        int total = 0;
+        for (int i = 0; i < 3; i++) {
+            for (Entity entity : claimer.claim(datastoreService, 10)) {
+                Assert.assertTrue(claimedIds.add(entity.getKey().getId()));
+                total++;
+            }
+        }
+
+        Assert.assertEquals(25, total);
+        Assert.assertTrue(claimer.claim(datastoreService, 10).isEmpty());
+    }
+
+    @Test
+    public void randomShard_UsesTheClaimersShardCount() {
+        Set<Integer> shards = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            shards.add(claimer.randomShard());
+        }
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(0, 1, 2, 3)), shards);
+    }
+
+    @Test
+    public void claim_PromptsWithoutShard_AreStillClaimed() {
+        savePrompts(5, false);
+
+        List<Entity> claimed = claimer.claim(datastoreService, 10);
+
+        Assert.assertEquals(5, claimed.size());
+        Assert.assertEquals(0, countUnread());
+    }
+}
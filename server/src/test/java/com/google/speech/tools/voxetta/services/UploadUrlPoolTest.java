@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+/** 
+ * Verifies the intended behavior of UploadUrlPool.java. 
+ */
+@RunWith(JUnit4.class)
+public final class UploadUrlPoolTest extends Mockito {
+
+  private BlobstoreService blobstoreService;
+  private AtomicLong now;
+
+  @Before
+  public void setUp() {
+    // Every call creates a new, distinct URL
+    AtomicInteger created = new AtomicInteger();
+    blobstoreService = mock(BlobstoreService.class);
+    when(blobstoreService.createUploadUrl("/upload-utterance"))
+        .thenAnswer(invocation -> "url-" + created.incrementAndGet());
+
+    now = new AtomicLong(1000);
+  }
+
+  private UploadUrlPool createPool(int size, long maxAgeMillis) {
+    return new UploadUrlPool(blobstoreService, "/upload-utterance", size, maxAgeMillis,
+        MoreExecutors.directExecutor(), now::get);
+  }
+
+  @Test
+  public void take_EmptyPool_CreatesUrlAndRefills() {
+    UploadUrlPool pool = createPool(5, 60000);
+
+    Assert.assertEquals("url-1", pool.take());
+
+    Assert.assertEquals(5, pool.size());
+  }
+
+  @Test
+  public void take_ManyTimes_NeverReturnsSameUrlTwice() {
+    UploadUrlPool pool = createPool(5, 60000);
+
+    Set<String> urls = new HashSet<>();
+    for (int i = 0; i < 50; i++) {
+      Assert.assertTrue(urls.add(pool.take()));
+    }
+  }
+
+  @Test
+  public void take_PooledUrlsExpired_DiscardsThem() {
+    UploadUrlPool pool = createPool(3, 60000);
+    pool.take();
+
+    now.addAndGet(60000);
+
+    // All three pooled URLs are too old, so a new one is created on the spot
+    Assert.assertEquals("url-5", pool.take());
+  }
+
+  @Test
+  public void take_PoolDisabled_CreatesEveryUrl() {
+    UploadUrlPool pool = createPool(0, 60000);
+
+    pool.take();
+    pool.take();
+
+    Assert.assertEquals(0, pool.size());
+    verify(blobstoreService, times(2)).createUploadUrl("/upload-utterance");
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.services;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+/** 
+ * Verifies the intended behavior of UtteranceWriteBuffer.java. 
+ */
+@RunWith(JUnit4.class)
+public final class UtteranceWriteBufferTest extends Mockito {
+
+  private static final long TIMEOUT_MILLIS = 5000;
+
+  private LocalServiceTestHelper serviceHelper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+  private DatastoreService datastoreService;
+  private List<Entity> fallbackEntities;
+  private UtteranceWriteBuffer buffer;
+
+  @Before
+  public void setUp() {
+    serviceHelper.setUp();
+
+    // The flush thread has no API environment, so keys are allocated up front
+    datastoreService = mock(DatastoreService.class);
+    KeyRange keys = new KeyRange(null, "Utterance", 1, 1000);
+    when(datastoreService.allocateIds(eq("Utterance"), anyLong())).thenReturn(keys);
+
+    fallbackEntities = new CopyOnWriteArrayList<>();
+  }
+
+  @After
+  public void tearDown() {
+    if (buffer != null) {
+      buffer.close();
+    }
+    serviceHelper.tearDown();
+  }
+
+  private static Entity utteranceEntity(String userId) {
+    Entity entity = new Entity("Utterance");
+    entity.setProperty("userId", userId);
+    entity.setProperty("age", 20L);
+    return entity;
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void enqueue_FullBatch_WritesWithOneBatchedPut() {
+    buffer = new UtteranceWriteBuffer(datastoreService, 10, 3, 60000, fallbackEntities::addAll);
+
+    buffer.enqueue(utteranceEntity("a"));
+    buffer.enqueue(utteranceEntity("b"));
+    buffer.enqueue(utteranceEntity("c"));
+
+    ArgumentCaptor<Iterable<Entity>> captor = ArgumentCaptor.forClass(Iterable.class);
+    verify(datastoreService, timeout(TIMEOUT_MILLIS)).put(captor.capture());
+    verify(datastoreService, never()).put(any(Entity.class));
+
+    List<Entity> written = new ArrayList<>();
+    captor.getValue().forEach(written::add);
+    Assert.assertEquals(3, written.size());
+    for (Entity entity : written) {
+      Assert.assertTrue(entity.getKey().isComplete());
+    }
+  }
+
+  @Test
+  public void enqueue_PartialBatch_FlushesAfterDelay() {
+    buffer = new UtteranceWriteBuffer(datastoreService, 10, 100, 50, fallbackEntities::addAll);
+
+    buffer.enqueue(utteranceEntity("a"));
+
+    verify(datastoreService, timeout(TIMEOUT_MILLIS)).put(anyIterable());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void enqueue_TransientFailure_RetriesWithSameKeys() {
+    List<Key> attemptedKeys = new CopyOnWriteArrayList<>();
+    when(datastoreService.put(anyIterable())).thenAnswer(invocation -> {
+      for (Entity entity : (Iterable<Entity>) invocation.getArgument(0)) {
+        attemptedKeys.add(entity.getKey());
+      }
+      if (attemptedKeys.size() == 1) {
+        throw new DatastoreFailureException("transient");
+      }
+      return null;
+    });
+    buffer = new UtteranceWriteBuffer(datastoreService, 10, 1, 50, fallbackEntities::addAll);
+
+    buffer.enqueue(utteranceEntity("a"));
+
+    verify(datastoreService, timeout(TIMEOUT_MILLIS).times(2)).put(anyIterable());
+    Assert.assertEquals(attemptedKeys.get(0), attemptedKeys.get(1));
+    Assert.assertTrue(fallbackEntities.isEmpty());
+  }
+
+  @Test
+  public void enqueue_PersistentFailure_HandsBatchToFallback() {
+    when(datastoreService.put(anyIterable())).thenThrow(new DatastoreFailureException("down"));
+    buffer = new UtteranceWriteBuffer(datastoreService, 10, 1, 50, fallbackEntities::addAll);
+
+    buffer.enqueue(utteranceEntity("a"));
+
+    verify(datastoreService, timeout(TIMEOUT_MILLIS).times(5)).put(anyIterable());
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (fallbackEntities.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
+    Assert.assertEquals(1, fallbackEntities.size());
+    Assert.assertTrue(fallbackEntities.get(0).getKey().isComplete());
+  }
+
+  @Test
+  public void enqueue_BufferClosed_WritesSynchronously() {
+    buffer = new UtteranceWriteBuffer(datastoreService, 10, 3, 50, fallbackEntities::addAll);
+    buffer.close();
+
+    Entity entity = utteranceEntity("a");
+    buffer.enqueue(entity);
+
+    verify(datastoreService).put(entity);
+  }
+
+  @Test
+  public void taskPayload_RoundTrip_KeepsKeysAndProperties() {
+    Entity entity = new Entity("Utterance", 42);
+    entity.setProperty("userId", "a");
+    entity.setProperty("age", 20L);
+    entity.setProperty("promptId", null);
+
+    List<Entity> decoded = UtteranceWriteBuffer.fromTaskPayload(
+        UtteranceWriteBuffer.toTaskPayload(Arrays.asList(entity)));
+
+    Assert.assertEquals(1, decoded.size());
+    Assert.assertEquals(entity.getKey(), decoded.get(0).getKey());
+    Assert.assertEquals(entity.getProperties(), decoded.get(0).getProperties());
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import static com.google.speech.tools.voxetta.testUtils.StringWriterStub.stubStringWriter;
+
+import com.google.appengine.api.utils.SystemProperty;
+import com.google.speech.tools.voxetta.metrics.MetricsRegistry;
+import java.io.StringWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+/**
+ * Verifies the intended behavior of AsyncDispatcher.java.
+ */
+@RunWith(JUnit4.class)
+public final class AsyncDispatcherTest extends Mockito {
+
+    private ThreadPoolExecutor executor;
+    private AsyncDispatcher dispatcher;
+
+    @Before
+    public void setUpDispatcher() {
+        // One worker and room for one queued request
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1));
+        dispatcher = new AsyncDispatcher(executor, 1000, new MetricsRegistry());
+    }
+
+    @After
+    public void shutDownExecutor() {
+        executor.shutdownNow();
+    }
+
+    private static HttpServletRequest asyncRequest(AsyncContext context) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.isAsyncSupported()).thenReturn(true);
+        when(request.startAsync(any(), any())).thenReturn(context);
+        return request;
+    }
+
+    @Test
+    public void dispatch_AsyncNotSupported_HandlesInline() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AtomicReference<Thread> handlerThread = new AtomicReference<>();
+
+        dispatcher.dispatch(request, response,
+            (req, resp) -> handlerThread.set(Thread.currentThread()));
+
+        Assert.assertSame(Thread.currentThread(), handlerThread.get());
+        verify(request, never()).startAsync(any(), any());
+    }
+
+    @Test
+    public void dispatch_OnAppEngineWithoutBackgroundThreads_HandlesInline() throws Exception {
+        SystemProperty.environment.set(SystemProperty.Environment.Value.Production);
+        AsyncDispatcher appEngineDispatcher;
+        try {
+            appEngineDispatcher = AsyncDispatcher.create(new MetricsRegistry());
+        } finally {
+            System.clearProperty(SystemProperty.environment.key());
+        }
+
+        AsyncContext context = mock(AsyncContext.class);
+        HttpServletRequest request = asyncRequest(context);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        AtomicReference<Thread> handlerThread = new AtomicReference<>();
+
+        appEngineDispatcher.dispatch(request, response,
+            (req, resp) -> handlerThread.set(Thread.currentThread()));
+
+        Assert.assertSame(Thread.currentThread(), handlerThread.get());
+        verify(request, never()).startAsync(any(), any());
+    }
+
+    @Test
+    public void dispatch_AsyncSupported_HandlesOnWorkerAndCompletes() throws Exception {
+        AsyncContext context = mock(AsyncContext.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        CountDownLatch completed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            completed.countDown();
+            return null;
+        }).when(context).complete();
+        AtomicReference<Thread> handlerThread = new AtomicReference<>();
+
+        dispatcher.dispatch(asyncRequest(context), response,
+            (req, resp) -> handlerThread.set(Thread.currentThread()));
+
+        Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+        Assert.assertNotSame(Thread.currentThread(), handlerThread.get());
+        verify(context).setTimeout(1000);
+    }
+
+    @Test
+    public void dispatch_Saturated_ShedsWith503() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncDispatcher.Handler blocking = (req, resp) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        // Occupy the worker and the queue
+        dispatcher.dispatch(asyncRequest(mock(AsyncContext.class)),
+            mock(HttpServletResponse.class), blocking);
+        dispatcher.dispatch(asyncRequest(mock(AsyncContext.class)),
+            mock(HttpServletResponse.class), blocking);
+
+        AsyncContext context = mock(AsyncContext.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StringWriter body = stubStringWriter(response);
+        AsyncDispatcher.Handler handler = mock(AsyncDispatcher.Handler.class);
+
+        dispatcher.dispatch(asyncRequest(context), response, handler);
+        release.countDown();
+
+        verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(response).setHeader("Retry-After", "1");
+        verify(context).complete();
+        verify(handler, never()).handle(any(), any());
+        Assert.assertTrue(body.toString().contains("\"success\":false"));
+    }
+
+    @Test
+    public void dispatch_TimedOutInQueue_ShedsAndSkipsHandler() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        dispatcher.dispatch(asyncRequest(mock(AsyncContext.class)),
+            mock(HttpServletResponse.class), (req, resp) -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+
+        AsyncContext context = mock(AsyncContext.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        stubStringWriter(response);
+        AtomicReference<Boolean> handlerRan = new AtomicReference<>(false);
+
+        dispatcher.dispatch(asyncRequest(context), response, (req, resp) -> handlerRan.set(true));
+
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(context).addListener(listener.capture());
+        listener.getValue().onTimeout(mock(AsyncEvent.class));
+        release.countDown();
+
+        // Let the queued request reach the worker
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        Assert.assertFalse(handlerRan.get());
+    }
+
+    @Test
+    public void dispatch_TimedOutWhileHandling_Responds500AndDropsLateWrites() throws Exception {
+        AsyncContext context = mock(AsyncContext.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        StringWriter body = stubStringWriter(response);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        dispatcher.dispatch(asyncRequest(context), response, (req, resp) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.getWriter().print("late");
+        });
+
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(context).addListener(listener.capture());
+        listener.getValue().onTimeout(mock(AsyncEvent.class));
+        release.countDown();
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        verify(response).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        verify(response, never()).setStatus(HttpServletResponse.SC_OK);
+        verify(context, times(1)).complete();
+        Assert.assertTrue(body.toString().contains("timed out"));
+        Assert.assertFalse(body.toString().contains("late"));
+    }
+
+    @Test
+    public void dispatch_HandlerThrows_Responds500() throws Exception {
+        AsyncContext context = mock(AsyncContext.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        CountDownLatch completed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            completed.countDown();
+            return null;
+        }).when(context).complete();
+
+        dispatcher.dispatch(asyncRequest(context), response, (req, resp) -> {
+            throw new IllegalStateException("boom");
+        });
+
+        Assert.assertTrue(completed.await(5, TimeUnit.SECONDS));
+        verify(response).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import static com.google.speech.tools.voxetta.testUtils.OutputStreamStub.stubOutputStream;
+
+import com.google.speech.tools.voxetta.embedded.LocalAudioStore;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+/**
+ * Verifies the intended behavior of AudioServlet.java.
+ */
+@RunWith(JUnit4.class)
+public final class AudioServletTest extends Mockito {
+
+    private static final String AUDIO = "RIFF....WAVEfmt data";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AudioServlet servlet;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private ByteArrayOutputStream output;
+    private String key;
+
+    @Before
+    public void setUpServletWithAudio() throws Exception {
+        LocalAudioStore store = new LocalAudioStore(folder.newFolder("audio").toPath());
+        key = store.save(new ByteArrayInputStream(AUDIO.getBytes(StandardCharsets.US_ASCII)));
+
+        servlet = new AudioServlet();
+        servlet.setAudioStore(store);
+
+        request = mock(HttpServletRequest.class);
+        response = mock(HttpServletResponse.class);
+        output = stubOutputStream(response);
+        when(request.getParameter("key")).thenReturn(key);
+    }
+
+    private String written() {
+        return new String(output.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void doGet_NoRange_WritesWholeRecording() throws Exception {
+        servlet.doGet(request, response);
+
+        verify(response).setContentType("audio/wav");
+        verify(response).setContentLengthLong(AUDIO.length());
+        verify(response, never()).setStatus(anyInt());
+        Assert.assertEquals(AUDIO, written());
+    }
+
+    @Test
+    public void doGet_Range_WritesPartialContent() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=4-7");
+
+        servlet.doGet(request, response);
+
+        verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(response).setHeader("Content-Range", "bytes 4-7/" + AUDIO.length());
+        verify(response).setContentLengthLong(4);
+        Assert.assertEquals("....", written());
+    }
+
+    @Test
+    public void doGet_OpenEndedAndSuffixRanges_WriteTail() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=16-", "bytes=-4");
+
+        servlet.doGet(request, response);
+        servlet.doGet(request, response);
+
+        Assert.assertEquals("datadata", written());
+    }
+
+    @Test
+    public void doGet_RangePastEnd_IsNotSatisfiable() throws Exception {
+        when(request.getHeader("Range")).thenReturn("bytes=100-");
+
+        servlet.doGet(request, response);
+
+        verify(response).setHeader("Content-Range", "bytes */" + AUDIO.length());
+        verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        Assert.assertEquals("", written());
+    }
+
+    @Test
+    public void doGet_MatchingETag_IsNotModified() throws Exception {
+        when(request.getHeader("If-None-Match")).thenReturn('"' + key + '"');
+
+        servlet.doGet(request, response);
+
+        verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Assert.assertEquals("", written());
+    }
+
+    @Test
+    public void doGet_UnknownKey_IsNotFound() throws Exception {
+        when(request.getParameter("key")).thenReturn("not-a-key");
+
+        servlet.doGet(request, response);
+
+        verify(response).sendError(HttpServletResponse.SC_NOT_FOUND);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.speech.tools.voxetta.servlets;
+
+import static com.google.speech.tools.voxetta.testUtils.StringWriterStub.stubStringWriter;
+
+import com.google.speech.tools.voxetta.data.BulkUploadResponse;
+import com.google.speech.tools.voxetta.services.PromptBulkLoader;
+import com.google.speech.tools.voxetta.services.PromptBulkLoader.Format;
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collections;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+/**
+ * Verifies the intended behavior of BulkPromptServlet.java.
+ */
+@RunWith(JUnit4.class)
+public final class BulkPromptServletTest extends Mockito {
+
+    private PromptBulkLoader loader;
+    private BulkPromptServlet servlet;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+
+    @Before
+    public void setUpServlet() throws Exception {
+        loader = mock(PromptBulkLoader.class);
+        when(loader.load(any(Reader.class), any(Format.class), anyInt()))
+            .thenReturn(new BulkUploadResponse(true, 1, 0, Collections.emptyList()));
+        servlet = new BulkPromptServlet();
+        servlet.setLoader(loader);
+
+        request = mock(HttpServletRequest.class);
+        response = mock(HttpServletResponse.class);
+        stubStringWriter(response);
+    }
+
+    @Test
+    public void doPost_FormEncodedUpload_ReadsParametersFromQueryStringOnly() throws Exception {
+        // curl --data-binary sends a form content type, so reading parameters would consume the body
+        when(request.getContentType()).thenReturn("application/x-www-form-urlencoded");
+        when(request.getQueryString()).thenReturn("format=csv&batchSize=2");
+        BufferedReader body = new BufferedReader(new StringReader("text,first\n"));
+        when(request.getReader()).thenReturn(body);
+
+        servlet.doPost(request, response);
+
+        verify(loader).load(body, Format.CSV, 2);
+        verify(request, never()).getParameter(anyString());
+    }
+}
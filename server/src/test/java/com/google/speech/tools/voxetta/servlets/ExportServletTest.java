@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Verifies that ExportServlet only writes under its export root, and only where it is durable.
+ */
+@RunWith(JUnit4.class)
+public final class ExportServletTest {
+
+    private final Path root = Paths.get("/tmp/voxetta-export");
+
+    @Test
+    public void resolveOutputDir_RelativeDir_ResolvesUnderRoot() {
+        Assert.assertEquals(Paths.get("/tmp/voxetta-export/corpus/v1"),
+            ExportServlet.resolveOutputDir(root, "corpus/./v1"));
+    }
+
+    @Test
+    public void resolveOutputDir_EscapingDirs_AreRejected() {
+        for (String outputDir : new String[] {"", ".", "../etc", "corpus/../../etc", "/etc"}) {
+            try {
+                ExportServlet.resolveOutputDir(root, outputDir);
+                Assert.fail("Accepted " + outputDir);
+            } catch (IllegalArgumentException expected) {
+                // Rejected
+            }
+        }
+    }
+
+    @Test
+    public void hasDurableSink_AppEngineDisk_IsRefusedUnlessDeclaredDurable() {
+        Assert.assertTrue(ExportServlet.hasDurableSink(false, false));
+        Assert.assertFalse(ExportServlet.hasDurableSink(true, false));
+        Assert.assertTrue(ExportServlet.hasDurableSink(true, true));
+    }
+}
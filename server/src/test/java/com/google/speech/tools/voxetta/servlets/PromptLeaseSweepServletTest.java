@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.speech.tools.voxetta.services.PromptLeaseSweeper;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+/**
+ * Verifies that only cron can sweep prompt leases through PromptLeaseSweepServlet.
+ */
+@RunWith(JUnit4.class)
+public final class PromptLeaseSweepServletTest extends Mockito {
+
+    private PromptLeaseSweeper sweeper;
+    private PromptLeaseSweepServlet servlet;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+
+    @Before
+    public void setUp() {
+        sweeper = mock(PromptLeaseSweeper.class);
+        servlet = new PromptLeaseSweepServlet();
+        servlet.setSweeper(sweeper);
+
+        request = mock(HttpServletRequest.class);
+        response = mock(HttpServletResponse.class);
+    }
+
+    @Test
+    public void doGet_FromCron_Sweeps() throws Exception {
+        when(request.getHeader("X-Appengine-Cron")).thenReturn("true");
+        when(sweeper.sweep()).thenReturn(3);
+
+        servlet.doGet(request, response);
+
+        verify(sweeper).sweep();
+        verify(response).setStatus(HttpServletResponse.SC_OK);
+    }
+
+    @Test
+    public void doGet_NotFromCron_IsForbidden() throws Exception {
+        servlet.doGet(request, response);
+
+        verify(sweeper, never()).sweep();
+        verify(response).sendError(HttpServletResponse.SC_FORBIDDEN);
+    }
+}
@@ -3,12 +3,16 @@ package com.google.speech.tools.voxetta.servlets;
 import com.google.gson.Gson;
 import com.google.speech.tools.voxetta.data.Prompt;
 import com.google.speech.tools.voxetta.data.Prompt.Type;
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
 import com.google.speech.tools.voxetta.data.StatusResponse;
 import com.google.speech.tools.voxetta.services.DatastorePromptService;
 import com.google.speech.tools.voxetta.services.PromptService;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -17,6 +21,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import static com.google.speech.tools.voxetta.testUtils.OutputStreamStub.stubOutputStream;
 import static com.google.speech.tools.voxetta.testUtils.StringWriterStub.stubStringWriter;
 
 public class PromptServletTest extends Mockito {
@@ -44,10 +49,11 @@ public class PromptServletTest extends Mockito {
 
         // Mock prompt response
         String mockedPrompt = gson.toJson(new Prompt(42312, Type.TEXT, "mocked body"));
-        when(promptService.getOnePrompt()).thenReturn(mockedPrompt);
+        when(promptService.getOnePromptJson(any(SpeakerProfile.class)))
+            .thenReturn(mockedPrompt.getBytes(StandardCharsets.UTF_8));
 
-        // Mock writer
-        StringWriter stringWriter = stubStringWriter(response);
+        // Mock output stream
+        ByteArrayOutputStream outputStream = stubOutputStream(response);
 
         // Call doGet
         servlet.doGet(request, response);
@@ -56,7 +62,25 @@ public class PromptServletTest extends Mockito {
         verify(response, atLeast(1)).setContentType("application/json");
 
         // Assert that prompt JSON is included in response
-        Assert.assertTrue(stringWriter.toString().contains(mockedPrompt));
+        Assert.assertTrue(outputStream.toString("UTF-8").contains(mockedPrompt));
+    }
+
+    @Test
+    public void doGet_SpeakerCookies_AsksForPromptForSpeaker() throws IOException {
+        when(request.getCookies()).thenReturn(new Cookie[] {
+            new Cookie("userId", "speaker"),
+            new Cookie("gender", "Female"),
+            new Cookie("userAge", "34"),
+            new Cookie("deviceType", "Mobile")
+        });
+        when(promptService.getOnePromptJson(any(SpeakerProfile.class)))
+            .thenReturn("{}".getBytes(StandardCharsets.UTF_8));
+        stubOutputStream(response);
+
+        servlet.doGet(request, response);
+
+        verify(promptService).getOnePromptJson(
+            argThat(speaker -> speaker.getBucket().equals("30-44|female|mobile")));
     }
 
     @Test
@@ -64,10 +88,11 @@ public class PromptServletTest extends Mockito {
 
         // Mock prompt response
         String mockedPrompt = gson.toJson(new Object());
-        when(promptService.getOnePrompt()).thenReturn(mockedPrompt);
+        when(promptService.getOnePromptJson(any(SpeakerProfile.class)))
+            .thenReturn(mockedPrompt.getBytes(StandardCharsets.UTF_8));
 
-        // Mock writer
-        StringWriter stringWriter = stubStringWriter(response);
+        // Mock output stream
+        ByteArrayOutputStream outputStream = stubOutputStream(response);
 
         // Call doGet
         servlet.doGet(request, response);
@@ -76,7 +101,7 @@ public class PromptServletTest extends Mockito {
         verify(response, atLeast(1)).setContentType("application/json");
 
         // Assert that empty prompt JSON is included in response
-        Assert.assertTrue(stringWriter.toString().contains(mockedPrompt));
+        Assert.assertTrue(outputStream.toString("UTF-8").contains(mockedPrompt));
     }
 
     @Test
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.speech.tools.voxetta.servlets;
+
+import com.google.appengine.api.blobstore.BlobstoreFailureException;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.speech.tools.voxetta.data.Prompt;
+import com.google.speech.tools.voxetta.data.Prompt.Type;
+import com.google.speech.tools.voxetta.data.SpeakerProfile;
+import com.google.speech.tools.voxetta.services.PromptService;
+import com.google.speech.tools.voxetta.services.UtteranceService;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static com.google.speech.tools.voxetta.testUtils.StringWriterStub.stubStringWriter;
+
+public class SessionStepServletTest extends Mockito {
+
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private PromptService promptService;
+    private UtteranceService utteranceService;
+    private SessionStepServlet servlet;
+
+    private final Gson gson = new Gson();
+
+    @Before
+    public void setUpMocks() {
+        request = Mockito.mock(HttpServletRequest.class);
+        response = Mockito.mock(HttpServletResponse.class);
+        promptService = Mockito.mock(PromptService.class);
+        utteranceService = Mockito.mock(UtteranceService.class);
+
+        servlet = new SessionStepServlet();
+        servlet.setPromptService(promptService);
+        servlet.setUtteranceService(utteranceService);
+        servlet.setExecutor(MoreExecutors.directExecutor());
+    }
+
+    private JsonObject doGet() throws IOException {
+        StringWriter stringWriter = stubStringWriter(response);
+        servlet.doGet(request, response);
+        verify(response, atLeast(1)).setContentType("application/json");
+        return JsonParser.parseString(stringWriter.toString()).getAsJsonObject();
+    }
+
+    @Test
+    public void doGet_PromptAndUrl_ReturnsBoth() throws IOException {
+        String mockedPrompt = gson.toJson(new Prompt(42312, Type.TEXT, "mocked body"));
+        when(promptService.getOnePromptJson(any(SpeakerProfile.class)))
+            .thenReturn(mockedPrompt.getBytes(StandardCharsets.UTF_8));
+        when(utteranceService.getAudioBlobUploadUrl()).thenReturn("url");
+
+        JsonObject step = doGet();
+
+        Assert.assertTrue(step.get("success").getAsBoolean());
+        Assert.assertEquals(JsonParser.parseString(mockedPrompt), step.get("prompt"));
+        Assert.assertEquals("url", step.get("uploadUrl").getAsString());
+    }
+
+    @Test
+    public void doGet_NoPromptsLeft_ReturnsEmptyPrompt() throws IOException {
+        when(promptService.getOnePromptJson(any(SpeakerProfile.class)))
+            .thenReturn(gson.toJson(new Object()).getBytes(StandardCharsets.UTF_8));
+        when(utteranceService.getAudioBlobUploadUrl()).thenReturn("url");
+
+        JsonObject step = doGet();
+
+        Assert.assertEquals(0, step.getAsJsonObject("prompt").size());
+    }
+
+    @Test
+    public void doGet_BlobstoreFailure_ReturnsPromptWithoutUrl() throws IOException {
+        String mockedPrompt = gson.toJson(new Prompt(42312, Type.TEXT, "mocked body"));
+        when(promptService.getOnePromptJson(any(SpeakerProfile.class)))
+            .thenReturn(mockedPrompt.getBytes(StandardCharsets.UTF_8));
+        when(utteranceService.getAudioBlobUploadUrl()).thenThrow(BlobstoreFailureException.class);
+
+        JsonObject step = doGet();
+
+        Assert.assertTrue(step.get("success").getAsBoolean());
+        Assert.assertEquals(JsonParser.parseString(mockedPrompt), step.get("prompt"));
+        Assert.assertTrue(step.get("uploadUrl").isJsonNull());
+    }
+}
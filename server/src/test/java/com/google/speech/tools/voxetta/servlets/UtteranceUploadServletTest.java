@@ -20,9 +20,21 @@ import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.speech.tools.voxetta.data.Utterance;
 import com.google.speech.tools.voxetta.data.ErrorResponse; 
 import com.google.speech.tools.voxetta.data.StatusResponse;
+import com.google.speech.tools.voxetta.services.PromptService;
 import com.google.speech.tools.voxetta.services.UtteranceService;
+import com.google.speech.tools.voxetta.utils.IdempotencyKeys;
 import java.io.StringWriter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -42,6 +54,7 @@ import org.mockito.Mockito;
 public final class UtteranceUploadServletTest extends Mockito {
 
   private UtteranceService service; 
+  private PromptService promptService;
   private UtteranceUploadServlet servlet; 
   private HttpServletRequest request; 
   private HttpServletResponse response;
@@ -57,6 +70,10 @@ public final class UtteranceUploadServletTest extends Mockito {
     servlet = new UtteranceUploadServlet();
     servlet.setService(service);
 
+    // Mock the Prompt Service used to confirm prompt leases
+    promptService = Mockito.mock(PromptService.class);
+    servlet.setPromptService(promptService);
+
     // Mock the request and response 
     request = mock(HttpServletRequest.class);       
     response = mock(HttpServletResponse.class);
@@ -109,4 +126,144 @@ public final class UtteranceUploadServletTest extends Mockito {
     Assert.assertTrue(stringWriter.toString().contains(
         new ErrorResponse(false, "Error: Failed to upload Utterance to Datastore.").toJson()));
   }
+
+  @Test
+  public void doPost_UploadWithPromptId_ConfirmsPromptLease() throws Exception {
+    when(service.getAudioBlob(request)).thenReturn("audioBlobKey");
+    when(request.getParameter("promptId")).thenReturn("42");
+    when(request.getParameter("leaseToken")).thenReturn("token");
+    when(service.saveUtterance(any(Utterance.class))).thenReturn(true);
+    stubStringWriter(response);
+
+    servlet.doPost(request, response);
+
+    // Verify the utterance references the prompt and the prompt's lease was confirmed for the
+    // speaker who recorded it, under the token it was handed out with
+    verify(service).saveUtterance(argThat(utterance -> utterance.getPromptId().equals("42")));
+    verify(promptService).confirmPrompt(eq(42L), eq("token"),
+        argThat(speaker -> speaker.getBucket().equals("60+|female|pixelbook")));
+  }
+
+  @Test
+  public void doPost_RetryOfSavedUpload_DoesNotConfirmPromptAgain() throws Exception {
+    when(service.getAudioBlob(request)).thenReturn("audioBlobKey");
+    when(request.getParameter("promptId")).thenReturn("42");
+    when(service.saveUtterance(any(Utterance.class))).thenReturn(false);
+    StringWriter stringWriter = stubStringWriter(response);
+
+    servlet.doPost(request, response);
+
+    // The retry still succeeds, but the recording was already counted for its prompt
+    Assert.assertTrue(stringWriter.toString().contains(new StatusResponse(true).toJson()));
+    verify(promptService, never()).confirmPrompt(anyLong(), any(), any());
+  }
+
+  @Test
+  public void doPost_UploadWithClientKey_SavesUnderUsersKey() throws Exception {
+    when(service.getAudioBlob(request)).thenReturn("audioBlobKey");
+    when(request.getParameter("idempotencyKey")).thenReturn("recording-1");
+    stubStringWriter(response);
+
+    servlet.doPost(request, response);
+
+    // Verify the utterance carries the key derived from the user and the client's key
+    verify(service).saveUtterance(argThat(utterance -> utterance.getIdempotencyKey()
+        .equals(IdempotencyKeys.fromClientKey("123456", "recording-1"))));
+  }
+
+  @Test
+  public void doPost_UploadWithoutClientKey_DerivesKeyFromRecording() throws Exception {
+    when(service.getAudioBlob(request)).thenReturn("audioBlobKey");
+    when(service.getAudioHash(request, "audioBlobKey")).thenReturn("md5hash");
+    when(request.getParameter("promptId")).thenReturn("42");
+    stubStringWriter(response);
+
+    servlet.doPost(request, response);
+
+    // Verify the utterance carries the key derived from the user, prompt and recording
+    verify(service).saveUtterance(argThat(utterance -> utterance.getIdempotencyKey()
+        .equals(IdempotencyKeys.fromRecording("123456", "42", "md5hash"))));
+  }
+
+  @Test
+  public void doPost_ConcurrentUploads_EachUtteranceKeepsItsOwnAudio() throws Exception {
+    final int uploads = 2000;
+
+    // Hands out each request's own blob key and records which audio every user's Utterance
+    // was saved with
+    Map<String, String> savedAudio = new ConcurrentHashMap<>();
+    servlet.setService(new UtteranceService() {
+      @Override
+      public boolean saveUtterance(Utterance utterance) {
+        savedAudio.put(utterance.getUserId(), utterance.getAudio());
+        return true;
+      }
+
+      @Override
+      public String getAudioBlob(HttpServletRequest request) {
+        return request.getParameter("audioKey");
+      }
+
+      @Override
+      public String getAudioHash(HttpServletRequest request, String audio) {
+        return null;
+      }
+
+      @Override
+      public String getAudioBlobUploadUrl() {
+        return "url";
+      }
+    });
+
+    // Mock every request and response up front, since stubbing is not thread-safe
+    List<HttpServletRequest> requests = new ArrayList<>();
+    List<HttpServletResponse> responses = new ArrayList<>();
+    List<StringWriter> writers = new ArrayList<>();
+    for (int i = 0; i < uploads; i++) {
+      Map<String, String> parameters = new HashMap<>();
+      parameters.put("audioKey", "blob-" + i);
+      parameters.put("userId", "user-" + i);
+      parameters.put("gender", "Female");
+      parameters.put("userAge", "20");
+      parameters.put("deviceType", "Pixelbook");
+
+      // Yield on every parameter read, so uploads interleave while they are being parsed
+      HttpServletRequest uploadRequest = mock(HttpServletRequest.class, invocation -> {
+        Thread.yield();
+        return invocation.getMethod().getName().equals("getParameter")
+            ? parameters.get(invocation.getArgument(0)) : null;
+      });
+      HttpServletResponse uploadResponse = mock(HttpServletResponse.class);
+
+      requests.add(uploadRequest);
+      responses.add(uploadResponse);
+      writers.add(stubStringWriter(uploadResponse));
+    }
+
+    // Release every upload at once through the one servlet instance
+    ExecutorService executor = Executors.newFixedThreadPool(32);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> results = new ArrayList<>();
+    for (int i = 0; i < uploads; i++) {
+      HttpServletRequest uploadRequest = requests.get(i);
+      HttpServletResponse uploadResponse = responses.get(i);
+      results.add(executor.submit(() -> {
+        start.await();
+        servlet.doPost(uploadRequest, uploadResponse);
+        return null;
+      }));
+    }
+    start.countDown();
+    for (Future<?> result : results) {
+      result.get(30, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    // Assert that every upload succeeded and its Utterance references its own audio
+    Assert.assertEquals(uploads, savedAudio.size());
+    for (int i = 0; i < uploads; i++) {
+      Assert.assertEquals("blob-" + i, savedAudio.get("user-" + i));
+      Assert.assertTrue(writers.get(i).toString().contains(new StatusResponse(true).toJson()));
+    }
+  }
 }
@@ -31,9 +31,9 @@ describe('Testing that the Prompt API Service ', () => {
         };
 
         // Mock successful fetch
-        fetchMock.mock('/prompt', {
+        fetchMock.mock('/session/next', {
             status: 200,
-            body: dummyPrompt,
+            body: {success: true, prompt: dummyPrompt, uploadUrl: 'blobstore.com'},
         });
 
         const answer = await PromptApi.getNewPrompt();
@@ -44,13 +44,25 @@ describe('Testing that the Prompt API Service ', () => {
         });
     });
 
+    it('hands out the upload URL that came with a prompt once', async () => {
+        fetchMock.mock('/session/next', {
+            status: 200,
+            body: {success: true, prompt: {id: 1}, uploadUrl: 'blobstore.com'},
+        });
+
+        await PromptApi.getNewPrompt();
+
+        expect(PromptApi.takeUploadUrl()).toEqual('blobstore.com');
+        expect(PromptApi.takeUploadUrl()).toBeUndefined();
+    });
+
     it('returns empty when no prompt exists', async () => {
         const dummyPrompt = {};
 
         // Mock successful empty fetch
-        fetchMock.mock('prompt', {
+        fetchMock.mock('/session/next', {
             status: 200,
-            body: dummyPrompt,
+            body: {success: true, prompt: dummyPrompt, uploadUrl: 'blobstore.com'},
         });
 
         const answer = await PromptApi.getNewPrompt();
@@ -59,4 +71,20 @@ describe('Testing that the Prompt API Service ', () => {
             status: 'EMPTY',
         });
     });
+
+    it('releases the current prompt with its lease token', async () => {
+        fetchMock.mock('/session/next', {
+            status: 200,
+            body: {success: true, prompt: {id: 7, leaseToken: 'abc123'}},
+        });
+        fetchMock.mock('/prompt/release', {status: 200, body: {success: true}});
+
+        await PromptApi.getNewPrompt();
+        await PromptApi.releaseCurrentPrompt();
+
+        const body = fetchMock.lastOptions('/prompt/release').body;
+        expect(body.get('id')).toEqual('7');
+        expect(body.get('leaseToken')).toEqual('abc123');
+        expect(PromptApi.getCurrentPromptId()).toBeUndefined();
+    });
 });
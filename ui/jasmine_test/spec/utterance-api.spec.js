@@ -79,12 +79,25 @@ describe('Testing that the Utterance API Service getFormData()', () => {
         deviceType: 'Pixelbook'
     };
 
-    it('appends the necessary five fields', () => {
+    it('appends the necessary eight fields', () => {
         cookieService.makeUserInfoCookie(userInfo);
         
         utteranceService.getFormData(audio);
-        expect(utteranceService.formData.append).toHaveBeenCalledTimes(5);
+        expect(utteranceService.formData.append).toHaveBeenCalledTimes(8);
     }); 
+
+    it('reuses the idempotency key when an upload is retried', () => {
+        const retriedAudio = {blob: {}, url: "blobstore.com"};
+
+        utteranceService.getFormData(retriedAudio);
+        const key = retriedAudio.idempotencyKey;
+        utteranceService.getFormData(retriedAudio);
+
+        expect(key).toBeTruthy();
+        expect(retriedAudio.idempotencyKey).toEqual(key);
+        expect(utteranceService.formData.append)
+            .toHaveBeenCalledWith('idempotencyKey', key);
+    });
 });
 
 describe('Testing that the Utterance API Service getUploadUrl()', () => {
@@ -18,6 +18,7 @@ import {LitElement, html} from 'lit-element';
 
 import {CookieService} from './utils/CookieService';
 import {UrlService} from './utils/UrlService';
+import {releaseCurrentPrompt} from './utils/PromptApiService';
 
 import Views from './utils/ViewsEnum';
 import * as ToastUtils from './utils/ToastUtils';
@@ -272,10 +273,11 @@ export class StateContainer extends LitElement {
     }
 
     /**
-     * Sets the collection state to transitioning,
-     * which triggers the prompt component to fetch a new prompt
+     * Releases the skipped prompt and sets the collection state to
+     * transitioning, which triggers the prompt component to fetch a new prompt
      */
     handleSkipPrompt() {
+        releaseCurrentPrompt();
         this.collectionState = CollectionStates.TRANSITIONING;
     }
 
@@ -14,23 +14,48 @@
  * limitations under the License.
  */
 
+// ID of the prompt currently shown to the user, if any, and the token that
+// lets this client release it.
+let currentPromptId;
+let currentLeaseToken;
+
+// Upload URL that came with the current prompt, and when it was received.
+let stepUploadUrl;
+let stepUploadUrlTime;
+
+// Upload URLs can be up to five minutes old when handed out and expire after
+// ten, so don't use one that has been held for longer than this.
+const STEP_UPLOAD_URL_MAX_AGE_MS = 4 * 60 * 1000;
+
+/**
+ * Fetches the next prompt, along with an upload URL for its recording.
+ * @return {Object} The prompt and a status of SUCCESS, EMPTY or FAILURE.
+ */
 const getNewPrompt = async () => {
     let resp;
     try {
-        resp = await fetch('/prompt');
+        resp = await fetch('/session/next');
     } catch (e) {
         return {
             status: 'FAILURE',
         };
     }
 
-    const prompt = await resp.json();
+    const step = await resp.json();
+    const prompt = step.prompt;
+
+    stepUploadUrl = step.uploadUrl;
+    stepUploadUrlTime = Date.now();
 
     if (Object.keys(prompt).length === 0) {
+        currentPromptId = undefined;
+        currentLeaseToken = undefined;
         return {
             status: 'EMPTY',
         };
     } else {
+        currentPromptId = prompt.id;
+        currentLeaseToken = prompt.leaseToken;
         return {
             status: 'SUCCESS',
             prompt,
@@ -38,19 +63,85 @@ const getNewPrompt = async () => {
     }
 };
 
+/**
+ * Resets every prompt to unread. The server resets prompts in time-boxed
+ * slices, so keep resuming from the returned cursor until it is done.
+ * @return {Object} The server's final progress report.
+ */
 const resetAllPromptsUnread = async () => {
-    let resp;
-    try {
-        resp = await fetch('/prompt/all', {method: 'POST'});
-    } catch (e) {
-        throw new Error(e);
+    let progress = {success: true, done: false, cursor: ''};
+
+    while (progress.success && !progress.done) {
+        const body = new URLSearchParams();
+        body.append('cursor', progress.cursor);
+
+        let resp;
+        try {
+            resp = await fetch('/prompt/all', {method: 'POST', body});
+        } catch (e) {
+            throw new Error(e);
+        }
+
+        progress = await resp.json();
     }
 
-    if (Object.keys(resp).length === 0) {
-        return resp;
-    } else {
-        return resp.body();
+    return progress;
+};
+
+/**
+ * @return {Number} The ID of the prompt currently shown to the user, or
+ * undefined if there is none.
+ */
+const getCurrentPromptId = () => currentPromptId;
+
+/**
+ * @return {String} The token the current prompt was handed out with, which
+ * lets this client confirm or release it, or undefined if there is none.
+ */
+const getCurrentLeaseToken = () => currentLeaseToken;
+
+/**
+ * Hands out the upload URL that came with the current prompt. Each URL can
+ * only be used once, so later calls return undefined until the next prompt.
+ * @return {String} An upload URL, or undefined if there is no fresh one.
+ */
+const takeUploadUrl = () => {
+    const url = stepUploadUrl;
+    stepUploadUrl = undefined;
+
+    if (Date.now() - stepUploadUrlTime > STEP_UPLOAD_URL_MAX_AGE_MS) {
+        return undefined;
     }
+    return url || undefined;
 };
 
-export {getNewPrompt, resetAllPromptsUnread};
+/**
+ * Gives the current prompt back so it can be shown to another user, e.g.
+ * when it is skipped.
+ */
+const releaseCurrentPrompt = async () => {
+    if (currentPromptId === undefined) {
+        return;
+    }
+
+    const body = new URLSearchParams();
+    body.append('id', currentPromptId);
+    body.append('leaseToken', currentLeaseToken || '');
+    currentPromptId = undefined;
+    currentLeaseToken = undefined;
+
+    try {
+        await fetch('/prompt/release', {method: 'POST', body});
+    } catch (e) {
+        // The prompt's lease expires on its own.
+    }
+};
+
+export {
+    getCurrentLeaseToken,
+    getCurrentPromptId,
+    getNewPrompt,
+    releaseCurrentPrompt,
+    resetAllPromptsUnread,
+    takeUploadUrl,
+};
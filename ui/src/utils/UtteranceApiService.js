@@ -15,6 +15,11 @@
  */
 
 import {CookieService} from './CookieService';
+import {
+    getCurrentLeaseToken,
+    getCurrentPromptId,
+    takeUploadUrl,
+} from './PromptApiService';
 
 /**
  * Service responsible for saving audio files to an external database.
@@ -64,22 +69,35 @@ export class UtteranceApiService {
     /**
      * Retrieve and return the user form data to upload.
      * @param {Object} audio - An object containing an audio Blob and its corresponding URL.
+     *  Given an idempotency key the first time, which every retry of its upload reuses, so
+     *  that the server saves it once.
      */
     getFormData(audio) {
+        if (!audio.idempotencyKey) {
+            audio.idempotencyKey = generateIdempotencyKey();
+        }
+
         this.formData = new FormData();
         this.formData.append('audio', audio.blob, 'blob');
         this.formData.append('userId', this.cookieService.getUserId());
         this.formData.append('gender', this.cookieService.getGender());
         this.formData.append('userAge', this.cookieService.getUserAge());
         this.formData.append('deviceType', this.cookieService.getDeviceType());
+        this.formData.append('promptId', getCurrentPromptId());
+        this.formData.append('leaseToken', getCurrentLeaseToken() || '');
+        this.formData.append('idempotencyKey', audio.idempotencyKey);
     }
 
     /**
-     * Retrieve and return a Blobstore upload link.
+     * Retrieve and return a Blobstore upload link, reusing the one that came
+     * with the current prompt when possible.
      * @returns {String} A Blobstore URL, or null if a 
      * URL was not able to be retrieved.
      */
     async getUploadUrl() {
+        const stepUrl = takeUploadUrl();
+        if (stepUrl) return stepUrl;
+
         let response; 
         try {
             response = await fetch('/blobstore-utterance-upload-link');
@@ -93,3 +111,15 @@ export class UtteranceApiService {
         return null; 
     }
 }
+
+/**
+ * Generate a key that identifies one recording's upload.
+ * @return {String} A random key.
+ */
+function generateIdempotencyKey() {
+    if (window.crypto && window.crypto.getRandomValues) {
+        const bytes = window.crypto.getRandomValues(new Uint8Array(16));
+        return Array.from(bytes, (b) => b.toString(16).padStart(2, '0')).join('');
+    }
+    return `${Date.now().toString(36)}-${Math.random().toString(36).slice(2)}`;
+}